@@ -1,15 +1,19 @@
 package com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme;
 
-import android.os.Parcelable;
+import java.io.Serializable;
 
 /**
  * Interface representing Authentication Schemes
  * It is implemented as an abstract class due to the access limitations of interfaces.
  * You cannot have an interface with package private methods
+ * Schemes are Serializable so they can be handed to the service process without depending on Android.
+ * The service's clients pass them in a ParcelableAuthenticationScheme.
  * Created by Scott on 4/21/2017.
  */
 
-public abstract class AuthenticationScheme implements Parcelable{
+public abstract class AuthenticationScheme implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     /**
      * Generate authentication byte string to be sent to server
      * @param challengeMessage Returned byte string from server. Null if first request.
@@ -29,12 +29,52 @@ public class Authenticator {
      * Request for more info. Value is 0x05
      */
     public static final byte AUTHTYPE_RSPMOREINFO = 0x05;
+    /**
+     * Separates the scheme name in a hello from the options that follow it.
+     * A server reading the name as a C string stops at it. Value is 0x00
+     */
+    public static final byte HELLO_OPTIONS_SEPARATOR = 0x00;
+    /**
+     * Option offering frame compression. The value is the codec. Value is 0x01
+     */
+    public static final int OPTION_COMPRESSION = 0x01;
+    /**
+     * Option advertising the largest frame accepted. The value is a four byte size. Value is 0x02
+     */
+    public static final int OPTION_MAX_FRAME_SIZE = 0x02;
+    /**
+     * Option advertising the most requests the server can hold at once. The value is a two byte count. Value is 0x03
+     * This client doesn't offer it, since it doesn't limit the requests it has outstanding.
+     */
+    public static final int OPTION_MAX_IN_FLIGHT = 0x03;
+    /**
+     * Option advertising the frame types understood. The value is one byte per type. Value is 0x04
+     */
+    public static final int OPTION_FRAME_TYPES = 0x04;
+    /**
+     * Option advertising the heartbeat interval. The value is a two byte interval in seconds. Value is 0x05
+     */
+    public static final int OPTION_HEARTBEAT = 0x05;
+    /**
+     * Option advertising the most requests the server unpacks from one batch frame. The value is a two byte count. Value is 0x06
+     */
+    public static final int OPTION_MAX_BATCH = 0x06;
+    /**
+     * Option marking the capability options as understood. The value is { role, version }: the client offers
+     * Capabilities.ROLE_CLIENT and a server that understands the options answers Capabilities.ROLE_SERVER,
+     * so a server that copies the client hello back isn't taken for one that agreed to it. Value is 0x07
+     */
+    public static final int OPTION_CAPABILITIES = 0x07;
 
     private enum AuthState { UNAUTHENTICATED, SCHEME_SELECTED, AUTHENTICATED }
 
     private AuthenticationScheme authScheme;
     private boolean isAuthenticated;
     private AuthState authState;
+    /** Options offered in the client hello, indexed by option type */
+    private byte[][] offeredOptions = new byte[256][];
+    /** Options the server accepted in its hello, indexed by option type */
+    private byte[][] acceptedOptions = new byte[256][];
 
     /**
      * Constructor to create an authenticator
@@ -56,6 +96,103 @@ public class Authenticator {
         return isAuthenticated;
     }
 
+    /**
+     * Return the authenticator to the unauthenticated state so the handshake can be run again on a new connection.
+     */
+    public void reset()
+    {
+        isAuthenticated = false;
+        authState = AuthState.UNAUTHENTICATED;
+        acceptedOptions = new byte[256][];
+    }
+
+    /**
+     * Offer an option to the server in the client hello. The hello only carries options if at least one is offered,
+     * so offer none to a server that doesn't know about them: such a server may reject the hello, or copy it back
+     * so that every option looks accepted.
+     * @param type The option type, 1 to 255.
+     * @param value The option value, up to 255 bytes, or null to stop offering the option.
+     */
+    public void setOption(int type, byte[] value)
+    {
+        if((type < 1) || (type > 255))
+            throw new IllegalArgumentException("Invalid option type: " + type);
+        if((value != null) && (value.length > 255))
+            throw new IllegalArgumentException("Option value too long: " + value.length);
+        offeredOptions[type] = value;
+    }
+
+    /**
+     * Get the value of an option the server accepted in its hello.
+     * Servers that don't know about options never accept any.
+     * @param type The option type.
+     * @return The value the server sent, or null if the option wasn't accepted.
+     */
+    public byte[] getAcceptedOption(int type)
+    {
+        if((type < 1) || (type > 255))
+            return null;
+        return acceptedOptions[type];
+    }
+
+    /**
+     * Get the size of the offered options as written in the client hello.
+     * @return The size in bytes, counting the separator, or 0 if nothing is offered.
+     */
+    private int getOptionsSize()
+    {
+        int size = 0;
+        for(int i = 1; i < offeredOptions.length; i++) {
+            if(offeredOptions[i] != null)
+                size += 2 + offeredOptions[i].length;
+        }
+        return (size > 0) ? size + 1 : 0;
+    }
+
+    /**
+     * Write the offered options as { type, length, value }, after a separator.
+     * @param out Buffer to write to.
+     * @param pos Position to write at. There must be getOptionsSize() bytes free.
+     */
+    private void writeOptions(byte[] out, int pos)
+    {
+        out[pos++] = HELLO_OPTIONS_SEPARATOR;
+        for(int i = 1; i < offeredOptions.length; i++) {
+            byte[] value = offeredOptions[i];
+            if(value == null)
+                continue;
+            out[pos++] = (byte)i;
+            out[pos++] = (byte)value.length;
+            System.arraycopy(value, 0, out, pos, value.length);
+            pos += value.length;
+        }
+    }
+
+    /**
+     * Read the options in a server hello. Only options that were offered are recorded.
+     * @param packet The server hello.
+     * @param pos Position of the first option, just past the separator.
+     * @throws InvalidAuthenticationMessageException If an option is truncated.
+     */
+    private void readOptions(byte[] packet, int pos) throws InvalidAuthenticationMessageException
+    {
+        while(pos < packet.length) {
+            if(packet.length - pos < 2)
+                throw new InvalidAuthenticationMessageException("Truncated option in server hello");
+            int type = packet[pos] & 0xFF;
+            int length = packet[pos + 1] & 0xFF;
+            pos += 2;
+            if(packet.length - pos < length)
+                throw new InvalidAuthenticationMessageException("Truncated option in server hello");
+            if((type != 0) && (offeredOptions[type] != null)) {
+                byte[] value = new byte[length];
+                System.arraycopy(packet, pos, value, 0, length);
+                acceptedOptions[type] = value;
+            }
+            pos += length;
+        }
+    }
+
     /**
      * Takes an auth packet from the socket and processes it.
      * @param packet The incoming packet or null if this is the first call.
@@ -72,13 +209,17 @@ public class Authenticator {
             try {
                 String schemeName = authScheme.getSchemeName();
                 byte[] nameBytes = schemeName.getBytes("US-ASCII");
-                rsp = new byte[nameBytes.length + 1];
+                rsp = new byte[nameBytes.length + 1 + getOptionsSize()];
 
                 //Set the packet type flag
                 rsp[0] = AUTHTYPE_CLIENT_HELLO;
 
                 //Add the name of the scheme
                 System.arraycopy(nameBytes, 0, rsp, 1, nameBytes.length);
+
+                //Add any options after the name
+                if(rsp.length > nameBytes.length + 1)
+                    writeOptions(rsp, nameBytes.length + 1);
             }catch(UnsupportedEncodingException e)
             {
                 throw new AuthenticationException("Unsupported encoding when building client hello");
@@ -97,10 +238,16 @@ public class Authenticator {
                 return null; //ToDo update server to close connection when it rejects the scheme.
 
             //Check that the scheme matches the one we requested.
-            //Note that the first byte in the packet is the type
+            //Note that the first byte in the packet is the type, and the name ends at the options, if there are any
+            int nameEnd = 1;
+            while((nameEnd < packet.length) && (packet[nameEnd] != HELLO_OPTIONS_SEPARATOR))
+                nameEnd++;
             try {
-                String respScheme = new String(packet, 1, packet.length - 1, "US-ASCII");
+                String respScheme = new String(packet, 1, nameEnd - 1, "US-ASCII");
                 if (respScheme.equals(authScheme.getSchemeName())) {
+                    acceptedOptions = new byte[256][];
+                    if(nameEnd < packet.length)
+                        readOptions(packet, nameEnd + 1);
                     authState = AuthState.SCHEME_SELECTED;
                     //Begin the authentication process. The first request always inserts null data.
                     byte[] response = authScheme.authenticate(null);
@@ -1,8 +1,5 @@
 package com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme;
 
-import android.os.Parcel;
-import android.os.Parcelable;
-
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -15,10 +12,12 @@ import java.util.TimeZone;
  * Created by Scott on 4/21/2017.
  */
 
-public class BasicSharedSecretScheme extends AuthenticationScheme implements Parcelable {
+public class BasicSharedSecretScheme extends AuthenticationScheme {
+    private static final long serialVersionUID = 1L;
+
     private String secret;
     private int id;
-    private TimeHelper helper;
+    private transient TimeHelper helper;
     private boolean isAuthenticated;
     public static final String schemeName = "SHARED_SECRET_SCHEME";
     public static final int SHA_256_LENGTH = 32; //256 bits = 32 bytes
@@ -51,6 +50,9 @@ public class BasicSharedSecretScheme extends AuthenticationScheme implements Par
         byte[] array = new byte[56];
         SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
         f.setTimeZone(TimeZone.getTimeZone("GMT"));
+        //The helper isn't serialized, so recreate it after the scheme is passed to the service.
+        if(helper == null)
+            helper = new TimeHelper();
         String dateString = f.format(helper.getCurrentTime());
         String s = secret + id + dateString;
         //System.out.println(s);
@@ -86,48 +88,6 @@ public class BasicSharedSecretScheme extends AuthenticationScheme implements Par
         }
     }
 
-    //Parcelable functions
-    @Override
-    public int describeContents()
-    {
-        return 0;
-    }
-
-    @Override
-    public void writeToParcel(Parcel out, int flags)
-    {
-        out.writeString(secret);
-        if(isAuthenticated)
-            out.writeInt(1);
-        else
-            out.writeInt(0);
-        out.writeInt(id);
-    }
-
-    public static final Parcelable.Creator<BasicSharedSecretScheme> CREATOR = new Parcelable.Creator<BasicSharedSecretScheme>() {
-        @Override
-        public BasicSharedSecretScheme createFromParcel(Parcel p) {
-            return new BasicSharedSecretScheme(p);
-        }
-
-        @Override
-        public BasicSharedSecretScheme[] newArray(int size) {
-            return new BasicSharedSecretScheme[size];
-        }
-    };
-
-    /**
-     * Constructor for creating from a parcel
-     * @param p Parcel to be referenced
-     */
-    private BasicSharedSecretScheme(Parcel p)
-    {
-        secret = p.readString();
-        isAuthenticated = p.readInt() == 1;
-        id = p.readInt();
-        helper = new TimeHelper();
-    }
-
     @Override
     public boolean equals(Object other)
     {
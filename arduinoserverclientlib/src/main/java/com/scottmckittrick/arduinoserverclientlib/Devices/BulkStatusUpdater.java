@@ -0,0 +1,207 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+import com.scottmckittrick.arduinoserverclientlib.Platform.Log;
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+import com.scottmckittrick.arduinoserverclientlib.TCPService.RequestEncoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Sends commands to many of a DeviceManager's lamps at once and applies the responses that carry their status.
+ * Lamps are updated without notifying their own listeners. Instead, the lamps that changed are collected and
+ * reported by the manager in one notification per response.
+ */
+
+class BulkStatusUpdater {
+    /** Size of a bulk status record */
+    private static final int STATUS_RECORD_SIZE = 6;
+    /** Size of a multiple solid color record */
+    private static final int COLOR_RECORD_SIZE = 4;
+    /** Largest number of records in one multiple solid color command */
+    private static final int MAX_COLOR_RECORDS = 255;
+
+    /** The manager whose lamps are updated */
+    private DeviceManager deviceManager;
+    /** Lamps changed by the response being applied. Reused between responses. */
+    private ArrayList<BasicDevice> changed;
+    /** Encodes lamp colors for the manager's frame receiver. Locked while in use, since colors may be sent from any thread. */
+    private final RequestEncoder colorEncoder = new RequestEncoder(1 + MAX_COLOR_RECORDS * COLOR_RECORD_SIZE + 16);
+
+    /**
+     * Create an updater for a manager.
+     * @param deviceManager The manager whose lamps are updated.
+     */
+    BulkStatusUpdater(DeviceManager deviceManager)
+    {
+        this.deviceManager = deviceManager;
+        changed = new ArrayList<>();
+    }
+
+    /**
+     * Ask the server for the status of every device in a single response.
+     */
+    void refreshAllStatus()
+    {
+        deviceManager.sendRequest(new RequestObject(0, DeviceManager.DEV_GET_STATUS_ALL, null));
+    }
+
+    /**
+     * Apply a bulk status response to every device it covers.
+     * @param r The response. Records are read straight out of its buffer.
+     */
+    void applyAllStatus(RequestObject r)
+    {
+        if(r.getDataLength() == 0) {
+            Log.e(DeviceManager.TAG, "Server sent empty bulk status");
+            return;
+        }
+
+        int count = r.getUnsignedByte(0);
+        if(r.getDataLength() < 1 + count * STATUS_RECORD_SIZE) {
+            Log.e(DeviceManager.TAG, "Bulk status is too short for " + count + " records");
+            return;
+        }
+
+        changed.clear();
+        for(int i = 0, index = 1; i < count; i++, index += STATUS_RECORD_SIZE) {
+            RGBLampDevice lamp = findLamp(r.getUnsignedByte(index));
+            if((lamp != null) && lamp.parseStatus(r, index + 1, STATUS_RECORD_SIZE - 1, false))
+                changed.add(lamp);
+        }
+        deviceManager.notifyStatusChanged(changed);
+    }
+
+    /**
+     * Send a group command built by a DeviceGroup.
+     * @param payload The DEV_GROUP_CMD data.
+     */
+    void sendGroupCommand(byte[] payload)
+    {
+        deviceManager.sendRequest(new RequestObject(0, DeviceManager.DEV_GROUP_CMD, payload));
+    }
+
+    /**
+     * Apply a group command response to every device it covers.
+     * @param r The response.
+     */
+    void applyGroupStatus(RequestObject r)
+    {
+        if(r.getDataLength() < 3) {
+            Log.e(DeviceManager.TAG, "Server sent invalid group response");
+            return;
+        }
+
+        int count = r.getUnsignedByte(2);
+        int argOffset = 3 + count;
+        int argLength = r.getDataLength() - argOffset;
+        if((argLength < 0) || (argLength > 3)) {
+            Log.e(DeviceManager.TAG, "Group response has the wrong length for " + count + " devices");
+            return;
+        }
+
+        //Every member gets the same status, so decode it once
+        short command = r.getShort(0);
+        int args = 0;
+        for(int i = 0; i < 3; i++)
+            args = (args << 8) | ((i < argLength) ? r.getUnsignedByte(argOffset + i) : 0);
+
+        changed.clear();
+        for(int i = 3; i < argOffset; i++) {
+            RGBLampDevice lamp = findLamp(r.getUnsignedByte(i));
+            if((lamp != null) && lamp.applyStatus(command, args, argLength, false))
+                changed.add(lamp);
+        }
+        deviceManager.notifyStatusChanged(changed);
+    }
+
+    /**
+     * Set many lamps to their own solid colors.
+     * With a frame receiver, the colors are encoded straight from the arrays into DEV_MULTI_SOLID frames and handed over
+     * in one call, with nothing allocated. Otherwise each frame's worth of lamps is sent as a RequestObject.
+     * @param addresses Device addresses of the lamps.
+     * @param colors Colors packed as 0xRRGGBB, matching the addresses.
+     * @param offset Index of the first lamp in the arrays.
+     * @param count Number of lamps.
+     */
+    void sendLampColors(int[] addresses, int[] colors, int offset, int count)
+    {
+        RequestObject.FrameReceiver receiver = deviceManager.getFrameReceiver();
+        int end = offset + count;
+        if(receiver == null) {
+            while(offset < end) {
+                int n = Math.min(MAX_COLOR_RECORDS, end - offset);
+                byte[] payload = new byte[1 + n * COLOR_RECORD_SIZE];
+                payload[0] = (byte)n;
+                for(int i = 0, index = 1; i < n; i++, index += COLOR_RECORD_SIZE) {
+                    int c = colors[offset + i];
+                    payload[index] = (byte)addresses[offset + i];
+                    payload[index + 1] = (byte)(c >> 16);
+                    payload[index + 2] = (byte)(c >> 8);
+                    payload[index + 3] = (byte)c;
+                }
+                deviceManager.sendRequest(new RequestObject(0, DeviceManager.DEV_MULTI_SOLID, payload));
+                offset += n;
+            }
+            return;
+        }
+
+        synchronized(colorEncoder) {
+            while(offset < end) {
+                int n = Math.min(MAX_COLOR_RECORDS, end - offset);
+                ByteBuffer buf = colorEncoder.begin(0, DeviceManager.DEV_MULTI_SOLID, 1 + n * COLOR_RECORD_SIZE);
+                buf.put((byte)n);
+                for(int i = offset; i < offset + n; i++) {
+                    int c = colors[i];
+                    buf.put((byte)addresses[i]);
+                    buf.put((byte)(c >> 16));
+                    buf.put((byte)(c >> 8));
+                    buf.put((byte)c);
+                }
+                colorEncoder.commit();
+                offset += n;
+            }
+            colorEncoder.flushTo(receiver);
+        }
+    }
+
+    /**
+     * Apply a multiple solid color response to every lamp it covers.
+     * @param r The response.
+     */
+    void applyLampColors(RequestObject r)
+    {
+        if(r.getDataLength() == 0) {
+            Log.e(DeviceManager.TAG, "Server sent empty color response");
+            return;
+        }
+
+        int count = r.getUnsignedByte(0);
+        if(r.getDataLength() < 1 + count * COLOR_RECORD_SIZE) {
+            Log.e(DeviceManager.TAG, "Color response is too short for " + count + " records");
+            return;
+        }
+
+        changed.clear();
+        for(int i = 0, index = 1; i < count; i++, index += COLOR_RECORD_SIZE) {
+            RGBLampDevice lamp = findLamp(r.getUnsignedByte(index));
+            if(lamp == null)
+                continue;
+            int color = (r.getUnsignedByte(index + 1) << 16) | (r.getUnsignedByte(index + 2) << 8) | r.getUnsignedByte(index + 3);
+            if(lamp.applyStatus(RGBLampDevice.CMD_LAMP_SOLID, color, 3, false))
+                changed.add(lamp);
+        }
+        deviceManager.notifyStatusChanged(changed);
+    }
+
+    /**
+     * Look up the lamp at an address.
+     * @param address The device address.
+     * @return The lamp, or null if there is no lamp at the address.
+     */
+    private RGBLampDevice findLamp(int address)
+    {
+        BasicDevice d = deviceManager.findDeviceByAddress(address);
+        return (d instanceof RGBLampDevice) ? (RGBLampDevice)d : null;
+    }
+}
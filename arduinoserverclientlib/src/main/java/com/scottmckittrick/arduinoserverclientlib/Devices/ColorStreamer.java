@@ -0,0 +1,261 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+import com.scottmckittrick.arduinoserverclientlib.Platform.Log;
+import com.scottmckittrick.arduinoserverclientlib.TCPService.FrameSlot;
+import com.scottmckittrick.arduinoserverclientlib.TCPService.RequestEncoder;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams colors to a lamp or group of lamps at a fixed frame rate.
+ * Frames are sent by a pacing thread that runs on absolute deadlines from System.nanoTime(), so rate errors don't add up.
+ * Only the newest frame is kept: a frame submitted before the previous one was sent replaces it and is counted as dropped.
+ * Frames can also be pulled from a FrameSource.
+ * With a FrameSlot set, frames are put in the slot instead of being sent as commands, so the newest frame is also the
+ * only one waiting in the outbound path. A frame the connection hasn't taken from the slot yet is replaced and counted
+ * as dropped, so a producer running faster than the link never builds a backlog.
+ * A frame with the same color as the last one sent is not sent again.
+ */
+
+public class ColorStreamer {
+    private static final String TAG = "ColorStreamer";
+
+    /** Marks the absence of a frame */
+    public static final int NO_FRAME = -1;
+
+    /** Weight of each new sample in the running averages */
+    private static final double AVERAGE_WEIGHT = 0.05;
+
+    /** Lamps the frames are sent to */
+    private LampCommandTarget target;
+    /** Time between frames in nanoseconds */
+    private final long periodNanos;
+    /** Optional source pulled for each frame */
+    private volatile FrameSource source;
+    /** Optional slot frames are put in instead of being sent */
+    private volatile FrameSlot frameSlot;
+    /** Frame being put in the slot. Only used on the pacing thread. */
+    private final RequestEncoder slotFrame = new RequestEncoder(16);
+    /** Newest submitted frame not yet sent, or NO_FRAME */
+    private final AtomicInteger pending = new AtomicInteger(NO_FRAME);
+    /** The pacing thread */
+    private Thread thread;
+    /** True while streaming */
+    private volatile boolean running;
+
+    /** Color of the last frame sent, or NO_FRAME */
+    private int lastSent = NO_FRAME;
+    /** Time the last frame was sent */
+    private long lastSendNanos;
+    /** Number of frames sent */
+    private volatile long sentFrames;
+    /** Number of frames replaced before they were sent, by a newer submitted frame or in the slot */
+    private final AtomicInteger droppedFrames = new AtomicInteger();
+    /** Number of frame slots missed because the pacing thread fell behind */
+    private volatile long missedSlots;
+    /** Average time between sent frames in nanoseconds */
+    private volatile double averageIntervalNanos;
+    /** Average distance between a frame's deadline and when it was sent, in nanoseconds */
+    private volatile double averageJitterNanos;
+
+    /**
+     * Create a streamer
+     * @param target Lamp or group the frames are sent to.
+     * @param framesPerSecond Target frame rate.
+     */
+    public ColorStreamer(LampCommandTarget target, int framesPerSecond)
+    {
+        if(framesPerSecond <= 0)
+            throw new IllegalArgumentException("Frame rate must be positive");
+        this.target = target;
+        periodNanos = 1000000000L / framesPerSecond;
+    }
+
+    /**
+     * Set a source to pull a frame from at each deadline. Submitted frames take priority over the source.
+     * @param s The source, or null to only send submitted frames.
+     */
+    public void setFrameSource(FrameSource s)
+    {
+        source = s;
+    }
+
+    /**
+     * Set the slot frames are put in, such as one added to a server with ServerEngine.addFrameSlot().
+     * @param s The slot, or null to send frames as lamp commands.
+     */
+    public void setFrameSlot(FrameSlot s)
+    {
+        frameSlot = s;
+    }
+
+    /**
+     * Submit a frame to be sent at the next deadline. May be called from any thread.
+     * If the previous frame hasn't been sent yet it is dropped.
+     * @param r Red color value 0-255
+     * @param g Green color value 0-255
+     * @param b Blue color value 0-255
+     */
+    public void submitFrame(int r, int g, int b)
+    {
+        int color = ((r & 0xFF) << 16) | ((g & 0xFF) << 8) | (b & 0xFF);
+        if(pending.getAndSet(color) != NO_FRAME)
+            droppedFrames.incrementAndGet();
+    }
+
+    /**
+     * Start streaming.
+     */
+    public synchronized void start()
+    {
+        if(running)
+            return;
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pace();
+            }
+        }, TAG);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop streaming and wait for the pacing thread to finish.
+     */
+    public synchronized void stop()
+    {
+        if(!running)
+            return;
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    /**
+     * Get the number of frames sent.
+     * @return The frame count.
+     */
+    public long getSentFrames() { return sentFrames; }
+
+    /**
+     * Get the number of frames that were replaced by a newer frame before they could be sent, either while waiting
+     * for their deadline or while waiting in the frame slot.
+     * @return The dropped frame count.
+     */
+    public int getDroppedFrames() { return droppedFrames.get(); }
+
+    /**
+     * Get the number of frame deadlines skipped because the pacing thread fell behind.
+     * @return The missed deadline count.
+     */
+    public long getMissedSlots() { return missedSlots; }
+
+    /**
+     * Get the achieved frame rate, averaged over recent frames.
+     * @return Frames per second, or 0 before two frames have been sent.
+     */
+    public double getAchievedFps()
+    {
+        double interval = averageIntervalNanos;
+        return (interval > 0) ? 1e9 / interval : 0;
+    }
+
+    /**
+     * Get the average distance between a frame's deadline and when it was sent.
+     * @return The jitter in milliseconds.
+     */
+    public double getJitterMs()
+    {
+        return averageJitterNanos / 1e6;
+    }
+
+    /**
+     * Body of the pacing thread.
+     */
+    private void pace()
+    {
+        long deadline = System.nanoTime() + periodNanos;
+        while(running) {
+            long now = System.nanoTime();
+            while((now < deadline) && running) {
+                LockSupport.parkNanos(this, deadline - now);
+                now = System.nanoTime();
+            }
+            if(!running)
+                break;
+
+            sendFrame(deadline, now);
+
+            //Skip the deadlines we have already missed instead of sending a burst to catch up
+            deadline += periodNanos;
+            now = System.nanoTime();
+            if(now - deadline > periodNanos) {
+                long missed = (now - deadline) / periodNanos;
+                missedSlots += missed;
+                deadline += missed * periodNanos;
+            }
+        }
+    }
+
+    /**
+     * Send the frame for a deadline, if there is a new one.
+     * @param deadline The deadline of the frame.
+     * @param now The current time.
+     */
+    private void sendFrame(long deadline, long now)
+    {
+        int color = pending.getAndSet(NO_FRAME);
+        FrameSource s = source;
+        if((color == NO_FRAME) && (s != null))
+            color = s.nextFrame(deadline);
+        if((color == NO_FRAME) || (color == lastSent))
+            return;
+
+        try {
+            FrameSlot slot = frameSlot;
+            if(slot != null) {
+                slotFrame.clear();
+                target.encodeLampSolid(slotFrame, (color >> 16) & 0xFF, (color >> 8) & 0xFF, color & 0xFF);
+                if((slotFrame.size() > 0) && slot.put(slotFrame.array(), 0, slotFrame.size()))
+                    droppedFrames.incrementAndGet();
+            } else {
+                target.setLampSolid((color >> 16) & 0xFF, (color >> 8) & 0xFF, color & 0xFF);
+            }
+        } catch(RuntimeException e) {
+            Log.e(TAG, "Unable to send frame: " + e.getMessage());
+            return;
+        }
+        lastSent = color;
+        sentFrames++;
+
+        double jitter = Math.abs(now - deadline);
+        averageJitterNanos += (jitter - averageJitterNanos) * AVERAGE_WEIGHT;
+        if(lastSendNanos != 0) {
+            double interval = now - lastSendNanos;
+            averageIntervalNanos = (averageIntervalNanos == 0) ? interval
+                    : averageIntervalNanos + (interval - averageIntervalNanos) * AVERAGE_WEIGHT;
+        }
+        lastSendNanos = now;
+    }
+
+    /**
+     * Supplies frames to a streamer on demand.
+     */
+    public interface FrameSource {
+        /**
+         * Called on the pacing thread at each frame deadline that has no submitted frame.
+         * @param frameTimeNanos The deadline of the frame, on the System.nanoTime() clock.
+         * @return The color packed as 0xRRGGBB, or NO_FRAME to send nothing.
+         */
+        int nextFrame(long frameTimeNanos);
+    }
+}
@@ -0,0 +1,117 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+import com.scottmckittrick.arduinoserverclientlib.Platform.Scheduler;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Collects device change notifications over a time window and delivers them as one batch.
+ * Place it between devices and a listener to turn a burst of status responses into a single update per frame.
+ * Each device appears at most once per batch. Listeners that need every event should be registered with the devices directly instead.
+ * The batch list is reused, so the listener must not keep it after the callback returns. With a window of 0 the listener
+ * gets its own copy of each list instead, since devices may reuse the lists they pass in.
+ */
+
+public class DeviceChangeCoalescer implements DeviceChangeListener {
+    /** Default window, roughly one display frame */
+    public static final long DEFAULT_WINDOW_MS = 16;
+
+    /** Scheduler for the thread batches are delivered on */
+    private Scheduler scheduler;
+    /** Length of the window in milliseconds */
+    private long windowMs;
+    /** Listener receiving the batches */
+    private DeviceChangeListener target;
+
+    /** Devices changed in the current window */
+    private ArrayList<BasicDevice> pending;
+    /** Membership of the pending list. IdentityHashMap stores entries inline so adding to it doesn't allocate. */
+    private IdentityHashMap<BasicDevice, Boolean> pendingSet;
+    /** List handed to the target. Swapped with pending on each flush. */
+    private ArrayList<BasicDevice> delivering;
+    /** True if a flush is scheduled */
+    private boolean scheduled;
+    /** Task that delivers the current batch */
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Create a coalescer with the default window.
+     * @param scheduler Scheduler for the thread batches are delivered on.
+     * @param target Listener receiving the batches.
+     */
+    public DeviceChangeCoalescer(Scheduler scheduler, DeviceChangeListener target)
+    {
+        this(scheduler, DEFAULT_WINDOW_MS, target);
+    }
+
+    /**
+     * Create a coalescer
+     * @param scheduler Scheduler for the thread batches are delivered on.
+     * @param windowMs Length of the window in milliseconds. 0 passes every change straight through.
+     * @param target Listener receiving the batches.
+     */
+    public DeviceChangeCoalescer(Scheduler scheduler, long windowMs, DeviceChangeListener target)
+    {
+        this.scheduler = scheduler;
+        this.windowMs = windowMs;
+        this.target = target;
+        pending = new ArrayList<>();
+        delivering = new ArrayList<>();
+        pendingSet = new IdentityHashMap<>();
+    }
+
+    /**
+     * Record changed devices. The first change in a window schedules delivery at the end of the window.
+     * May be called from any thread.
+     * @param changedDevices List of devices that changed.
+     */
+    @Override
+    public void onDeviceChange(ArrayList<BasicDevice> changedDevices)
+    {
+        if(windowMs <= 0) {
+            target.onDeviceChange(new ArrayList<>(changedDevices));
+            return;
+        }
+
+        synchronized (this) {
+            for(int i = 0; i < changedDevices.size(); i++) {
+                BasicDevice d = changedDevices.get(i);
+                if(pendingSet.put(d, Boolean.TRUE) == null)
+                    pending.add(d);
+            }
+
+            if(scheduled || pending.isEmpty())
+                return;
+            scheduled = true;
+        }
+        scheduler.postDelayed(flushTask, windowMs);
+    }
+
+    /**
+     * Deliver the current batch now instead of waiting for the window to end.
+     * Must be called on the scheduler's thread.
+     */
+    public void flush()
+    {
+        synchronized (this) {
+            scheduler.removeCallbacks(flushTask);
+            scheduled = false;
+            if(pending.isEmpty())
+                return;
+
+            ArrayList<BasicDevice> tmp = delivering;
+            delivering = pending;
+            pending = tmp;
+            pendingSet.clear();
+        }
+
+        target.onDeviceChange(delivering);
+        delivering.clear();
+    }
+}
@@ -0,0 +1,146 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+/**
+ * Describes which fields of a device changed, with their old and new values.
+ * Colors are packed as 0xRRGGBB so no arrays are needed.
+ * Event objects are reused by the sender and are only valid for the duration of the callback.
+ */
+
+public final class DeviceChangeEvent {
+    /** The lamp state changed */
+    public static final int FIELD_STATE = 0x01;
+    /** The lamp color changed */
+    public static final int FIELD_COLOR = 0x02;
+    /** The fade or cycle interval changed */
+    public static final int FIELD_INTERVAL = 0x04;
+    /** The device name changed */
+    public static final int FIELD_NAME = 0x08;
+    /** The device was added to or removed from the device list */
+    public static final int FIELD_PRESENCE = 0x10;
+
+    /** The device that changed */
+    private BasicDevice device;
+    /** Bitmask of the fields that changed */
+    private int changedFields;
+    /** State values */
+    private int oldState, newState;
+    /** Interval values */
+    private int oldInterval, newInterval;
+    /** Color values packed as 0xRRGGBB */
+    private int oldColor, newColor;
+    /** Name values */
+    private String oldName, newName;
+    /** True if the device is in the device list after the change */
+    private boolean present;
+
+    DeviceChangeEvent() {}
+
+    /**
+     * Clear the event for a new change.
+     * @param d The device that changed.
+     */
+    void reset(BasicDevice d)
+    {
+        device = d;
+        changedFields = 0;
+        oldName = null;
+        newName = null;
+        present = true;
+    }
+
+    /**
+     * Record the lamp fields, marking those whose values differ.
+     */
+    void setLampFields(int oldState, int newState, int oldInterval, int newInterval, int oldColor, int newColor)
+    {
+        this.oldState = oldState;
+        this.newState = newState;
+        this.oldInterval = oldInterval;
+        this.newInterval = newInterval;
+        this.oldColor = oldColor;
+        this.newColor = newColor;
+        if(oldState != newState)
+            changedFields |= FIELD_STATE;
+        if(oldInterval != newInterval)
+            changedFields |= FIELD_INTERVAL;
+        if(oldColor != newColor)
+            changedFields |= FIELD_COLOR;
+    }
+
+    /**
+     * Record a name change.
+     */
+    void setName(String oldName, String newName)
+    {
+        this.oldName = oldName;
+        this.newName = newName;
+        changedFields |= FIELD_NAME;
+    }
+
+    /**
+     * Record that the device was added or removed.
+     * @param present True if the device was added, false if it was removed.
+     */
+    void setPresence(boolean present)
+    {
+        this.present = present;
+        changedFields |= FIELD_PRESENCE;
+    }
+
+    /**
+     * Get the device that changed.
+     * @return The device.
+     */
+    public BasicDevice getDevice() { return device; }
+
+    /**
+     * Get the fields that changed.
+     * @return Bitmask of FIELD_* values.
+     */
+    public int getChangedFields() { return changedFields; }
+
+    /**
+     * Check whether any of a set of fields changed.
+     * @param fields Bitmask of FIELD_* values.
+     * @return True if at least one of the fields changed.
+     */
+    public boolean hasChanged(int fields) { return (changedFields & fields) != 0; }
+
+    public int getOldState() { return oldState; }
+
+    public int getNewState() { return newState; }
+
+    public int getOldInterval() { return oldInterval; }
+
+    public int getNewInterval() { return newInterval; }
+
+    /**
+     * Get the color before the change.
+     * @return Color packed as 0xRRGGBB.
+     */
+    public int getOldColor() { return oldColor; }
+
+    /**
+     * Get the color after the change.
+     * @return Color packed as 0xRRGGBB.
+     */
+    public int getNewColor() { return newColor; }
+
+    /**
+     * Get the name before the change.
+     * @return The old name, or null if the name didn't change.
+     */
+    public String getOldName() { return oldName; }
+
+    /**
+     * Get the name after the change.
+     * @return The new name, or null if the name didn't change.
+     */
+    public String getNewName() { return newName; }
+
+    /**
+     * Check whether the device is in the device list after the change.
+     * @return False if the device was removed.
+     */
+    public boolean isPresent() { return present; }
+}
@@ -0,0 +1,15 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+/**
+ * Interface for receiving field level change notifications from devices.
+ * Unlike DeviceChangeListener, it is only called when a field actually changed, and says which.
+ */
+
+public interface DeviceFieldChangeListener {
+    /**
+     * Called when one or more fields of a device changed.
+     * The event is reused by the caller, so it must not be kept after the call returns.
+     * @param e Description of the change.
+     */
+    void onDeviceFieldsChanged(DeviceChangeEvent e);
+}
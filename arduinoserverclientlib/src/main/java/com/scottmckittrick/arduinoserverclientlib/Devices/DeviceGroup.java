@@ -0,0 +1,203 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+import com.scottmckittrick.arduinoserverclientlib.TCPService.RequestEncoder;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A group of lamps on one server that are commanded together.
+ * Each command is sent as a single DEV_GROUP_CMD frame carrying the member addresses, so the server applies it to
+ * every lamp at once instead of one request per lamp. The server's response updates every member and is reported
+ * in one change notification.
+ * <p>
+ * A group is safe to use from several threads. Membership changes are serialized on the group and publish a new
+ * array of addresses, and each command is encoded from one read of that array, so a color stream can keep sending
+ * while lamps are added or removed and every frame's count matches the addresses it carries.
+ */
+
+public class DeviceGroup implements LampCommandTarget {
+    /** Largest number of members, since the count is one byte on the wire */
+    public static final int MAX_MEMBERS = 255;
+
+    /** Device manager of the server the lamps belong to */
+    private DeviceManager deviceManager;
+    /** Name of the group */
+    private String name;
+    /** Member addresses in ascending order. Never modified once published, only replaced. */
+    private volatile int[] addresses = new int[0];
+
+    /**
+     * Create an empty group
+     * @param deviceManager Device manager of the server the lamps belong to.
+     * @param name Name of the group.
+     */
+    public DeviceGroup(DeviceManager deviceManager, String name)
+    {
+        this.deviceManager = deviceManager;
+        this.name = name;
+    }
+
+    /**
+     * Get the name of the group.
+     * @return The group name.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Add a device to the group.
+     * @param d The device.
+     */
+    public synchronized void add(BasicDevice d)
+    {
+        int address = d.getDeviceAddr() & 0xFF;
+        int[] current = addresses;
+        int index = Arrays.binarySearch(current, address);
+        if(index >= 0)
+            return;
+        if(current.length == MAX_MEMBERS)
+            throw new IllegalStateException("Group " + name + " is full");
+
+        //Insert keeping the addresses sorted
+        index = -index - 1;
+        int[] next = new int[current.length + 1];
+        System.arraycopy(current, 0, next, 0, index);
+        next[index] = address;
+        System.arraycopy(current, index, next, index + 1, current.length - index);
+        addresses = next;
+    }
+
+    /**
+     * Remove a device from the group.
+     * @param d The device.
+     */
+    public synchronized void remove(BasicDevice d)
+    {
+        int[] current = addresses;
+        int index = Arrays.binarySearch(current, d.getDeviceAddr() & 0xFF);
+        if(index < 0)
+            return;
+
+        int[] next = new int[current.length - 1];
+        System.arraycopy(current, 0, next, 0, index);
+        System.arraycopy(current, index + 1, next, index, next.length - index);
+        addresses = next;
+    }
+
+    /**
+     * Check whether a device is in the group.
+     * @param d The device.
+     * @return True if the device is a member.
+     */
+    public boolean contains(BasicDevice d)
+    {
+        return Arrays.binarySearch(addresses, d.getDeviceAddr() & 0xFF) >= 0;
+    }
+
+    /**
+     * Get the number of devices in the group.
+     * @return The member count.
+     */
+    public int size()
+    {
+        return addresses.length;
+    }
+
+    /**
+     * Get the addresses of the members in ascending order.
+     * @return Array of device addresses.
+     */
+    public int[] getAddresses()
+    {
+        return addresses.clone();
+    }
+
+    /**
+     * Create a streamer that sends a steady flow of colors to every lamp in the group.
+     * @param framesPerSecond Target frame rate.
+     * @return The streamer. Call start() to begin sending.
+     */
+    public ColorStreamer createColorStreamer(int framesPerSecond)
+    {
+        return new ColorStreamer(this, framesPerSecond);
+    }
+
+    @Override
+    public void turnLampOff()
+    {
+        send(RGBLampDevice.CMD_LAMP_OFF, 0, 0, 0);
+    }
+
+    @Override
+    public void setLampSolid(int r, int g, int b)
+    {
+        send(RGBLampDevice.CMD_LAMP_SOLID, 3, (r & 0xFF) << 16 | (g & 0xFF) << 8 | (b & 0xFF), 0);
+    }
+
+    @Override
+    public void encodeLampSolid(RequestEncoder out, int r, int g, int b)
+    {
+        //Read the membership once so the count and addresses agree. An empty group has nothing to send, as in send()
+        int[] targets = addresses;
+        if(targets.length == 0)
+            return;
+
+        ByteBuffer buf = out.begin(0, DeviceManager.DEV_GROUP_CMD, 3 + targets.length + 3);
+        buf.putShort(RGBLampDevice.CMD_LAMP_SOLID);
+        buf.put((byte)targets.length);
+        for(int address : targets)
+            buf.put((byte)address);
+        buf.put((byte)r);
+        buf.put((byte)g);
+        buf.put((byte)b);
+        out.commit();
+    }
+
+    @Override
+    public void setLampFade(int interval)
+    {
+        send(RGBLampDevice.CMD_LAMP_FADE, 2, 0, interval);
+    }
+
+    @Override
+    public void setLampCycle(int interval)
+    {
+        send(RGBLampDevice.CMD_LAMP_CYCLE, 2, 0, interval);
+    }
+
+    /**
+     * Encode a group command and send it.
+     * The payload is { command(2), count, addresses..., args... }.
+     * @param command The lamp command.
+     * @param argLength Length of the arguments: 0 for off, 3 for a color or 2 for an interval.
+     * @param color The color packed as 0xRRGGBB, used when argLength is 3.
+     * @param interval The interval, used when argLength is 2.
+     */
+    private void send(short command, int argLength, int color, int interval)
+    {
+        //Read the membership once so the count and addresses agree
+        int[] targets = addresses;
+        if(targets.length == 0)
+            return;
+
+        byte[] payload = new byte[3 + targets.length + argLength];
+        int index = 0;
+        payload[index++] = (byte)(command >> 8);
+        payload[index++] = (byte)command;
+        payload[index++] = (byte)targets.length;
+        for(int address : targets)
+            payload[index++] = (byte)address;
+        if(argLength == 3) {
+            payload[index++] = (byte)(color >> 16);
+            payload[index++] = (byte)(color >> 8);
+            payload[index] = (byte)color;
+        } else if(argLength == 2) {
+            payload[index++] = (byte)(interval >> 8);
+            payload[index] = (byte)interval;
+        }
+        deviceManager.sendGroupCommand(payload);
+    }
+}
@@ -0,0 +1,106 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+/**
+ * Parser for the device list sent in DEV_GET_INFO_RSP and for the device entries of DEV_SYNC_RSP deltas.
+ * The list is one count byte followed by entries of { length, address, type, id, name... }.
+ * Entries are handed to an EntryHandler straight out of the buffer they arrive in, so names are never copied unless the handler needs them.
+ * A list always arrives whole in one reassembled frame, so it is checked whole with check() before parse() passes on any entry.
+ */
+
+class DeviceListParser {
+    /** Size of the fixed part of an entry: address, type and id */
+    static final int ENTRY_HEADER_SIZE = 3;
+
+    /** Object receiving the parsed entries */
+    private EntryHandler handler;
+
+    /**
+     * Create a parser
+     * @param handler Object receiving the parsed entries.
+     */
+    DeviceListParser(EntryHandler handler)
+    {
+        this.handler = handler;
+    }
+
+    /**
+     * Check the framing of a whole list without passing any entries on.
+     * @param buf Buffer holding the list.
+     * @param offset Start of the list in the buffer.
+     * @param length Length of the list.
+     * @throws InvalidDeviceListException Thrown if the list is too short or an entry is malformed.
+     */
+    static void check(byte[] buf, int offset, int length) throws InvalidDeviceListException
+    {
+        if((buf == null) || (length < 1))
+            throw new InvalidDeviceListException("Null Device List Received.");
+
+        int end = offset + length;
+        int count = buf[offset++] & 0xFF;
+        for(int i = 0; i < count; i++)
+            offset = checkEntry(buf, offset, end);
+    }
+
+    /**
+     * Check the framing of a single entry.
+     * @param buf Buffer holding the entry.
+     * @param offset Position of the entry's length byte.
+     * @param end End of the data the entry must fit in.
+     * @return Position after the entry.
+     * @throws InvalidDeviceListException Thrown if the entry is missing, too short or runs past the end.
+     */
+    static int checkEntry(byte[] buf, int offset, int end) throws InvalidDeviceListException
+    {
+        if(offset >= end)
+            throw new InvalidDeviceListException("Packet length is too short for the indicated number of devices.");
+        int entryLength = buf[offset] & 0xFF;
+        if(entryLength < ENTRY_HEADER_SIZE)
+            throw new InvalidDeviceListException("Device entry too short: " + entryLength);
+        if(end - offset <= entryLength)
+            throw new InvalidDeviceListException("Packet length is too short for the indicated number of devices.");
+        return offset + entryLength + 1;
+    }
+
+    /**
+     * Pass every entry of a list to the handler. The list must have passed check().
+     * @param buf Buffer holding the list.
+     * @param offset Start of the list in the buffer.
+     */
+    void parse(byte[] buf, int offset)
+    {
+        int count = buf[offset++] & 0xFF;
+        for(int i = 0; i < count; i++)
+            offset = parseEntry(buf, offset);
+    }
+
+    /**
+     * Pass a single entry to the handler. The entry must have passed checkEntry().
+     * @param buf Buffer holding the entry.
+     * @param offset Position of the entry's length byte.
+     * @return Position after the entry.
+     */
+    int parseEntry(byte[] buf, int offset)
+    {
+        int entryLength = buf[offset] & 0xFF;
+        handler.onEntry(buf[offset + 1] & 0xFF, buf[offset + 2] & 0xFF, buf[offset + 3] & 0xFF,
+                buf, offset + 1 + ENTRY_HEADER_SIZE, entryLength - ENTRY_HEADER_SIZE);
+        return offset + entryLength + 1;
+    }
+
+    /**
+     * Receives the entries of a device list.
+     */
+    interface EntryHandler {
+        /**
+         * Called for each entry in the list.
+         * The name bytes are only valid for the duration of the call.
+         * @param address The device address.
+         * @param type The device type.
+         * @param id The device id.
+         * @param buf Buffer holding the device name in US-ASCII.
+         * @param nameOffset Start of the name in the buffer.
+         * @param nameLength Length of the name.
+         */
+        void onEntry(int address, int type, int id, byte[] buf, int nameOffset, int nameLength);
+    }
+}
@@ -0,0 +1,382 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+import com.scottmckittrick.arduinoserverclientlib.Platform.Log;
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Keeps a DeviceManager's device list in line with the server's.
+ * Requests full lists or versioned deltas and applies the DEV_GET_INFO_RSP and DEV_SYNC_RSP responses in two passes:
+ * the whole response is checked first, then its entries are applied straight out of the response buffer.
+ * A malformed response is rejected by the check, so it changes nothing.
+ * The manager owns the list and its indexes; this class only decides what to add and remove.
+ */
+
+class DeviceListSync {
+    /** Size of the sync response header */
+    private static final int SYNC_HEADER_SIZE = 5;
+
+    /** The manager whose device list is kept in sync */
+    private DeviceManager deviceManager;
+    /** Parser for device lists received from the server */
+    private DeviceListParser listParser;
+    /** Applies parsed device lists to the device list */
+    private ListUpdate listUpdate;
+    /** The version of the device list last received from the server, or 0 if unknown */
+    private int listVersion;
+    /** True if refreshes should use DEV_SYNC instead of DEV_GET_INFO */
+    private boolean incrementalSync;
+    /** Shared copies of the names of the devices in the list */
+    private HashMap<String, String> namePool;
+
+    /**
+     * Create a sync for a manager.
+     * @param deviceManager The manager whose device list is kept in sync.
+     */
+    DeviceListSync(DeviceManager deviceManager)
+    {
+        this.deviceManager = deviceManager;
+        listUpdate = new ListUpdate();
+        listParser = new DeviceListParser(listUpdate);
+        namePool = new HashMap<>();
+    }
+
+    /**
+     * Ask the server for its device list, as a delta if incremental sync is enabled.
+     */
+    void refresh()
+    {
+        if(incrementalSync) {
+            sync();
+            return;
+        }
+        deviceManager.sendRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO, null));
+    }
+
+    /**
+     * Ask the server for the changes to the device list since the last version we received.
+     */
+    void sync()
+    {
+        byte[] version = new byte[4];
+        version[0] = (byte)(listVersion >> 24);
+        version[1] = (byte)(listVersion >> 16);
+        version[2] = (byte)(listVersion >> 8);
+        version[3] = (byte)listVersion;
+        deviceManager.sendRequest(new RequestObject(0, DeviceManager.DEV_SYNC, version));
+    }
+
+    /**
+     * Choose whether refresh() uses the versioned DEV_SYNC protocol.
+     * @param enabled True to sync incrementally, false to fetch the full list each time.
+     */
+    void setIncrementalSync(boolean enabled)
+    {
+        incrementalSync = enabled;
+    }
+
+    /**
+     * Get the version of the device list last received from the server.
+     * @return The version, or 0 if the server hasn't sent one.
+     */
+    int getListVersion()
+    {
+        return listVersion;
+    }
+
+    /**
+     * Set the version of the device list, for example after restoring a snapshot.
+     * @param version The version.
+     */
+    void setListVersion(int version)
+    {
+        listVersion = version;
+    }
+
+    /**
+     * Apply a DEV_GET_INFO_RSP from the server.
+     * @param r The response.
+     */
+    void applyDeviceList(RequestObject r)
+    {
+        try {
+            //The list is parsed straight out of the request's buffer
+            updateDeviceList(r.getDataBuffer(), r.getDataOffset(), r.getDataLength());
+            //A full list carries no version.
+            listVersion = 0;
+        }catch(InvalidDeviceListException e) {
+            Log.e(DeviceManager.TAG, "Server sent invalid device List");
+        }
+    }
+
+    /**
+     * Apply a DEV_SYNC_RSP from the server.
+     * @param r The response.
+     */
+    void applySync(RequestObject r)
+    {
+        try {
+            applySync(r.getDataBuffer(), r.getDataOffset(), r.getDataLength());
+        }catch(InvalidDeviceListException e) {
+            Log.e(DeviceManager.TAG, "Server sent invalid device sync: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Unmarshall the device list sent from the server and bring the device list in line with it.
+     * New devices are instantiated, devices that are no longer listed are removed and devices whose entry changed are replaced.
+     * @param packet The byte string representing the device list
+     * @throws InvalidDeviceListException Thrown if the device list is an invalid format.
+     */
+    private void updateDeviceList(byte[] packet, int offset, int length) throws InvalidDeviceListException
+    {
+        //Entries are applied as they are parsed, so a bad entry must be caught before the first one is applied
+        DeviceListParser.check(packet, offset, length);
+        listUpdate.begin();
+        listParser.parse(packet, offset);
+        listUpdate.finish(true);
+    }
+
+    /**
+     * Apply a DEV_SYNC_RSP from the server.
+     * @param data Buffer holding the response data.
+     * @param offset Start of the response data in the buffer.
+     * @param length Length of the response data.
+     * @throws InvalidDeviceListException Thrown if the response is an invalid format.
+     */
+    private void applySync(byte[] data, int offset, int length) throws InvalidDeviceListException
+    {
+        if(length < SYNC_HEADER_SIZE)
+            throw new InvalidDeviceListException("Sync response too short.");
+
+        byte status = data[offset];
+        int version = ((data[offset + 1] & 0xFF) << 24) | ((data[offset + 2] & 0xFF) << 16)
+                | ((data[offset + 3] & 0xFF) << 8) | (data[offset + 4] & 0xFF);
+
+        switch(status) {
+            case DeviceManager.SYNC_UNCHANGED:
+                break;
+            case DeviceManager.SYNC_FULL:
+                updateDeviceList(data, offset + SYNC_HEADER_SIZE, length - SYNC_HEADER_SIZE);
+                break;
+            case DeviceManager.SYNC_DELTA:
+                applyDelta(data, offset + SYNC_HEADER_SIZE, offset + length);
+                break;
+            default:
+                throw new InvalidDeviceListException("Unknown sync status: " + status);
+        }
+        listVersion = version;
+    }
+
+    /**
+     * Apply the ops of a sync delta. Devices the delta doesn't mention are left alone.
+     * @param data Buffer holding the response data.
+     * @param index Position of the op count.
+     * @param end End of the response data in the buffer.
+     * @throws InvalidDeviceListException Thrown if the delta is an invalid format.
+     */
+    private void applyDelta(byte[] data, int index, int end) throws InvalidDeviceListException
+    {
+        //Check every op before applying any, so a bad delta changes nothing
+        walkDelta(data, index, end, false);
+        listUpdate.begin();
+        walkDelta(data, index, end, true);
+        listUpdate.finish(false);
+    }
+
+    /**
+     * Step through the ops of a sync delta.
+     * @param data Buffer holding the response data.
+     * @param index Position of the op count.
+     * @param end End of the response data in the buffer.
+     * @param apply True to apply the ops, false to only check them.
+     * @throws InvalidDeviceListException Thrown if the delta is an invalid format.
+     */
+    private void walkDelta(byte[] data, int index, int end, boolean apply) throws InvalidDeviceListException
+    {
+        if(index >= end)
+            throw new InvalidDeviceListException("Missing delta op count.");
+
+        int count = data[index++] & 0xFF;
+        for(int i = 0; i < count; i++) {
+            if(index >= end)
+                throw new InvalidDeviceListException("Delta is too short for the indicated number of ops.");
+
+            byte op = data[index++];
+            if(op == DeviceManager.SYNC_OP_REMOVE) {
+                if(index >= end)
+                    throw new InvalidDeviceListException("Missing address in remove op.");
+                if(apply)
+                    listUpdate.remove(data[index] & 0xFF);
+                index++;
+            } else if((op == DeviceManager.SYNC_OP_ADD) || (op == DeviceManager.SYNC_OP_MODIFY)) {
+                index = apply ? listParser.parseEntry(data, index) : DeviceListParser.checkEntry(data, index, end);
+            } else {
+                throw new InvalidDeviceListException("Unknown delta op: " + op);
+            }
+        }
+    }
+
+    /**
+     * Get a shared copy of a device name so devices with the same name don't each hold their own string.
+     * @param buf Buffer holding the name in US-ASCII.
+     * @param offset Start of the name.
+     * @param length Length of the name.
+     * @return The name.
+     */
+    private String internName(byte[] buf, int offset, int length)
+    {
+        char[] chars = new char[length];
+        for(int i = 0; i < length; i++)
+            chars[i] = (char)(buf[offset + i] & 0x7F);
+        String name = new String(chars);
+        String shared = namePool.get(name);
+        if(shared == null) {
+            namePool.put(name, name);
+            shared = name;
+        }
+        return shared;
+    }
+
+    /**
+     * Rebuild the name pool from the devices in the list, so names of removed or renamed devices aren't kept.
+     */
+    private void pruneNames()
+    {
+        namePool.clear();
+        ArrayList<BasicDevice> devList = deviceManager.getDeviceList();
+        for(int i = 0; i < devList.size(); i++) {
+            String name = devList.get(i).getDeviceName();
+            if((name != null) && !namePool.containsKey(name))
+                namePool.put(name, name);
+        }
+    }
+
+    /**
+     * Compare a device name with the name bytes of a list entry without decoding them.
+     * @param name The current device name.
+     * @param buf Buffer holding the name in US-ASCII.
+     * @param offset Start of the name.
+     * @param length Length of the name.
+     * @return True if the names are the same.
+     */
+    private static boolean nameMatches(String name, byte[] buf, int offset, int length)
+    {
+        if((name == null) || (name.length() != length))
+            return false;
+        for(int i = 0; i < length; i++) {
+            if(name.charAt(i) != (char)(buf[offset + i] & 0x7F))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Applies the entries of one device list to the device list as they are parsed.
+     * Devices seen in the list are stamped with the generation of the update, so removed devices are found in one pass at the end.
+     */
+    private class ListUpdate implements DeviceListParser.EntryHandler {
+        /** Generation stamp of each address, indexed by address */
+        private int[] seen = new int[DeviceManager.ADDRESS_COUNT];
+        /** Generation of the current update */
+        private int generation;
+        /** Devices added, replaced or removed by the current update */
+        private ArrayList<BasicDevice> changed = new ArrayList<>();
+        /** Counters for the current update */
+        private int added, unchanged, removed;
+
+        /**
+         * Start applying a new list.
+         */
+        void begin()
+        {
+            generation++;
+            changed.clear();
+            added = 0;
+            unchanged = 0;
+            removed = 0;
+        }
+
+        @Override
+        public void onEntry(int address, int type, int id, byte[] buf, int nameOffset, int nameLength)
+        {
+            seen[address] = generation;
+            BasicDevice existing = deviceManager.findDeviceByAddress(address);
+            if((existing != null) && (existing.getDeviceType() == type) && (existing.getDeviceId() == id)
+                    && nameMatches(existing.getDeviceName(), buf, nameOffset, nameLength)) {
+                unchanged++;
+                return;
+            }
+
+            //The entry is new or describes a different device than the one we have, so replace it.
+            //Only a rename keeps the device's identity as far as field listeners are concerned.
+            boolean renamed = (existing != null) && (existing.getDeviceType() == type) && (existing.getDeviceId() == id);
+            if(existing != null) {
+                deviceManager.removeDevice(existing);
+                changed.add(existing);
+                removed++;
+                if(!renamed)
+                    deviceManager.notifyPresence(existing, false);
+            }
+
+            String name = internName(buf, nameOffset, nameLength);
+            try {
+                BasicDevice d = DeviceManager.instantiateDevice(type, id, name, address);
+                deviceManager.addDevice(d);
+                changed.add(d);
+                added++;
+                if(renamed)
+                    deviceManager.notifyRename(d, existing.getDeviceName());
+                else
+                    deviceManager.notifyPresence(d, true);
+            } catch(UnknownDeviceTypeException e) {
+                Log.w(DeviceManager.TAG, e.getMessage());
+                if(renamed)
+                    deviceManager.notifyPresence(existing, false);
+            }
+        }
+
+        /**
+         * Remove the device at an address.
+         * @param address The device address.
+         */
+        void remove(int address)
+        {
+            BasicDevice existing = deviceManager.findDeviceByAddress(address);
+            if(existing != null) {
+                deviceManager.removeDevice(existing);
+                changed.add(existing);
+                removed++;
+                deviceManager.notifyPresence(existing, false);
+            }
+        }
+
+        /**
+         * Finish applying the list and notify listeners of the changes.
+         * @param removeUnseen True if the list was complete and devices it didn't mention should be removed.
+         */
+        void finish(boolean removeUnseen)
+        {
+            ArrayList<BasicDevice> devList = deviceManager.getDeviceList();
+            for(int i = devList.size() - 1; removeUnseen && (i >= 0); i--) {
+                BasicDevice d = devList.get(i);
+                if(seen[d.getDeviceAddr()] != generation) {
+                    deviceManager.removeDevice(d);
+                    changed.add(d);
+                    removed++;
+                    deviceManager.notifyPresence(d, false);
+                }
+            }
+
+            //Only removals leave names behind, since a rename removes the old device
+            if(removed > 0)
+                pruneNames();
+
+            Log.d(DeviceManager.TAG, "Device list: " + added + " added, " + unchanged + " unchanged, " + removed + " removed");
+            if(changed.size() > 0)
+                deviceManager.notifyDeviceChange(new ArrayList<>(changed));
+        }
+    }
+}
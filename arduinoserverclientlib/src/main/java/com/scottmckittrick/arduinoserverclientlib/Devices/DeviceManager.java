@@ -1,10 +1,10 @@
 package com.scottmckittrick.arduinoserverclientlib.Devices;
 
-import android.util.Log;
-
+import com.scottmckittrick.arduinoserverclientlib.Platform.Log;
 import com.scottmckittrick.arduinoserverclientlib.RequestObject;
 
-import java.io.UnsupportedEncodingException;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -26,6 +26,83 @@ public class DeviceManager implements RequestObject.RequestReceiver {
      * Command Code representing device get info response
      */
     public static final short DEV_GET_INFO_RSP = 0x0100;
+    /**
+     * Command Code requesting the changes to the device list since a known version.
+     * Data is the four byte version the client last saw, or 0 if it has none.
+     */
+    public static final short DEV_SYNC = 0x0002;
+    /**
+     * Command Code representing the device sync response.
+     * Data is { status, version(4) } followed by a delta for SYNC_DELTA or a full device list for SYNC_FULL.
+     */
+    public static final short DEV_SYNC_RSP = 0x0200;
+
+    /**
+     * Command Code asking the server to push status changes for devices.
+     * Data is the addresses of the devices, or empty for every device.
+     * The server then sends a status response, such as CMD_LAMP_GET_STATUS_RSP, from a device whenever its state changes.
+     */
+    public static final short DEV_SUBSCRIBE = 0x0003;
+    /**
+     * Command Code representing the subscribe response.
+     * Data is the addresses of the devices now subscribed, or empty if every device is.
+     */
+    public static final short DEV_SUBSCRIBE_RSP = 0x0300;
+    /**
+     * Command Code asking the server to stop pushing status changes.
+     * Data is the addresses of the devices, or empty for every device.
+     */
+    public static final short DEV_UNSUBSCRIBE = 0x0004;
+    /**
+     * Command Code representing the unsubscribe response.
+     * Data is the addresses of the devices no longer subscribed, or empty if none are.
+     */
+    public static final short DEV_UNSUBSCRIBE_RSP = 0x0400;
+
+    /**
+     * Command Code requesting the status of every device in one response.
+     */
+    public static final short DEV_GET_STATUS_ALL = 0x0005;
+    /**
+     * Command Code representing the bulk status response.
+     * Data is { count } followed by count records of { address, state(2), data(3) }, where data holds the
+     * same fields as the device's own status response, padded to three bytes.
+     */
+    public static final short DEV_GET_STATUS_ALL_RSP = 0x0500;
+    /**
+     * Command Code sending one lamp command to several devices at once.
+     * Data is { command(2), count, addresses..., args... } where args are the command's usual data.
+     */
+    public static final short DEV_GROUP_CMD = 0x0006;
+    /**
+     * Command Code representing the group command response.
+     * Data is { state(2), count, addresses..., data... } for the devices that applied the command, where data holds the
+     * same fields as the device's own status response.
+     */
+    public static final short DEV_GROUP_CMD_RSP = 0x0600;
+    /**
+     * Command Code setting several lamps to their own solid colors at once.
+     * Data is { count } followed by count records of { address, red, green, blue }.
+     */
+    public static final short DEV_MULTI_SOLID = 0x0007;
+    /**
+     * Command Code representing the multiple solid color response. Data has the same layout as the command.
+     */
+    public static final short DEV_MULTI_SOLID_RSP = 0x0700;
+
+    /** Sync status: the device list hasn't changed since the client's version. */
+    public static final byte SYNC_UNCHANGED = 0x00;
+    /** Sync status: a delta follows as { count, ops... }. */
+    public static final byte SYNC_DELTA = 0x01;
+    /** Sync status: the server can't build a delta and a full device list follows. */
+    public static final byte SYNC_FULL = 0x02;
+
+    /** Delta op: a device was added. Followed by a device list entry. */
+    public static final byte SYNC_OP_ADD = 0x01;
+    /** Delta op: a device was modified. Followed by a device list entry. */
+    public static final byte SYNC_OP_MODIFY = 0x02;
+    /** Delta op: a device was removed. Followed by the device address. */
+    public static final byte SYNC_OP_REMOVE = 0x03;
 
     public static final String TAG = "DeviceManager";
 
@@ -36,27 +113,95 @@ public class DeviceManager implements RequestObject.RequestReceiver {
     /** Identifier used for passing the device id between activities **/
     public static final String devIdTag = "DeviceID";
 
+    /** Number of possible device addresses. Addresses are one byte on the wire. */
+    static final int ADDRESS_COUNT = 256;
+
     /**
      * The list of devices sent by the server
      */
     private ArrayList<BasicDevice> devList;
 
+    /**
+     * Index of the device list by device address. Kept in step with devList.
+     */
+    private BasicDevice[] addrIndex;
+
+    /**
+     * Index of the device list by device id. Kept in step with devList.
+     */
+    private IntObjectMap<BasicDevice> idIndex;
+
     /**
      * The object that requests should be sent to.
      */
     private RequestObject.RequestReceiver requestReceiver;
 
+    /**
+     * The object that encoded frames should be sent to, or null if only requests can be sent.
+     */
+    private volatile RequestObject.FrameReceiver frameReceiver;
+
+    /**
+     * Counts changes to the device list. Lets caches built from the list tell when they are stale.
+     */
+    private volatile int listGeneration;
+
+    /**
+     * Keeps the device list in line with the server's.
+     */
+    private DeviceListSync listSync;
+
     /**
      * List of objects listening for changes to the devices.
      */
     private ArrayList<DeviceChangeListener> deviceChangeListeners;
 
+    /**
+     * Listener given to every lamp for changes to its state.
+     */
+    private DeviceChangeListener deviceStateListener;
+
+    /**
+     * Listener for field level changes to every device, including presence and name changes.
+     */
+    private DeviceFieldChangeListener fieldListener;
+
+    /**
+     * Event passed to the field listener for presence and name changes.
+     */
+    private DeviceChangeEvent fieldEvent = new DeviceChangeEvent();
+
+    /**
+     * Devices the server pushes status changes for.
+     */
+    private StatusSubscriptions subscriptions;
+
+    /**
+     * Sends commands to many lamps at once and applies the responses carrying their status.
+     */
+    private BulkStatusUpdater bulkStatus;
+
+    /**
+     * Optional columnar store holding the state of this manager's devices.
+     */
+    private DeviceStateStore stateStore;
+
+    /**
+     * Id of the server, used for the devices' keys in the state store.
+     */
+    private int storeServerId;
+
     /**
      * Basic Constructor.
      */
     public DeviceManager() {
         Log.d("Device Manager", "Device Manager being created");
         devList = new ArrayList();
+        addrIndex = new BasicDevice[ADDRESS_COUNT];
+        subscriptions = new StatusSubscriptions(this);
+        bulkStatus = new BulkStatusUpdater(this);
+        idIndex = new IntObjectMap<>();
+        listSync = new DeviceListSync(this);
         deviceChangeListeners = new ArrayList();
     }
 
@@ -72,16 +217,66 @@ public class DeviceManager implements RequestObject.RequestReceiver {
             devList.get(i).setRequestReceiver(r);
     }
 
+    /**
+     * Set the object that encoded frames should be sent to.
+     * Without one, scenes and lamp commands are sent as RequestObjects.
+     * @param r The FrameReceiver object, or null to stop sending frames.
+     */
+    public void setFrameReceiver(RequestObject.FrameReceiver r) {
+        frameReceiver = r;
+
+        //Update any already instantiated lamps.
+        for(int i = 0; i < devList.size(); i++) {
+            if(devList.get(i) instanceof RGBLampDevice)
+                ((RGBLampDevice)devList.get(i)).setFrameReceiver(r);
+        }
+    }
+
+    /**
+     * Get the object that encoded frames are sent to.
+     * @return The FrameReceiver, or null if none is set.
+     */
+    public RequestObject.FrameReceiver getFrameReceiver() {
+        return frameReceiver;
+    }
+
+    /**
+     * Get the device list generation. The generation changes whenever a device is added or removed.
+     * @return The generation.
+     */
+    public int getListGeneration() {
+        return listGeneration;
+    }
+
+    /**
+     * Send a request to the server.
+     * @param r The request.
+     */
+    void sendRequest(RequestObject r) {
+        if(requestReceiver != null)
+            requestReceiver.handleRequest(r);
+        else
+            Log.w(TAG, "RequestReceiver is null.");
+    }
+
     @Override
     public void handleRequest(RequestObject r) {
         //If the request is coming from the server device manager, handle it here
         if(r.getDeviceAddress() == 0) {
             if(r.getCommand() == DEV_GET_INFO_RSP){
-                try {
-                    updateDeviceList(r.getData());
-                }catch(InvalidDeviceListException e) {
-                    Log.e(TAG, "Server sent invalid device List");
-                }
+                listSync.applyDeviceList(r);
+            } else if(r.getCommand() == DEV_SYNC_RSP) {
+                listSync.applySync(r);
+            } else if(r.getCommand() == DEV_GET_STATUS_ALL_RSP) {
+                bulkStatus.applyAllStatus(r);
+            } else if(r.getCommand() == DEV_GROUP_CMD_RSP) {
+                bulkStatus.applyGroupStatus(r);
+            } else if(r.getCommand() == DEV_MULTI_SOLID_RSP) {
+                bulkStatus.applyLampColors(r);
+            } else if(r.getCommand() == DEV_SUBSCRIBE_RSP) {
+                subscriptions.apply(r, true);
+            } else if(r.getCommand() == DEV_UNSUBSCRIBE_RSP) {
+                subscriptions.apply(r, false);
             }
             return;
         } else { //Otherwise it should be handled by one of the devices.
@@ -96,6 +291,7 @@ public class DeviceManager implements RequestObject.RequestReceiver {
 
     /**
      * Returns the list of Devices currently known to the client
+     * The list must not be modified by the caller.
      * @return ArrayList of devices.
      */
     public ArrayList<BasicDevice> getDeviceList()
@@ -108,9 +304,224 @@ public class DeviceManager implements RequestObject.RequestReceiver {
      */
     public void refreshDeviceList()
     {
-        RequestObject r = new RequestObject(0, DEV_GET_INFO, null);
-        if(requestReceiver != null)
-            requestReceiver.handleRequest(r);
+        listSync.refresh();
+    }
+
+    /**
+     * Ask the server for the changes to the device list since the last version we received.
+     * The server must support DEV_SYNC.
+     */
+    public void syncDeviceList()
+    {
+        listSync.sync();
+    }
+
+    /**
+     * Ask the server for the status of every device in a single response.
+     * The server must support DEV_GET_STATUS_ALL.
+     */
+    public void refreshAllStatus()
+    {
+        bulkStatus.refreshAllStatus();
+    }
+
+    /**
+     * Send a group command built by a DeviceGroup.
+     * @param payload The DEV_GROUP_CMD data.
+     */
+    void sendGroupCommand(byte[] payload)
+    {
+        bulkStatus.sendGroupCommand(payload);
+    }
+
+    /**
+     * Set many lamps to their own solid colors, for example a frame rendered by an EffectEngine.
+     * The colors are encoded straight into DEV_MULTI_SOLID frames of up to 255 lamps each, with no request per lamp.
+     * With a frame receiver set, the frames go to it in one call and no RequestObjects are created.
+     * @param addresses Device addresses of the lamps.
+     * @param colors Colors packed as 0xRRGGBB, matching the addresses.
+     * @param offset Index of the first lamp in the arrays.
+     * @param count Number of lamps.
+     */
+    public void sendLampColors(int[] addresses, int[] colors, int offset, int count)
+    {
+        bulkStatus.sendLampColors(addresses, colors, offset, count);
+    }
+
+    /**
+     * Report the devices changed by a bulk status or group response in one notification
+     * to the registered listeners and the device state listener.
+     * @param changed The devices that changed. Copied, so the caller may reuse it.
+     */
+    void notifyStatusChanged(ArrayList<BasicDevice> changed)
+    {
+        if(changed.size() == 0)
+            return;
+
+        ArrayList<BasicDevice> list = new ArrayList<>(changed);
+        notifyDeviceChange(list);
+        DeviceChangeListener l = deviceStateListener;
+        if((l != null) && !deviceChangeListeners.contains(l))
+            l.onDeviceChange(list);
+    }
+
+    /**
+     * Ask the server to push status changes for a device instead of it being polled.
+     * The subscription is remembered and sent again by restoreSubscriptions().
+     * @param d The device.
+     */
+    public void subscribe(BasicDevice d)
+    {
+        subscriptions.subscribe(d.getDeviceAddr());
+    }
+
+    /**
+     * Ask the server to push status changes for every device, including devices added later.
+     */
+    public void subscribeAll()
+    {
+        subscriptions.subscribeAll();
+    }
+
+    /**
+     * Stop status changes being pushed for a device.
+     * A device covered by subscribeAll() stays subscribed until unsubscribeAll() is called.
+     * @param d The device.
+     */
+    public void unsubscribe(BasicDevice d)
+    {
+        subscriptions.unsubscribe(d.getDeviceAddr());
+    }
+
+    /**
+     * Stop status changes being pushed for every device.
+     */
+    public void unsubscribeAll()
+    {
+        subscriptions.unsubscribeAll();
+    }
+
+    /**
+     * Send the remembered subscriptions to the server again.
+     * Servers forget subscriptions when the connection drops, so call this each time the server is authenticated.
+     */
+    public void restoreSubscriptions()
+    {
+        subscriptions.restore();
+    }
+
+    /**
+     * Tell the manager the connection to the server has dropped.
+     * The server forgets its subscriptions, so subscribed devices count as unsubscribed, and are polled again,
+     * until restoreSubscriptions() is confirmed. The subscriptions themselves are remembered.
+     */
+    public void connectionLost()
+    {
+        subscriptions.reset();
+    }
+
+    /**
+     * Check whether the server has confirmed it pushes status changes for a device.
+     * Subscribed devices don't need to be polled.
+     * @param address The device address.
+     * @return True if the device is subscribed.
+     */
+    public boolean isSubscribed(int address)
+    {
+        return subscriptions.isSubscribed(address);
+    }
+
+    /**
+     * Choose whether refreshDeviceList() uses the versioned DEV_SYNC protocol.
+     * Only enable this for servers that support DEV_SYNC.
+     * @param enabled True to sync incrementally, false to fetch the full list each time.
+     */
+    public void setIncrementalSync(boolean enabled)
+    {
+        listSync.setIncrementalSync(enabled);
+    }
+
+    /**
+     * Save the device list and the last known device state to a file.
+     * @param file The file to write.
+     * @throws IOException Thrown if the file can't be written.
+     */
+    public void saveSnapshot(File file) throws IOException
+    {
+        DeviceSnapshot.write(file, listSync.getListVersion(), devList);
+    }
+
+    /**
+     * Restore the device list and device state saved with saveSnapshot().
+     * This replaces the current device list and notifies listeners, so the UI can be drawn before the server is reached.
+     * Call revalidateDevices() once the server is connected to check the restored state.
+     * @param file The file to read.
+     * @throws IOException Thrown if the file can't be read or isn't a valid snapshot. The device list is unchanged in that case.
+     */
+    public void restoreSnapshot(File file) throws IOException
+    {
+        final ArrayList<BasicDevice> restored = new ArrayList<>();
+        final int[] version = new int[1];
+        DeviceSnapshot.read(file, new DeviceSnapshot.SnapshotHandler() {
+            @Override
+            public void onListVersion(int v) {
+                version[0] = v;
+            }
+
+            @Override
+            public void onDevice(int address, int type, int id, String name, int state, int interval, byte red, byte green, byte blue) {
+                try {
+                    BasicDevice d = DeviceManager.instantiateDevice(type, id, name, address);
+                    if(d instanceof RGBLampDevice)
+                        ((RGBLampDevice)d).restoreState(state, interval, red, green, blue);
+                    restored.add(d);
+                } catch(UnknownDeviceTypeException e) {
+                    Log.w(TAG, "Skipping snapshot entry: " + e.getMessage());
+                }
+            }
+        });
+
+        //The whole snapshot was valid, so swap it in.
+        ArrayList<BasicDevice> changed = new ArrayList<>(devList);
+        for(int i = devList.size() - 1; i >= 0; i--) {
+            BasicDevice d = devList.get(i);
+            removeDevice(d);
+            notifyPresence(d, false);
+        }
+        for(int i = 0; i < restored.size(); i++) {
+            BasicDevice d = restored.get(i);
+            addDevice(d);
+            changed.add(d);
+            notifyPresence(d, true);
+        }
+        listSync.setListVersion(version[0]);
+        Log.i(TAG, "Restored " + restored.size() + " devices from snapshot");
+
+        if(changed.size() > 0)
+            notifyDeviceChange(changed);
+    }
+
+    /**
+     * Check the device list and device state against the server, for example after restoring a snapshot.
+     * When incremental sync is enabled and a list version is known the server only sends what changed since the snapshot.
+     * Every lamp is then asked for its current status.
+     */
+    public void revalidateDevices()
+    {
+        refreshDeviceList();
+        for(int i = 0; i < devList.size(); i++) {
+            if(devList.get(i) instanceof RGBLampDevice)
+                ((RGBLampDevice)devList.get(i)).sendGetStatus();
+        }
+    }
+
+    /**
+     * Get the version of the device list last received from the server.
+     * @return The version, or 0 if the server hasn't sent one.
+     */
+    public int getDeviceListVersion()
+    {
+        return listSync.getListVersion();
     }
 
     /**
@@ -121,11 +532,9 @@ public class DeviceManager implements RequestObject.RequestReceiver {
      */
     public BasicDevice getDeviceById(int id) throws DeviceNotFoundException
     {
-        for(int i = 0; i < devList.size(); i++)
-        {
-            if(devList.get(i).getDeviceId() == id)
-                return devList.get(i);
-        }
+        BasicDevice d = idIndex.get(id);
+        if(d != null)
+            return d;
 
         //If the device isn't found throw an exception
         throw new DeviceNotFoundException("Device ID " + id + " not found.");
@@ -139,92 +548,84 @@ public class DeviceManager implements RequestObject.RequestReceiver {
      */
     public BasicDevice getDeviceByAddress(int address) throws DeviceNotFoundException
     {
-        for(int i = 0; i < devList.size(); i++)
-        {
-            if(devList.get(i).getDeviceAddr() == address)
-                return devList.get(i);
-        }
+        BasicDevice d = findDeviceByAddress(address);
+        if(d != null)
+            return d;
 
         //If the device isn't found throw an exception
         throw new DeviceNotFoundException("Device Address " + address + " not found.");
     }
 
     /**
-     * Unmarshall the device list sent from the server and instantiate new devices into the device list.
-     * @param packet The byte string representing the device list
-     * @throws InvalidDeviceListException Thrown if the device list is an invalid format.
+     * Look up a device by its address without throwing.
+     * @param address Address of the device being searched for.
+     * @return The device, or null if there is no device at the address.
      */
-    private void updateDeviceList(byte[] packet) throws InvalidDeviceListException
+    BasicDevice findDeviceByAddress(int address)
     {
-        ArrayList<BasicDevice> changedList = new ArrayList<>();
-        //The device list data should have at least one byte saying 0 devices.
-        if((packet == null)||(packet.length < 1))
-            throw new InvalidDeviceListException("Null Device List Received.");
-
-        //First byte is the number of device entries.
-        int index = 0;
-        int numDevices = packet[index++];
-        Log.d(TAG, "Number of Devices: " + numDevices);
-
-        if(numDevices == 0)
-            return;
-
-        try {
-            //Read each device entry
-            for (int i = 0; i < numDevices; i++) {
-                int entryLength = packet[index++];
-                Log.d(TAG, "Entry Length: " + entryLength);
-                int pointer = 0;
-
-                //Begin parsing the entry
-                int devAddr = packet[index + pointer++];
-                Log.d(TAG, "Device address: " + devAddr);
-                int devType = packet[index + pointer++];
-                Log.d(TAG, "Device Type: " + devType);
-                int devId = packet[index + pointer++];
-                Log.d(TAG, "Device Id: " + devId);
-                byte[] devNameBytes = new byte[entryLength - 3];
-                for(int j = 0; j < devNameBytes.length; j++)
-                    devNameBytes[j] = packet[index + pointer++];
-                String devName = new String(devNameBytes, "US-ASCII");
-                Log.d(TAG, "Device Name: " + devName);
-
-                //If the device already exists, skip it.
-                boolean deviceFound = false;
-                for(int j= 0; j < devList.size(); j++) {
-                    if (devList.get(j).getDeviceAddr() == devAddr) {
-                        deviceFound = true;
-                        break;
-                    }
-                }
-
-                //If the device is already in the list, then skip it.
-                if(deviceFound)
-                    continue;
-
-                //Otherwise create a new one.
-                try {
-                    Log.d(TAG, "Instantiating "+ devName);
-                    BasicDevice d = DeviceManager.instantiateDevice(devType, devId, devName, devAddr);
-                    d.setRequestReceiver(requestReceiver);
-                    devList.add(d);
-                    changedList.add(d);
-                } catch(UnknownDeviceTypeException e) {
-                    //ToDo Handle unknown device
-                }
+        if((address < 0) || (address >= ADDRESS_COUNT))
+            return null;
+        return addrIndex[address];
+    }
 
-                index += entryLength;
+    /**
+     * Add a device to the device list and its indexes.
+     * @param d The device to add.
+     */
+    void addDevice(BasicDevice d)
+    {
+        d.setRequestReceiver(requestReceiver);
+        if(d instanceof RGBLampDevice) {
+            if(deviceStateListener != null)
+                ((RGBLampDevice)d).setDeviceChangeListener(deviceStateListener);
+            if(fieldListener != null)
+                ((RGBLampDevice)d).setDeviceFieldChangeListener(fieldListener);
+            ((RGBLampDevice)d).setFrameReceiver(frameReceiver);
+        }
+        devList.add(d);
+        addrIndex[d.getDeviceAddr()] = d;
+        idIndex.put(d.getDeviceId(), d);
+        listGeneration++;
+        if(stateStore != null)
+            bindToStore(d);
+    }
 
-            }
+    /**
+     * Give a device a slot in the state store.
+     * @param d The device.
+     */
+    private void bindToStore(BasicDevice d)
+    {
+        int slot = stateStore.allocate(DeviceStateStore.slotKey(storeServerId, d.getDeviceId()), d.getDeviceAddr(), d.getDeviceType());
+        if(d instanceof RGBLampDevice)
+            ((RGBLampDevice)d).bindStore(stateStore, slot);
+    }
 
-            if(changedList.size() > 0)
-                notifyDeviceChange(changedList);
+    /**
+     * Release a device's slot in the state store.
+     * @param d The device.
+     */
+    private void unbindFromStore(BasicDevice d)
+    {
+        if(d instanceof RGBLampDevice)
+            ((RGBLampDevice)d).bindStore(null, DeviceStateStore.NO_SLOT);
+        stateStore.release(DeviceStateStore.slotKey(storeServerId, d.getDeviceId()));
+    }
 
-        }catch(ArrayIndexOutOfBoundsException e) {
-            throw new InvalidDeviceListException("Packet length is too short for the indicated number of devices.");
-        }catch(UnsupportedEncodingException e) {
-            throw new InvalidDeviceListException("Invalid encoding from server.");
-        }
+    /**
+     * Remove a device from the device list and its indexes.
+     * @param d The device to remove.
+     */
+    void removeDevice(BasicDevice d)
+    {
+        devList.remove(d);
+        if(addrIndex[d.getDeviceAddr()] == d)
+            addrIndex[d.getDeviceAddr()] = null;
+        if(idIndex.get(d.getDeviceId()) == d)
+            idIndex.remove(d.getDeviceId());
+        listGeneration++;
+        if(stateStore != null)
+            unbindFromStore(d);
     }
 
     /**
@@ -235,7 +636,7 @@ public class DeviceManager implements RequestObject.RequestReceiver {
      * @return An object of BasicDevice that can be cast to the requested type.
      * @throws UnknownDeviceTypeException Throws Unknown device type when the type of device requested is unknown.
      */
-    private static BasicDevice instantiateDevice(int type, int id, String deviceName, int deviceAddr) throws UnknownDeviceTypeException
+    static BasicDevice instantiateDevice(int type, int id, String deviceName, int deviceAddr) throws UnknownDeviceTypeException
     {
         switch(type)
         {
@@ -246,8 +647,88 @@ public class DeviceManager implements RequestObject.RequestReceiver {
         }
     }
 
+    /**
+     * Set the listener for changes to the state of every lamp, including lamps added later.
+     * A DeviceChangeCoalescer can be used here to batch status bursts.
+     * @param d The listener, or null to stop notifications.
+     */
+    public void setDeviceStateListener(DeviceChangeListener d)
+    {
+        deviceStateListener = d;
+        for(int i = 0; i < devList.size(); i++) {
+            if(devList.get(i) instanceof RGBLampDevice)
+                ((RGBLampDevice)devList.get(i)).setDeviceChangeListener(d);
+        }
+    }
+
+    /**
+     * Keep the state of this manager's devices in a columnar store, including devices added later.
+     * Several managers can share one store as long as each uses its own server id and all of them run on the same thread.
+     * Devices are released from any previous store.
+     * @param store The store, or null to stop using one.
+     * @param serverId The id of the server, used to key the devices in the store.
+     */
+    public void setStateStore(DeviceStateStore store, int serverId)
+    {
+        if(stateStore != null) {
+            for(int i = 0; i < devList.size(); i++)
+                unbindFromStore(devList.get(i));
+        }
+        stateStore = store;
+        storeServerId = serverId;
+        if(stateStore != null) {
+            for(int i = 0; i < devList.size(); i++)
+                bindToStore(devList.get(i));
+        }
+    }
+
+    /**
+     * Set the listener for field level changes to every device, including lamps added later.
+     * Besides lamp state changes it receives FIELD_PRESENCE when a device is added or removed and FIELD_NAME when a device is renamed.
+     * A renamed device is a new object, reported as the event's device.
+     * @param l The listener, or null to stop notifications.
+     */
+    public void setDeviceFieldChangeListener(DeviceFieldChangeListener l)
+    {
+        fieldListener = l;
+        for(int i = 0; i < devList.size(); i++) {
+            if(devList.get(i) instanceof RGBLampDevice)
+                ((RGBLampDevice)devList.get(i)).setDeviceFieldChangeListener(l);
+        }
+    }
+
+    /**
+     * Tell the field listener a device was added or removed.
+     * @param d The device.
+     * @param present True if the device was added.
+     */
+    void notifyPresence(BasicDevice d, boolean present)
+    {
+        if(fieldListener == null)
+            return;
+        fieldEvent.reset(d);
+        fieldEvent.setPresence(present);
+        fieldListener.onDeviceFieldsChanged(fieldEvent);
+    }
+
+    /**
+     * Tell the field listener a device was renamed.
+     * @param d The device with the new name.
+     * @param oldName The previous name.
+     */
+    void notifyRename(BasicDevice d, String oldName)
+    {
+        if(fieldListener == null)
+            return;
+        fieldEvent.reset(d);
+        fieldEvent.setName(oldName, d.getDeviceName());
+        fieldListener.onDeviceFieldsChanged(fieldEvent);
+    }
+
     /**
      * Register to receive notifications if one or more devices change
+     * Devices added to or removed from the device list are reported. Removed devices are no longer in getDeviceList().
+     * Lamps changed by a bulk status or group response are reported together in one notification.
      * @param d The object listening for notifications
      */
     public void registerDeviceChangeListener(DeviceChangeListener d)
@@ -270,7 +751,7 @@ public class DeviceManager implements RequestObject.RequestReceiver {
      * Notify all listening objects that one or more devices has changed.
      * @param list The list of devices that have changed.
      */
-    private void notifyDeviceChange(ArrayList<BasicDevice> list)
+    void notifyDeviceChange(ArrayList<BasicDevice> list)
     {
         for(int i = 0; i < deviceChangeListeners.size(); i++)
             deviceChangeListeners.get(i).onDeviceChange(list);
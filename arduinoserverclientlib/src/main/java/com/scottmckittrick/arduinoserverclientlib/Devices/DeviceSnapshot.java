@@ -0,0 +1,174 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary snapshot of a device list and the last known device state.
+ * The snapshot lets the UI be drawn straight away on startup, before the server has been reached.
+ * Layout: { magic(4), format(2), listVersion(4), count(2), crc(4) } followed by count entries of
+ * { address, type, id, nameLength, name..., state(2), interval(2), red, green, blue }.
+ */
+
+class DeviceSnapshot {
+    /** Identifies a snapshot file. "ASCS" */
+    private static final int MAGIC = 0x41534353;
+    /** Version of the snapshot layout */
+    private static final short FORMAT = 1;
+    /** Size of the snapshot header */
+    private static final int HEADER_SIZE = 16;
+    /** Size of an entry not counting the name */
+    private static final int ENTRY_FIXED_SIZE = 11;
+
+    private DeviceSnapshot() {}
+
+    /**
+     * Write a snapshot of a device list. The file is replaced atomically.
+     * @param file The file to write.
+     * @param listVersion The version of the device list.
+     * @param devices The devices to save.
+     * @throws IOException Thrown if the file can't be written.
+     */
+    static void write(File file, int listVersion, ArrayList<BasicDevice> devices) throws IOException
+    {
+        int size = HEADER_SIZE;
+        for(int i = 0; i < devices.size(); i++)
+            size += ENTRY_FIXED_SIZE + nameLength(devices.get(i));
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(MAGIC);
+        buf.putShort(FORMAT);
+        buf.putInt(listVersion);
+        buf.putShort((short)devices.size());
+        buf.putInt(0); //Checksum is filled in once the entries are written
+
+        for(int i = 0; i < devices.size(); i++) {
+            BasicDevice d = devices.get(i);
+            String name = d.getDeviceName();
+            int nameLength = nameLength(d);
+            buf.put((byte)d.getDeviceAddr());
+            buf.put((byte)d.getDeviceType());
+            buf.put((byte)d.getDeviceId());
+            buf.put((byte)nameLength);
+            for(int j = 0; j < nameLength; j++)
+                buf.put((byte)(name.charAt(j) & 0x7F));
+
+            if(d instanceof RGBLampDevice) {
+                LampState state = ((RGBLampDevice)d).getState();
+                buf.putShort((short)state.getState());
+                buf.putShort((short)state.getInterval());
+                buf.put((byte)state.getRed());
+                buf.put((byte)state.getGreen());
+                buf.put((byte)state.getBlue());
+            } else {
+                buf.putShort((short)0);
+                buf.putShort((short)0);
+                buf.put(new byte[3]);
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), HEADER_SIZE, size - HEADER_SIZE);
+        buf.putInt(HEADER_SIZE - 4, (int)crc.getValue());
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(buf.array());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if(!tmp.renameTo(file)) {
+            //Some platforms won't rename over an existing file
+            if(!file.delete() || !tmp.renameTo(file))
+                throw new IOException("Unable to replace snapshot " + file);
+        }
+    }
+
+    /**
+     * Read a snapshot. The file is memory mapped and checked before anything is returned.
+     * @param file The file to read.
+     * @param handler Receives the list version and each saved device.
+     * @throws IOException Thrown if the file can't be read or isn't a valid snapshot.
+     */
+    static void read(File file, SnapshotHandler handler) throws IOException
+    {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if((buf.remaining() < HEADER_SIZE) || (buf.getInt() != MAGIC) || (buf.getShort() != FORMAT))
+                throw new IOException("Not a device snapshot: " + file);
+
+            int listVersion = buf.getInt();
+            int count = buf.getShort() & 0xFFFF;
+            int expectedCrc = buf.getInt();
+
+            //Check the entries before handing any of them out
+            ByteBuffer entryBuf = buf.slice();
+            CRC32 crc = new CRC32();
+            while(buf.hasRemaining())
+                crc.update(buf.get());
+            if((int)crc.getValue() != expectedCrc)
+                throw new IOException("Device snapshot is corrupt: " + file);
+
+            char[] nameChars = new char[255];
+            handler.onListVersion(listVersion);
+            for(int i = 0; i < count; i++) {
+                if(entryBuf.remaining() < ENTRY_FIXED_SIZE)
+                    throw new IOException("Device snapshot is truncated: " + file);
+                int address = entryBuf.get() & 0xFF;
+                int type = entryBuf.get() & 0xFF;
+                int id = entryBuf.get() & 0xFF;
+                int nameLength = entryBuf.get() & 0xFF;
+                if(entryBuf.remaining() < nameLength + ENTRY_FIXED_SIZE - 4)
+                    throw new IOException("Device snapshot is truncated: " + file);
+                for(int j = 0; j < nameLength; j++)
+                    nameChars[j] = (char)entryBuf.get();
+                int state = entryBuf.getShort();
+                int interval = entryBuf.getShort() & 0xFFFF;
+                byte red = entryBuf.get();
+                byte green = entryBuf.get();
+                byte blue = entryBuf.get();
+                handler.onDevice(address, type, id, new String(nameChars, 0, nameLength), state, interval, red, green, blue);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Get the number of name bytes that will be saved for a device.
+     * @param d The device.
+     * @return The name length, capped at 255.
+     */
+    private static int nameLength(BasicDevice d)
+    {
+        String name = d.getDeviceName();
+        return (name == null) ? 0 : Math.min(name.length(), 255);
+    }
+
+    /**
+     * Receives the contents of a snapshot.
+     */
+    interface SnapshotHandler {
+        /**
+         * Called with the saved device list version before any devices.
+         * @param listVersion The version.
+         */
+        void onListVersion(int listVersion);
+
+        /**
+         * Called for each saved device.
+         */
+        void onDevice(int address, int type, int id, String name, int state, int interval, byte red, byte green, byte blue);
+    }
+}
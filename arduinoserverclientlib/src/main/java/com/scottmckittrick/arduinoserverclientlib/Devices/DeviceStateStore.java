@@ -0,0 +1,279 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Columnar store of device state for large fleets, such as a gateway managing many servers.
+ * Each field is kept in its own off-heap column so bulk scans read contiguous memory and the state of
+ * tens of thousands of devices doesn't add to the garbage collected heap.
+ * Devices are given a slot, found through an index keyed by slotKey(serverId, deviceId).
+ * Lamps bound to a store write their state through to their slot whenever it changes.
+ * The store is not thread safe and should only be used on the thread that dispatches requests to the devices.
+ */
+
+public class DeviceStateStore {
+    /** Returned when a key has no slot */
+    public static final int NO_SLOT = -1;
+
+    /** Slot is in use */
+    private static final byte FLAG_USED = 0x01;
+
+    /** Column of slot flags, one byte per slot */
+    private ByteBuffer flags;
+    /** Column of slot keys, one int per slot */
+    private ByteBuffer keys;
+    /** Column of device addresses, one byte per slot */
+    private ByteBuffer addresses;
+    /** Column of device types, one byte per slot */
+    private ByteBuffer types;
+    /** Column of lamp states, one short per slot */
+    private ByteBuffer states;
+    /** Column of lamp intervals, one unsigned short per slot */
+    private ByteBuffer intervals;
+    /** Column of lamp colors packed as 0xRRGGBB, one int per slot */
+    private ByteBuffer colors;
+    /** Column of last update times in milliseconds, one long per slot */
+    private ByteBuffer updated;
+
+    /** Number of slots the columns can hold */
+    private int capacity;
+    /** One past the highest slot ever used. Scans stop here. */
+    private int highWater;
+    /** Number of slots in use */
+    private int size;
+    /** Slots released and available for reuse */
+    private int[] freeSlots;
+    /** Number of entries in freeSlots */
+    private int freeCount;
+    /** Index from slot key to slot */
+    private IntIntMap index;
+
+    /**
+     * Create a store
+     * @param initialCapacity The number of devices expected. The store grows if more are added.
+     */
+    public DeviceStateStore(int initialCapacity)
+    {
+        capacity = Math.max(16, initialCapacity);
+        flags = column(capacity, 1);
+        keys = column(capacity, 4);
+        addresses = column(capacity, 1);
+        types = column(capacity, 1);
+        states = column(capacity, 2);
+        intervals = column(capacity, 2);
+        colors = column(capacity, 4);
+        updated = column(capacity, 8);
+        freeSlots = new int[16];
+        index = new IntIntMap(capacity);
+    }
+
+    /**
+     * Build the key of a device.
+     * @param serverId The id of the server the device belongs to.
+     * @param deviceId The id of the device on the server.
+     * @return The slot key.
+     */
+    public static int slotKey(int serverId, int deviceId)
+    {
+        return (serverId << 8) | (deviceId & 0xFF);
+    }
+
+    /**
+     * Get a slot for a device, allocating one if the device doesn't have one yet.
+     * A new slot starts with a zero state, interval, color and update time.
+     * @param key The slot key of the device.
+     * @param address The device address.
+     * @param type The device type.
+     * @return The slot.
+     */
+    public int allocate(int key, int address, int type)
+    {
+        int slot = index.get(key);
+        if(slot == NO_SLOT) {
+            if(freeCount > 0) {
+                slot = freeSlots[--freeCount];
+            } else {
+                if(highWater == capacity)
+                    grow(capacity * 2);
+                slot = highWater++;
+            }
+            index.put(key, slot);
+            size++;
+            flags.put(slot, FLAG_USED);
+            keys.putInt(slot * 4, key);
+            states.putShort(slot * 2, (short)0);
+            intervals.putShort(slot * 2, (short)0);
+            colors.putInt(slot * 4, 0);
+            updated.putLong(slot * 8, 0);
+        }
+        addresses.put(slot, (byte)address);
+        types.put(slot, (byte)type);
+        return slot;
+    }
+
+    /**
+     * Release the slot of a device so it can be reused.
+     * @param key The slot key of the device.
+     */
+    public void release(int key)
+    {
+        int slot = index.remove(key);
+        if(slot == NO_SLOT)
+            return;
+
+        flags.put(slot, (byte)0);
+        size--;
+        if(freeCount == freeSlots.length) {
+            int[] larger = new int[freeSlots.length * 2];
+            System.arraycopy(freeSlots, 0, larger, 0, freeCount);
+            freeSlots = larger;
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * Find the slot of a device.
+     * @param key The slot key of the device.
+     * @return The slot, or NO_SLOT if the device isn't in the store.
+     */
+    public int getSlot(int key)
+    {
+        return index.get(key);
+    }
+
+    /**
+     * Write the state of a lamp to its slot.
+     * @param slot The slot.
+     * @param state The lamp state.
+     * @param timeMs The time of the update in milliseconds.
+     */
+    void write(int slot, LampState state, long timeMs)
+    {
+        states.putShort(slot * 2, (short)state.getState());
+        intervals.putShort(slot * 2, (short)state.getInterval());
+        colors.putInt(slot * 4, state.getColorRGB());
+        updated.putLong(slot * 8, timeMs);
+    }
+
+    /**
+     * Find every device in a given lamp state, for example all lamps currently fading.
+     * @param state One of the RGBLampDevice CMD_LAMP_* values.
+     * @param out Receives the matching slots.
+     * @return The number of matching slots. If this is larger than out.length only the first out.length were stored.
+     */
+    public int scanByState(int state, int[] out)
+    {
+        short s = (short)state;
+        int found = 0;
+        for(int i = 0; i < highWater; i++) {
+            if((states.getShort(i * 2) == s) && (flags.get(i) == FLAG_USED)) {
+                if(found < out.length)
+                    out[found] = i;
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Find every device whose state hasn't been updated since a given time.
+     * @param timeMs The time in milliseconds.
+     * @param out Receives the matching slots.
+     * @return The number of matching slots. If this is larger than out.length only the first out.length were stored.
+     */
+    public int scanUpdatedBefore(long timeMs, int[] out)
+    {
+        int found = 0;
+        for(int i = 0; i < highWater; i++) {
+            if((updated.getLong(i * 8) < timeMs) && (flags.get(i) == FLAG_USED)) {
+                if(found < out.length)
+                    out[found] = i;
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Get the number of devices in the store.
+     * @return The number of slots in use.
+     */
+    public int size() { return size; }
+
+    /**
+     * Check whether a slot is in use.
+     * @param slot The slot.
+     * @return True if a device holds the slot.
+     */
+    public boolean isUsed(int slot) { return (slot >= 0) && (slot < highWater) && (flags.get(slot) == FLAG_USED); }
+
+    public int getKey(int slot) { return keys.getInt(slot * 4); }
+
+    public int getAddress(int slot) { return addresses.get(slot) & 0xFF; }
+
+    public int getType(int slot) { return types.get(slot) & 0xFF; }
+
+    public int getState(int slot) { return states.getShort(slot * 2); }
+
+    public int getInterval(int slot) { return intervals.getShort(slot * 2) & 0xFFFF; }
+
+    /**
+     * Get the color of the device in a slot.
+     * @param slot The slot.
+     * @return The color packed as 0xRRGGBB.
+     */
+    public int getColorRGB(int slot) { return colors.getInt(slot * 4); }
+
+    /**
+     * Get the time the device in a slot was last updated.
+     * @param slot The slot.
+     * @return The time in milliseconds, or 0 if the device hasn't reported.
+     */
+    public long getLastUpdated(int slot) { return updated.getLong(slot * 8); }
+
+    /**
+     * Grow every column.
+     * @param newCapacity The new number of slots.
+     */
+    private void grow(int newCapacity)
+    {
+        flags = copyColumn(flags, newCapacity, 1);
+        keys = copyColumn(keys, newCapacity, 4);
+        addresses = copyColumn(addresses, newCapacity, 1);
+        types = copyColumn(types, newCapacity, 1);
+        states = copyColumn(states, newCapacity, 2);
+        intervals = copyColumn(intervals, newCapacity, 2);
+        colors = copyColumn(colors, newCapacity, 4);
+        updated = copyColumn(updated, newCapacity, 8);
+        capacity = newCapacity;
+    }
+
+    /**
+     * Allocate an off-heap column.
+     * @param slots Number of slots.
+     * @param width Bytes per slot.
+     * @return The column.
+     */
+    private static ByteBuffer column(int slots, int width)
+    {
+        return ByteBuffer.allocateDirect(slots * width).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Copy a column into a larger one.
+     * @param old The existing column.
+     * @param slots Number of slots in the new column.
+     * @param width Bytes per slot.
+     * @return The new column.
+     */
+    private static ByteBuffer copyColumn(ByteBuffer old, int slots, int width)
+    {
+        ByteBuffer c = column(slots, width);
+        ByteBuffer src = old.duplicate();
+        src.clear();
+        c.put(src);
+        c.clear();
+        return c;
+    }
+}
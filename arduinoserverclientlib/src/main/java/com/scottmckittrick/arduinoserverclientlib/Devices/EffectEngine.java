@@ -0,0 +1,237 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+/**
+ * Renders color effects for many lamps at once into a packed frame.
+ * The frame is an int per lamp holding 0xRRGGBB, ready to be sent with DeviceManager.sendLampColors().
+ * Solid, gradient, chase and the brightness pass are each a counted loop of integer arithmetic with no branches
+ * or calls in the body, which the JIT can turn into SIMD instructions where the platform supports it. The palette
+ * cycle looks its colors up by index and blends them, so it stays scalar.
+ * Not thread safe. Render and send from one thread, such as a ColorStreamer frame source.
+ */
+
+public class EffectEngine {
+    /** Every lamp the same color */
+    public static final int EFFECT_SOLID = 0;
+    /** Colors blend from the first lamp to the last */
+    public static final int EFFECT_GRADIENT = 1;
+    /** A band of color runs along the lamps */
+    public static final int EFFECT_CHASE = 2;
+    /** Colors of a palette flow along the lamps */
+    public static final int EFFECT_PALETTE_CYCLE = 3;
+
+    /** Number of lamps rendered */
+    private final int lampCount;
+    /** Rendered colors, one per lamp */
+    private final int[] frame;
+    /** Fixed point position of each lamp along the strip, 0 to 65536 */
+    private final int[] position;
+
+    /** Current effect */
+    private int effect = EFFECT_SOLID;
+    /** Colors used by the effect */
+    private int color1, color2;
+    /** Chase width in lamps */
+    private int chaseWidth;
+    /** Chase speed in lamps per second */
+    private int chaseSpeed;
+    /** Palette for the palette cycle, with the first entry repeated at the end so blending never wraps */
+    private int[] palette;
+    /** Time for a full palette cycle in milliseconds */
+    private long cyclePeriod;
+    /** Master brightness 0-256 */
+    private int brightness = 256;
+
+    /**
+     * Create an engine
+     * @param lampCount Number of lamps to render.
+     */
+    public EffectEngine(int lampCount)
+    {
+        if(lampCount <= 0)
+            throw new IllegalArgumentException("Lamp count must be positive");
+        this.lampCount = lampCount;
+        frame = new int[lampCount];
+        position = new int[lampCount];
+        int span = Math.max(1, lampCount - 1);
+        for(int i = 0; i < lampCount; i++)
+            position[i] = (int)((i * 65536L) / span);
+    }
+
+    /**
+     * Get the number of lamps rendered.
+     * @return The lamp count.
+     */
+    public int getLampCount() { return lampCount; }
+
+    /**
+     * Get the rendered frame. The array is reused by each call to render().
+     * @return Colors packed as 0xRRGGBB, one per lamp.
+     */
+    public int[] getFrame() { return frame; }
+
+    /**
+     * Show a single color on every lamp.
+     * @param color The color packed as 0xRRGGBB.
+     */
+    public void setSolid(int color)
+    {
+        effect = EFFECT_SOLID;
+        color1 = color;
+    }
+
+    /**
+     * Blend from one color on the first lamp to another on the last.
+     * @param from Color of the first lamp packed as 0xRRGGBB.
+     * @param to Color of the last lamp packed as 0xRRGGBB.
+     */
+    public void setGradient(int from, int to)
+    {
+        effect = EFFECT_GRADIENT;
+        color1 = from;
+        color2 = to;
+    }
+
+    /**
+     * Run a band of color along the lamps.
+     * @param color Color of the band packed as 0xRRGGBB.
+     * @param background Color of the other lamps packed as 0xRRGGBB.
+     * @param width Width of the band in lamps.
+     * @param lampsPerSecond Speed of the band.
+     */
+    public void setChase(int color, int background, int width, int lampsPerSecond)
+    {
+        effect = EFFECT_CHASE;
+        color1 = color;
+        color2 = background;
+        chaseWidth = Math.max(1, width);
+        chaseSpeed = lampsPerSecond;
+    }
+
+    /**
+     * Flow the colors of a palette along the lamps, blending between neighbouring entries.
+     * @param colors The palette, colors packed as 0xRRGGBB.
+     * @param periodMs Time for the palette to move the full length of the lamps.
+     */
+    public void setPaletteCycle(int[] colors, long periodMs)
+    {
+        if((colors == null) || (colors.length == 0) || (periodMs <= 0))
+            throw new IllegalArgumentException("Invalid palette cycle");
+        effect = EFFECT_PALETTE_CYCLE;
+        palette = new int[colors.length + 1];
+        System.arraycopy(colors, 0, palette, 0, colors.length);
+        palette[colors.length] = colors[0];
+        cyclePeriod = periodMs;
+    }
+
+    /**
+     * Set the master brightness applied to every effect.
+     * @param level Brightness 0-255.
+     */
+    public void setBrightness(int level)
+    {
+        //Scale 1-255 to 2-256 so full brightness leaves colors untouched
+        brightness = (level <= 0) ? 0 : Math.min(255, level) + 1;
+    }
+
+    /**
+     * Render the frame for a point in time.
+     * @param timeMs Time in milliseconds. Only differences between calls matter.
+     * @return The frame, the same array as getFrame().
+     */
+    public int[] render(long timeMs)
+    {
+        switch(effect) {
+            case EFFECT_GRADIENT:
+                renderGradient();
+                break;
+            case EFFECT_CHASE:
+                renderChase(timeMs);
+                break;
+            case EFFECT_PALETTE_CYCLE:
+                renderPaletteCycle(timeMs);
+                break;
+            default:
+                renderSolid();
+                break;
+        }
+        if(brightness < 256)
+            applyBrightness();
+        return frame;
+    }
+
+    private void renderSolid()
+    {
+        int c = color1 & 0xFFFFFF;
+        for(int i = 0; i < lampCount; i++)
+            frame[i] = c;
+    }
+
+    private void renderGradient()
+    {
+        int r0 = (color1 >> 16) & 0xFF, g0 = (color1 >> 8) & 0xFF, b0 = color1 & 0xFF;
+        int dr = ((color2 >> 16) & 0xFF) - r0, dg = ((color2 >> 8) & 0xFF) - g0, db = (color2 & 0xFF) - b0;
+        for(int i = 0; i < lampCount; i++) {
+            int t = position[i];
+            int r = r0 + ((dr * t) >> 16);
+            int g = g0 + ((dg * t) >> 16);
+            int b = b0 + ((db * t) >> 16);
+            frame[i] = (r << 16) | (g << 8) | b;
+        }
+    }
+
+    private void renderChase(long timeMs)
+    {
+        int head = (int)(((timeMs * chaseSpeed) / 1000) % lampCount);
+        if(head < 0)
+            head += lampCount;
+        int fg = color1 & 0xFFFFFF, bg = color2 & 0xFFFFFF;
+        int n = lampCount, w = chaseWidth;
+        for(int i = 0; i < n; i++) {
+            //Distance behind the head, wrapped into 0..n-1 without a branch
+            int d = head - i;
+            d += (d >> 31) & n;
+            int inBand = (d - w) >> 31;
+            frame[i] = (fg & inBand) | (bg & ~inBand);
+        }
+    }
+
+    private void renderPaletteCycle(long timeMs)
+    {
+        int len = palette.length - 1;
+        //Offset of the palette in 1/65536ths of its length
+        int offset = (int)(((timeMs % cyclePeriod) << 16) / cyclePeriod);
+        for(int i = 0; i < lampCount; i++) {
+            int p = ((position[i] + offset) & 0xFFFF) * len;
+            int index = p >>> 16;
+            int frac = (p & 0xFFFF) >>> 8;
+            frame[i] = blend(palette[index], palette[index + 1], frac);
+        }
+    }
+
+    private void applyBrightness()
+    {
+        int level = brightness;
+        for(int i = 0; i < lampCount; i++) {
+            int c = frame[i];
+            int r = (((c >> 16) & 0xFF) * level) >> 8;
+            int g = (((c >> 8) & 0xFF) * level) >> 8;
+            int b = ((c & 0xFF) * level) >> 8;
+            frame[i] = (r << 16) | (g << 8) | b;
+        }
+    }
+
+    /**
+     * Blend two colors.
+     * @param a First color packed as 0xRRGGBB.
+     * @param b Second color packed as 0xRRGGBB.
+     * @param frac Weight of the second color, 0-255.
+     * @return The blended color.
+     */
+    private static int blend(int a, int b, int frac)
+    {
+        int r = (((a >> 16) & 0xFF) * (256 - frac) + ((b >> 16) & 0xFF) * frac) >> 8;
+        int g = (((a >> 8) & 0xFF) * (256 - frac) + ((b >> 8) & 0xFF) * frac) >> 8;
+        int bl = ((a & 0xFF) * (256 - frac) + (b & 0xFF) * frac) >> 8;
+        return (r << 16) | (g << 8) | bl;
+    }
+}
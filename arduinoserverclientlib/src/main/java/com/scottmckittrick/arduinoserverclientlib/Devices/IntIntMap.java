@@ -0,0 +1,177 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+/**
+ * Open addressing hash map from primitive int keys to non-negative int values.
+ * The int counterpart of IntObjectMap, used where boxing the values would defeat the purpose.
+ * Not thread safe.
+ */
+
+class IntIntMap {
+    /** Returned by get() and remove() when the key isn't in the map */
+    static final int MISSING = -1;
+
+    /** Keys of the map. Only valid where the matching value is not MISSING. */
+    private int[] keys;
+    /** Values of the map. MISSING marks an empty slot. */
+    private int[] values;
+    /** Number of entries in the map */
+    private int size;
+
+    /**
+     * Create an empty map sized for a number of entries.
+     * @param expected The number of entries expected.
+     */
+    IntIntMap(int expected)
+    {
+        int capacity = 4;
+        while(capacity < expected * 2)
+            capacity <<= 1;
+        keys = new int[capacity];
+        values = newValues(capacity);
+    }
+
+    /**
+     * Get the value stored for a key.
+     * @param key The key.
+     * @return The value, or MISSING if the key isn't in the map.
+     */
+    int get(int key)
+    {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while(values[i] != MISSING) {
+            if(keys[i] == key)
+                return values[i];
+            i = (i + 1) & mask;
+        }
+        return MISSING;
+    }
+
+    /**
+     * Store a value for a key, replacing any existing value.
+     * @param key The key.
+     * @param value The value. Must not be negative.
+     * @return The previous value, or MISSING if there wasn't one.
+     */
+    int put(int key, int value)
+    {
+        if(value < 0)
+            throw new IllegalArgumentException("Value cannot be negative");
+
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while(values[i] != MISSING) {
+            if(keys[i] == key) {
+                int old = values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = key;
+        values[i] = value;
+        //Keep the load factor at or below one half
+        if(++size * 2 > keys.length)
+            resize(keys.length * 2);
+        return MISSING;
+    }
+
+    /**
+     * Remove a key from the map.
+     * @param key The key.
+     * @return The value that was removed, or MISSING if the key wasn't in the map.
+     */
+    int remove(int key)
+    {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while(values[i] != MISSING) {
+            if(keys[i] == key) {
+                int old = values[i];
+                values[i] = MISSING;
+                size--;
+                closeGap(i);
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        return MISSING;
+    }
+
+    /**
+     * Get the number of entries in the map.
+     * @return The number of entries.
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Shift entries back after a removal so no probe sequence is broken.
+     * @param gap The slot that was emptied.
+     */
+    private void closeGap(int gap)
+    {
+        int mask = keys.length - 1;
+        int i = (gap + 1) & mask;
+        while(values[i] != MISSING) {
+            int home = hash(keys[i]) & mask;
+            //Move the entry into the gap if the gap lies between its home slot and where it is now
+            if(((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                values[i] = MISSING;
+                gap = i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Grow the table and reinsert every entry.
+     * @param capacity The new capacity. Must be a power of two.
+     */
+    private void resize(int capacity)
+    {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[capacity];
+        values = newValues(capacity);
+        int mask = capacity - 1;
+        for(int j = 0; j < oldValues.length; j++) {
+            if(oldValues[j] == MISSING)
+                continue;
+            int i = hash(oldKeys[j]) & mask;
+            while(values[i] != MISSING)
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    /**
+     * Create an empty value table.
+     * @param capacity The table size.
+     * @return A table with every slot MISSING.
+     */
+    private static int[] newValues(int capacity)
+    {
+        int[] v = new int[capacity];
+        for(int i = 0; i < capacity; i++)
+            v[i] = MISSING;
+        return v;
+    }
+
+    /**
+     * Spread the bits of a key so sequential ids don't cluster.
+     * @param key The key.
+     * @return The hash of the key.
+     */
+    private static int hash(int key)
+    {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
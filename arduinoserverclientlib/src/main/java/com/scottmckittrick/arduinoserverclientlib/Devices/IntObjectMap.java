@@ -0,0 +1,192 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+/**
+ * Open addressing hash map from primitive int keys to objects.
+ * Used for the device indexes so lookups don't box keys or allocate entries.
+ * Not thread safe.
+ */
+
+class IntObjectMap<V> {
+    /** Keys of the map. Only valid where the matching value is not null. */
+    private int[] keys;
+    /** Values of the map. Null marks an empty slot. */
+    private Object[] values;
+    /** Number of entries in the map */
+    private int size;
+
+    /**
+     * Create an empty map.
+     */
+    IntObjectMap()
+    {
+        this(16);
+    }
+
+    /**
+     * Create an empty map sized for a number of entries.
+     * @param expected The number of entries expected.
+     */
+    IntObjectMap(int expected)
+    {
+        int capacity = 4;
+        while(capacity < expected * 2)
+            capacity <<= 1;
+        keys = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    /**
+     * Get the value stored for a key.
+     * @param key The key.
+     * @return The value, or null if the key isn't in the map.
+     */
+    @SuppressWarnings("unchecked")
+    V get(int key)
+    {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while(values[i] != null) {
+            if(keys[i] == key)
+                return (V)values[i];
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Check whether a key is in the map.
+     * @param key The key.
+     * @return True if the key is in the map.
+     */
+    boolean containsKey(int key)
+    {
+        return get(key) != null;
+    }
+
+    /**
+     * Store a value for a key, replacing any existing value.
+     * @param key The key.
+     * @param value The value. Must not be null.
+     * @return The previous value, or null if there wasn't one.
+     */
+    @SuppressWarnings("unchecked")
+    V put(int key, V value)
+    {
+        if(value == null)
+            throw new IllegalArgumentException("Value cannot be null");
+
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while(values[i] != null) {
+            if(keys[i] == key) {
+                V old = (V)values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = key;
+        values[i] = value;
+        //Keep the load factor at or below one half
+        if(++size * 2 > keys.length)
+            resize(keys.length * 2);
+        return null;
+    }
+
+    /**
+     * Remove a key from the map.
+     * @param key The key.
+     * @return The value that was removed, or null if the key wasn't in the map.
+     */
+    @SuppressWarnings("unchecked")
+    V remove(int key)
+    {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while(values[i] != null) {
+            if(keys[i] == key) {
+                V old = (V)values[i];
+                values[i] = null;
+                size--;
+                closeGap(i);
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of entries in the map.
+     * @return The number of entries.
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Remove every entry. The table keeps its capacity.
+     */
+    void clear()
+    {
+        for(int i = 0; i < values.length; i++)
+            values[i] = null;
+        size = 0;
+    }
+
+    /**
+     * Shift entries back after a removal so no probe sequence is broken.
+     * @param gap The slot that was emptied.
+     */
+    private void closeGap(int gap)
+    {
+        int mask = keys.length - 1;
+        int i = (gap + 1) & mask;
+        while(values[i] != null) {
+            int home = hash(keys[i]) & mask;
+            //Move the entry into the gap if the gap lies between its home slot and where it is now
+            if(((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                values[i] = null;
+                gap = i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Grow the table and reinsert every entry.
+     * @param capacity The new capacity. Must be a power of two.
+     */
+    private void resize(int capacity)
+    {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for(int j = 0; j < oldValues.length; j++) {
+            if(oldValues[j] == null)
+                continue;
+            int i = hash(oldKeys[j]) & mask;
+            while(values[i] != null)
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    /**
+     * Spread the bits of a key so sequential ids don't cluster.
+     * @param key The key.
+     * @return The hash of the key.
+     */
+    private static int hash(int key)
+    {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
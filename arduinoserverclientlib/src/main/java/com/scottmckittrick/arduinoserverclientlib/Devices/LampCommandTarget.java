@@ -0,0 +1,44 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+import com.scottmckittrick.arduinoserverclientlib.TCPService.RequestEncoder;
+
+/**
+ * Something lamp commands can be sent to: a single lamp or a group of lamps.
+ */
+
+public interface LampCommandTarget {
+    /**
+     * Turn the lamps off.
+     */
+    void turnLampOff();
+
+    /**
+     * Set the lamps to a solid color
+     * @param r Red color value 0-255
+     * @param g Green color value 0-255
+     * @param b Blue color value 0-255
+     */
+    void setLampSolid(int r, int g, int b);
+
+    /**
+     * Encode the frame that sets the lamps to a solid color, without sending it.
+     * Nothing is encoded if there are no lamps to send it to, such as for an empty group.
+     * @param out Encoder the frame is written to.
+     * @param r Red color value 0-255
+     * @param g Green color value 0-255
+     * @param b Blue color value 0-255
+     */
+    void encodeLampSolid(RequestEncoder out, int r, int g, int b);
+
+    /**
+     * Set the lamps to fade through different colors.
+     * @param interval The interval between steps in milliseconds during the fade.
+     */
+    void setLampFade(int interval);
+
+    /**
+     * Set the lamps to cycle through different colors.
+     * @param interval The interval between colors in milliseconds during the cycle.
+     */
+    void setLampCycle(int interval);
+}
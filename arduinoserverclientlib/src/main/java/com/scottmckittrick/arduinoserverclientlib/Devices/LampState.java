@@ -0,0 +1,77 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+/**
+ * Immutable snapshot of an RGB lamp's state.
+ * A lamp publishes a new snapshot for every change, so a reader holding one always sees a consistent state, from any thread.
+ */
+
+public final class LampState {
+    /** State of a lamp that hasn't reported yet */
+    static final LampState INITIAL = new LampState(0, 0, 0, 0);
+
+    /** The lamp state, one of the RGBLampDevice CMD_LAMP_* values */
+    private final int state;
+    /** The fade or cycle interval in milliseconds */
+    private final int interval;
+    /** The color packed as 0xRRGGBB */
+    private final int color;
+    /** Incremented each time the lamp changes */
+    private final long version;
+
+    /**
+     * Create a snapshot
+     * @param state The lamp state.
+     * @param interval The fade or cycle interval.
+     * @param color The color packed as 0xRRGGBB.
+     * @param version The snapshot version.
+     */
+    LampState(int state, int interval, int color, long version)
+    {
+        this.state = state;
+        this.interval = interval;
+        this.color = color & 0xFFFFFF;
+        this.version = version;
+    }
+
+    /**
+     * Get the lamp state.
+     * @return One of the RGBLampDevice CMD_LAMP_* values.
+     */
+    public int getState() { return state; }
+
+    /**
+     * Get the fade or cycle interval.
+     * @return The interval in milliseconds.
+     */
+    public int getInterval() { return interval; }
+
+    /**
+     * Get the color.
+     * @return The color packed as 0xRRGGBB.
+     */
+    public int getColorRGB() { return color; }
+
+    public int getRed() { return (color >> 16) & 0xFF; }
+
+    public int getGreen() { return (color >> 8) & 0xFF; }
+
+    public int getBlue() { return color & 0xFF; }
+
+    /**
+     * Get the version of the snapshot. Later snapshots of the same lamp have higher versions.
+     * @return The version.
+     */
+    public long getVersion() { return version; }
+
+    /**
+     * Check whether another state has the same values, ignoring the version.
+     * @param state The lamp state.
+     * @param interval The interval.
+     * @param color The packed color.
+     * @return True if the values match.
+     */
+    boolean matches(int state, int interval, int color)
+    {
+        return (this.state == state) && (this.interval == interval) && (this.color == (color & 0xFFFFFF));
+    }
+}
@@ -1,17 +1,20 @@
 package com.scottmckittrick.arduinoserverclientlib.Devices;
 
-import android.util.Log;
-
+import com.scottmckittrick.arduinoserverclientlib.Platform.Log;
 import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+import com.scottmckittrick.arduinoserverclientlib.TCPService.RequestEncoder;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Object representing a RGB Lamp Type Device
  * Created by Scott on 4/23/2017.
  */
 
-public class RGBLampDevice extends BasicDevice {
+public class RGBLampDevice extends BasicDevice implements LampCommandTarget {
     /** Device Type */
     public static final int DEVICE_TYPE = DeviceManager.DEVICE_TYPE_RGB_LAMP;
 
@@ -38,14 +41,27 @@ public class RGBLampDevice extends BasicDevice {
 
     public static final String TAG = "RGBLampDevice";
 
-    /** The current state of the lamp */
-    private int currentState;
-    /** The current color of the lamp in RGB colors. { Red, Green, Blue } */
-    private byte[] colors;
-    /** The interval between steps in the fade transition or the interval between steps in the solid cycle in miliseconds */
-    private int interval;
+    /**
+     * The current state, color and interval of the lamp.
+     * Written on the dispatch thread and read from any thread. Each change publishes a new immutable snapshot.
+     */
+    private final AtomicReference<LampState> lampState = new AtomicReference<>(LampState.INITIAL);
     /** The object wanting to receive notifications that this device's status has changed. */
-    private DeviceChangeListener changeListener;
+    private volatile DeviceChangeListener changeListener;
+    /** The object wanting to know which fields of this device changed. */
+    private volatile DeviceFieldChangeListener fieldListener;
+    /** Event passed to the field listener. Reused so notifications don't allocate. */
+    private DeviceChangeEvent fieldEvent;
+    /** Optional columnar store the lamp's state is written through to */
+    private DeviceStateStore store;
+    /** The lamp's slot in the store */
+    private int storeSlot = DeviceStateStore.NO_SLOT;
+    /** Number of state responses received, changed or not. Lets pollers tell when a request was answered. */
+    private final AtomicInteger responseCount = new AtomicInteger();
+    /** Object encoded commands are sent to, or null to send commands as RequestObjects */
+    private volatile RequestObject.FrameReceiver frameReceiver;
+    /** Encoder reused for every command sent to a frame receiver */
+    private final RequestEncoder encoder = new RequestEncoder(16);
 
     /**
      * Construct RGBLampDevice
@@ -55,7 +71,6 @@ public class RGBLampDevice extends BasicDevice {
     public RGBLampDevice(int id, String name, int deviceAddr)
     {
         super(id, name, deviceAddr);
-        colors = new byte[3];
     }
 
     /**
@@ -80,31 +95,21 @@ public class RGBLampDevice extends BasicDevice {
 
         Log.d(TAG, "Commaand: " + r.getCommand());
 
-        byte[] d = r.getData();
         switch(r.getCommand()) {
             case CMD_LAMP_CYCLE_RSP:
-                currentState = CMD_LAMP_CYCLE;
-                interval = (d[0] << 8) | (d[1] & 0xFF);
-                notifyChanges();
+                applyState(CMD_LAMP_CYCLE, r.getShort(0), 0, DeviceChangeEvent.FIELD_INTERVAL, true);
                 break;
             case CMD_LAMP_FADE_RSP:
-                currentState = CMD_LAMP_FADE;
-                interval = (d[0] << 8) | (d[1] & 0xFF);
-                notifyChanges();
+                applyState(CMD_LAMP_FADE, r.getShort(0), 0, DeviceChangeEvent.FIELD_INTERVAL, true);
                 break;
             case CMD_LAMP_SOLID_RSP:
-                currentState = CMD_LAMP_SOLID;
-                colors[0] = d[0];
-                colors[1] = d[1];
-                colors[2] = d[2];
-                notifyChanges();
+                applyState(CMD_LAMP_SOLID, 0, packColor(r.getByte(0), r.getByte(1), r.getByte(2)), DeviceChangeEvent.FIELD_COLOR, true);
                 break;
             case CMD_LAMP_GET_STATUS_RSP:
-                parseStatus(d);
+                parseStatus(r, 0, r.getDataLength(), true);
                 break;
             case CMD_LAMP_OFF_RSP:
-                currentState = CMD_LAMP_OFF;
-                notifyChanges();
+                applyState(CMD_LAMP_OFF, 0, 0, 0, true);
                 break;
             default:
                 Log.e(TAG,"Unknown command received");
@@ -115,6 +120,8 @@ public class RGBLampDevice extends BasicDevice {
      * Command the lamp to turn off.
      */
     public void turnLampOff() {
+        if(sendEncoded(CMD_LAMP_OFF, 0, 0))
+            return;
         RequestObject r = new RequestObject(getDeviceAddr(), CMD_LAMP_OFF, null);
         getRequestReceiver().handleRequest(r);
     }
@@ -126,6 +133,8 @@ public class RGBLampDevice extends BasicDevice {
      * @param b Blue color value 0-255
      */
     public void setLampSolid(int r, int g, int b) {
+        if(sendEncoded(CMD_LAMP_SOLID, 3, ((r & 0xFF) << 16) | ((g & 0xFF) << 8) | (b & 0xFF)))
+            return;
         byte[] colors = new byte[3];
         colors[0] = (byte)(r & 0xFF);
         colors[1] = (byte)(g & 0xFF);
@@ -134,11 +143,28 @@ public class RGBLampDevice extends BasicDevice {
         getRequestReceiver().handleRequest(req);
     }
 
+    /**
+     * Encode the frame that sets the lamp to a solid color, without sending it.
+     * @param out Encoder the frame is written to.
+     * @param r Red color value 0-255
+     * @param g Green color value 0-255
+     * @param b Blue color value 0-255
+     */
+    public void encodeLampSolid(RequestEncoder out, int r, int g, int b) {
+        ByteBuffer buf = out.begin(getDeviceAddr(), CMD_LAMP_SOLID, 3);
+        buf.put((byte)r);
+        buf.put((byte)g);
+        buf.put((byte)b);
+        out.commit();
+    }
+
     /**
      * Set the lamp to fade through different colors.
      * @param interval The interval between steps in milliseconds during the fade.
      */
     public void setLampFade(int interval) {
+        if(sendEncoded(CMD_LAMP_FADE, 2, interval))
+            return;
         byte[] intervalArr = new byte[2];
         intervalArr[0] = (byte)((interval >> 8) & 0xFF);
         intervalArr[1] = (byte)(interval & 0xFF);
@@ -151,6 +177,8 @@ public class RGBLampDevice extends BasicDevice {
      * @param interval The interval between colors in milliseconds during the cycle.
      */
     public void setLampCycle(int interval) {
+        if(sendEncoded(CMD_LAMP_CYCLE, 2, interval))
+            return;
         byte[] intervalArr = new byte[2];
         intervalArr[0] = (byte)((interval >> 8) & 0xFF);
         intervalArr[1] = (byte)(interval & 0xFF);
@@ -158,11 +186,56 @@ public class RGBLampDevice extends BasicDevice {
         getRequestReceiver().handleRequest(r);
     }
 
+    /**
+     * Set the object encoded commands are sent to.
+     * With a frame receiver set, commands are encoded straight into a reused buffer and nothing is allocated per command.
+     * @param r The FrameReceiver, or null to send commands to the RequestReceiver.
+     */
+    public void setFrameReceiver(RequestObject.FrameReceiver r)
+    {
+        frameReceiver = r;
+    }
+
+    /**
+     * Encode a command and send it to the frame receiver, if there is one.
+     * @param command The command.
+     * @param length Number of argument bytes, 0 to 3.
+     * @param args The arguments, packed big endian into the low bytes.
+     * @return True if the command was sent. False if it has to be sent as a RequestObject.
+     */
+    private boolean sendEncoded(short command, int length, int args)
+    {
+        RequestObject.FrameReceiver receiver = frameReceiver;
+        if(receiver == null)
+            return false;
+
+        synchronized(encoder) {
+            ByteBuffer buf = encoder.begin(getDeviceAddr(), command, length);
+            for(int shift = (length - 1) * 8; shift >= 0; shift -= 8)
+                buf.put((byte)(args >> shift));
+            encoder.commit();
+            encoder.flushTo(receiver);
+        }
+        return true;
+    }
+
+    /**
+     * Create a streamer that sends a steady flow of colors to this lamp.
+     * @param framesPerSecond Target frame rate.
+     * @return The streamer. Call start() to begin sending.
+     */
+    public ColorStreamer createColorStreamer(int framesPerSecond)
+    {
+        return new ColorStreamer(this, framesPerSecond);
+    }
+
     /**
      * Send a status request to this lamp.
      */
     public void sendGetStatus() {
         Log.d(TAG, "Getting Status");
+        if(sendEncoded(CMD_LAMP_GET_STATUS, 0, 0))
+            return;
         RequestObject r = new RequestObject(getDeviceAddr(), CMD_LAMP_GET_STATUS, null);
         if(getRequestReceiver() != null)
             getRequestReceiver().handleRequest(r);
@@ -172,42 +245,106 @@ public class RGBLampDevice extends BasicDevice {
 
     /**
      * Parse incoming status messages, update the object and notify the client of changes.
-     * @param data The status message to be parsed.
+     * The status is { state(2) } followed by { interval(2) } for fade and cycle or { red, green, blue } for solid.
+     * The status is read straight out of the request's buffer.
+     * @param r Request holding the status message to be parsed.
+     * @param offset Start of the status in the request data.
+     * @param length Length of the status.
+     * @param notify False to leave notifying the change listener to the caller, as DeviceManager does for bulk status.
+     * @return True if the lamp's state changed.
      */
-    private void parseStatus(byte[] data) {
-        int pointer = 0;
-        short command = (short)((data[pointer++] << 8) | (data[pointer++] & 0xFF));
-        currentState = command;
+    boolean parseStatus(RequestObject r, int offset, int length, boolean notify) {
+        if(length < 2) {
+            Log.e(TAG, "Missing state in status response");
+            return false;
+        }
+
+        //Pack up to three data bytes, first byte highest
+        int argLength = Math.min(length - 2, 3);
+        int args = 0;
+        for(int i = 0; i < 3; i++)
+            args = (args << 8) | ((i < argLength) ? r.getUnsignedByte(offset + 2 + i) : 0);
+        return applyStatus(r.getShort(offset), args, argLength, notify);
+    }
+
+    /**
+     * Apply a decoded status.
+     * @param command The lamp state.
+     * @param args Up to three data bytes packed as 0xAABBCC, where AA is the first byte.
+     * @param argLength Number of data bytes present.
+     * @param notify False to leave notifying the change listener to the caller.
+     * @return True if the lamp's state changed.
+     */
+    boolean applyStatus(short command, int args, int argLength, boolean notify) {
         if((command == CMD_LAMP_CYCLE) | (command == CMD_LAMP_FADE))
         {
-            if(data == null) {
+            if(argLength < 2) {
                 Log.e(TAG, "Missing interval data in status response");
-                return;
+                return false;
             }
-            interval = (data[pointer++] << 8) | (data[pointer++] & 0xFF);
-            notifyChanges();
+            return applyState(command, (short)(args >> 8), 0, DeviceChangeEvent.FIELD_INTERVAL, notify);
         }
         else if(command == CMD_LAMP_SOLID)
         {
-            if(data == null) {
+            if(argLength < 3) {
                 Log.e(TAG, "Invalid color data in status response");
-                return;
+                return false;
             }
-            colors[0] = data[pointer++];
-            colors[1] = data[pointer++];
-            colors[2] = data[pointer++];
-            notifyChanges();
+            return applyState(command, 0, args & 0xFFFFFF, DeviceChangeEvent.FIELD_COLOR, notify);
         }
         else if(command == CMD_LAMP_OFF) {
-            notifyChanges();
+            return applyState(command, 0, 0, 0, notify);
         }
         else
         {
             Log.e(TAG, "Invalid status received");
             //ToDo send errors to client.
+            return false;
         }
     }
 
+    /**
+     * Restore the last known state of the lamp, for example from a snapshot. Listeners are not notified.
+     * @param state The lamp state.
+     * @param interval The fade or cycle interval.
+     * @param red Red color value.
+     * @param green Green color value.
+     * @param blue Blue color value.
+     */
+    void restoreState(int state, int interval, byte red, byte green, byte blue)
+    {
+        LampState current;
+        LampState next;
+        do {
+            current = lampState.get();
+            next = new LampState(state, interval, packColor(red, green, blue), current.getVersion() + 1);
+        } while(!lampState.compareAndSet(current, next));
+        writeThrough(next);
+    }
+
+    /**
+     * Bind the lamp to a slot in a state store. The current state is written straight away.
+     * @param s The store, or null to unbind.
+     * @param slot The lamp's slot.
+     */
+    void bindStore(DeviceStateStore s, int slot)
+    {
+        store = s;
+        storeSlot = slot;
+        writeThrough(lampState.get());
+    }
+
+    /**
+     * Write a state to the lamp's store slot, if it has one.
+     * @param state The state to write.
+     */
+    private void writeThrough(LampState state)
+    {
+        DeviceStateStore s = store;
+        if(s != null)
+            s.write(storeSlot, state, System.currentTimeMillis());
+    }
+
     /**
      * Register the client that will be listening for changes for this object.
      * @param d The object listening for changes.
@@ -217,15 +354,93 @@ public class RGBLampDevice extends BasicDevice {
         changeListener = d;
     }
 
+    /**
+     * Register the object that wants to know which fields of this device changed.
+     * It is only called when a response actually changes the lamp.
+     * @param l The listener, or null to stop notifications.
+     */
+    public void setDeviceFieldChangeListener(DeviceFieldChangeListener l)
+    {
+        fieldListener = l;
+    }
+
+    /**
+     * Update the lamp from a response and notify the listeners.
+     * The new snapshot is published with a single compare and set. No snapshot is published if nothing changed.
+     * @param state The new state.
+     * @param interval The new interval. Ignored unless fields includes FIELD_INTERVAL.
+     * @param color The new color packed as 0xRRGGBB. Ignored unless fields includes FIELD_COLOR.
+     * @param fields DeviceChangeEvent.FIELD_* values for the fields the response carried besides the state.
+     * @param notify False to skip the change listener. The field listener is always told about real changes.
+     * @return True if the lamp's state changed.
+     */
+    private boolean applyState(int state, int interval, int color, int fields, boolean notify)
+    {
+        responseCount.incrementAndGet();
+        LampState current;
+        LampState next;
+        do {
+            current = lampState.get();
+            if((fields & DeviceChangeEvent.FIELD_INTERVAL) == 0)
+                interval = current.getInterval();
+            if((fields & DeviceChangeEvent.FIELD_COLOR) == 0)
+                color = current.getColorRGB();
+            if(current.matches(state, interval, color)) {
+                next = current;
+                break;
+            }
+            next = new LampState(state, interval, color, current.getVersion() + 1);
+        } while(!lampState.compareAndSet(current, next));
+
+        //The store keeps the time of the last response even when nothing changed
+        writeThrough(next);
+
+        DeviceFieldChangeListener l = fieldListener;
+        if((l != null) && (next != current)) {
+            if(fieldEvent == null)
+                fieldEvent = new DeviceChangeEvent();
+            fieldEvent.reset(this);
+            fieldEvent.setLampFields(current.getState(), next.getState(), current.getInterval(), next.getInterval(),
+                    current.getColorRGB(), next.getColorRGB());
+            l.onDeviceFieldsChanged(fieldEvent);
+        }
+        if(notify)
+            notifyChanges();
+        return next != current;
+    }
+
     /**
      * Notify the client of any changes that have been made.
      */
     private void notifyChanges()
     {
-        ArrayList<BasicDevice> arr = new ArrayList<>(1);
-        arr.add(this);
-        if(changeListener != null)
-            changeListener.onDeviceChange(arr);
+        DeviceChangeListener l = changeListener;
+        if(l == null)
+            return;
+
+        //The listener may keep the list, so each notification gets its own
+        ArrayList<BasicDevice> list = new ArrayList<>(1);
+        list.add(this);
+        l.onDeviceChange(list);
+    }
+
+    /**
+     * Get a consistent snapshot of the lamp's state. Safe to call from any thread.
+     * Use this instead of the individual getters when more than one value is needed.
+     * @return The current state snapshot.
+     */
+    public LampState getState()
+    {
+        return lampState.get();
+    }
+
+    /**
+     * Get the number of state responses the lamp has received.
+     * @return The response count.
+     */
+    int getResponseCount()
+    {
+        return responseCount.get();
     }
 
     /**
@@ -234,7 +449,7 @@ public class RGBLampDevice extends BasicDevice {
      */
     public int getCurrentState()
     {
-        return currentState;
+        return lampState.get().getState();
     }
 
     /**
@@ -243,7 +458,7 @@ public class RGBLampDevice extends BasicDevice {
      */
     public int getInterval()
     {
-        return interval;
+        return lampState.get().getInterval();
     }
 
     /**
@@ -252,9 +467,26 @@ public class RGBLampDevice extends BasicDevice {
      */
     public byte[] getColors()
     {
-        byte[] values = new byte[3];
-        System.arraycopy(colors, 0, values, 0, 3);
-        return values;
+        int color = lampState.get().getColorRGB();
+        return new byte[] { (byte)(color >> 16), (byte)(color >> 8), (byte)color };
+    }
+
+    /**
+     * Get the current color setting without allocating.
+     * @return The color packed as 0xRRGGBB.
+     */
+    public int getColorRGB()
+    {
+        return lampState.get().getColorRGB();
+    }
+
+    /**
+     * Pack a color into an int.
+     * @return The color as 0xRRGGBB.
+     */
+    static int packColor(byte red, byte green, byte blue)
+    {
+        return ((red & 0xFF) << 16) | ((green & 0xFF) << 8) | (blue & 0xFF);
     }
 
 }
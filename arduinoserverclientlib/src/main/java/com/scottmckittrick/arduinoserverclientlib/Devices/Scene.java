@@ -0,0 +1,161 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+import java.util.ArrayList;
+
+/**
+ * A named list of lamp commands that are applied together, such as "all off" or "evening warm".
+ * Lamps are referred to by device id so a scene survives lamps moving to a new address.
+ * Scenes are compiled into frames and replayed by a SceneCache.
+ */
+
+public class Scene {
+    /** The name of the scene */
+    private String name;
+    /** The commands in the scene */
+    private ArrayList<Entry> entries;
+    /** Counts changes to the scene so compiled copies can tell when they are stale */
+    private int modCount;
+
+    /**
+     * Create an empty scene.
+     * @param name The name of the scene.
+     */
+    public Scene(String name)
+    {
+        this.name = name;
+        entries = new ArrayList<>();
+    }
+
+    /**
+     * Get the name of the scene.
+     * @return The name.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Add a command turning a lamp off.
+     * @param deviceId The id of the lamp.
+     * @return This scene.
+     */
+    public synchronized Scene addOff(int deviceId)
+    {
+        return add(deviceId, RGBLampDevice.CMD_LAMP_OFF, null);
+    }
+
+    /**
+     * Add a command setting a lamp to a solid color.
+     * @param deviceId The id of the lamp.
+     * @param r Red color value 0-255
+     * @param g Green color value 0-255
+     * @param b Blue color value 0-255
+     * @return This scene.
+     */
+    public synchronized Scene addSolid(int deviceId, int r, int g, int b)
+    {
+        return add(deviceId, RGBLampDevice.CMD_LAMP_SOLID, new byte[] { (byte)r, (byte)g, (byte)b });
+    }
+
+    /**
+     * Add a command setting a lamp to fade through different colors.
+     * @param deviceId The id of the lamp.
+     * @param interval The interval between steps in milliseconds during the fade.
+     * @return This scene.
+     */
+    public synchronized Scene addFade(int deviceId, int interval)
+    {
+        return add(deviceId, RGBLampDevice.CMD_LAMP_FADE, new byte[] { (byte)(interval >> 8), (byte)interval });
+    }
+
+    /**
+     * Add a command setting a lamp to cycle through different colors.
+     * @param deviceId The id of the lamp.
+     * @param interval The interval between colors in milliseconds during the cycle.
+     * @return This scene.
+     */
+    public synchronized Scene addCycle(int deviceId, int interval)
+    {
+        return add(deviceId, RGBLampDevice.CMD_LAMP_CYCLE, new byte[] { (byte)(interval >> 8), (byte)interval });
+    }
+
+    /**
+     * Remove every command from the scene.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        modCount++;
+    }
+
+    /**
+     * Get the number of commands in the scene.
+     * @return The number of commands.
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Add a command to the scene.
+     * @param deviceId The id of the lamp.
+     * @param command The lamp command.
+     * @param data The command data, or null if there is none.
+     * @return This scene.
+     */
+    private Scene add(int deviceId, short command, byte[] data)
+    {
+        entries.add(new Entry(deviceId, command, data));
+        modCount++;
+        return this;
+    }
+
+    /**
+     * Get the modification count. Must be called while holding the scene's lock.
+     * @return The modification count.
+     */
+    int getModCount()
+    {
+        return modCount;
+    }
+
+    /**
+     * Get a command. Must be called while holding the scene's lock.
+     * @param i The index of the command.
+     * @return The command.
+     */
+    Entry getEntry(int i)
+    {
+        return entries.get(i);
+    }
+
+    /**
+     * A single command in a scene.
+     */
+    static class Entry {
+        /** The id of the lamp */
+        final int deviceId;
+        /** The lamp command */
+        final short command;
+        /** The command data, or null if there is none */
+        final byte[] data;
+
+        Entry(int deviceId, short command, byte[] data)
+        {
+            this.deviceId = deviceId;
+            this.command = command;
+            this.data = data;
+        }
+
+        /**
+         * Get the length of the command data.
+         * @return The length.
+         */
+        int getDataLength()
+        {
+            return (data == null) ? 0 : data.length;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+import com.scottmckittrick.arduinoserverclientlib.TCPService.PacketWriter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of scenes compiled into ready to send frames.
+ * A scene is encoded once, into a single buffer holding a data frame per command, and applying it
+ * afterwards is one write of the cached bytes. Compiled scenes are thrown away when the device
+ * manager's device list changes, since lamps may have come, gone or moved address.
+ */
+
+public class SceneCache {
+    /** Number of scenes kept when no capacity is given */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    /** The device manager the scenes are applied through */
+    private DeviceManager manager;
+    /** Compiled scenes in least recently used order */
+    private LinkedHashMap<Scene, CompiledScene> cache;
+    /** The device list generation the compiled scenes were built against */
+    private int listGeneration;
+    /** Number of times a scene was applied from the cache */
+    private long hits;
+    /** Number of times a scene had to be compiled */
+    private long misses;
+
+    /**
+     * Create a cache holding the default number of scenes.
+     * @param manager The device manager the scenes are applied through.
+     */
+    public SceneCache(DeviceManager manager)
+    {
+        this(manager, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a cache.
+     * @param manager The device manager the scenes are applied through.
+     * @param capacity The number of compiled scenes to keep.
+     */
+    public SceneCache(DeviceManager manager, final int capacity)
+    {
+        if(capacity < 1)
+            throw new IllegalArgumentException("Capacity must be at least 1");
+
+        this.manager = manager;
+        listGeneration = manager.getListGeneration();
+        cache = new LinkedHashMap<Scene, CompiledScene>(capacity * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Scene, CompiledScene> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Apply a scene. The scene is compiled if it isn't cached or has changed since it was compiled.
+     * Commands for lamps that aren't in the device list are skipped.
+     * If the device manager has no frame receiver the commands are sent as individual requests.
+     * @param scene The scene to apply.
+     */
+    public void apply(Scene scene)
+    {
+        CompiledScene compiled = getCompiled(scene);
+        RequestObject.FrameReceiver frameReceiver = manager.getFrameReceiver();
+        if(frameReceiver != null) {
+            if(compiled.frames.length > 0)
+                frameReceiver.handleFrames(compiled.frames, 0, compiled.frames.length);
+        } else {
+            for(int i = 0; i < compiled.requests.length; i++)
+                manager.sendRequest(compiled.requests[i]);
+        }
+    }
+
+    /**
+     * Throw away every compiled scene.
+     */
+    public synchronized void invalidate()
+    {
+        cache.clear();
+    }
+
+    /**
+     * Get the number of compiled scenes held.
+     * @return The number of scenes.
+     */
+    public synchronized int size()
+    {
+        return cache.size();
+    }
+
+    /**
+     * Get the number of times a scene was applied without compiling it.
+     * @return The number of hits.
+     */
+    public synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    /**
+     * Get the number of times a scene had to be compiled.
+     * @return The number of misses.
+     */
+    public synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    /**
+     * Get the compiled form of a scene, compiling it if needed.
+     * @param scene The scene.
+     * @return The compiled scene.
+     */
+    synchronized CompiledScene getCompiled(Scene scene)
+    {
+        int generation = manager.getListGeneration();
+        if(generation != listGeneration) {
+            cache.clear();
+            listGeneration = generation;
+        }
+
+        synchronized(scene) {
+            CompiledScene compiled = cache.get(scene);
+            if((compiled != null) && (compiled.modCount == scene.getModCount())) {
+                hits++;
+                return compiled;
+            }
+
+            misses++;
+            compiled = compile(scene);
+            cache.put(scene, compiled);
+            return compiled;
+        }
+    }
+
+    /**
+     * Encode a scene into frames. Must be called while holding the scene's lock.
+     * @param scene The scene.
+     * @return The compiled scene.
+     */
+    private CompiledScene compile(Scene scene)
+    {
+        int count = scene.size();
+        int[] addresses = new int[count];
+        int size = 0;
+        int resolved = 0;
+        for(int i = 0; i < count; i++) {
+            Scene.Entry e = scene.getEntry(i);
+            addresses[i] = resolve(e.deviceId);
+            if(addresses[i] > 0) {
+                size += PacketWriter.getRequestFrameSize(e.getDataLength());
+                resolved++;
+            }
+        }
+
+        byte[] frames = new byte[size];
+        RequestObject[] requests = new RequestObject[resolved];
+        int offset = 0;
+        int r = 0;
+        for(int i = 0; i < count; i++) {
+            if(addresses[i] <= 0)
+                continue;
+            Scene.Entry e = scene.getEntry(i);
+            offset = PacketWriter.writeRequestFrame(addresses[i], e.command, e.data, 0, e.getDataLength(), frames, offset);
+            requests[r++] = new RequestObject(addresses[i], e.command, e.data);
+        }
+        return new CompiledScene(scene.getModCount(), frames, requests);
+    }
+
+    /**
+     * Find the address of a lamp.
+     * @param deviceId The id of the lamp.
+     * @return The address, or -1 if there is no lamp with the id.
+     */
+    private int resolve(int deviceId)
+    {
+        try {
+            BasicDevice d = manager.getDeviceById(deviceId);
+            return (d instanceof RGBLampDevice) ? d.getDeviceAddr() : -1;
+        } catch(DeviceNotFoundException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * A scene encoded for sending. Never modified once built.
+     */
+    static class CompiledScene {
+        /** The scene's modification count when it was compiled */
+        final int modCount;
+        /** The commands as consecutive data frames */
+        final byte[] frames;
+        /** The commands as requests, for when frames can't be sent */
+        final RequestObject[] requests;
+
+        CompiledScene(int modCount, byte[] frames, RequestObject[] requests)
+        {
+            this.modCount = modCount;
+            this.frames = frames;
+            this.requests = requests;
+        }
+    }
+}
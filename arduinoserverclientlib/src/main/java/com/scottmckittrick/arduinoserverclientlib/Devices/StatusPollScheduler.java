@@ -0,0 +1,367 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+import com.scottmckittrick.arduinoserverclientlib.Platform.Scheduler;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Keeps lamp state fresh by polling with CMD_LAMP_GET_STATUS at a rate adapted to each lamp.
+ * Lamps that just changed are polled every minInterval. Each poll that finds no change doubles the lamp's interval,
+ * up to maxInterval for lamps that are off or solid and up to the shorter animatedMaxInterval for lamps that are
+ * fading or cycling, so animated lamps back off too but are never left as long as idle ones. Each lamp starts at
+ * its own phase so polls are spread out instead of sent together, and a lamp isn't polled again while a request
+ * to it is still unanswered. Lamps the server pushes status for (see DeviceManager.subscribe()) aren't polled at all.
+ * Lamps wait in a heap ordered by when they are next due, so each check only touches the lamps that are due.
+ * The device list is only walked when its generation changes.
+ * Runs on the scheduler's thread, which must be the thread requests are dispatched to the DeviceManager on.
+ */
+
+public class StatusPollScheduler {
+    /** Default interval for lamps that are changing */
+    public static final long DEFAULT_MIN_INTERVAL = 1000;
+    /** Default longest interval for idle lamps */
+    public static final long DEFAULT_MAX_INTERVAL = 60000;
+    /** Default longest interval for fading or cycling lamps */
+    public static final long DEFAULT_ANIMATED_MAX_INTERVAL = 4000;
+    /** Time after which an unanswered poll is given up on */
+    public static final long RESPONSE_TIMEOUT = 5000;
+    /** Longest time between checks, so newly added lamps are picked up */
+    private static final long MAX_TICK_DELAY = 1000;
+
+    /** The devices to poll */
+    private DeviceManager deviceManager;
+    /** Scheduler the polls run on */
+    private Scheduler scheduler;
+    /** Interval for lamps that are changing */
+    private long minInterval = DEFAULT_MIN_INTERVAL;
+    /** Longest interval for idle lamps */
+    private long maxInterval = DEFAULT_MAX_INTERVAL;
+    /** Longest interval for fading or cycling lamps */
+    private long animatedMaxInterval = DEFAULT_ANIMATED_MAX_INTERVAL;
+
+    /** Poll state of each lamp */
+    private IdentityHashMap<RGBLampDevice, PollState> lamps;
+    /** Poll states ordered by nextPoll as a binary min-heap */
+    private PollState[] heap;
+    /** Number of poll states in the heap */
+    private int heapSize;
+    /** Lamps no longer in the device list, reused between syncs */
+    private ArrayList<RGBLampDevice> stale;
+    /** Generation of the current sync */
+    private int generation;
+    /** Device list generation the lamps were last synced with */
+    private int listGeneration;
+    /** True if the lamps have been synced with the device list since polling started */
+    private boolean synced;
+    /** True while polling */
+    private boolean running;
+    /** Number of polls sent */
+    private long pollCount;
+    /** Task that checks which lamps are due */
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            poll();
+        }
+    };
+
+    /**
+     * Create a poll scheduler.
+     * @param deviceManager The devices to poll.
+     * @param scheduler Scheduler the polls run on.
+     */
+    public StatusPollScheduler(DeviceManager deviceManager, Scheduler scheduler)
+    {
+        this.deviceManager = deviceManager;
+        this.scheduler = scheduler;
+        lamps = new IdentityHashMap<>();
+        heap = new PollState[16];
+        stale = new ArrayList<>();
+    }
+
+    /**
+     * Set the polling intervals. Takes effect as lamps are next polled.
+     * @param minInterval Interval for lamps that are changing in milliseconds.
+     * @param maxInterval Longest interval for idle lamps in milliseconds.
+     * @param animatedMaxInterval Longest interval for fading or cycling lamps in milliseconds.
+     */
+    public void setIntervals(long minInterval, long maxInterval, long animatedMaxInterval)
+    {
+        if((minInterval <= 0) || (maxInterval < minInterval) || (animatedMaxInterval < minInterval))
+            throw new IllegalArgumentException("Invalid poll intervals");
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.animatedMaxInterval = animatedMaxInterval;
+    }
+
+    /**
+     * Start polling.
+     */
+    public void start()
+    {
+        if(running)
+            return;
+        running = true;
+        scheduler.post(tick);
+    }
+
+    /**
+     * Stop polling. Lamps start over at their own phase when polling is restarted.
+     */
+    public void stop()
+    {
+        running = false;
+        scheduler.removeCallbacks(tick);
+        lamps.clear();
+        for(int i = 0; i < heapSize; i++)
+            heap[i] = null;
+        heapSize = 0;
+        synced = false;
+    }
+
+    /**
+     * Mark a lamp as changing, for example after the user sent it a command, so it is polled at the fastest rate.
+     * @param lamp The lamp.
+     */
+    public void boost(RGBLampDevice lamp)
+    {
+        PollState p = lamps.get(lamp);
+        if(p != null) {
+            p.interval = minInterval;
+            if(now() + minInterval < p.nextPoll) {
+                p.nextPoll = now() + minInterval;
+                siftUp(p.heapIndex);
+            }
+        }
+    }
+
+    /**
+     * Get the number of polls sent since the scheduler was created.
+     * @return The poll count.
+     */
+    public long getPollCount()
+    {
+        return pollCount;
+    }
+
+    /**
+     * Get the current time. Overridden by tests.
+     * @return The time in milliseconds.
+     */
+    long now()
+    {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Poll every lamp that is due and schedule the next check.
+     */
+    private void poll()
+    {
+        if(!running)
+            return;
+
+        long now = now();
+        int gen = deviceManager.getListGeneration();
+        if(!synced || (gen != listGeneration)) {
+            syncLamps(now);
+            listGeneration = gen;
+            synced = true;
+        }
+
+        while((heapSize > 0) && (heap[0].nextPoll <= now)) {
+            PollState p = heap[0];
+            if(deviceManager.isSubscribed(p.lamp.getDeviceAddr())) {
+                //Pushed status keeps the lamp fresh. Resume at the fast rate if the subscription ends.
+                p.interval = minInterval;
+                p.pollSentAt = -1;
+                p.nextPoll = now + minInterval;
+            } else {
+                pollLamp(p, now);
+            }
+            siftDown(0);
+        }
+
+        long nextDue = now + MAX_TICK_DELAY;
+        if(heapSize > 0)
+            nextDue = Math.min(nextDue, heap[0].nextPoll);
+        scheduler.postDelayed(tick, Math.max(0, nextDue - now));
+    }
+
+    /**
+     * Bring the lamps in line with the device list: add new lamps to the heap and drop removed ones.
+     * @param now The current time.
+     */
+    private void syncLamps(long now)
+    {
+        generation++;
+        ArrayList<BasicDevice> devices = deviceManager.getDeviceList();
+        for(int i = 0; i < devices.size(); i++) {
+            if(!(devices.get(i) instanceof RGBLampDevice))
+                continue;
+            RGBLampDevice lamp = (RGBLampDevice)devices.get(i);
+            PollState p = lamps.get(lamp);
+            if(p == null) {
+                p = new PollState(lamp, now);
+                lamps.put(lamp, p);
+                heapAdd(p);
+            }
+            p.generation = generation;
+        }
+
+        //Forget lamps that have been removed
+        stale.clear();
+        for(PollState p : lamps.values()) {
+            if(p.generation != generation)
+                stale.add(p.lamp);
+        }
+        for(int i = 0; i < stale.size(); i++)
+            heapRemove(lamps.remove(stale.get(i)));
+        stale.clear();
+    }
+
+    /**
+     * Add a poll state to the heap.
+     * @param p The poll state.
+     */
+    private void heapAdd(PollState p)
+    {
+        if(heapSize == heap.length) {
+            PollState[] bigger = new PollState[heap.length * 2];
+            System.arraycopy(heap, 0, bigger, 0, heapSize);
+            heap = bigger;
+        }
+        heap[heapSize] = p;
+        p.heapIndex = heapSize;
+        heapSize++;
+        siftUp(p.heapIndex);
+    }
+
+    /**
+     * Remove a poll state from the heap.
+     * @param p The poll state.
+     */
+    private void heapRemove(PollState p)
+    {
+        int i = p.heapIndex;
+        heapSize--;
+        PollState last = heap[heapSize];
+        heap[heapSize] = null;
+        if(i == heapSize)
+            return;
+        heap[i] = last;
+        last.heapIndex = i;
+        siftDown(i);
+        siftUp(last.heapIndex);
+    }
+
+    /**
+     * Move a poll state towards the top of the heap until its parent is due no later than it.
+     * @param i Index of the poll state.
+     */
+    private void siftUp(int i)
+    {
+        PollState p = heap[i];
+        while(i > 0) {
+            int parent = (i - 1) >>> 1;
+            if(heap[parent].nextPoll <= p.nextPoll)
+                break;
+            heap[i] = heap[parent];
+            heap[i].heapIndex = i;
+            i = parent;
+        }
+        heap[i] = p;
+        p.heapIndex = i;
+    }
+
+    /**
+     * Move a poll state towards the bottom of the heap until its children are due no earlier than it.
+     * @param i Index of the poll state.
+     */
+    private void siftDown(int i)
+    {
+        PollState p = heap[i];
+        while(true) {
+            int child = 2 * i + 1;
+            if(child >= heapSize)
+                break;
+            if((child + 1 < heapSize) && (heap[child + 1].nextPoll < heap[child].nextPoll))
+                child++;
+            if(p.nextPoll <= heap[child].nextPoll)
+                break;
+            heap[i] = heap[child];
+            heap[i].heapIndex = i;
+            i = child;
+        }
+        heap[i] = p;
+        p.heapIndex = i;
+    }
+
+    /**
+     * Poll a lamp that is due, adjusting its interval by what the last poll found.
+     * @param p The lamp's poll state.
+     * @param now The current time.
+     */
+    private void pollLamp(PollState p, long now)
+    {
+        RGBLampDevice lamp = p.lamp;
+        if(p.pollSentAt >= 0) {
+            if(lamp.getResponseCount() == p.responseCount) {
+                //The last poll hasn't been answered. Wait for it unless it has timed out.
+                if(now - p.pollSentAt < RESPONSE_TIMEOUT) {
+                    p.nextPoll = Math.min(now + minInterval, p.pollSentAt + RESPONSE_TIMEOUT);
+                    return;
+                }
+            }
+            p.pollSentAt = -1;
+        }
+
+        LampState state = lamp.getState();
+        boolean animated = (state.getState() == RGBLampDevice.CMD_LAMP_FADE) || (state.getState() == RGBLampDevice.CMD_LAMP_CYCLE);
+        if(state.getVersion() != p.version) {
+            p.version = state.getVersion();
+            p.interval = minInterval;
+        } else {
+            p.interval = Math.min(p.interval * 2, animated ? animatedMaxInterval : maxInterval);
+        }
+
+        p.responseCount = lamp.getResponseCount();
+        p.pollSentAt = now;
+        p.nextPoll = now + p.interval;
+        pollCount++;
+        lamp.sendGetStatus();
+    }
+
+    /**
+     * Poll state of a single lamp.
+     */
+    private class PollState {
+        /** The lamp */
+        final RGBLampDevice lamp;
+        /** Time the lamp is next due */
+        long nextPoll;
+        /** Current interval between polls */
+        long interval;
+        /** Time the outstanding poll was sent, or -1 if there isn't one */
+        long pollSentAt = -1;
+        /** Lamp response count when the outstanding poll was sent */
+        int responseCount;
+        /** Version of the lamp state when it was last polled */
+        long version;
+        /** Generation of the last sync that saw the lamp */
+        int generation;
+        /** Position of the poll state in the heap */
+        int heapIndex;
+
+        PollState(RGBLampDevice lamp, long now)
+        {
+            this.lamp = lamp;
+            interval = minInterval;
+            version = lamp.getState().getVersion();
+            //Start each lamp at its own phase within the first interval
+            int h = lamp.getDeviceAddr() * 0x9E3779B9;
+            nextPoll = now + (((h ^ (h >>> 16)) & 0x7FFFFFFF) % minInterval);
+        }
+    }
+}
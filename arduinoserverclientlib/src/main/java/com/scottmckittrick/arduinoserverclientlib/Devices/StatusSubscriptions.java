@@ -0,0 +1,152 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+
+/**
+ * Tracks which devices a DeviceManager's server pushes status changes for.
+ * The subscriptions the client wants are kept across reconnects and sent again by restore(). The subscriptions
+ * the server has confirmed are kept separately, so devices are only left unpolled once the server has agreed,
+ * and are forgotten by reset() when the connection drops.
+ */
+
+class StatusSubscriptions {
+    /** The manager subscription requests are sent through */
+    private DeviceManager deviceManager;
+    /** Addresses the client wants status pushed for, indexed by address. Kept across reconnects. */
+    private boolean[] wanted;
+    /** True if the client wants status pushed for every device */
+    private boolean wantedAll;
+    /** Addresses the server has confirmed it pushes status for, indexed by address */
+    private boolean[] active;
+    /** True if the server has confirmed it pushes status for every device */
+    private boolean activeAll;
+
+    /**
+     * Create the subscriptions for a manager.
+     * @param deviceManager The manager subscription requests are sent through.
+     */
+    StatusSubscriptions(DeviceManager deviceManager)
+    {
+        this.deviceManager = deviceManager;
+        wanted = new boolean[DeviceManager.ADDRESS_COUNT];
+        active = new boolean[DeviceManager.ADDRESS_COUNT];
+    }
+
+    /**
+     * Subscribe to a device.
+     * @param address The device address.
+     */
+    void subscribe(int address)
+    {
+        wanted[address] = true;
+        send(DeviceManager.DEV_SUBSCRIBE, new byte[] { (byte)address });
+    }
+
+    /**
+     * Subscribe to every device, including devices added later.
+     */
+    void subscribeAll()
+    {
+        wantedAll = true;
+        send(DeviceManager.DEV_SUBSCRIBE, null);
+    }
+
+    /**
+     * Unsubscribe from a device.
+     * @param address The device address.
+     */
+    void unsubscribe(int address)
+    {
+        wanted[address] = false;
+        send(DeviceManager.DEV_UNSUBSCRIBE, new byte[] { (byte)address });
+    }
+
+    /**
+     * Unsubscribe from every device.
+     */
+    void unsubscribeAll()
+    {
+        wantedAll = false;
+        for(int i = 0; i < DeviceManager.ADDRESS_COUNT; i++)
+            wanted[i] = false;
+        send(DeviceManager.DEV_UNSUBSCRIBE, null);
+    }
+
+    /**
+     * Forget what the server had confirmed. The wanted subscriptions are kept.
+     */
+    void reset()
+    {
+        activeAll = false;
+        for(int i = 0; i < DeviceManager.ADDRESS_COUNT; i++)
+            active[i] = false;
+    }
+
+    /**
+     * Forget what the server had confirmed and send the wanted subscriptions again.
+     */
+    void restore()
+    {
+        reset();
+
+        if(wantedAll) {
+            send(DeviceManager.DEV_SUBSCRIBE, null);
+            return;
+        }
+
+        int count = 0;
+        for(int i = 0; i < DeviceManager.ADDRESS_COUNT; i++) {
+            if(wanted[i])
+                count++;
+        }
+        if(count == 0)
+            return;
+
+        byte[] addresses = new byte[count];
+        int index = 0;
+        for(int i = 0; i < DeviceManager.ADDRESS_COUNT; i++) {
+            if(wanted[i])
+                addresses[index++] = (byte)i;
+        }
+        send(DeviceManager.DEV_SUBSCRIBE, addresses);
+    }
+
+    /**
+     * Check whether the server has confirmed it pushes status changes for a device.
+     * @param address The device address.
+     * @return True if the device is subscribed.
+     */
+    boolean isSubscribed(int address)
+    {
+        return activeAll || active[address & 0xFF];
+    }
+
+    /**
+     * Send a subscribe or unsubscribe request.
+     * @param command DEV_SUBSCRIBE or DEV_UNSUBSCRIBE.
+     * @param addresses The device addresses, or null for every device.
+     */
+    private void send(short command, byte[] addresses)
+    {
+        deviceManager.sendRequest(new RequestObject(0, command, addresses));
+    }
+
+    /**
+     * Record the subscriptions confirmed by the server.
+     * @param r The response. Its data holds the addresses, or is empty for every device.
+     * @param subscribed True for DEV_SUBSCRIBE_RSP, false for DEV_UNSUBSCRIBE_RSP.
+     */
+    void apply(RequestObject r, boolean subscribed)
+    {
+        if(r.getDataLength() == 0) {
+            activeAll = subscribed;
+            if(!subscribed) {
+                for(int i = 0; i < DeviceManager.ADDRESS_COUNT; i++)
+                    active[i] = false;
+            }
+            return;
+        }
+        for(int i = 0; i < r.getDataLength(); i++)
+            active[r.getUnsignedByte(i)] = subscribed;
+    }
+}
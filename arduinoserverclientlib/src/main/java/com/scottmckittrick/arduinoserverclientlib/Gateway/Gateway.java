@@ -0,0 +1,384 @@
+package com.scottmckittrick.arduinoserverclientlib.Gateway;
+
+import com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme.AuthenticationScheme;
+import com.scottmckittrick.arduinoserverclientlib.Devices.DeviceManager;
+import com.scottmckittrick.arduinoserverclientlib.Devices.DeviceStateStore;
+import com.scottmckittrick.arduinoserverclientlib.Platform.Log;
+import com.scottmckittrick.arduinoserverclientlib.Platform.Scheduler;
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+import com.scottmckittrick.arduinoserverclientlib.TCPService.FrameSlot;
+import com.scottmckittrick.arduinoserverclientlib.TCPService.RequestEncoder;
+import com.scottmckittrick.arduinoserverclientlib.TCPService.ServerEngine;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Headless client that keeps a set of servers connected without Android.
+ * Each server gets its own DeviceManager. Lost connections are retried with an exponential backoff.
+ * Public methods may be called from any thread. Device and request callbacks are made on the scheduler's thread.
+ */
+
+public class Gateway implements ServerEngine.EngineListener {
+    /** Logging Tag */
+    private static final String TAG = "Gateway";
+
+    /** Delay before the first reconnect attempt in milliseconds */
+    public static final long RECONNECT_MIN_DELAY = 1000;
+    /** Longest delay between reconnect attempts in milliseconds */
+    public static final long RECONNECT_MAX_DELAY = 60000;
+
+    /** Scheduler for the gateway's event thread */
+    private Scheduler scheduler;
+    /** Engine managing the server connections */
+    private ServerEngine engine;
+    /** Servers managed by the gateway, keyed by server id */
+    private ConcurrentHashMap<Integer, ServerEntry> servers;
+    /** Optional object receiving server events */
+    private volatile ServerEngine.EngineListener eventListener;
+    /** Optional store holding the state of every server's devices */
+    private volatile DeviceStateStore stateStore;
+
+    /**
+     * Create a gateway
+     * @param scheduler Scheduler for the gateway's event thread.
+     */
+    public Gateway(Scheduler scheduler)
+    {
+        this.scheduler = scheduler;
+        engine = new ServerEngine(scheduler, this);
+        servers = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Add a server and start connecting to it.
+     * @param serverId The id to use for the server.
+     * @param ip The ip of the server.
+     * @param port The port of the server.
+     * @param auth The authentication scheme for the server.
+     * @return The device manager for the server.
+     */
+    public DeviceManager addServer(final int serverId, final String ip, final int port, final AuthenticationScheme auth)
+    {
+        final ServerEntry entry = new ServerEntry(serverId, ip, port);
+        entry.deviceManager.setRequestReceiver(getRequestReceiver(serverId));
+        entry.deviceManager.setFrameReceiver(entry.frameReceiver);
+        if(stateStore != null)
+            entry.deviceManager.setStateStore(stateStore, serverId);
+        if(servers.putIfAbsent(serverId, entry) != null)
+            throw new IllegalArgumentException("Server " + serverId + " already exists");
+
+        scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                engine.setAuthenticationScheme(serverId, auth);
+                engine.connectServer(serverId, ip, port);
+            }
+        });
+        return entry.deviceManager;
+    }
+
+    /**
+     * Disconnect from a server and stop managing it.
+     * The engine forgets the server too, so adding the id again starts from the default settings.
+     * @param serverId The id of the server.
+     */
+    public void removeServer(final int serverId)
+    {
+        final ServerEntry entry = servers.remove(serverId);
+        if(entry == null)
+            return;
+
+        scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                scheduler.removeCallbacks(entry.reconnect);
+                engine.removeServer(serverId);
+                entry.deviceManager.setStateStore(null, serverId);
+            }
+        });
+    }
+
+    /**
+     * Disconnect from every server and stop managing them.
+     */
+    public void shutdown()
+    {
+        servers.clear();
+        scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                engine.removeAllServers();
+            }
+        });
+    }
+
+    /**
+     * Keep the state of every server's devices in one columnar store.
+     * Must be called before any servers are added. The store is only updated on the gateway's event thread,
+     * so scans should be posted to the scheduler.
+     * @param store The store.
+     */
+    public void setDeviceStateStore(DeviceStateStore store)
+    {
+        stateStore = store;
+    }
+
+    /**
+     * Get the store holding the state of every server's devices.
+     * @return The store, or null if none was set.
+     */
+    public DeviceStateStore getDeviceStateStore()
+    {
+        return stateStore;
+    }
+
+    /**
+     * Get the device manager for a server.
+     * @param serverId The id of the server.
+     * @return The device manager, or null if the server isn't known.
+     */
+    public DeviceManager getDeviceManager(int serverId)
+    {
+        ServerEntry entry = servers.get(serverId);
+        return (entry == null) ? null : entry.deviceManager;
+    }
+
+    /**
+     * Get a request receiver that sends requests to a server.
+     * @param serverId The id of the server.
+     * @return RequestReceiver that routes to the server.
+     */
+    public RequestObject.RequestReceiver getRequestReceiver(final int serverId)
+    {
+        return new RequestObject.RequestReceiver() {
+            @Override
+            public void handleRequest(final RequestObject r) {
+                scheduler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        engine.sendRequest(serverId, r);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Get a frame receiver that sends encoded frames to one server.
+     * Frames are staged in a buffer and written on the scheduler thread. Frames sent before the
+     * staged frames are written go out together in one write.
+     * @param serverId The id of the server frames should go to.
+     * @return FrameReceiver that routes to the server, or null if the server hasn't been added.
+     */
+    public RequestObject.FrameReceiver getFrameReceiver(int serverId)
+    {
+        ServerEntry entry = servers.get(serverId);
+        return (entry == null) ? null : entry.frameReceiver;
+    }
+
+    /**
+     * Create a slot holding the newest frame of a stream to a server, such as a ColorStreamer's colors.
+     * A frame put in the slot before the connection took the previous one replaces it.
+     * @param serverId The id of the server.
+     * @return The slot. Pass it to removeFrameSlot() once the stream is finished.
+     */
+    public FrameSlot createFrameSlot(final int serverId)
+    {
+        final FrameSlot slot = new FrameSlot();
+        scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                engine.addFrameSlot(serverId, slot);
+            }
+        });
+        return slot;
+    }
+
+    /**
+     * Stop sending frames from a slot.
+     * @param serverId The id of the server.
+     * @param slot The slot.
+     */
+    public void removeFrameSlot(final int serverId, final FrameSlot slot)
+    {
+        scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                engine.removeFrameSlot(serverId, slot);
+            }
+        });
+    }
+
+    /**
+     * Choose whether requests queued for a server are packed into batch frames.
+     * Only enable this for servers that understand batch frames.
+     * @param serverId The id of the server.
+     * @param enabled True to send batch frames.
+     */
+    public void setBatchingEnabled(final int serverId, final boolean enabled)
+    {
+        scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                engine.setBatchingEnabled(serverId, enabled);
+            }
+        });
+    }
+
+    /**
+     * Choose whether protocol capabilities are offered to a server when it authenticates.
+     * Only enable this for servers that understand the capability options.
+     * @param serverId The id of the server.
+     * @param enabled True to offer capabilities.
+     */
+    public void setCapabilitiesEnabled(final int serverId, final boolean enabled)
+    {
+        scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                engine.setCapabilitiesEnabled(serverId, enabled);
+            }
+        });
+    }
+
+    /**
+     * Set an object to receive server events.
+     * @param l The listener. Request callbacks are not passed on, they go to the server's device manager.
+     */
+    public void setEventListener(ServerEngine.EngineListener l)
+    {
+        eventListener = l;
+    }
+
+    /*-********************************************
+     * Handle events from the engine
+     **********************************************/
+    @Override
+    public void onServerEvent(int serverId, ServerEngine.ServerEvent event, String message)
+    {
+        ServerEntry entry = servers.get(serverId);
+        if(entry != null) {
+            switch (event) {
+                case AUTHENTICATED:
+                    Log.i(TAG, "Server " + serverId + " ready");
+                    entry.reconnectDelay = RECONNECT_MIN_DELAY;
+                    entry.deviceManager.refreshDeviceList();
+                    entry.deviceManager.restoreSubscriptions();
+                    break;
+                case AUTHENTICATION_FAILED:
+                    engine.disconnectServer(serverId);
+                    break;
+                case CONNECT_FAILED:
+                case DISCONNECTED:
+                    entry.deviceManager.connectionLost();
+                    scheduleReconnect(entry);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        ServerEngine.EngineListener l = eventListener;
+        if(l != null)
+            l.onServerEvent(serverId, event, message);
+    }
+
+    @Override
+    public void onRequestReceived(int serverId, RequestObject r)
+    {
+        ServerEntry entry = servers.get(serverId);
+        if(entry != null)
+            entry.deviceManager.handleRequest(r);
+    }
+
+    /**
+     * Schedule a reconnect attempt if one isn't already pending.
+     * @param entry The server to reconnect.
+     */
+    private void scheduleReconnect(ServerEntry entry)
+    {
+        if(entry.reconnectPending)
+            return;
+
+        Log.i(TAG, "Reconnecting to server " + entry.serverId + " in " + entry.reconnectDelay + "ms");
+        entry.reconnectPending = true;
+        scheduler.postDelayed(entry.reconnect, entry.reconnectDelay);
+        entry.reconnectDelay = Math.min(entry.reconnectDelay * 2, RECONNECT_MAX_DELAY);
+    }
+
+    /**
+     * A server managed by the gateway.
+     */
+    private class ServerEntry {
+        /** Id of the server */
+        final int serverId;
+        /** Ip of the server */
+        final String ip;
+        /** Port of the server */
+        final int port;
+        /** Devices on the server */
+        final DeviceManager deviceManager;
+        /** Delay before the next reconnect attempt */
+        long reconnectDelay;
+        /** True if a reconnect attempt is scheduled */
+        boolean reconnectPending;
+        /** Task that reconnects to the server */
+        final Runnable reconnect;
+        /** Frames waiting to be written. Guarded by frameReceiver. */
+        RequestEncoder stagedFrames;
+        /** Frames being written. Only used on the scheduler thread. */
+        RequestEncoder writingFrames;
+        /** True if a flush of the staged frames is posted. Guarded by frameReceiver. */
+        boolean flushPending;
+        /** Stages frames for the server */
+        final RequestObject.FrameReceiver frameReceiver;
+        /** Task that writes the staged frames */
+        final Runnable flushFrames;
+
+        ServerEntry(int id, String serverIp, int serverPort)
+        {
+            serverId = id;
+            ip = serverIp;
+            port = serverPort;
+            deviceManager = new DeviceManager();
+            reconnectDelay = RECONNECT_MIN_DELAY;
+            reconnect = new Runnable() {
+                @Override
+                public void run() {
+                    reconnectPending = false;
+                    if(servers.get(serverId) == ServerEntry.this)
+                        engine.connectServer(serverId, ip, port);
+                }
+            };
+            stagedFrames = new RequestEncoder();
+            writingFrames = new RequestEncoder();
+            frameReceiver = new RequestObject.FrameReceiver() {
+                @Override
+                public void handleFrames(byte[] frames, int offset, int length) {
+                    synchronized(this) {
+                        stagedFrames.append(frames, offset, length);
+                        if(flushPending)
+                            return;
+                        flushPending = true;
+                    }
+                    scheduler.post(flushFrames);
+                }
+            };
+            flushFrames = new Runnable() {
+                @Override
+                public void run() {
+                    //Swap the buffers so new frames can be staged while these are written
+                    RequestEncoder frames;
+                    synchronized(frameReceiver) {
+                        frames = stagedFrames;
+                        stagedFrames = writingFrames;
+                        writingFrames = frames;
+                        flushPending = false;
+                    }
+                    engine.sendFrames(serverId, frames.array(), 0, frames.size());
+                    frames.clear();
+                }
+            };
+        }
+    }
+}
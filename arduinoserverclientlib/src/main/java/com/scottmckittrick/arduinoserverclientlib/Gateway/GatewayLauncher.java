@@ -0,0 +1,101 @@
+package com.scottmckittrick.arduinoserverclientlib.Gateway;
+
+import com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme.BasicSharedSecretScheme;
+import com.scottmckittrick.arduinoserverclientlib.Devices.BasicDevice;
+import com.scottmckittrick.arduinoserverclientlib.Devices.DeviceChangeListener;
+import com.scottmckittrick.arduinoserverclientlib.Devices.DeviceManager;
+import com.scottmckittrick.arduinoserverclientlib.Platform.ExecutorScheduler;
+import com.scottmckittrick.arduinoserverclientlib.Platform.Log;
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+import com.scottmckittrick.arduinoserverclientlib.TCPService.ServerEngine;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line entry point for running the gateway on a plain JVM.
+ * Takes the path of a server list with one server per line:
+ *     serverId host port secret clientId
+ * Blank lines and lines starting with # are ignored.
+ */
+
+public class GatewayLauncher {
+    /** Logging Tag */
+    private static final String TAG = "GatewayLauncher";
+
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length != 1) {
+            System.err.println("Usage: GatewayLauncher <server list>");
+            System.exit(1);
+        }
+
+        final ExecutorScheduler scheduler = new ExecutorScheduler("Gateway");
+        final Gateway gateway = new Gateway(scheduler);
+        gateway.setEventListener(new ServerEngine.EngineListener() {
+            @Override
+            public void onServerEvent(int serverId, ServerEngine.ServerEvent event, String message) {
+                Log.i(TAG, "Server " + serverId + ": " + event + ((message == null) ? "" : " (" + message + ")"));
+            }
+
+            @Override
+            public void onRequestReceived(int serverId, RequestObject r) {
+            }
+        });
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(args[0]), "US-ASCII"));
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#"))
+                    continue;
+
+                String[] fields = line.split("\\s+");
+                if(fields.length != 5) {
+                    Log.e(TAG, "Invalid server entry: " + line);
+                    continue;
+                }
+
+                final int serverId = Integer.parseInt(fields[0]);
+                DeviceManager dm = gateway.addServer(serverId, fields[1], Integer.parseInt(fields[2]),
+                        new BasicSharedSecretScheme(fields[3], Integer.parseInt(fields[4])));
+                dm.registerDeviceChangeListener(new DeviceChangeListener() {
+                    @Override
+                    public void onDeviceChange(ArrayList<BasicDevice> changedDevices) {
+                        for(int i = 0; i < changedDevices.size(); i++)
+                            Log.i(TAG, "Server " + serverId + " device " + changedDevices.get(i).getDeviceAddr() + ": " + changedDevices.get(i).getDeviceName());
+                    }
+                });
+            }
+        } finally {
+            reader.close();
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                //Let the disconnects run on the event thread before stopping it.
+                final CountDownLatch done = new CountDownLatch(1);
+                gateway.shutdown();
+                scheduler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        done.countDown();
+                    }
+                });
+                try {
+                    done.await(2, TimeUnit.SECONDS);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                scheduler.shutdown();
+            }
+        });
+    }
+}
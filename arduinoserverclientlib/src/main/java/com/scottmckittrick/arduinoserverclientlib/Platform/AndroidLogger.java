@@ -0,0 +1,29 @@
+package com.scottmckittrick.arduinoserverclientlib.Platform;
+
+/**
+ * Logger that writes to logcat.
+ */
+
+public class AndroidLogger implements Logger {
+    @Override
+    public void log(int level, String tag, String message)
+    {
+        if(message == null)
+            message = "null";
+
+        switch(level)
+        {
+            case Log.DEBUG:
+                android.util.Log.d(tag, message);
+                break;
+            case Log.INFO:
+                android.util.Log.i(tag, message);
+                break;
+            case Log.WARN:
+                android.util.Log.w(tag, message);
+                break;
+            default:
+                android.util.Log.e(tag, message);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.scottmckittrick.arduinoserverclientlib.Platform;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler backed by a single thread executor. Used when running outside of Android.
+ */
+
+public class ExecutorScheduler implements Scheduler {
+    /** Logging Tag */
+    private static final String TAG = "ExecutorScheduler";
+
+    /** The executor running the event thread */
+    private ScheduledExecutorService executor;
+    /** Pending delayed tasks so they can be removed */
+    private final HashMap<Runnable, ArrayList<ScheduledFuture<?>>> pending;
+
+    /**
+     * Create a scheduler with its own event thread.
+     * @param threadName The name of the event thread.
+     */
+    public ExecutorScheduler(final String threadName)
+    {
+        pending = new HashMap<>();
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, threadName);
+                t.setDaemon(false);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public void post(Runnable r)
+    {
+        postDelayed(r, 0);
+    }
+
+    /**
+     * Run a task on the event thread after a delay. Like a Handler on a looper that has quit,
+     * a scheduler that has been shut down drops the task.
+     * @param r The task to run.
+     * @param delayMs The delay in milliseconds.
+     */
+    @Override
+    public void postDelayed(final Runnable r, long delayMs)
+    {
+        final ScheduledFuture<?>[] holder = new ScheduledFuture<?>[1];
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (pending) {
+                    ArrayList<ScheduledFuture<?>> list = pending.get(r);
+                    if(list != null) {
+                        list.remove(holder[0]);
+                        if(list.isEmpty())
+                            pending.remove(r);
+                    }
+                }
+                r.run();
+            }
+        };
+
+        synchronized (pending) {
+            ScheduledFuture<?> f;
+            try {
+                f = executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+            } catch(RejectedExecutionException e) {
+                Log.w(TAG, "Scheduler is shut down. Dropping task.");
+                return;
+            }
+            holder[0] = f;
+            ArrayList<ScheduledFuture<?>> list = pending.get(r);
+            if(list == null) {
+                list = new ArrayList<>(1);
+                pending.put(r, list);
+            }
+            list.add(f);
+        }
+    }
+
+    @Override
+    public void removeCallbacks(Runnable r)
+    {
+        synchronized (pending) {
+            ArrayList<ScheduledFuture<?>> list = pending.remove(r);
+            if(list == null)
+                return;
+            for(int i = 0; i < list.size(); i++)
+                list.get(i).cancel(false);
+        }
+    }
+
+    /**
+     * Stop the event thread. Pending tasks are discarded, and tasks posted afterwards are dropped.
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,38 @@
+package com.scottmckittrick.arduinoserverclientlib.Platform;
+
+import android.os.Handler;
+
+/**
+ * Scheduler that runs tasks on an Android Handler's thread.
+ */
+
+public class HandlerScheduler implements Scheduler {
+    /** Handler tasks are posted to */
+    private Handler handler;
+
+    /**
+     * Create a scheduler for the calling thread's looper.
+     */
+    public HandlerScheduler()
+    {
+        this(new Handler());
+    }
+
+    /**
+     * Create a scheduler that posts to a handler.
+     * @param h The handler to post to.
+     */
+    public HandlerScheduler(Handler h)
+    {
+        handler = h;
+    }
+
+    @Override
+    public void post(Runnable r) { handler.post(r); }
+
+    @Override
+    public void postDelayed(Runnable r, long delayMs) { handler.postDelayed(r, delayMs); }
+
+    @Override
+    public void removeCallbacks(Runnable r) { handler.removeCallbacks(r); }
+}
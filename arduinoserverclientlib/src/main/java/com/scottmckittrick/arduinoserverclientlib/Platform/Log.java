@@ -0,0 +1,72 @@
+package com.scottmckittrick.arduinoserverclientlib.Platform;
+
+/**
+ * Logging facade used throughout the library.
+ * Mirrors the android.util.Log methods the library uses, but writes to a pluggable Logger.
+ * On Android messages go to logcat by default, everywhere else they go to System.err.
+ */
+
+public final class Log {
+    /** Debug log level */
+    public static final int DEBUG = 3;
+    /** Info log level */
+    public static final int INFO = 4;
+    /** Warning log level */
+    public static final int WARN = 5;
+    /** Error log level */
+    public static final int ERROR = 6;
+
+    /** The logger messages are written to */
+    private static volatile Logger logger = defaultLogger();
+
+    private Log() {}
+
+    /**
+     * Replace the logger messages are written to.
+     * @param l The new logger. Null restores the default logger.
+     */
+    public static void setLogger(Logger l)
+    {
+        logger = (l == null) ? defaultLogger() : l;
+    }
+
+    /**
+     * Log a debug message
+     * @param tag Log tag
+     * @param message Message to log
+     */
+    public static void d(String tag, String message) { logger.log(DEBUG, tag, message); }
+
+    /**
+     * Log an info message
+     * @param tag Log tag
+     * @param message Message to log
+     */
+    public static void i(String tag, String message) { logger.log(INFO, tag, message); }
+
+    /**
+     * Log a warning message
+     * @param tag Log tag
+     * @param message Message to log
+     */
+    public static void w(String tag, String message) { logger.log(WARN, tag, message); }
+
+    /**
+     * Log an error message
+     * @param tag Log tag
+     * @param message Message to log
+     */
+    public static void e(String tag, String message) { logger.log(ERROR, tag, message); }
+
+    /**
+     * Pick the logger for the platform we are running on.
+     * @return AndroidLogger on Android, StreamLogger otherwise.
+     */
+    private static Logger defaultLogger()
+    {
+        //Both Dalvik and ART report themselves as Dalvik
+        if("Dalvik".equals(System.getProperty("java.vm.name")))
+            return new AndroidLogger();
+        return new StreamLogger(System.err, INFO);
+    }
+}
@@ -0,0 +1,15 @@
+package com.scottmckittrick.arduinoserverclientlib.Platform;
+
+/**
+ * Destination for log messages. Lets the library log without depending on a specific platform.
+ */
+
+public interface Logger {
+    /**
+     * Write a log message.
+     * @param level The level of the message. One of the Log level constants.
+     * @param tag Tag identifying where the message came from.
+     * @param message The message.
+     */
+    void log(int level, String tag, String message);
+}
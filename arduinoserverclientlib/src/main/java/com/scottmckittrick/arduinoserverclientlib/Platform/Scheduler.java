@@ -0,0 +1,27 @@
+package com.scottmckittrick.arduinoserverclientlib.Platform;
+
+/**
+ * Runs tasks on a single event thread.
+ * The library posts all connection and protocol events through a scheduler so they are handled on one thread.
+ */
+
+public interface Scheduler {
+    /**
+     * Run a task on the event thread as soon as possible.
+     * @param r The task to run.
+     */
+    void post(Runnable r);
+
+    /**
+     * Run a task on the event thread after a delay.
+     * @param r The task to run.
+     * @param delayMs The delay in milliseconds.
+     */
+    void postDelayed(Runnable r, long delayMs);
+
+    /**
+     * Remove any pending posts of a task.
+     * @param r The task to remove.
+     */
+    void removeCallbacks(Runnable r);
+}
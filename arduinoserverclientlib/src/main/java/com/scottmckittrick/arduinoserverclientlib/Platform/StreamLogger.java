@@ -0,0 +1,49 @@
+package com.scottmckittrick.arduinoserverclientlib.Platform;
+
+import java.io.PrintStream;
+
+/**
+ * Logger that writes to a PrintStream. Used when running outside of Android.
+ */
+
+public class StreamLogger implements Logger {
+    /** Stream to write to */
+    private PrintStream stream;
+    /** Messages below this level are dropped */
+    private int minLevel;
+
+    /**
+     * Create a stream logger
+     * @param stream The stream to write to.
+     * @param minLevel The lowest level that should be written.
+     */
+    public StreamLogger(PrintStream stream, int minLevel)
+    {
+        this.stream = stream;
+        this.minLevel = minLevel;
+    }
+
+    @Override
+    public void log(int level, String tag, String message)
+    {
+        if(level < minLevel)
+            return;
+
+        char levelChar;
+        switch(level)
+        {
+            case Log.DEBUG:
+                levelChar = 'D';
+                break;
+            case Log.INFO:
+                levelChar = 'I';
+                break;
+            case Log.WARN:
+                levelChar = 'W';
+                break;
+            default:
+                levelChar = 'E';
+        }
+        stream.println(levelChar + "/" + tag + ": " + message);
+    }
+}
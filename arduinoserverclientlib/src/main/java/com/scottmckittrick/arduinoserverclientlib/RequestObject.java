@@ -1,24 +1,30 @@
 package com.scottmckittrick.arduinoserverclientlib;
 
-import android.os.Parcel;
-import android.os.Parcelable;
-
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * Immutable object representing an request from one object to another.
+ * Request objects are passed between processes in their serialized form. See serializeRequestObject().
+ * The data may be a slice of a larger buffer, such as a received frame. Use the typed accessors to read it without copying.
  * Created by Scott on 4/23/2017.
  */
-public class RequestObject implements Parcelable {
+public class RequestObject {
     /** The size of the serialized header */
     public static int HEADER_SIZE = 3;
 
+    /** Shared empty data */
+    private static final byte[] EMPTY = new byte[0];
+
     /** Id of the device the request refers to */
     private int deviceAddress;
     /** Command being sent */
     private short command;
-    /** Any accompanying data */
+    /** Buffer holding any accompanying data */
     private byte[] data;
+    /** Start of the data in the buffer */
+    private int dataOffset;
+    /** Length of the data */
+    private int dataLength;
 
     /**
      * Constructor to create request object
@@ -32,12 +38,13 @@ public class RequestObject implements Parcelable {
         this.command = command;
 
         if(data == null) {
-            this.data = new byte[0];
+            this.data = EMPTY;
         }
         else {
             this.data = new byte[data.length];
             System.arraycopy(data, 0, this.data, 0, data.length);
         }
+        dataLength = this.data.length;
     }
 
     /**
@@ -58,15 +65,71 @@ public class RequestObject implements Parcelable {
             throw new InvalidRequestDataException("Data and count don't match up");
 
         if(count == 0) {
-            this.data = new byte[0];
+            this.data = EMPTY;
         }
         else {
             this.data = new byte[count];
             System.arraycopy(data, offset, this.data, 0, count);
         }
+        dataLength = count;
     }
 
+    /**
+     * Constructor used by the wrap factories, which fill in the fields.
+     */
+    private RequestObject() {}
 
+    /**
+     * Create a request object backed by a slice of an array, without copying.
+     * Ownership of the array passes to the request object: the caller must not modify the slice afterwards.
+     * @param deviceAddr The id of the device being referenced.
+     * @param command The command that the request contains.
+     * @param data Buffer holding the data, or null if there is none.
+     * @param offset Start of the data in the buffer.
+     * @param length Length of the data.
+     * @return The request object.
+     * @throws InvalidRequestDataException If the slice doesn't fit in the buffer.
+     */
+    public static RequestObject wrap(int deviceAddr, short command, byte[] data, int offset, int length) throws InvalidRequestDataException
+    {
+        if(data == null) {
+            if(length != 0)
+                throw new InvalidRequestDataException("Data and count don't match up");
+            data = EMPTY;
+        }
+        else if((offset < 0) || (length < 0) || (data.length - offset < length)) {
+            throw new InvalidRequestDataException("Data and count don't match up");
+        }
+        RequestObject r = new RequestObject();
+        r.deviceAddress = deviceAddr;
+        r.command = command;
+        r.data = data;
+        r.dataOffset = offset;
+        r.dataLength = length;
+        return r;
+    }
+
+    /**
+     * Create a request object from a serialized request without copying its data.
+     * Ownership of the array passes to the request object: the caller must not modify it afterwards.
+     * @param input Buffer holding the serialized request.
+     * @param offset Start of the request in the buffer.
+     * @param length Length of the serialized request.
+     * @return The request object, backed by the buffer.
+     * @throws InvalidRequestDataException If the input is invalid.
+     */
+    public static RequestObject wrapSerialized(byte[] input, int offset, int length) throws InvalidRequestDataException
+    {
+        if(input == null)
+            throw new InvalidRequestDataException("Null request data");
+
+        if(length < HEADER_SIZE)
+            throw new InvalidRequestDataException("Request data too short.");
+
+        int deviceId = input[offset] & 0xFF;
+        short command = (short)(((input[offset + 1] & 0xFF) << 8) | (input[offset + 2] & 0xFF));
+        return wrap(deviceId, command, input, offset + HEADER_SIZE, length - HEADER_SIZE);
+    }
 
     /**
      * Get the id of the device that the request is going to or coming from.
@@ -92,47 +155,117 @@ public class RequestObject implements Parcelable {
      */
     public byte[] getData()
     {
-        byte[] arr = new byte[data.length];
-        System.arraycopy(data, 0, arr, 0, data.length);
+        byte[] arr = new byte[dataLength];
+        System.arraycopy(data, dataOffset, arr, 0, dataLength);
         return arr;
     }
 
-    //Parcelable functions
-    @Override
-    public int describeContents() { return 0; }
+    /**
+     * Get the buffer holding the data, so a parser can read it in place without copying.
+     * The data is the getDataLength() bytes starting at getDataOffset(). The buffer must not be modified.
+     * @return The buffer.
+     */
+    public byte[] getDataBuffer()
+    {
+        return data;
+    }
 
-    @Override
-    public void writeToParcel(Parcel out, int flags)
+    /**
+     * Get the start of the data in the buffer returned by getDataBuffer().
+     * @return The offset.
+     */
+    public int getDataOffset()
     {
-        out.writeInt(deviceAddress);
-        out.writeInt(command);
-        out.writeInt(data.length);
-        out.writeByteArray(data);
+        return dataOffset;
     }
 
-    public static final Parcelable.Creator<RequestObject> CREATOR = new Parcelable.Creator<RequestObject>() {
-        @Override
-        public RequestObject createFromParcel(Parcel p) {
-            return new RequestObject(p);
-        }
+    /**
+     * Get the length of the data.
+     * @return Number of data bytes.
+     */
+    public int getDataLength()
+    {
+        return dataLength;
+    }
 
-        @Override
-        public RequestObject[] newArray(int size) {
-            return new RequestObject[size];
-        }
-    };
+    /**
+     * Get a data byte.
+     * @param index Index of the byte in the data.
+     * @return The byte.
+     * @throws IndexOutOfBoundsException If the index is outside the data.
+     */
+    public byte getByte(int index)
+    {
+        return data[checkIndex(index, 1)];
+    }
+
+    /**
+     * Get a data byte as an unsigned value.
+     * @param index Index of the byte in the data.
+     * @return The byte, 0-255.
+     * @throws IndexOutOfBoundsException If the index is outside the data.
+     */
+    public int getUnsignedByte(int index)
+    {
+        return data[checkIndex(index, 1)] & 0xFF;
+    }
+
+    /**
+     * Get two data bytes as a big endian short.
+     * @param index Index of the first byte in the data.
+     * @return The short.
+     * @throws IndexOutOfBoundsException If the short doesn't fit in the data.
+     */
+    public short getShort(int index)
+    {
+        int i = checkIndex(index, 2);
+        return (short)((data[i] << 8) | (data[i + 1] & 0xFF));
+    }
+
+    /**
+     * Get two data bytes as a big endian unsigned value.
+     * @param index Index of the first byte in the data.
+     * @return The value, 0-65535.
+     * @throws IndexOutOfBoundsException If the value doesn't fit in the data.
+     */
+    public int getUnsignedShort(int index)
+    {
+        return getShort(index) & 0xFFFF;
+    }
+
+    /**
+     * Copy part of the data into an array.
+     * @param index Index of the first byte to copy.
+     * @param dest The array to copy to.
+     * @param destOffset Position in the array to copy to.
+     * @param length Number of bytes to copy.
+     * @throws IndexOutOfBoundsException If the range is outside the data.
+     */
+    public void copyData(int index, byte[] dest, int destOffset, int length)
+    {
+        System.arraycopy(data, checkIndex(index, length), dest, destOffset, length);
+    }
+
+    /**
+     * Get a read only buffer over the data. The buffer's position is 0 and its limit is the data length.
+     * @return The buffer.
+     */
+    public ByteBuffer asReadOnlyBuffer()
+    {
+        return ByteBuffer.wrap(data, dataOffset, dataLength).slice().asReadOnlyBuffer();
+    }
 
     /**
-     * Constructor for creating from a parcel
-     * @param p Parcel to be referenced
+     * Check that a range lies inside the data.
+     * @param index Index of the range in the data.
+     * @param length Length of the range.
+     * @return Position of the range in the buffer.
      */
-    private RequestObject(Parcel p)
+    private int checkIndex(int index, int length)
     {
-        deviceAddress = p.readInt();
-        command = (short)p.readInt();
-        int dataLen = p.readInt();
-        data = new byte[dataLen];
-        p.readByteArray(data);
+        if((index < 0) || (length < 0) || (index > dataLength - length))
+            throw new IndexOutOfBoundsException("Index " + index + " length " + length + " outside data of length " + dataLength);
+        return dataOffset + index;
     }
 
     @Override
@@ -149,7 +282,9 @@ public class RequestObject implements Parcelable {
         boolean result = true;
         result &= (this.deviceAddress == otherReq.deviceAddress);
         result &= (this.command == otherReq.command);
-        result &= Arrays.equals(this.data, otherReq.data);
+        result &= (this.dataLength == otherReq.dataLength);
+        for(int i = 0; result && (i < dataLength); i++)
+            result = (this.data[dataOffset + i] == otherReq.data[otherReq.dataOffset + i]);
         return result;
     }
 
@@ -164,6 +299,21 @@ public class RequestObject implements Parcelable {
         void handleRequest(RequestObject r);
     }
 
+    /**
+     * Interface to be implemented by objects that can send already encoded frames to a server.
+     * Lets pre-encoded requests, such as cached scenes, be sent with a single write.
+     */
+    public interface FrameReceiver {
+        /**
+         * Send encoded frames. The frames must be complete data frames, as written by PacketWriter.writeRequestFrame()
+         * or a RequestEncoder. The frames are only read during the call, so the caller may reuse the buffer afterwards.
+         * @param frames Buffer holding the frames.
+         * @param offset Start of the frames in the buffer.
+         * @param length Length of the frames.
+         */
+        void handleFrames(byte[] frames, int offset, int length);
+    }
+
     /**
      * Function for deserializing request objects from a byte array.
      * @param input Byte array to deserialize
@@ -178,8 +328,8 @@ public class RequestObject implements Parcelable {
         if(input.length < HEADER_SIZE)
             throw new InvalidRequestDataException("Request data too short.");
 
-        int deviceId = input[0];
-        short command = (short)((input[1] << 8) | input[2]);
+        int deviceId = input[0] & 0xFF;
+        short command = (short)(((input[1] & 0xFF) << 8) | (input[2] & 0xFF));
         return new RequestObject(deviceId, command, input, HEADER_SIZE, input.length - HEADER_SIZE);
     }
 
@@ -190,11 +340,11 @@ public class RequestObject implements Parcelable {
      */
     public static byte[] serializeRequestObject(RequestObject r)
     {
-        byte[] output = new byte[r.data.length + HEADER_SIZE];
+        byte[] output = new byte[r.dataLength + HEADER_SIZE];
         output[0] = (byte)(r.deviceAddress & 0xFF);
         output[1] = (byte)(r.command >> 8);
         output[2] = (byte) (r.command & 0xFF);
-        System.arraycopy(r.data, 0, output, 3, r.data.length);
+        System.arraycopy(r.data, r.dataOffset, output, 3, r.dataLength);
         return output;
     }
 }
@@ -10,16 +10,24 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
-import android.util.Log;
 
 import com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme.AuthenticationScheme;
+import com.scottmckittrick.arduinoserverclientlib.Devices.DeviceManager;
+import com.scottmckittrick.arduinoserverclientlib.InvalidRequestDataException;
+import com.scottmckittrick.arduinoserverclientlib.Platform.Log;
 import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+import com.scottmckittrick.arduinoserverclientlib.TCPService.PacketWriter;
+import com.scottmckittrick.arduinoserverclientlib.TCPService.ParcelableAuthenticationScheme;
+import com.scottmckittrick.arduinoserverclientlib.TCPService.ParcelableRequest;
 import com.scottmckittrick.arduinoserverclientlib.TCPService.ServerService;
 
+import java.util.HashMap;
+
 /**
  * Class for binding an application to the server service.
  * This class implements all functions to bind to and connect to the service.
  * The handleResponse() function should be overriden so each specific application can handle responses.
+ * The service can talk to several servers at once. Methods that don't take a server id refer to ServerService.DEFAULT_SERVER_ID.
  * Created by Scott on 5/11/2017.
  */
 
@@ -40,8 +48,10 @@ public class ServiceClient implements RequestObject.RequestReceiver {
 
     /** Receiver for messages related to the state of the server connection **/
     private ServiceMessageReceiver messageReceiver;
-    /**Receiver for request objects sent from the server via the ServerService **/
-    private RequestObject.RequestReceiver requestReceiver;
+    /**Receivers for request objects sent from each server via the ServerService, keyed by server id **/
+    private HashMap<Integer, RequestObject.RequestReceiver> requestReceivers;
+    /** Device managers told about each server's connection, keyed by server id */
+    private HashMap<Integer, DeviceManager> deviceManagers;
 
     /**
      * Constructor for creating the service client
@@ -51,6 +61,8 @@ public class ServiceClient implements RequestObject.RequestReceiver {
     {
         this.ctx = ctx;
         isBound = false;
+        requestReceivers = new HashMap<>();
+        deviceManagers = new HashMap<>();
     }
 
     /**
@@ -142,11 +154,24 @@ public class ServiceClient implements RequestObject.RequestReceiver {
      * @throws ServiceNotBoundException Thrown if the service hasn't been bound to first.
      */
     public boolean sendConnect(String ip, int port) throws ServiceNotBoundException {
+        return sendConnect(ServerService.DEFAULT_SERVER_ID, ip, port);
+    }
+
+    /**
+     * Tell the service to connect to one of several servers
+     * @param serverId The id the service should use for this server
+     * @param ip The ip of the server
+     * @param port the port of the server
+     * @return True if the message is sent successfully, false otherwise.
+     * @throws ServiceNotBoundException Thrown if the service hasn't been bound to first.
+     */
+    public boolean sendConnect(int serverId, String ip, int port) throws ServiceNotBoundException {
         if(!isBound)
             throw new ServiceNotBoundException("Service must be bound first");
 
         Message msg = Message.obtain(null, ServerService.MSG_CONNECT_SERVER);
         Bundle data = new Bundle();
+        data.putInt(ServerService.KEY_SERVER_ID, serverId);
         data.putString(ServerService.KEY_SERVER_IP, ip);
         data.putInt(ServerService.KEY_SERVER_PORT, port);
         msg.setData(data);
@@ -164,10 +189,45 @@ public class ServiceClient implements RequestObject.RequestReceiver {
      * @throws ServiceNotBoundException Thrown when the client isn't yet bound to the service.
      */
     public boolean sendDisconnect() throws ServiceNotBoundException {
+        return sendDisconnect(ServerService.DEFAULT_SERVER_ID);
+    }
+
+    /**
+     * Send a disconnect command for one server.
+     * @param serverId The id of the server to disconnect from.
+     * @throws ServiceNotBoundException Thrown when the client isn't yet bound to the service.
+     */
+    public boolean sendDisconnect(int serverId) throws ServiceNotBoundException {
         if(!isBound)
             throw new ServiceNotBoundException("Service must be bound first");
 
         Message msg = Message.obtain(null, ServerService.MSG_DISCONNECT_SERVER);
+        Bundle data = new Bundle();
+        data.putInt(ServerService.KEY_SERVER_ID, serverId);
+        msg.setData(data);
+        try{
+            serviceMessenger.send(msg);
+            return true;
+        } catch(RemoteException e) {
+            Log.e(TAG, "Error Sending message");
+            return false;
+        }
+    }
+
+    /**
+     * Tell the service a server is no longer needed. The service disconnects from it and forgets its authentication scheme
+     * and settings, so the id can be reused for a different server.
+     * @param serverId The id of the server.
+     * @throws ServiceNotBoundException Thrown when the client isn't yet bound to the service.
+     */
+    public boolean sendRemoveServer(int serverId) throws ServiceNotBoundException {
+        if(!isBound)
+            throw new ServiceNotBoundException("Service must be bound first");
+
+        Message msg = Message.obtain(null, ServerService.MSG_REMOVE_SERVER);
+        Bundle data = new Bundle();
+        data.putInt(ServerService.KEY_SERVER_ID, serverId);
+        msg.setData(data);
         try{
             serviceMessenger.send(msg);
             return true;
@@ -184,12 +244,24 @@ public class ServiceClient implements RequestObject.RequestReceiver {
      * @throws ServiceNotBoundException Throws a ServiceNotBoundException when the service is not yet bound.
      */
     public boolean setAuthentciationScheme(AuthenticationScheme authScheme) throws ServiceNotBoundException {
+        return setAuthentciationScheme(ServerService.DEFAULT_SERVER_ID, authScheme);
+    }
+
+    /**
+     * Set the authentication scheme used for one server.
+     * @param serverId The id of the server the scheme is for.
+     * @param authScheme The AuthenticationScheme to send to the service
+     * @return True if the message was sent successfully. False otherwise.
+     * @throws ServiceNotBoundException Throws a ServiceNotBoundException when the service is not yet bound.
+     */
+    public boolean setAuthentciationScheme(int serverId, AuthenticationScheme authScheme) throws ServiceNotBoundException {
         if(!isBound)
             throw new ServiceNotBoundException("Service must be bound first");
 
         Message msg = Message.obtain(null, ServerService.MSG_AUTHSCHEME_SELECT);
         Bundle b = new Bundle();
-        b.putParcelable(ServerService.KEY_AUTHSCHEME, authScheme);
+        b.putInt(ServerService.KEY_SERVER_ID, serverId);
+        b.putParcelable(ServerService.KEY_AUTHSCHEME, new ParcelableAuthenticationScheme(authScheme));
         msg.setData(b);
 
         try
@@ -210,13 +282,24 @@ public class ServiceClient implements RequestObject.RequestReceiver {
      */
     @Override
     public void handleRequest(RequestObject r)
+    {
+        handleRequest(ServerService.DEFAULT_SERVER_ID, r);
+    }
+
+    /**
+     * Send a request object to the service to be sent to a specific server.
+     * @param serverId The id of the server the request is for.
+     * @param r RequestObject to be sent
+     */
+    public void handleRequest(int serverId, RequestObject r)
     {
         if(!isBound)
             Log.e(TAG, "Service not yet bound");
 
         Message msg = Message.obtain(null, ServerService.MSG_REQUEST_OBJECT);
         Bundle b = new Bundle();
-        b.putParcelable(ServerService.KEY_REQUEST_OBJECT, r);
+        b.putInt(ServerService.KEY_SERVER_ID, serverId);
+        b.putParcelable(ServerService.KEY_REQUEST_OBJECT, new ParcelableRequest(r));
         msg.setData(b);
 
         try
@@ -229,6 +312,119 @@ public class ServiceClient implements RequestObject.RequestReceiver {
         }
     }
 
+    /**
+     * Send several requests to the service in one message. They reach the server in one write,
+     * as a batch frame if batching is enabled for the server.
+     * @param serverId The id of the server the requests are for.
+     * @param requests The requests.
+     * @param offset Index of the first request.
+     * @param count Number of requests.
+     */
+    public void handleRequests(int serverId, RequestObject[] requests, int offset, int count)
+    {
+        if(!isBound)
+            Log.e(TAG, "Service not yet bound");
+
+        Message msg = Message.obtain(null, ServerService.MSG_REQUEST_BATCH);
+        Bundle b = new Bundle();
+        b.putInt(ServerService.KEY_SERVER_ID, serverId);
+        b.putByteArray(ServerService.KEY_REQUEST_BATCH, PacketWriter.encodeBatch(requests, offset, count));
+        msg.setData(b);
+
+        try
+        {
+            serviceMessenger.send(msg);
+        } catch(RemoteException e) {
+            Log.e(TAG, "Error sending message");
+        }
+    }
+
+    /**
+     * Turn batch frames on or off for a server. Only enable this for servers that understand batch frames.
+     * @param serverId The id of the server.
+     * @param enabled True to pack queued requests into batch frames.
+     * @throws ServiceNotBoundException Thrown when the client isn't yet bound to the service.
+     */
+    public boolean setBatchingEnabled(int serverId, boolean enabled) throws ServiceNotBoundException {
+        if(!isBound)
+            throw new ServiceNotBoundException("Service must be bound first");
+
+        Message msg = Message.obtain(null, ServerService.MSG_SET_BATCHING);
+        Bundle data = new Bundle();
+        data.putInt(ServerService.KEY_SERVER_ID, serverId);
+        data.putBoolean(ServerService.KEY_ENABLED, enabled);
+        msg.setData(data);
+        try{
+            serviceMessenger.send(msg);
+            return true;
+        } catch(RemoteException e) {
+            Log.e(TAG, "Error Sending message");
+            return false;
+        }
+    }
+
+    /**
+     * Send encoded frames to the service to be written to a server as they are.
+     * @param serverId The id of the server the frames are for.
+     * @param frames Buffer holding the frames.
+     * @param offset Start of the frames in the buffer.
+     * @param length Length of the frames.
+     */
+    public void handleFrames(int serverId, byte[] frames, int offset, int length)
+    {
+        if(!isBound)
+            Log.e(TAG, "Service not yet bound");
+
+        //The caller may reuse its buffer once this returns, so the bundle gets its own copy
+        byte[] data = new byte[length];
+        System.arraycopy(frames, offset, data, 0, length);
+
+        Message msg = Message.obtain(null, ServerService.MSG_SEND_FRAMES);
+        Bundle b = new Bundle();
+        b.putInt(ServerService.KEY_SERVER_ID, serverId);
+        b.putByteArray(ServerService.KEY_FRAMES, data);
+        msg.setData(b);
+
+        try
+        {
+            serviceMessenger.send(msg);
+        } catch(RemoteException e) {
+            Log.e(TAG, "Error sending message");
+        }
+    }
+
+    /**
+     * Get a frame receiver that sends encoded frames to one server.
+     * This can be given to a DeviceManager alongside the server's request receiver.
+     * @param serverId The id of the server frames should go to.
+     * @return FrameReceiver that routes to the server.
+     */
+    public RequestObject.FrameReceiver getServerFrameReceiver(final int serverId)
+    {
+        return new RequestObject.FrameReceiver() {
+            @Override
+            public void handleFrames(byte[] frames, int offset, int length) {
+                ServiceClient.this.handleFrames(serverId, frames, offset, length);
+            }
+        };
+    }
+
+    /**
+     * Get a request receiver that sends requests to one server.
+     * This can be given to a DeviceManager so each server has its own set of devices.
+     * @param serverId The id of the server requests should go to.
+     * @return RequestReceiver that routes to the server.
+     */
+    public RequestObject.RequestReceiver getServerRequestReceiver(final int serverId)
+    {
+        return new RequestObject.RequestReceiver() {
+            @Override
+            public void handleRequest(RequestObject r) {
+                ServiceClient.this.handleRequest(serverId, r);
+            }
+        };
+    }
+
     /**
      * Function for handling incoming messages from the service.
      * If they are request objects, we split them to a request receiver, otherwise pass them on.
@@ -237,18 +433,35 @@ public class ServiceClient implements RequestObject.RequestReceiver {
     public void handleResponse(Message m) {
         if(m.what == ServerService.MSG_REQUEST_OBJECT) {
             Bundle data = m.getData();
-            data.setClassLoader(RequestObject.class.getClassLoader());
-            RequestObject r = data.getParcelable(ServerService.KEY_REQUEST_OBJECT);
-            if(r == null) {
+            RequestObject r;
+            try {
+                r = ParcelableRequest.fromBundle(data, ServerService.KEY_REQUEST_OBJECT);
+            } catch(InvalidRequestDataException e) {
                 Log.e(TAG, "Invalid response from server. Missing request object");
                 return;
             }
 
+            RequestObject.RequestReceiver requestReceiver = requestReceivers.get(data.getInt(ServerService.KEY_SERVER_ID, ServerService.DEFAULT_SERVER_ID));
             if(requestReceiver != null)
                 requestReceiver.handleRequest(r);
         }
         else
         {
+            DeviceManager dm = deviceManagers.get(m.getData().getInt(ServerService.KEY_SERVER_ID, ServerService.DEFAULT_SERVER_ID));
+            if(dm != null) {
+                switch(m.what) {
+                    case ServerService.MSG_AUTHENTICATION_SUCCEEDED:
+                        dm.restoreSubscriptions();
+                        break;
+                    case ServerService.MSG_CONNECT_FAILURE:
+                    case ServerService.MSG_SERVER_DISCONNECTED:
+                        dm.connectionLost();
+                        break;
+                    default:
+                        break;
+                }
+            }
+
             if(messageReceiver != null)
                 messageReceiver.onMessageReceived(m);
         }
@@ -260,7 +473,42 @@ public class ServiceClient implements RequestObject.RequestReceiver {
      */
     public void setRequestReceiver(RequestObject.RequestReceiver r)
     {
-        requestReceiver = r;
+        setRequestReceiver(ServerService.DEFAULT_SERVER_ID, r);
+    }
+
+    /**
+     * Sets an object to receive request objects from one server
+     * @param serverId The id of the server.
+     * @param r Request Receiver to get requests
+     */
+    public void setRequestReceiver(int serverId, RequestObject.RequestReceiver r)
+    {
+        if(r == null)
+            requestReceivers.remove(serverId);
+        else
+            requestReceivers.put(serverId, r);
+    }
+
+    /**
+     * Connect a device manager to one server. The manager receives the server's requests and sends its own requests and frames
+     * to the server. Its subscriptions are forgotten when the connection drops and sent again once the server is authenticated.
+     * @param serverId The id of the server.
+     * @param dm The device manager, or null to disconnect the current one.
+     */
+    public void setDeviceManager(int serverId, DeviceManager dm)
+    {
+        DeviceManager old = deviceManagers.remove(serverId);
+        if(old != null) {
+            old.setRequestReceiver(null);
+            old.setFrameReceiver(null);
+        }
+        setRequestReceiver(serverId, dm);
+        if(dm == null)
+            return;
+
+        dm.setRequestReceiver(getServerRequestReceiver(serverId));
+        dm.setFrameReceiver(getServerFrameReceiver(serverId));
+        deviceManagers.put(serverId, dm);
     }
 
     /**
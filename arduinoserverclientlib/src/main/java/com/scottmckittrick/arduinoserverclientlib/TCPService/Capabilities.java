@@ -0,0 +1,274 @@
+package com.scottmckittrick.arduinoserverclientlib.TCPService;
+
+import com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme.Authenticator;
+
+/**
+ * Immutable set of protocol capabilities, either offered by the client or agreed with a server.
+ * Capabilities are exchanged as options in the authentication hellos. Only a server that answers with the
+ * ROLE_SERVER marker is taken to understand them. Any other server leaves a connection on DEFAULT, and its
+ * transport settings are left as they were configured.
+ */
+
+public final class Capabilities {
+    /** Frame types the client reads and writes */
+    static final int CLIENT_FRAME_TYPES = frameTypeBit(PacketConstants.PACKET_TYPE_AUTH)
+            | frameTypeBit(PacketConstants.PACKET_TYPE_DATA) | frameTypeBit(PacketConstants.PACKET_TYPE_BATCH)
+            | frameTypeBit(PacketConstants.PACKET_TYPE_FRAGMENT) | frameTypeBit(PacketConstants.PACKET_TYPE_CREDIT);
+    /** Role marker sent by the client in the OPTION_CAPABILITIES value */
+    public static final byte ROLE_CLIENT = 0x01;
+    /** Role marker a server that understands capabilities sends in the OPTION_CAPABILITIES value */
+    public static final byte ROLE_SERVER = 0x02;
+    /** Version of the capability options */
+    public static final byte VERSION = 0x01;
+    /** Option types offered along with the marker */
+    private static final int[] CAPABILITY_OPTIONS = { Authenticator.OPTION_CAPABILITIES, Authenticator.OPTION_MAX_FRAME_SIZE,
+            Authenticator.OPTION_MAX_BATCH, Authenticator.OPTION_FRAME_TYPES, Authenticator.OPTION_HEARTBEAT };
+    /** Capabilities of a connection that hasn't agreed on any */
+    public static final Capabilities DEFAULT = new Capabilities(false, PacketConstants.DEFAULT_MAX_FRAME_SIZE, 0,
+            frameTypeBit(PacketConstants.PACKET_TYPE_AUTH) | frameTypeBit(PacketConstants.PACKET_TYPE_DATA), 0, false);
+
+    /** True if these were agreed with a server */
+    private final boolean negotiated;
+    /** Largest frame, counting the type byte */
+    private final int maxFrameSize;
+    /** Most requests in one batch frame, or 0 if there is no limit */
+    private final int maxBatchCount;
+    /** Bit n is set if frame type n is understood */
+    private final int frameTypes;
+    /** Heartbeat interval in seconds, or 0 if there are no heartbeats */
+    private final int heartbeatInterval;
+    /** True if frames may be compressed */
+    private final boolean compression;
+
+    /**
+     * Create a set of capabilities to offer.
+     * @param maxFrameSize Largest frame, counting the type byte.
+     * @param maxBatchCount Most requests in one batch frame, or 0 if there is no limit.
+     * @param frameTypes Frame types understood, as a mask of frameTypeBit() values.
+     * @param heartbeatInterval Heartbeat interval in seconds, or 0 for none.
+     * @param compression True if frames may be compressed.
+     */
+    public Capabilities(int maxFrameSize, int maxBatchCount, int frameTypes, int heartbeatInterval, boolean compression)
+    {
+        this(false, maxFrameSize, maxBatchCount, frameTypes, heartbeatInterval, compression);
+    }
+
+    private Capabilities(boolean negotiated, int maxFrameSize, int maxBatchCount, int frameTypes, int heartbeatInterval, boolean compression)
+    {
+        if(maxFrameSize < 1)
+            throw new IllegalArgumentException("Invalid max frame size: " + maxFrameSize);
+        if((maxBatchCount < 0) || (maxBatchCount > 0xFFFF))
+            throw new IllegalArgumentException("Invalid max batch count: " + maxBatchCount);
+        if((heartbeatInterval < 0) || (heartbeatInterval > 0xFFFF))
+            throw new IllegalArgumentException("Invalid heartbeat interval: " + heartbeatInterval);
+
+        this.negotiated = negotiated;
+        this.maxFrameSize = maxFrameSize;
+        this.maxBatchCount = maxBatchCount;
+        this.frameTypes = frameTypes;
+        this.heartbeatInterval = heartbeatInterval;
+        this.compression = compression;
+    }
+
+    /**
+     * Get the mask bit for a frame type.
+     * @param type The frame type, 0 to 31.
+     * @return The bit.
+     */
+    public static int frameTypeBit(byte type)
+    {
+        return 1 << (type & 0x1F);
+    }
+
+    /**
+     * Offer these capabilities in the client hello.
+     * @param a The authenticator building the hello.
+     */
+    public void offer(Authenticator a)
+    {
+        a.setOption(Authenticator.OPTION_CAPABILITIES, new byte[] { ROLE_CLIENT, VERSION });
+        a.setOption(Authenticator.OPTION_MAX_FRAME_SIZE, new byte[] {
+                (byte)(maxFrameSize >> 24), (byte)(maxFrameSize >> 16), (byte)(maxFrameSize >> 8), (byte)maxFrameSize });
+        a.setOption(Authenticator.OPTION_MAX_BATCH, new byte[] { (byte)(maxBatchCount >> 8), (byte)maxBatchCount });
+        int count = Integer.bitCount(frameTypes);
+        byte[] types = new byte[count];
+        for(int type = 0, i = 0; i < count; type++) {
+            if((frameTypes & (1 << type)) != 0)
+                types[i++] = (byte)type;
+        }
+        a.setOption(Authenticator.OPTION_FRAME_TYPES, types);
+        a.setOption(Authenticator.OPTION_HEARTBEAT, new byte[] { (byte)(heartbeatInterval >> 8), (byte)heartbeatInterval });
+        a.setOption(Authenticator.OPTION_COMPRESSION, compression ? new byte[] { FrameCompressor.CODEC_DEFLATE } : null);
+    }
+
+    /**
+     * Offer only compression in the client hello, for servers that aren't known to understand capabilities.
+     * Capability options offered before are withdrawn, so the hello is what it was before capabilities existed.
+     * @param a The authenticator building the hello.
+     * @param compression True to offer compression.
+     * @return The capabilities offered, to pass to negotiate().
+     */
+    public static Capabilities offerCompressionOnly(Authenticator a, boolean compression)
+    {
+        for(int i = 0; i < CAPABILITY_OPTIONS.length; i++)
+            a.setOption(CAPABILITY_OPTIONS[i], null);
+        a.setOption(Authenticator.OPTION_COMPRESSION, compression ? new byte[] { FrameCompressor.CODEC_DEFLATE } : null);
+        return compression ? DEFAULT.withCompression() : DEFAULT;
+    }
+
+    /**
+     * Work out the capabilities agreed with a server from the options in its hello.
+     * Sizes and counts take the smaller of the two sides, frame types those both sides understand,
+     * and the heartbeat interval is the server's. Options the server left out or malformed are treated as absent.
+     * @param offered The capabilities that were offered.
+     * @param a The authenticator that received the server hello.
+     * @return The agreed capabilities, or DEFAULT with only compression carried over if the server didn't answer
+     * with the ROLE_SERVER marker.
+     */
+    public static Capabilities negotiate(Capabilities offered, Authenticator a)
+    {
+        byte[] codec = a.getAcceptedOption(Authenticator.OPTION_COMPRESSION);
+        boolean compression = offered.compression && (codec != null) && (codec.length == 1) && (codec[0] == FrameCompressor.CODEC_DEFLATE);
+
+        //A server that copies the client hello back seems to accept every option, so nothing is trusted without its marker
+        byte[] marker = a.getAcceptedOption(Authenticator.OPTION_CAPABILITIES);
+        if((marker == null) || (marker.length != 2) || (marker[0] != ROLE_SERVER) || (marker[1] < VERSION))
+            return compression ? DEFAULT.withCompression() : DEFAULT;
+
+        byte[] frameSize = a.getAcceptedOption(Authenticator.OPTION_MAX_FRAME_SIZE);
+        byte[] batch = a.getAcceptedOption(Authenticator.OPTION_MAX_BATCH);
+        byte[] types = a.getAcceptedOption(Authenticator.OPTION_FRAME_TYPES);
+        byte[] heartbeat = a.getAcceptedOption(Authenticator.OPTION_HEARTBEAT);
+
+        int maxFrameSize = offered.maxFrameSize;
+        if((frameSize != null) && (frameSize.length == 4)) {
+            long size = (((long)(frameSize[0] & 0xFF)) << 24) | ((frameSize[1] & 0xFF) << 16) | ((frameSize[2] & 0xFF) << 8) | (frameSize[3] & 0xFF);
+            if(size >= 1)
+                maxFrameSize = (int)Math.min(maxFrameSize, size);
+        }
+
+        int maxBatchCount = offered.maxBatchCount;
+        if((batch != null) && (batch.length == 2)) {
+            int count = ((batch[0] & 0xFF) << 8) | (batch[1] & 0xFF);
+            if((count > 0) && ((maxBatchCount == 0) || (count < maxBatchCount)))
+                maxBatchCount = count;
+        }
+
+        //Every server understands auth and data frames
+        int frameTypes = DEFAULT.frameTypes;
+        if(types != null) {
+            for(int i = 0; i < types.length; i++) {
+                if((types[i] & 0xFF) < 32)
+                    frameTypes |= frameTypeBit(types[i]);
+            }
+        }
+        frameTypes &= offered.frameTypes;
+
+        int heartbeatInterval = 0;
+        if((heartbeat != null) && (heartbeat.length == 2))
+            heartbeatInterval = ((heartbeat[0] & 0xFF) << 8) | (heartbeat[1] & 0xFF);
+
+        return new Capabilities(true, maxFrameSize, maxBatchCount, frameTypes, heartbeatInterval, compression);
+    }
+
+    /**
+     * Get a copy of these capabilities with compression on.
+     * @return The copy.
+     */
+    private Capabilities withCompression()
+    {
+        return new Capabilities(negotiated, maxFrameSize, maxBatchCount, frameTypes, heartbeatInterval, true);
+    }
+
+    /**
+     * Check whether these were agreed with a server, rather than being the defaults or an offer.
+     * @return True if the server sent its capabilities.
+     */
+    public boolean isNegotiated()
+    {
+        return negotiated;
+    }
+
+    /**
+     * Get the largest frame.
+     * @return The size in bytes, counting the type byte.
+     */
+    public int getMaxFrameSize()
+    {
+        return maxFrameSize;
+    }
+
+    /**
+     * Check whether frames too long for two length bytes are allowed. They are sent with an extended length.
+     * @return True if extended lengths are used.
+     */
+    public boolean usesExtendedFraming()
+    {
+        return negotiated && (maxFrameSize > PacketConstants.MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Get the most requests packed into one batch frame.
+     * @return The count, or 0 if there is no limit other than the max frame size.
+     */
+    public int getMaxBatchCount()
+    {
+        return maxBatchCount;
+    }
+
+    /**
+     * Check whether a frame type is understood.
+     * @param type The frame type.
+     * @return True if the type is understood.
+     */
+    public boolean supportsFrameType(byte type)
+    {
+        return ((type & 0xFF) < 32) && ((frameTypes & frameTypeBit(type)) != 0);
+    }
+
+    /**
+     * Get the heartbeat interval.
+     * @return The interval in seconds, or 0 if there are no heartbeats.
+     */
+    public int getHeartbeatInterval()
+    {
+        return heartbeatInterval;
+    }
+
+    /**
+     * Check whether frames may be compressed.
+     * @return True if compression is on.
+     */
+    public boolean hasCompression()
+    {
+        return compression;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(!(o instanceof Capabilities))
+            return false;
+        Capabilities c = (Capabilities)o;
+        return (negotiated == c.negotiated) && (maxFrameSize == c.maxFrameSize) && (maxBatchCount == c.maxBatchCount)
+                && (frameTypes == c.frameTypes) && (heartbeatInterval == c.heartbeatInterval) && (compression == c.compression);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int h = maxFrameSize;
+        h = 31 * h + maxBatchCount;
+        h = 31 * h + frameTypes;
+        h = 31 * h + heartbeatInterval;
+        return 31 * h + (negotiated ? 2 : 0) + (compression ? 1 : 0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Capabilities{negotiated=" + negotiated + ", maxFrameSize=" + maxFrameSize + ", maxBatchCount=" + maxBatchCount
+                + ", frameTypes=0x" + Integer.toHexString(frameTypes) + ", heartbeatInterval=" + heartbeatInterval
+                + ", compression=" + compression + "}";
+    }
+}
@@ -0,0 +1,259 @@
+package com.scottmckittrick.arduinoserverclientlib.TCPService;
+
+/**
+ * Outbound frames for several logical channels sharing one connection.
+ * Each channel queues encoded frames. Frames are taken from the channels in weighted rounds (deficit round robin),
+ * so a channel with a larger weight sends more bytes per round. With fragmenting on, frames larger than the fragment
+ * size are cut into fragment frames, so a large transfer on one channel can't hold up small frames on another
+ * for more than a round.
+ * Not thread safe.
+ */
+
+class ChannelScheduler {
+    /** Largest fragment of a frame sent in one fragment frame unless configured otherwise */
+    static final int DEFAULT_FRAGMENT_SIZE = 512;
+    /** Smallest fragment cut short to fit the credit. Less credit than this stalls instead of sending a sliver. */
+    static final int MIN_CREDIT_FRAGMENT_SIZE = 32;
+    /** Size of the channel and flags in front of each fragment */
+    static final int FRAGMENT_LEAD_SIZE = 2;
+    /** Fragment flag marking the first fragment of a frame */
+    static final byte FRAGMENT_FIRST = 0x01;
+    /** Fragment flag marking the last fragment of a frame */
+    static final byte FRAGMENT_LAST = 0x02;
+
+    /** The channel queues */
+    private final ChannelQueue[] channels;
+    /** Largest fragment of a frame put in one fragment frame */
+    private int fragmentSize = DEFAULT_FRAGMENT_SIZE;
+    /** Header of the fragment frame being written. Reused for every fragment. */
+    private final byte[] fragmentHeader = new byte[PacketConstants.FRAME_LEAD_SIZE + 1 + FRAGMENT_LEAD_SIZE];
+
+    /**
+     * Create the channels.
+     * @param weights The weight of each channel. Channel 0 is served first in each round.
+     */
+    ChannelScheduler(int[] weights)
+    {
+        channels = new ChannelQueue[weights.length];
+        for(int i = 0; i < weights.length; i++) {
+            channels[i] = new ChannelQueue();
+            setWeight(i, weights[i]);
+        }
+    }
+
+    /**
+     * Get the number of channels.
+     * @return The number of channels.
+     */
+    int getChannelCount()
+    {
+        return channels.length;
+    }
+
+    /**
+     * Set the weight of a channel. Each round a channel may send its weight times the fragment size in bytes.
+     * @param channel The channel.
+     * @param weight The weight, at least 1.
+     */
+    void setWeight(int channel, int weight)
+    {
+        if(weight < 1)
+            throw new IllegalArgumentException("Invalid channel weight: " + weight);
+        channels[channel].weight = weight;
+    }
+
+    /**
+     * Set the largest fragment of a frame put in one fragment frame.
+     * @param size The size in bytes.
+     */
+    void setFragmentSize(int size)
+    {
+        if((size < 1) || (size > PacketConstants.MAX_FRAME_LENGTH - 1 - FRAGMENT_LEAD_SIZE))
+            throw new IllegalArgumentException("Invalid fragment size: " + size);
+        fragmentSize = size;
+    }
+
+    /**
+     * Get the queue of a channel. Frames are encoded or appended straight into it.
+     * @param channel The channel.
+     * @return The queue.
+     */
+    RequestEncoder getQueue(int channel)
+    {
+        return channels[channel].frames;
+    }
+
+    /**
+     * Check whether any channel has frames left to send.
+     * @return True if there is something to send.
+     */
+    boolean hasPending()
+    {
+        for(int i = 0; i < channels.length; i++) {
+            if(channels[i].hasPending())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check whether a channel has frames left to send.
+     * @param channel The channel.
+     * @return True if the channel has something to send.
+     */
+    boolean hasPending(int channel)
+    {
+        return channels[channel].hasPending();
+    }
+
+    /**
+     * Take one round of frames from the channels.
+     * Each channel with frames waiting adds its quantum to its deficit and sends frames while the deficit is positive.
+     * Without fragmenting, a large frame is sent whole and the overdraft is paid back over the following rounds.
+     * Rounds that would send nothing are skipped, so something is always taken if anything is pending.
+     * @param out Encoder the round's frames are appended to.
+     * @param fragment True to cut large frames into fragment frames. Only use this with servers that read fragments.
+     */
+    void nextRound(RequestEncoder out, boolean fragment)
+    {
+        nextRound(out, fragment, null);
+    }
+
+    /**
+     * Take one round of frames from the channels, no more than the byte credit covers.
+     * The credit is only checked here. It is spent by the writer on the frames it writes, which batching and compression
+     * make smaller than the frames taken. The round ends early at the first frame the credit doesn't cover, which starts
+     * a stall. With fragmenting on, a fragment is cut short to fit the byte credit left, but not below
+     * MIN_CREDIT_FRAGMENT_SIZE: with less credit than that the round stalls until more is granted.
+     * @param out Encoder the round's frames are appended to.
+     * @param fragment True to cut large frames into fragment frames. Only use this with servers that read fragments.
+     * @param credit Credit to check, or null to send without limit.
+     */
+    void nextRound(RequestEncoder out, boolean fragment, CreditWindow credit)
+    {
+        int start = out.size();
+        boolean blocked;
+        do {
+            blocked = !runRound(out, start, fragment, credit);
+        } while(!blocked && (out.size() == start) && hasPending());
+    }
+
+    /**
+     * Give each channel its quantum and take the frames it can send.
+     * @param out Encoder the frames are appended to.
+     * @param start Size of out before the round, so the bytes already taken count against the credit.
+     * @param fragment True to cut large frames into fragment frames.
+     * @param credit Credit to check, or null to send without limit.
+     * @return False if the round ended for lack of credit.
+     */
+    private boolean runRound(RequestEncoder out, int start, boolean fragment, CreditWindow credit)
+    {
+        for(int i = 0; i < channels.length; i++) {
+            ChannelQueue c = channels[i];
+            if(!c.hasPending()) {
+                //An idle channel doesn't save up
+                c.deficit = 0;
+                continue;
+            }
+
+            //Credit can end a round with deficit left over, which mustn't build up across rounds
+            int quantum = c.weight * fragmentSize;
+            c.deficit = Math.min(c.deficit + quantum, quantum);
+            while((c.deficit > 0) && c.hasPending()) {
+                byte[] frames = c.frames.array();
+                int frameSize = PacketConstants.FRAME_LEAD_SIZE
+                        + (((frames[c.readPos] & 0xFF) << 8) | (frames[c.readPos + 1] & 0xFF));
+                int bodySize = frameSize - PacketConstants.FRAME_LEAD_SIZE;
+                if(!fragment || ((c.fragmentPos == 0) && (bodySize <= fragmentSize))) {
+                    if((credit != null) && !credit.hasBytes(out.size() - start + frameSize))
+                        return false;
+                    out.append(frames, c.readPos, frameSize);
+                    c.deficit -= frameSize;
+                    c.advance(frameSize);
+                    continue;
+                }
+
+                //Send the next piece of the frame's type and data
+                int chunk = Math.min(fragmentSize, bodySize - c.fragmentPos);
+                if(credit != null) {
+                    //Each fragment costs a header and a frame credit, so a small grant mustn't be spent on slivers
+                    long taken = out.size() - start + fragmentHeader.length;
+                    if(!credit.hasBytes(taken + Math.min(chunk, MIN_CREDIT_FRAGMENT_SIZE)))
+                        return false;
+                    chunk = (int)Math.min(chunk, credit.getBytes() - taken);
+                }
+                byte flags = 0;
+                if(c.fragmentPos == 0)
+                    flags |= FRAGMENT_FIRST;
+                if(c.fragmentPos + chunk == bodySize)
+                    flags |= FRAGMENT_LAST;
+                int frameLength = 1 + FRAGMENT_LEAD_SIZE + chunk;
+                fragmentHeader[0] = (byte)(frameLength >> 8);
+                fragmentHeader[1] = (byte)frameLength;
+                fragmentHeader[2] = PacketConstants.PACKET_TYPE_FRAGMENT;
+                fragmentHeader[3] = (byte)i;
+                fragmentHeader[4] = flags;
+                out.append(fragmentHeader, 0, fragmentHeader.length);
+                out.append(frames, c.readPos + PacketConstants.FRAME_LEAD_SIZE + c.fragmentPos, chunk);
+                c.deficit -= PacketConstants.FRAME_LEAD_SIZE + frameLength;
+                c.fragmentPos += chunk;
+                if(c.fragmentPos == bodySize) {
+                    c.fragmentPos = 0;
+                    c.advance(frameSize);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Throw away every queued frame.
+     */
+    void clear()
+    {
+        for(int i = 0; i < channels.length; i++) {
+            channels[i].frames.clear();
+            channels[i].readPos = 0;
+            channels[i].fragmentPos = 0;
+            channels[i].deficit = 0;
+        }
+    }
+
+    /**
+     * Frames waiting on one channel.
+     */
+    private static class ChannelQueue {
+        /** The queued frames. Cleared once all of them are sent. */
+        final RequestEncoder frames = new RequestEncoder();
+        /** Position of the next frame to send */
+        int readPos;
+        /** Bytes of the next frame's type and data already sent as fragments */
+        int fragmentPos;
+        /** Bytes the channel may still send this round. Negative after sending a large frame whole. */
+        int deficit;
+        /** Share of each round */
+        int weight;
+
+        /**
+         * Check whether the channel has frames left to send.
+         * @return True if there is something to send.
+         */
+        boolean hasPending()
+        {
+            return readPos < frames.size();
+        }
+
+        /**
+         * Move past a sent frame, emptying the queue once everything is sent.
+         * @param frameSize Size of the frame, header included.
+         */
+        void advance(int frameSize)
+        {
+            readPos += frameSize;
+            if(readPos >= frames.size()) {
+                frames.clear();
+                readPos = 0;
+            }
+        }
+    }
+}
@@ -1,7 +1,7 @@
 package com.scottmckittrick.arduinoserverclientlib.TCPService;
 
-import android.os.Handler;
-import android.util.Log;
+import com.scottmckittrick.arduinoserverclientlib.Platform.Log;
+import com.scottmckittrick.arduinoserverclientlib.Platform.Scheduler;
 
 import java.io.IOException;
 import java.net.ConnectException;
@@ -9,6 +9,7 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -24,19 +25,33 @@ public class Connection implements Runnable{
     /*The socket read timeout in milliseconds */
     private int timeout;
     /** Used to write a packet to the socket */
-    private PacketWriter packetWriter;
+    private volatile PacketWriter packetWriter;
     /** Used to read a packet from the socket */
-    private PacketReader packetReader;
+    private volatile PacketReader packetReader;
     /** Socket object */
     private Socket mSocket;
     /** True if the read thread is running */
     private AtomicBoolean isRunning;
     /** True if the socket is connected */
     private AtomicBoolean isConnected;
-    /** Handler from the thread object to send received packets to */
-    private Handler callerHandler;
+    /** Scheduler for the thread that received packets are sent to */
+    private Scheduler callerScheduler;
     /** Object receiving packets */
     private ConnectionMonitor connectionMonitor;
+    /** True if frames may use the extended length */
+    private volatile boolean extendedFraming;
+    /** Largest frame read or written */
+    private volatile int maxFrameSize = PacketConstants.DEFAULT_MAX_FRAME_SIZE;
+    /** True if compressed frames from the server are accepted */
+    private volatile boolean acceptCompressed;
+    /** Smallest frame data compressed on the way out, or 0 if nothing is */
+    private volatile int compressionThreshold;
+    /** Most requests packed into one batch frame, or 0 if there is no limit */
+    private volatile int maxBatchCount;
+    /** Capabilities agreed with the server */
+    private volatile Capabilities capabilities = Capabilities.DEFAULT;
+    /** Number of heartbeat intervals without a frame before the connection is treated as lost */
+    private static final int MISSED_HEARTBEAT_LIMIT = 3;
     /** Connection log tag */
     private static final String TAG = "Connection";
 
@@ -47,9 +62,9 @@ public class Connection implements Runnable{
      * Constructor to create connection
      * @param ipAddr The ipv4 address of the server
      * @param port The port of the server
-     * @param receiver A handler to receive packets from the socket.
+     * @param receiver A scheduler for the thread that receives packets from the socket.
      */
-    public Connection(String ipAddr, int port, Handler receiver, ConnectionMonitor p)
+    public Connection(String ipAddr, int port, Scheduler receiver, ConnectionMonitor p)
     {
         //default timeout is 1000
         this(ipAddr, port, 1000, receiver, p);
@@ -60,14 +75,14 @@ public class Connection implements Runnable{
      * @param ipAddr The ipv4 address of the server
      * @param port The port of the server
      * @param timeout The length of time in milliseconds that the socket should wait.
-     * @param receiver A handler to receive packets from the .
+     * @param receiver A scheduler for the thread that receives packets from the socket.
      */
-    public Connection( String ipAddr, int port, int timeout, Handler receiver, ConnectionMonitor p)
+    public Connection( String ipAddr, int port, int timeout, Scheduler receiver, ConnectionMonitor p)
     {
         this.ipAddr = ipAddr;
         this.port = port;
         this.timeout = timeout;
-        callerHandler = receiver;
+        callerScheduler = receiver;
         connectionMonitor = p;
         isRunning = new AtomicBoolean(false);
         isConnected = new AtomicBoolean(false);
@@ -90,6 +105,7 @@ public class Connection implements Runnable{
                 //Get the Input and OutputStreams
                 packetWriter = new PacketWriter(mSocket.getOutputStream());
                 packetReader = new PacketReader(mSocket.getInputStream());
+                applyFraming();
                 isConnected.set(true);
             }
             catch(IOException e)
@@ -113,29 +129,45 @@ public class Connection implements Runnable{
         try {
             Log.d(TAG, "Starting read thread. Connecting Socket..");
             connectSocket();
-            connectionMonitor.onConnectionStateChanged(ConnectionState.STATE_CONNECTED);
+            postStateChange(ConnectionState.STATE_CONNECTED);
         }catch (ConnectException e) {
             Log.e(TAG, e.getMessage());
-            connectionMonitor.onConnectionStateChanged(ConnectionState.STATE_CONNECTION_FAILED);
+            postStateChange(ConnectionState.STATE_CONNECTION_FAILED);
             return;
         }
 
         Log.d(TAG, "Socket Connected. While loop starting");
+        long lastReceived = System.currentTimeMillis();
         while(!Thread.currentThread().isInterrupted())
         {
             try {
                 final PacketConstants.Packet p = packetReader.read();
-                callerHandler.post(new Runnable() {
+                lastReceived = System.currentTimeMillis();
+                if(p.getType() == PacketConstants.PACKET_TYPE_AUTH) {
+                    //Handling an auth frame may switch the framing, so the next header mustn't be read until it is done
+                    if(!deliverAndWait(p))
+                        break;
+                    continue;
+                }
+                callerScheduler.post(new Runnable() {
                     @Override
                     public void run(){
-                        connectionMonitor.onPacketReceived(p);
+                        connectionMonitor.onPacketReceived(Connection.this, p);
                     }
                 });
             }catch(SocketTimeoutException e){
+                //A server that sends heartbeats has gone quiet for too long
+                long interval = capabilities.getHeartbeatInterval() * 1000L;
+                if((interval > 0) && (System.currentTimeMillis() - lastReceived > MISSED_HEARTBEAT_LIMIT * interval)) {
+                    Log.e(TAG, "No heartbeat from server");
+                    postStateChange(ConnectionState.STATE_CONNECTION_LOST);
+                    break;
+                }
                 continue;
             } catch(IOException e) {
                 Log.e(TAG, e.getMessage());
-                connectionMonitor.onConnectionStateChanged(ConnectionState.STATE_CONNECTION_LOST);
+                postStateChange(ConnectionState.STATE_CONNECTION_LOST);
+                break;
             }
         }
 
@@ -145,10 +177,53 @@ public class Connection implements Runnable{
         }catch(ConnectException e) {
             Log.e(TAG, e.getMessage());
         } finally {
-            connectionMonitor.onConnectionStateChanged(ConnectionState.STATE_DISCONNECTED);
+            postStateChange(ConnectionState.STATE_DISCONNECTED);
         }
     }
 
+    /**
+     * Pass a packet to the monitor on the caller's thread and wait until the monitor has handled it.
+     * @param p The packet.
+     * @return True once the packet has been handled, false if the read thread was interrupted first.
+     */
+    private boolean deliverAndWait(final PacketConstants.Packet p)
+    {
+        final CountDownLatch handled = new CountDownLatch(1);
+        callerScheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connectionMonitor.onPacketReceived(Connection.this, p);
+                } finally {
+                    handled.countDown();
+                }
+            }
+        });
+
+        try {
+            handled.await();
+            return true;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Pass a connection state change to the monitor on the caller's thread.
+     * Several connections may be running at once, so the monitor must never be called from the read thread.
+     * @param state The new connection state.
+     */
+    private void postStateChange(final ConnectionState state)
+    {
+        callerScheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                connectionMonitor.onConnectionStateChanged(Connection.this, state);
+            }
+        });
+    }
+
     /**
      * Disconnect from the server
      * @throws ConnectException Thrown when there is an error disconnecting.
@@ -167,6 +242,100 @@ public class Connection implements Runnable{
         }
     }
 
+    /**
+     * Choose whether frames may use the extended length. Must match the server.
+     * @param enabled True to allow extended lengths.
+     */
+    public void setExtendedFraming(boolean enabled)
+    {
+        extendedFraming = enabled;
+        applyFraming();
+    }
+
+    /**
+     * Set the largest frame that will be read or written.
+     * @param size The size in bytes, counting the type byte.
+     */
+    public void setMaxFrameSize(int size)
+    {
+        if(size < 1)
+            throw new IllegalArgumentException("Invalid max frame size: " + size);
+        maxFrameSize = size;
+        applyFraming();
+    }
+
+    /**
+     * Choose whether compressed frames from the server are accepted.
+     * Turn this on before offering compression, since the server may compress as soon as it agrees.
+     * @param accept True to accept compressed frames.
+     */
+    public void setAcceptCompressed(boolean accept)
+    {
+        acceptCompressed = accept;
+        applyFraming();
+    }
+
+    /**
+     * Set the smallest frame data that is compressed on the way out. Only use this once the server has agreed to compression.
+     * @param threshold The size in bytes, or 0 to stop compressing.
+     */
+    public void setCompressionThreshold(int threshold)
+    {
+        if(threshold < 0)
+            throw new IllegalArgumentException("Invalid compression threshold: " + threshold);
+        compressionThreshold = threshold;
+        applyFraming();
+    }
+
+    /**
+     * Get the capabilities agreed with the server.
+     * @return The capabilities, or Capabilities.DEFAULT if none have been agreed.
+     */
+    public Capabilities getCapabilities()
+    {
+        return capabilities;
+    }
+
+    /**
+     * Switch to the fastest transport the agreed capabilities allow.
+     * Agreed capabilities set the max frame size, extended framing and the batch size, and watch for heartbeats.
+     * Compression follows the capabilities either way. If nothing was agreed the other settings are left as they are.
+     * Call this while handling the auth frame that completes the handshake: the read thread doesn't read past an auth frame
+     * until the monitor has handled it, so the frames after it are read with the new settings.
+     * @param c The capabilities agreed with the server.
+     */
+    public void setCapabilities(Capabilities c)
+    {
+        capabilities = c;
+        if(c.isNegotiated()) {
+            maxFrameSize = c.getMaxFrameSize();
+            extendedFraming = c.usesExtendedFraming();
+            maxBatchCount = c.getMaxBatchCount();
+        }
+        compressionThreshold = c.hasCompression() ? FrameCompressor.DEFAULT_THRESHOLD : 0;
+        applyFraming();
+    }
+
+    /**
+     * Pass the framing settings to the reader and writer, if they exist yet.
+     */
+    private void applyFraming()
+    {
+        PacketWriter writer = packetWriter;
+        PacketReader reader = packetReader;
+        if(writer != null) {
+            writer.setExtendedFraming(extendedFraming);
+            writer.setMaxFrameSize(maxFrameSize);
+            writer.setCompressionThreshold(compressionThreshold);
+            writer.setMaxBatchCount(maxBatchCount);
+        }
+        if(reader != null) {
+            reader.setExtendedFraming(extendedFraming);
+            reader.setMaxFrameSize(maxFrameSize);
+            reader.setAcceptCompressed(acceptCompressed);
+        }
+    }
+
     /**
      * Send a packet to the server
      * @param p packet being sent
@@ -180,6 +349,72 @@ public class Connection implements Runnable{
         packetWriter.writePacket(p);
     }
 
+    /**
+     * Send frames that are already encoded to the server in a single write.
+     * @param frames Buffer holding the frames.
+     * @param offset Start of the frames in the buffer.
+     * @param length Length of the frames.
+     * @throws IOException Thrown when there is a problem sending the frames.
+     */
+    public synchronized void writeFrames(byte[] frames, int offset, int length) throws IOException
+    {
+        if(!isConnected.get())
+            throw new IOException("Socket is not connected.");
+
+        packetWriter.writeFrames(frames, offset, length);
+    }
+
+    /**
+     * Send frames that are already encoded to the server in a single write, as many as the credit covers.
+     * @param frames Buffer holding the frames.
+     * @param offset Start of the frames in the buffer.
+     * @param length Length of the frames.
+     * @param credit Credit spent on each frame written.
+     * @return Number of bytes of the input that were sent.
+     * @throws IOException Thrown when there is a problem sending the frames.
+     */
+    synchronized int writeFrames(byte[] frames, int offset, int length, CreditWindow credit) throws IOException
+    {
+        if(!isConnected.get())
+            throw new IOException("Socket is not connected.");
+
+        return packetWriter.writeFrames(frames, offset, length, credit);
+    }
+
+    /**
+     * Send encoded data frames to the server in a single write, packing runs of them into batch frames.
+     * Only use this with servers that understand batch frames.
+     * @param frames Buffer holding the frames.
+     * @param offset Start of the frames in the buffer.
+     * @param length Length of the frames.
+     * @throws IOException Thrown when there is a problem sending the frames.
+     */
+    public synchronized void writeBatch(byte[] frames, int offset, int length) throws IOException
+    {
+        if(!isConnected.get())
+            throw new IOException("Socket is not connected.");
+
+        packetWriter.writeBatch(frames, offset, length);
+    }
+
+    /**
+     * Send encoded data frames to the server in a single write, packing runs of them into batch frames,
+     * as many as the credit covers. Only use this with servers that understand batch frames.
+     * @param frames Buffer holding the frames.
+     * @param offset Start of the frames in the buffer.
+     * @param length Length of the frames.
+     * @param credit Credit spent on each frame written.
+     * @return Number of bytes of the input that were sent.
+     * @throws IOException Thrown when there is a problem sending the frames.
+     */
+    synchronized int writeBatch(byte[] frames, int offset, int length, CreditWindow credit) throws IOException
+    {
+        if(!isConnected.get())
+            throw new IOException("Socket is not connected.");
+
+        return packetWriter.writeBatch(frames, offset, length, credit);
+    }
+
     /**
      * Get the current connection state
      */
@@ -190,10 +425,12 @@ public class Connection implements Runnable{
 
     /**
      * A connection monitor
+     * Callbacks name the connection they come from. They are posted, so they can still arrive after
+     * the monitor has moved on to a new connection. Nothing more is read until onPacketReceived() returns for an auth frame.
      */
     public interface ConnectionMonitor {
-        void onPacketReceived(PacketConstants.Packet p);
-        void onConnectionStateChanged(ConnectionState c);
+        void onPacketReceived(Connection source, PacketConstants.Packet p);
+        void onConnectionStateChanged(Connection source, ConnectionState c);
     }
 
 
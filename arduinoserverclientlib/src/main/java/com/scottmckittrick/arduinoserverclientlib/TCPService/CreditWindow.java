@@ -0,0 +1,150 @@
+package com.scottmckittrick.arduinoserverclientlib.TCPService;
+
+/**
+ * Frame and byte credits granted by a server, and how long sending has been held up waiting for them.
+ * Every frame written uses one frame credit and its size on the wire in byte credits, after batching and compression.
+ * A stall starts when a frame doesn't fit in the credit left and ends at the next grant.
+ */
+
+class CreditWindow {
+    /** Frames that may still be sent */
+    private int frames;
+    /** Bytes that may still be sent */
+    private long bytes;
+    /** True while sending is held up for lack of credit */
+    private boolean stalled;
+    /** When the current stall started, in milliseconds */
+    private long stallStart;
+    /** Number of stalls */
+    private long stallCount;
+    /** Total time spent in finished stalls, in milliseconds */
+    private long stallTime;
+
+    /**
+     * Add credit granted by the server. Ends a stall.
+     * @param grantedFrames Frames granted.
+     * @param grantedBytes Bytes granted.
+     */
+    public synchronized void grant(int grantedFrames, long grantedBytes)
+    {
+        frames = (int)Math.min((long)frames + grantedFrames, Integer.MAX_VALUE);
+        bytes = Math.min(bytes + grantedBytes, Long.MAX_VALUE / 2);
+        endStall();
+    }
+
+    /**
+     * Use credit for a frame if there is enough. If there isn't, a stall starts.
+     * @param size Size of the frame in bytes, header included.
+     * @return True if the frame may be sent.
+     */
+    public synchronized boolean tryConsume(int size)
+    {
+        if((frames > 0) && (bytes >= size)) {
+            frames--;
+            bytes -= size;
+            return true;
+        }
+        startStall();
+        return false;
+    }
+
+    /**
+     * Check whether the byte credit covers a size, without using any. If it doesn't, a stall starts.
+     * @param size The size in bytes.
+     * @return True if the bytes may be sent.
+     */
+    public synchronized boolean hasBytes(long size)
+    {
+        if(bytes >= size)
+            return true;
+        startStall();
+        return false;
+    }
+
+    /**
+     * Throw away all credit, for a new connection. A stall in progress ends.
+     */
+    public synchronized void reset()
+    {
+        frames = 0;
+        bytes = 0;
+        endStall();
+    }
+
+    /**
+     * Start a stall, if one isn't already in progress.
+     */
+    private void startStall()
+    {
+        if(!stalled) {
+            stalled = true;
+            stallStart = now();
+            stallCount++;
+        }
+    }
+
+    /**
+     * Finish the current stall, if there is one, and add its length to the total.
+     */
+    private void endStall()
+    {
+        if(stalled) {
+            stallTime += now() - stallStart;
+            stalled = false;
+        }
+    }
+
+    /**
+     * Get the frame credit left.
+     * @return The number of frames that may be sent.
+     */
+    public synchronized int getFrames()
+    {
+        return frames;
+    }
+
+    /**
+     * Get the byte credit left.
+     * @return The number of bytes that may be sent.
+     */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Check whether sending is held up waiting for credit.
+     * @return True while stalled.
+     */
+    public synchronized boolean isStalled()
+    {
+        return stalled;
+    }
+
+    /**
+     * Get the number of times sending stalled for lack of credit.
+     * @return The number of stalls.
+     */
+    public synchronized long getStallCount()
+    {
+        return stallCount;
+    }
+
+    /**
+     * Get the total time spent stalled, including a stall in progress.
+     * @return The time in milliseconds.
+     */
+    public synchronized long getStallTime()
+    {
+        return stalled ? stallTime + now() - stallStart : stallTime;
+    }
+
+    /**
+     * Get the current time. Overridden by tests.
+     * @return The time in milliseconds.
+     */
+    long now()
+    {
+        return System.nanoTime() / 1000000;
+    }
+}
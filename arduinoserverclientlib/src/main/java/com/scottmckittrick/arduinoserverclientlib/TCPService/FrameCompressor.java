@@ -0,0 +1,186 @@
+package com.scottmckittrick.arduinoserverclientlib.TCPService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses frame data with raw deflate, primed with a dictionary of protocol bytes.
+ * Each frame is compressed on its own so frames can be read without any earlier ones.
+ * Compressed data is { uncompressed length(4), deflate stream }.
+ * Not thread safe.
+ */
+
+class FrameCompressor {
+    /** Codec id for raw deflate with the version 1 dictionary. A different dictionary needs a new id. */
+    static final byte CODEC_DEFLATE = 0x01;
+    /** Smallest frame data compressed unless configured otherwise. Control frames are far smaller than this. */
+    static final int DEFAULT_THRESHOLD = 128;
+    /** Size of the uncompressed length in front of the deflate stream */
+    private static final int LENGTH_SIZE = 4;
+    /** Dictionary both ends prime deflate with. Must never change once released. */
+    static final byte[] DICTIONARY = buildDictionary();
+
+    /** Compresses frame data. Reset for every frame. */
+    private Deflater deflater;
+    /** Decompresses frame data. Reset for every frame. */
+    private Inflater inflater;
+    /** Holds the compressed data of the last frame compressed. Grown as needed. */
+    private byte[] buffer = new byte[256];
+    /** Catches output past the expected length */
+    private final byte[] spare = new byte[1];
+
+    /**
+     * Build the dictionary from the bytes that show up most in frame data.
+     * Deflate reaches the end of the dictionary most cheaply, so the most common bytes go last.
+     * @return The dictionary.
+     */
+    private static byte[] buildDictionary()
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        //Words common in device names
+        String[] words = { "Office", "Garage", "Garden", "Stairs", "Closet", "Ceiling", "Floor", "Table", "Strip",
+                "Light", "Lamp", "Desk", "Hall", "Porch", "Bedroom", "Kitchen", "Living Room", "Front", "Back" };
+        for(int i = 0; i < words.length; i++) {
+            for(int j = 0; j < words[i].length(); j++)
+                out.write(words[i].charAt(j));
+        }
+        //Lamp commands and their responses: off, solid, fade, cycle and get status
+        int[] lampCommands = { 0x10, 0x11, 0x13, 0x14, 0x15 };
+        for(int i = 0; i < lampCommands.length; i++) {
+            out.write(0);
+            out.write(lampCommands[i]);
+            out.write(lampCommands[i]);
+            out.write(0);
+        }
+        //Device manager commands and their responses, sent to address 0
+        for(int i = 0x01; i <= 0x07; i++) {
+            out.write(0);
+            out.write(0);
+            out.write(i);
+            out.write(0);
+            out.write(i);
+            out.write(0);
+        }
+        //Runs of status records for lamps that are off or solid
+        for(int i = 0; i < 4; i++) {
+            out.write(0x10);
+            out.write(0);
+            out.write(0);
+            out.write(0);
+            out.write(0);
+        }
+        for(int i = 0; i < 4; i++) {
+            out.write(0x11);
+            out.write(0);
+            out.write(0xFF);
+            out.write(0xFF);
+            out.write(0xFF);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Compress frame data into the compressor's buffer.
+     * @param data Buffer holding the data.
+     * @param offset Start of the data.
+     * @param length Length of the data.
+     * @return The length of the compressed data in getBuffer(), or -1 if compressing doesn't make it smaller.
+     */
+    int compress(byte[] data, int offset, int length)
+    {
+        if(deflater == null)
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        if(buffer.length < length)
+            buffer = new byte[length];
+
+        buffer[0] = (byte)(length >> 24);
+        buffer[1] = (byte)(length >> 16);
+        buffer[2] = (byte)(length >> 8);
+        buffer[3] = (byte)length;
+
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        //Give up as soon as the output is no smaller than the input
+        int limit = length - 1;
+        int pos = LENGTH_SIZE;
+        while(!deflater.finished()) {
+            if(pos >= limit)
+                return -1;
+            pos += deflater.deflate(buffer, pos, limit - pos);
+        }
+        return pos;
+    }
+
+    /**
+     * Get the buffer holding the output of compress().
+     * @return The buffer. Overwritten by the next compress().
+     */
+    byte[] getBuffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * Decompress frame data.
+     * @param data Buffer holding the compressed data.
+     * @param offset Start of the compressed data.
+     * @param length Length of the compressed data.
+     * @param maxLength Largest uncompressed length accepted.
+     * @return The uncompressed data, in an array of its own.
+     * @throws IOException If the data is malformed or too large.
+     */
+    byte[] decompress(byte[] data, int offset, int length, int maxLength) throws IOException
+    {
+        if(length < LENGTH_SIZE)
+            throw new IOException("Truncated compressed frame");
+        long uncompressedLength = (((long)(data[offset] & 0xFF)) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+        if(uncompressedLength > maxLength)
+            throw new IOException("Compressed frame too large: " + uncompressedLength);
+
+        if(inflater == null)
+            inflater = new Inflater(true);
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(data, offset + LENGTH_SIZE, length - LENGTH_SIZE);
+        byte[] out = new byte[(int)uncompressedLength];
+        int pos = 0;
+        try {
+            while(!inflater.finished()) {
+                int n;
+                if(pos < out.length)
+                    n = inflater.inflate(out, pos, out.length - pos);
+                else
+                    n = inflater.inflate(spare, 0, 1); //Once the output is full, anything more means the length was wrong
+                if((n == 0) && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Truncated compressed frame");
+                pos += n;
+                if(pos > out.length)
+                    break;
+            }
+        } catch(DataFormatException e) {
+            throw new IOException("Invalid compressed frame: " + e.getMessage());
+        }
+        if((pos != out.length) || (inflater.getRemaining() != 0))
+            throw new IOException("Compressed frame length mismatch");
+        return out;
+    }
+
+    /**
+     * Release the native memory held by the codec.
+     */
+    void end()
+    {
+        if(deflater != null)
+            deflater.end();
+        if(inflater != null)
+            inflater.end();
+        deflater = null;
+        inflater = null;
+    }
+}
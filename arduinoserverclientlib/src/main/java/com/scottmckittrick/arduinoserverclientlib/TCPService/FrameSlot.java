@@ -0,0 +1,79 @@
+package com.scottmckittrick.arduinoserverclientlib.TCPService;
+
+/**
+ * Holds the newest frame of a stream, such as the colors sent to one lamp, until the connection is ready for it.
+ * A frame put in the slot before the previous one was taken replaces it, so a sender running faster than the link
+ * never builds a backlog in the outbound queue. The connection only takes the frame once it has written what it
+ * had queued. May be filled from any thread.
+ */
+
+public class FrameSlot {
+    /** The frame waiting to be taken */
+    private final RequestEncoder frame = new RequestEncoder(16);
+    /** True if the slot holds a frame */
+    private boolean full;
+    /** Called when a frame is put in the empty slot, or null */
+    private Runnable fillListener;
+
+    /**
+     * Put a frame in the slot, replacing the frame in it if that hasn't been taken yet.
+     * @param frames Buffer holding one or more complete frames.
+     * @param offset Start of the frames in the buffer.
+     * @param length Length of the frames.
+     * @return True if a frame was replaced.
+     * @throws IllegalArgumentException Thrown if the buffer holds anything but complete data frames.
+     */
+    public boolean put(byte[] frames, int offset, int length)
+    {
+        //The frame is taken straight onto the outbound queue later, so it is checked here as sendFrames() does
+        if(!PacketConstants.isWellFormed(frames, offset, length))
+            throw new IllegalArgumentException("Invalid frame buffer");
+
+        Runnable listener;
+        synchronized(this) {
+            boolean replaced = full;
+            frame.clear();
+            frame.append(frames, offset, length);
+            full = true;
+            if(replaced)
+                return true;
+            listener = fillListener;
+        }
+        if(listener != null)
+            listener.run();
+        return false;
+    }
+
+    /**
+     * Check whether the slot holds a frame.
+     * @return True if there is a frame waiting.
+     */
+    public synchronized boolean isFull()
+    {
+        return full;
+    }
+
+    /**
+     * Move the frame in the slot to an encoder, emptying the slot.
+     * @param out The encoder the frame is appended to.
+     * @return True if there was a frame.
+     */
+    public synchronized boolean takeTo(RequestEncoder out)
+    {
+        if(!full)
+            return false;
+        out.append(frame.array(), 0, frame.size());
+        frame.clear();
+        full = false;
+        return true;
+    }
+
+    /**
+     * Set the task run when a frame is put in the empty slot. It is run on the thread that put the frame.
+     * @param l The task, or null for none.
+     */
+    synchronized void setFillListener(Runnable l)
+    {
+        fillListener = l;
+    }
+}
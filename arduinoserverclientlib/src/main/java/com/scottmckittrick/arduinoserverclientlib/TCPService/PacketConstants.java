@@ -1,5 +1,7 @@
 package com.scottmckittrick.arduinoserverclientlib.TCPService;
 
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+
 /**
  * Definition of constants used when processing packets.
  * Created by Scott on 5/6/2017.
@@ -11,26 +13,79 @@ class PacketConstants {
     protected static final byte PACKET_TYPE_DATA = 0x02;
     /** Auth type identifier. Value is 0x01 */
     protected static final byte PACKET_TYPE_AUTH = 0x01;
+    /** Batch type identifier. The data is many requests, each as { length(2), request }. Value is 0x03 */
+    protected static final byte PACKET_TYPE_BATCH = 0x03;
+    /**
+     * Fragment type identifier. The data is { channel, flags, fragment }, where the fragments of one channel
+     * joined in order are the type and data of a frame. Value is 0x04
+     */
+    protected static final byte PACKET_TYPE_FRAGMENT = 0x04;
+    /**
+     * Credit type identifier, sent by the server. The data is { frames(2), bytes(4) }, credit added to what the
+     * client already holds. Value is 0x05
+     */
+    protected static final byte PACKET_TYPE_CREDIT = 0x05;
+    /** Size of the data of a credit frame */
+    protected static final int CREDIT_DATA_SIZE = 6;
+    /** Set in the type of a frame whose data is compressed. Value is 0x80 */
+    protected static final byte PACKET_FLAG_COMPRESSED = (byte)0x80;
+    /** Size of the length in front of each request in a batch */
+    protected static final int BATCH_ENTRY_LEAD_SIZE = 2;
+    /** Largest frame length written with a plain two byte header. Encoders never produce more. */
+    protected static final int MAX_FRAME_LENGTH = 0xFFFE;
+    /** Two byte length meaning a four byte length follows, when extended framing is on */
+    protected static final int EXTENDED_LENGTH_ESCAPE = 0xFFFF;
+    /** Size of the extended length */
+    protected static final int EXTENDED_LENGTH_SIZE = 4;
+    /** Largest frame accepted unless configured otherwise. 1 MB */
+    protected static final int DEFAULT_MAX_FRAME_SIZE = 1 << 20;
     /** The size of a framing header **/
     protected static final int FRAME_LEAD_SIZE = 2;
 
     /**
-     * Immutable packet class containing the packet that was received.
+     * Check that a buffer holds nothing but complete data frames.
+     * Used wherever frames built outside the library enter an outbound queue, since nothing checks them after.
+     * @param frames Buffer holding the frames.
+     * @param offset Start of the frames in the buffer.
+     * @param length Length of the frames.
+     * @return True if the frames are well formed.
+     */
+    static boolean isWellFormed(byte[] frames, int offset, int length)
+    {
+        if((frames == null) || (offset < 0) || (length < 0) || (offset + length > frames.length))
+            return false;
+
+        int end = offset + length;
+        while(offset < end) {
+            if(end - offset < FRAME_LEAD_SIZE + 1 + RequestObject.HEADER_SIZE)
+                return false;
+            int frameLength = ((frames[offset] & 0xFF) << 8) | (frames[offset + 1] & 0xFF);
+            if((frames[offset + 2] != PACKET_TYPE_DATA) || (frameLength < 1 + RequestObject.HEADER_SIZE)
+                    || (frameLength > MAX_FRAME_LENGTH))
+                return false;
+            offset += FRAME_LEAD_SIZE + frameLength;
+        }
+        return offset == end;
+    }
+
+    /**
+     * Packet class containing the packet that was received.
+     * The packet doesn't copy its data: it holds the array it was created with, and getData() returns that same array.
+     * Neither the creator nor a reader may modify the array once the packet exists.
      */
     public static class Packet{
         private byte packetType;
         private byte[] data;
 
         /**
-         * Creates a new packet
+         * Creates a new packet. The packet keeps the array itself rather than a copy, so the caller must not modify it afterwards.
          * @param type The type of packet.
          * @param data Byte array of data.
          */
         public Packet(byte type, byte[] data)
         {
             this.packetType = type;
-            this.data = new byte[data.length];
-            System.arraycopy(data, 0, this.data, 0, data.length);
+            this.data = data;
         }
 
         /**
@@ -41,13 +96,11 @@ class PacketConstants {
 
         /**
          * Retrieve the data from the packet
-         * @return Copy of the byte array of data.
+         * @return The packet's own byte array of data, not a copy. Must not be modified.
          */
         public byte[] getData()
         {
-            byte[] out = new byte[data.length];
-            System.arraycopy(data, 0, out, 0, data.length);
-            return out;
+            return data;
         }
     }
 
@@ -1,5 +1,8 @@
 package com.scottmckittrick.arduinoserverclientlib.TCPService;
 
+import com.scottmckittrick.arduinoserverclientlib.InvalidRequestDataException;
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -9,14 +12,21 @@ import java.io.InputStream;
  */
 
 public class PacketReader {
+    /** Size of the read buffer. Frames larger than this are read straight into their own array. */
+    private static final int READ_BUFFER_SIZE = 4096;
+
     /** Input stream to read */
     private InputStream istream;
 
-    /** The number of bytes read into the framing header */
-    private int frameCount = 0;
+    /** Bytes read from the stream but not yet consumed. Reused for every frame. */
+    private byte[] buffer;
+    /** Position of the first unconsumed byte in the buffer */
+    private int bufStart;
+    /** Position after the last byte read into the buffer */
+    private int bufEnd;
 
-    /** The length of the packet as read from the header **/
-    private int dataLen = 0;
+    /** True if the header of the current frame has been read */
+    private boolean headerRead;
     /** The type of the packet as read from the header */
     private byte packetType = 0;
     /** The data array */
@@ -24,6 +34,17 @@ public class PacketReader {
     /** the amount of data that has been read */
     private int dataRead = 0;
 
+    /** True if a length escape in the header is followed by a four byte length */
+    private volatile boolean extendedFraming;
+    /** Largest frame accepted, counting the type byte */
+    private volatile int maxFrameSize = PacketConstants.DEFAULT_MAX_FRAME_SIZE;
+    /** True if frames flagged as compressed are accepted */
+    private volatile boolean acceptCompressed;
+    /** Decompresses compressed frames. Created on first use. */
+    private FrameCompressor compressor;
+    /** Frames being put back together from fragments, indexed by channel */
+    private final Reassembly[] reassemblies = new Reassembly[256];
+
     /**
      * Constructor for the packet reader. Takes an input stream to read.
      * @param i InputStream to be read.
@@ -31,51 +52,279 @@ public class PacketReader {
     public PacketReader(InputStream i)
     {
         istream = i;
+        buffer = new byte[READ_BUFFER_SIZE];
+    }
+
+    /**
+     * Choose whether frames may use the extended length. Must match the server.
+     * @param enabled True to read a four byte length after a length escape.
+     */
+    public void setExtendedFraming(boolean enabled)
+    {
+        extendedFraming = enabled;
+    }
+
+    /**
+     * Set the largest frame that will be accepted. Larger frames are treated as a broken stream.
+     * @param size The size in bytes, counting the type byte.
+     */
+    public void setMaxFrameSize(int size)
+    {
+        if(size < 1)
+            throw new IllegalArgumentException("Invalid max frame size: " + size);
+        maxFrameSize = size;
+    }
+
+    /**
+     * Choose whether frames flagged as compressed are accepted. They are decompressed before being returned.
+     * A compressed frame that isn't accepted is treated as a broken stream.
+     * @param accept True to accept compressed frames.
+     */
+    public void setAcceptCompressed(boolean accept)
+    {
+        acceptCompressed = accept;
     }
 
     /**
      * Read a packet. This function will block until a full packet is read.
+     * If the read times out part way through a packet, the next call carries on where it left off.
+     * The stream is read in large chunks, so several small packets usually take a single read from the stream.
+     * Fragment frames are put back together, so only whole packets are returned. Packets from other channels
+     * are returned as soon as they arrive, even while a fragmented one is still coming in.
      *
      * @return Packet object representing the received packet.
      * @throws IOException If input stream is invalid.
      */
     public PacketConstants.Packet read() throws IOException
+    {
+        while(true) {
+            PacketConstants.Packet p = readFrame();
+            if(p.getType() != PacketConstants.PACKET_TYPE_FRAGMENT)
+                return p;
+            p = reassemble(p.getData());
+            if(p != null)
+                return p;
+        }
+    }
+
+    /**
+     * Read a single frame, decompressing it if needed.
+     * @return The frame as a packet.
+     * @throws IOException If input stream is invalid.
+     */
+    private PacketConstants.Packet readFrame() throws IOException
     {
         if(istream == null)
             throw new IOException("InputStream is null");
 
-        //Read the frame header first
-        while(frameCount < PacketConstants.FRAME_LEAD_SIZE) {
-            int tmp = istream.read() << (PacketConstants.FRAME_LEAD_SIZE - frameCount++ - 1);//As we read it in, place it in the data length variable
-            if (tmp < 0)
-                throw new IOException("Lost Connection");
-            dataLen |= tmp;
+        if(!headerRead)
+            readHeader();
+
+        //Take what has already been read, then read the rest straight into the packet's array
+        int buffered = Math.min(bufEnd - bufStart, data.length - dataRead);
+        System.arraycopy(buffer, bufStart, data, dataRead, buffered);
+        bufStart += buffered;
+        dataRead += buffered;
+        while(dataRead < data.length) {
+            int remaining = data.length - dataRead;
+            if(remaining >= buffer.length) {
+                int tmp = istream.read(data, dataRead, remaining);
+                if(tmp < 0)
+                    throw new IOException("Connection Lost");
+                dataRead += tmp;
+            } else {
+                fill(remaining);
+                System.arraycopy(buffer, bufStart, data, dataRead, remaining);
+                bufStart += remaining;
+                dataRead += remaining;
+            }
+        }
+
+        //Once the packet is read. Package it.
+        byte type = packetType;
+        byte[] packetData = data;
+        headerRead = false;
+        data = null;
+        dataRead = 0;
+        return unpack(type, packetData, 0, packetData.length);
+    }
+
+    /**
+     * Turn a frame's type and data into a packet, decompressing the data if the frame is flagged as compressed.
+     * @param type The frame type.
+     * @param frameData Buffer holding the frame data.
+     * @param offset Start of the data.
+     * @param length Length of the data.
+     * @return The packet, holding data of its own.
+     * @throws IOException If compressed frames aren't accepted or the data is malformed.
+     */
+    private PacketConstants.Packet unpack(byte type, byte[] frameData, int offset, int length) throws IOException
+    {
+        if((type & PacketConstants.PACKET_FLAG_COMPRESSED) == 0) {
+            if((offset == 0) && (length == frameData.length))
+                return new PacketConstants.Packet(type, frameData);
+            byte[] copy = new byte[length];
+            System.arraycopy(frameData, offset, copy, 0, length);
+            return new PacketConstants.Packet(type, copy);
+        }
+
+        if(!acceptCompressed)
+            throw new IOException("Compressed frame received without compression");
+        if(compressor == null)
+            compressor = new FrameCompressor();
+        byte[] inflated = compressor.decompress(frameData, offset, length, maxFrameSize - 1);
+        return new PacketConstants.Packet((byte)(type & ~PacketConstants.PACKET_FLAG_COMPRESSED), inflated);
+    }
+
+    /**
+     * Add a fragment to the frame being put together on its channel.
+     * @param fragment The fragment frame's data, { channel, flags, fragment }.
+     * @return The whole frame as a packet if this was its last fragment, otherwise null.
+     * @throws IOException If the fragment doesn't follow on from the ones before it or the frame grows too large.
+     */
+    private PacketConstants.Packet reassemble(byte[] fragment) throws IOException
+    {
+        if(fragment.length < ChannelScheduler.FRAGMENT_LEAD_SIZE)
+            throw new IOException("Truncated fragment");
+        int channel = fragment[0] & 0xFF;
+        byte flags = fragment[1];
+        int length = fragment.length - ChannelScheduler.FRAGMENT_LEAD_SIZE;
+
+        Reassembly r = reassemblies[channel];
+        if((flags & ChannelScheduler.FRAGMENT_FIRST) != 0) {
+            if(r == null)
+                r = reassemblies[channel] = new Reassembly();
+            r.length = 0;
+            r.inProgress = true;
+        } else if((r == null) || !r.inProgress) {
+            throw new IOException("Fragment without a first fragment on channel " + channel);
         }
 
-        //Next read the type
-        packetType = (byte)istream.read();
-        if(packetType < 0)
-            throw new IOException("Lost Connection");
+        if(r.length + length > maxFrameSize)
+            throw new IOException("Fragmented frame too large on channel " + channel);
+        r.append(fragment, ChannelScheduler.FRAGMENT_LEAD_SIZE, length);
+        if((flags & ChannelScheduler.FRAGMENT_LAST) == 0)
+            return null;
+
+        r.inProgress = false;
+        if(r.length < 1)
+            throw new IOException("Empty fragmented frame on channel " + channel);
+        byte type = r.buffer[0];
+        if((type & ~PacketConstants.PACKET_FLAG_COMPRESSED) == PacketConstants.PACKET_TYPE_FRAGMENT)
+            throw new IOException("Nested fragment on channel " + channel);
+        return unpack(type, r.buffer, 1, r.length - 1);
+    }
+
+    /**
+     * Read a frame header and set up the array for the packet data.
+     * @throws IOException If the stream ends or the header is invalid.
+     */
+    private void readHeader() throws IOException
+    {
+        fill(PacketConstants.FRAME_LEAD_SIZE + 1);
+        int headerSize = PacketConstants.FRAME_LEAD_SIZE;
+        long frameLength = ((buffer[bufStart] & 0xFF) << 8) | (buffer[bufStart + 1] & 0xFF);
+        if(extendedFraming && (frameLength == PacketConstants.EXTENDED_LENGTH_ESCAPE)) {
+            headerSize += PacketConstants.EXTENDED_LENGTH_SIZE;
+            fill(headerSize + 1);
+            int p = bufStart + PacketConstants.FRAME_LEAD_SIZE;
+            frameLength = (((long)(buffer[p] & 0xFF)) << 24) | ((buffer[p + 1] & 0xFF) << 16)
+                    | ((buffer[p + 2] & 0xFF) << 8) | (buffer[p + 3] & 0xFF);
+        }
+
+        //Every frame has at least its type byte
+        if(frameLength < 1)
+            throw new IOException("Invalid frame length: " + frameLength);
+        if(frameLength > maxFrameSize)
+            throw new IOException("Frame too large: " + frameLength);
+
+        packetType = buffer[bufStart + headerSize];
+        bufStart += headerSize + 1;
         //Account for the fact that part of the length is the type
-        dataLen--;
+        data = new byte[(int)frameLength - 1];
+        dataRead = 0;
+        headerRead = true;
+    }
 
-        //Allocate memory for the data
-        data = new byte[dataLen];
+    /**
+     * Make sure the buffer holds at least a number of unconsumed bytes, reading from the stream as needed.
+     * @param count The number of bytes needed. Must not be more than the buffer size.
+     * @throws IOException If the stream ends.
+     */
+    private void fill(int count) throws IOException
+    {
+        if(bufEnd - bufStart >= count)
+            return;
 
-        //Begin reading data;
-        while(dataRead < dataLen) {
-            int tmp = istream.read(data, dataRead, (dataLen - dataRead));
+        //Move what is left to the front so there is room to read
+        if(buffer.length - bufStart < count) {
+            System.arraycopy(buffer, bufStart, buffer, 0, bufEnd - bufStart);
+            bufEnd -= bufStart;
+            bufStart = 0;
+        }
+        if(bufStart == bufEnd)
+            bufStart = bufEnd = 0;
+
+        while(bufEnd - bufStart < count) {
+            int tmp = istream.read(buffer, bufEnd, buffer.length - bufEnd);
             if(tmp < 0)
-                throw new IOException("Connection Lost");
-            dataRead += tmp;
+                throw new IOException("Lost Connection");
+            bufEnd += tmp;
         }
-        frameCount = 0;
-        dataLen = 0;
-        dataRead = 0;
+    }
 
-        //Once the packet is read. Package it.
-        PacketConstants.Packet p = new PacketConstants.Packet(packetType, data);
-        return p;
+    /**
+     * Decode the data of a batch frame and hand each request to a receiver.
+     * The requests are views over the batch data, so the array must be owned by the caller and not modified afterwards.
+     * Requests before a malformed entry are delivered before the exception is thrown.
+     * @param data Buffer holding the batch data.
+     * @param offset Start of the batch data.
+     * @param length Length of the batch data.
+     * @param receiver Receives each request in order.
+     * @throws InvalidRequestDataException If an entry is truncated or too short to be a request.
+     */
+    public static void decodeBatch(byte[] data, int offset, int length, RequestObject.RequestReceiver receiver) throws InvalidRequestDataException
+    {
+        int end = offset + length;
+        while(offset < end) {
+            if(end - offset < PacketConstants.BATCH_ENTRY_LEAD_SIZE)
+                throw new InvalidRequestDataException("Truncated batch entry");
+            int requestLength = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+            offset += PacketConstants.BATCH_ENTRY_LEAD_SIZE;
+            if(end - offset < requestLength)
+                throw new InvalidRequestDataException("Batch entry longer than the batch");
+            receiver.handleRequest(RequestObject.wrapSerialized(data, offset, requestLength));
+            offset += requestLength;
+        }
+    }
+
+    /**
+     * A frame being put back together from fragments.
+     */
+    private static class Reassembly {
+        /** The frame's type and data so far. Reused for every frame on the channel. */
+        byte[] buffer = new byte[256];
+        /** Bytes held in the buffer */
+        int length;
+        /** True once the first fragment has arrived and until the last one does */
+        boolean inProgress;
+
+        /**
+         * Add bytes to the end of the frame, growing the buffer if needed.
+         * @param src Buffer holding the bytes.
+         * @param offset Start of the bytes.
+         * @param count Number of bytes.
+         */
+        void append(byte[] src, int offset, int count)
+        {
+            if(buffer.length - length < count) {
+                byte[] grown = new byte[Math.max(buffer.length * 2, length + count)];
+                System.arraycopy(buffer, 0, grown, 0, length);
+                buffer = grown;
+            }
+            System.arraycopy(src, offset, buffer, length, count);
+            length += count;
+        }
     }
 
     /**
@@ -84,6 +333,8 @@ public class PacketReader {
      */
     public void close() throws IOException
     {
+        if(compressor != null)
+            compressor.end();
         if(istream != null)
             istream.close();
     }
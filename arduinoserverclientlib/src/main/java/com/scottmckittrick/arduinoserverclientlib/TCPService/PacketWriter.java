@@ -1,5 +1,7 @@
 package com.scottmckittrick.arduinoserverclientlib.TCPService;
 
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -11,6 +13,18 @@ import java.io.OutputStream;
 public class PacketWriter {
      /** Output stream to write to */
     private OutputStream oStream;
+    /** Buffer batch and compressed frames are built in. Grown as needed. */
+    private byte[] batchBuffer;
+    /** True if frames too long for two length bytes are written with an extended length */
+    private volatile boolean extendedFraming;
+    /** Largest frame that will be written, counting the type byte */
+    private volatile int maxFrameSize = PacketConstants.DEFAULT_MAX_FRAME_SIZE;
+    /** Most requests packed into one batch frame, or 0 if there is no limit */
+    private volatile int maxBatchCount;
+    /** Smallest frame data that is compressed, or 0 if nothing is */
+    private volatile int compressionThreshold;
+    /** Compresses frame data. Created on first use. */
+    private FrameCompressor compressor;
 
     /**
      * Constructor to create the packet writer.
@@ -18,6 +32,118 @@ public class PacketWriter {
      */
     public PacketWriter(OutputStream o) { oStream = o;}
 
+    /**
+     * Choose whether frames may use the extended length. Must match the server.
+     * With it on, a frame of 0xFFFF bytes or more has a length of 0xFFFF followed by a four byte length.
+     * @param enabled True to write extended lengths.
+     */
+    public void setExtendedFraming(boolean enabled)
+    {
+        extendedFraming = enabled;
+    }
+
+    /**
+     * Set the largest frame that will be written. Also caps the size of batch frames.
+     * @param size The size in bytes, counting the type byte.
+     */
+    public void setMaxFrameSize(int size)
+    {
+        if(size < 1)
+            throw new IllegalArgumentException("Invalid max frame size: " + size);
+        maxFrameSize = size;
+    }
+
+    /**
+     * Set the most requests packed into one batch frame, so a batch never holds more than the server can.
+     * @param count The count, or 0 for no limit.
+     */
+    public void setMaxBatchCount(int count)
+    {
+        if(count < 0)
+            throw new IllegalArgumentException("Invalid max batch count: " + count);
+        maxBatchCount = count;
+    }
+
+    /**
+     * Set the smallest frame data that is compressed. Only use this once the server has agreed to compression.
+     * Data and batch frames at least this large are sent compressed if that makes them smaller. Other frames never are.
+     * @param threshold The size in bytes, or 0 to stop compressing.
+     */
+    public void setCompressionThreshold(int threshold)
+    {
+        if(threshold < 0)
+            throw new IllegalArgumentException("Invalid compression threshold: " + threshold);
+        compressionThreshold = threshold;
+    }
+
+    /**
+     * Check whether a frame's data should be compressed.
+     * @param type The frame type.
+     * @param dataLength Length of the frame data.
+     * @return True if the data should be compressed.
+     */
+    private boolean shouldCompress(byte type, int dataLength)
+    {
+        int threshold = compressionThreshold;
+        return (threshold > 0) && (dataLength >= threshold)
+                && ((type == PacketConstants.PACKET_TYPE_DATA) || (type == PacketConstants.PACKET_TYPE_BATCH));
+    }
+
+    /**
+     * Get the compressor, creating it if needed.
+     * @return The compressor.
+     */
+    private FrameCompressor getCompressor()
+    {
+        if(compressor == null)
+            compressor = new FrameCompressor();
+        return compressor;
+    }
+
+    /**
+     * Get the size of the header in front of a frame's type byte.
+     * @param frameLength The frame length, counting the type byte.
+     * @return The header size.
+     * @throws IOException If the frame is too large to be written.
+     */
+    private int getHeaderSize(int frameLength) throws IOException
+    {
+        if(frameLength > maxFrameSize)
+            throw new IOException("Frame too large: " + frameLength);
+        if(frameLength <= PacketConstants.MAX_FRAME_LENGTH)
+            return PacketConstants.FRAME_LEAD_SIZE;
+        if(extendedFraming)
+            return PacketConstants.FRAME_LEAD_SIZE + PacketConstants.EXTENDED_LENGTH_SIZE;
+        //Without extended framing the escape value is an ordinary length
+        if(frameLength == PacketConstants.EXTENDED_LENGTH_ESCAPE)
+            return PacketConstants.FRAME_LEAD_SIZE;
+        throw new IOException("Frame too large without extended framing: " + frameLength);
+    }
+
+    /**
+     * Write a frame header.
+     * @param out Buffer to write to.
+     * @param pos Position to write the header at.
+     * @param frameLength The frame length, counting the type byte.
+     * @param headerSize The header size from getHeaderSize().
+     * @return The position after the header.
+     */
+    private static int writeHeader(byte[] out, int pos, int frameLength, int headerSize)
+    {
+        if(headerSize == PacketConstants.FRAME_LEAD_SIZE) {
+            out[pos++] = (byte)(frameLength >> 8);
+            out[pos++] = (byte)frameLength;
+        } else {
+            out[pos++] = (byte)(PacketConstants.EXTENDED_LENGTH_ESCAPE >> 8);
+            out[pos++] = (byte)PacketConstants.EXTENDED_LENGTH_ESCAPE;
+            out[pos++] = (byte)(frameLength >> 24);
+            out[pos++] = (byte)(frameLength >> 16);
+            out[pos++] = (byte)(frameLength >> 8);
+            out[pos++] = (byte)frameLength;
+        }
+        return pos;
+    }
+
     /**
      * Write a packet to the outputstream
      * @param p The packet to write.
@@ -29,20 +155,29 @@ public class PacketWriter {
             throw new IOException("Invalid input");
 
         byte[] data = p.getData();
+        int dataLength = data.length;
         byte type = p.getType();
+        if(shouldCompress(type, dataLength)) {
+            int compressedLength = getCompressor().compress(data, 0, dataLength);
+            if(compressedLength >= 0) {
+                data = compressor.getBuffer();
+                dataLength = compressedLength;
+                type |= PacketConstants.PACKET_FLAG_COMPRESSED;
+            }
+        }
+        int frameLength = dataLength + 1;
+        int headerSize = getHeaderSize(frameLength);
         //Allocate memory for the packet
-        byte[] packet = new byte[PacketConstants.FRAME_LEAD_SIZE + 1 + p.getData().length];
+        byte[] packet = new byte[headerSize + frameLength];
 
         //Write the frame length
-        int frameLength = data.length + 1;
-        packet[0] = (byte)(frameLength >> 8);
-        packet[1] = (byte) (frameLength & 0xFF);
+        int pos = writeHeader(packet, 0, frameLength, headerSize);
 
         //Write the type
-        packet[2] = type;
+        packet[pos++] = type;
 
         //Copy in the data
-        System.arraycopy(data, 0, packet, 3, data.length);
+        System.arraycopy(data, 0, packet, pos, dataLength);
 
         //Write the data to outputstream
         if(oStream == null)
@@ -51,6 +186,279 @@ public class PacketWriter {
         oStream.write(packet);
     }
 
+    /**
+     * Write frames that are already encoded to the outputstream.
+     * With compression on, frames over the threshold are compressed on the way out.
+     * @param frames Buffer holding the frames.
+     * @param offset Start of the frames in the buffer.
+     * @param length Length of the frames.
+     * @throws IOException Throws exception if the frames are malformed or the write fails
+     */
+    public void writeFrames(byte[] frames, int offset, int length) throws IOException
+    {
+        writeFrames(frames, offset, length, null);
+    }
+
+    /**
+     * Write frames that are already encoded to the outputstream, as many as the credit covers.
+     * Each frame written uses credit for its size once compressed. Writing stops at the first frame the credit doesn't cover.
+     * @param frames Buffer holding the frames.
+     * @param offset Start of the frames in the buffer.
+     * @param length Length of the frames.
+     * @param credit Credit to spend, or null to write everything.
+     * @return Number of bytes of the input that were written. The frames after them are left for the caller to send later.
+     * @throws IOException Throws exception if the frames are malformed or the write fails
+     */
+    int writeFrames(byte[] frames, int offset, int length, CreditWindow credit) throws IOException
+    {
+        if(oStream == null)
+            throw new IOException("Outputstream is null");
+
+        if(compressionThreshold > 0)
+            return writeEncoded(frames, offset, length, false, credit);
+
+        //Frames that aren't rewritten go out straight from the caller's buffer
+        int written = length;
+        if(credit != null) {
+            int end = offset + length;
+            int pos = offset;
+            while(pos < end) {
+                int frameSize = PacketConstants.FRAME_LEAD_SIZE + readFrameLength(frames, pos, end);
+                if(!credit.tryConsume(frameSize))
+                    break;
+                pos += frameSize;
+            }
+            written = pos - offset;
+        }
+        oStream.write(frames, offset, written);
+        return written;
+    }
+
+    /**
+     * Write encoded data frames to the outputstream, packing runs of them into batch frames.
+     * A run is cut when the batch would pass the largest frame: the max frame size with extended framing, or what fits in
+     * two length bytes without it. It is also cut at the max batch count, if there is one. A run of one is written as the data frame it is,
+     * and frames of any other type are written as they are. Everything goes out in one write.
+     * With compression on, frames over the threshold are compressed once batched.
+     * @param frames Buffer holding the frames.
+     * @param offset Start of the frames in the buffer.
+     * @param length Length of the frames.
+     * @throws IOException Throws exception if the frames are malformed or the write fails
+     */
+    public void writeBatch(byte[] frames, int offset, int length) throws IOException
+    {
+        writeBatch(frames, offset, length, null);
+    }
+
+    /**
+     * Write encoded data frames to the outputstream, packing runs of them into batch frames, as many as the credit covers.
+     * Each frame written, batch or not, uses credit for its size once compressed. A run is also cut to the byte credit left,
+     * and writing stops at the first frame the credit doesn't cover.
+     * @param frames Buffer holding the frames.
+     * @param offset Start of the frames in the buffer.
+     * @param length Length of the frames.
+     * @param credit Credit to spend, or null to write everything.
+     * @return Number of bytes of the input that were written. The frames after them are left for the caller to send later.
+     * @throws IOException Throws exception if the frames are malformed or the write fails
+     */
+    int writeBatch(byte[] frames, int offset, int length, CreditWindow credit) throws IOException
+    {
+        if(oStream == null)
+            throw new IOException("Outputstream is null");
+
+        return writeEncoded(frames, offset, length, true, credit);
+    }
+
+    /**
+     * Rewrite encoded frames into the batch buffer, batching and compressing them as asked, and write them in one write.
+     * @param frames Buffer holding the frames.
+     * @param offset Start of the frames in the buffer.
+     * @param length Length of the frames.
+     * @param batch True to pack runs of data frames into batch frames.
+     * @param credit Credit to spend on each frame written, or null to write everything.
+     * @return Number of bytes of the input that were written.
+     * @throws IOException Throws exception if the frames are malformed or the write fails
+     */
+    private int writeEncoded(byte[] frames, int offset, int length, boolean batch, CreditWindow credit) throws IOException
+    {
+        //A batch of k frames drops k type bytes and adds a header of at most 7 bytes, so it grows by at most five bytes,
+        //and there can't be more batches than one per pair of the smallest (6 byte) data frames
+        int maxSize = length + 5 * (length / 12 + 1);
+        int batchLimit = extendedFraming ? maxFrameSize : Math.min(maxFrameSize, PacketConstants.MAX_FRAME_LENGTH);
+        int countLimit = (maxBatchCount > 0) ? maxBatchCount : Integer.MAX_VALUE;
+        if((batchBuffer == null) || (batchBuffer.length < maxSize))
+            batchBuffer = new byte[maxSize];
+
+        int start = offset;
+        int end = offset + length;
+        int out = 0;
+        while(offset < end) {
+            //Gather a run of data frames that fits in one batch, and in the credit left if there is a limit
+            int frameStart = out;
+            int runStart = offset;
+            int runLength = 1;
+            int count = 0;
+            long runLimit = batchLimit;
+            if(credit != null)
+                runLimit = Math.min(runLimit, credit.getBytes() - PacketConstants.FRAME_LEAD_SIZE);
+            while(batch && (offset < end) && (count < countLimit)) {
+                int frameLength = readFrameLength(frames, offset, end);
+                if(frames[offset + PacketConstants.FRAME_LEAD_SIZE] != PacketConstants.PACKET_TYPE_DATA)
+                    break;
+                int entryLength = PacketConstants.BATCH_ENTRY_LEAD_SIZE + frameLength - 1;
+                if(runLength + entryLength > runLimit)
+                    break;
+                runLength += entryLength;
+                count++;
+                offset += PacketConstants.FRAME_LEAD_SIZE + frameLength;
+            }
+
+            if(count == 0) {
+                //Not a data frame or not batching, so pass it through
+                int frameSize = PacketConstants.FRAME_LEAD_SIZE + readFrameLength(frames, offset, end);
+                System.arraycopy(frames, offset, batchBuffer, out, frameSize);
+                out = compressFrame(out, out + PacketConstants.FRAME_LEAD_SIZE, out + frameSize);
+                offset += frameSize;
+            } else if(count == 1) {
+                System.arraycopy(frames, runStart, batchBuffer, out, offset - runStart);
+                out = compressFrame(out, out + PacketConstants.FRAME_LEAD_SIZE, out + offset - runStart);
+            } else {
+                out = writeHeader(batchBuffer, out, runLength, getHeaderSize(runLength));
+                int typePos = out;
+                batchBuffer[out++] = PacketConstants.PACKET_TYPE_BATCH;
+                //Each entry is the data frame with its type byte dropped and the length shortened to match
+                for(int pos = runStart; pos < offset; ) {
+                    int frameLength = readFrameLength(frames, pos, end);
+                    int requestLength = frameLength - 1;
+                    batchBuffer[out++] = (byte)(requestLength >> 8);
+                    batchBuffer[out++] = (byte)requestLength;
+                    System.arraycopy(frames, pos + PacketConstants.FRAME_LEAD_SIZE + 1, batchBuffer, out, requestLength);
+                    out += requestLength;
+                    pos += PacketConstants.FRAME_LEAD_SIZE + frameLength;
+                }
+                out = compressFrame(frameStart, typePos, out);
+            }
+
+            //Credit goes on the frame as it will be written, and the frames it held wait if it isn't covered
+            if((credit != null) && !credit.tryConsume(out - frameStart)) {
+                out = frameStart;
+                offset = runStart;
+                break;
+            }
+        }
+
+        oStream.write(batchBuffer, 0, out);
+        return offset - start;
+    }
+
+    /**
+     * Compress a frame in the batch buffer in place, if it should be compressed and compressing makes it smaller.
+     * @param frameStart Position of the frame header.
+     * @param typePos Position of the frame type, just past the header.
+     * @param end Position after the frame.
+     * @return The position after the frame once compressed.
+     * @throws IOException If the compressed frame is too large to be written.
+     */
+    private int compressFrame(int frameStart, int typePos, int end) throws IOException
+    {
+        byte type = batchBuffer[typePos];
+        int dataLength = end - typePos - 1;
+        if(!shouldCompress(type, dataLength))
+            return end;
+        int compressedLength = getCompressor().compress(batchBuffer, typePos + 1, dataLength);
+        if(compressedLength < 0)
+            return end;
+
+        //The compressed frame is smaller, so its header is never larger
+        int frameLength = compressedLength + 1;
+        int pos = writeHeader(batchBuffer, frameStart, frameLength, getHeaderSize(frameLength));
+        batchBuffer[pos++] = (byte)(type | PacketConstants.PACKET_FLAG_COMPRESSED);
+        System.arraycopy(compressor.getBuffer(), 0, batchBuffer, pos, compressedLength);
+        return pos + compressedLength;
+    }
+
+    /**
+     * Read the length of an encoded frame and check that the frame fits in the buffer.
+     * @param frames Buffer holding the frame.
+     * @param offset Start of the frame.
+     * @param end End of the frames in the buffer.
+     * @return The frame length, counting the type byte.
+     * @throws IOException If the frame is malformed.
+     */
+    private static int readFrameLength(byte[] frames, int offset, int end) throws IOException
+    {
+        if(end - offset < PacketConstants.FRAME_LEAD_SIZE + 1)
+            throw new IOException("Truncated frame");
+        int frameLength = ((frames[offset] & 0xFF) << 8) | (frames[offset + 1] & 0xFF);
+        if((frameLength < 1) || (end - offset - PacketConstants.FRAME_LEAD_SIZE < frameLength))
+            throw new IOException("Truncated frame");
+        return frameLength;
+    }
+
+    /**
+     * Encode requests as the data of a batch frame.
+     * @param requests The requests.
+     * @param offset Index of the first request.
+     * @param count Number of requests.
+     * @return The batch data, each request as { length(2), request }.
+     */
+    public static byte[] encodeBatch(RequestObject[] requests, int offset, int count)
+    {
+        int size = 0;
+        for(int i = 0; i < count; i++)
+            size += PacketConstants.BATCH_ENTRY_LEAD_SIZE + RequestObject.HEADER_SIZE + requests[offset + i].getDataLength();
+
+        byte[] out = new byte[size];
+        int pos = 0;
+        for(int i = 0; i < count; i++) {
+            RequestObject r = requests[offset + i];
+            int requestLength = RequestObject.HEADER_SIZE + r.getDataLength();
+            out[pos++] = (byte)(requestLength >> 8);
+            out[pos++] = (byte)requestLength;
+            out[pos++] = (byte)r.getDeviceAddress();
+            out[pos++] = (byte)(r.getCommand() >> 8);
+            out[pos++] = (byte)r.getCommand();
+            r.copyData(0, out, pos, r.getDataLength());
+            pos += r.getDataLength();
+        }
+        return out;
+    }
+
+    /**
+     * Get the size of the data frame carrying a request.
+     * @param dataLength Length of the request data.
+     * @return The encoded size of the frame.
+     */
+    public static int getRequestFrameSize(int dataLength)
+    {
+        return PacketConstants.FRAME_LEAD_SIZE + 1 + RequestObject.HEADER_SIZE + dataLength;
+    }
+
+    /**
+     * Encode a request as a data frame.
+     * @param deviceAddr The device address.
+     * @param command The command.
+     * @param data Buffer holding the request data, or null if there is none.
+     * @param dataOffset Start of the data in the buffer.
+     * @param dataLength Length of the data.
+     * @param out Buffer the frame is written to. Must have getRequestFrameSize(dataLength) bytes free.
+     * @param offset Position in out to write the frame at.
+     * @return The position in out after the frame.
+     */
+    public static int writeRequestFrame(int deviceAddr, short command, byte[] data, int dataOffset, int dataLength, byte[] out, int offset)
+    {
+        int frameLength = 1 + RequestObject.HEADER_SIZE + dataLength;
+        out[offset++] = (byte)(frameLength >> 8);
+        out[offset++] = (byte)frameLength;
+        out[offset++] = PacketConstants.PACKET_TYPE_DATA;
+        out[offset++] = (byte)deviceAddr;
+        out[offset++] = (byte)(command >> 8);
+        out[offset++] = (byte)command;
+        if(dataLength > 0)
+            System.arraycopy(data, dataOffset, out, offset, dataLength);
+        return offset + dataLength;
+    }
+
     public void close() throws IOException
     {
         if(oStream != null);
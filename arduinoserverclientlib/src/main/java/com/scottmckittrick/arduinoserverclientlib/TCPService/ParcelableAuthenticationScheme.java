@@ -0,0 +1,78 @@
+package com.scottmckittrick.arduinoserverclientlib.TCPService;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme.AuthenticationScheme;
+
+/**
+ * Parcelable holder for an authentication scheme passed from a client to the service.
+ * AuthenticationScheme doesn't depend on Android, so it can't be Parcelable itself. The scheme is written
+ * to the parcel in its serialized form.
+ */
+
+public class ParcelableAuthenticationScheme implements Parcelable {
+    /** The scheme */
+    private final AuthenticationScheme scheme;
+
+    /**
+     * Wrap a scheme.
+     * @param a The scheme.
+     */
+    public ParcelableAuthenticationScheme(AuthenticationScheme a)
+    {
+        if(a == null)
+            throw new IllegalArgumentException("Authentication scheme cannot be null");
+        scheme = a;
+    }
+
+    /**
+     * Get the scheme.
+     * @return The scheme.
+     */
+    public AuthenticationScheme getScheme()
+    {
+        return scheme;
+    }
+
+    /**
+     * Read a scheme from a bundle. Takes a ParcelableAuthenticationScheme, or a scheme stored directly,
+     * such as one that implements Parcelable itself.
+     * @param b The bundle.
+     * @param key The key the scheme is stored under.
+     * @return The scheme, or null if the bundle holds none.
+     */
+    public static AuthenticationScheme fromBundle(Bundle b, String key)
+    {
+        b.setClassLoader(ParcelableAuthenticationScheme.class.getClassLoader());
+        Object o = b.get(key);
+        if(o instanceof ParcelableAuthenticationScheme)
+            return ((ParcelableAuthenticationScheme)o).scheme;
+        if(o instanceof AuthenticationScheme)
+            return (AuthenticationScheme)o;
+        return null;
+    }
+
+    //Parcelable functions
+    @Override
+    public int describeContents() { return 0; }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags)
+    {
+        out.writeSerializable(scheme);
+    }
+
+    public static final Parcelable.Creator<ParcelableAuthenticationScheme> CREATOR = new Parcelable.Creator<ParcelableAuthenticationScheme>() {
+        @Override
+        public ParcelableAuthenticationScheme createFromParcel(Parcel p) {
+            return new ParcelableAuthenticationScheme((AuthenticationScheme)p.readSerializable());
+        }
+
+        @Override
+        public ParcelableAuthenticationScheme[] newArray(int size) {
+            return new ParcelableAuthenticationScheme[size];
+        }
+    };
+}
@@ -0,0 +1,96 @@
+package com.scottmckittrick.arduinoserverclientlib.TCPService;
+
+import android.os.BadParcelableException;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.scottmckittrick.arduinoserverclientlib.InvalidRequestDataException;
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+
+/**
+ * Parcelable holder for a request passed between the service and its clients.
+ * RequestObject doesn't depend on Android, so it can't be Parcelable itself. The parcel has the same
+ * fields RequestObject wrote when it was.
+ */
+
+public class ParcelableRequest implements Parcelable {
+    /** The request */
+    private final RequestObject request;
+
+    /**
+     * Wrap a request.
+     * @param r The request.
+     */
+    public ParcelableRequest(RequestObject r)
+    {
+        if(r == null)
+            throw new IllegalArgumentException("Request object cannot be null");
+        request = r;
+    }
+
+    /**
+     * Get the request.
+     * @return The request.
+     */
+    public RequestObject getRequest()
+    {
+        return request;
+    }
+
+    /**
+     * Read a request from a bundle. Takes either a ParcelableRequest or a request serialized with
+     * RequestObject.serializeRequestObject().
+     * @param b The bundle.
+     * @param key The key the request is stored under.
+     * @return The request.
+     * @throws InvalidRequestDataException If the bundle holds no request or an invalid one.
+     */
+    public static RequestObject fromBundle(Bundle b, String key) throws InvalidRequestDataException
+    {
+        b.setClassLoader(ParcelableRequest.class.getClassLoader());
+        Object o = b.get(key);
+        if(o instanceof ParcelableRequest)
+            return ((ParcelableRequest)o).request;
+        if(o instanceof byte[]) {
+            byte[] serialized = (byte[])o;
+            return RequestObject.wrapSerialized(serialized, 0, serialized.length);
+        }
+        throw new InvalidRequestDataException("Missing request object");
+    }
+
+    //Parcelable functions
+    @Override
+    public int describeContents() { return 0; }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags)
+    {
+        byte[] data = request.getData();
+        out.writeInt(request.getDeviceAddress());
+        out.writeInt(request.getCommand());
+        out.writeInt(data.length);
+        out.writeByteArray(data);
+    }
+
+    public static final Parcelable.Creator<ParcelableRequest> CREATOR = new Parcelable.Creator<ParcelableRequest>() {
+        @Override
+        public ParcelableRequest createFromParcel(Parcel p) {
+            int deviceAddress = p.readInt();
+            short command = (short)p.readInt();
+            byte[] data = new byte[p.readInt()];
+            p.readByteArray(data);
+            try {
+                //The array is ours, so the request can keep it
+                return new ParcelableRequest(RequestObject.wrap(deviceAddress, command, data, 0, data.length));
+            } catch(InvalidRequestDataException e) {
+                throw new BadParcelableException(e.getMessage());
+            }
+        }
+
+        @Override
+        public ParcelableRequest[] newArray(int size) {
+            return new ParcelableRequest[size];
+        }
+    };
+}
@@ -0,0 +1,211 @@
+package com.scottmckittrick.arduinoserverclientlib.TCPService;
+
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes requests straight into a reusable frame buffer.
+ * Each request is written as a complete data frame, header and all, so nothing is allocated per request once the buffer has grown to fit.
+ * Frames pile up in the buffer until it is handed to a FrameReceiver and cleared.
+ * Not thread safe.
+ */
+
+public class RequestEncoder {
+    /** Size of the frame and request headers in front of the payload */
+    private static final int HEADER_SIZE = PacketConstants.FRAME_LEAD_SIZE + 1 + RequestObject.HEADER_SIZE;
+    /** Largest payload that fits in a frame */
+    public static final int MAX_PAYLOAD_SIZE = PacketConstants.MAX_FRAME_LENGTH - 1 - RequestObject.HEADER_SIZE;
+
+    /** Buffer holding the encoded frames */
+    private ByteBuffer buffer;
+    /** Position of the frame being written, or -1 if begin() hasn't been called */
+    private int frameStart;
+
+    /**
+     * Create an encoder with a small starting buffer.
+     */
+    public RequestEncoder()
+    {
+        this(64);
+    }
+
+    /**
+     * Create an encoder.
+     * @param capacity Starting size of the buffer. It grows as needed.
+     */
+    public RequestEncoder(int capacity)
+    {
+        buffer = ByteBuffer.allocate(Math.max(capacity, HEADER_SIZE));
+        frameStart = -1;
+    }
+
+    /**
+     * Start a request. The headers are written and the returned buffer is positioned for the payload.
+     * The buffer must not be kept past the matching commit().
+     * @param deviceAddr The device address.
+     * @param command The command.
+     * @param maxPayloadLength Most payload bytes that will be written.
+     * @return The buffer to write the payload to.
+     */
+    public ByteBuffer begin(int deviceAddr, short command, int maxPayloadLength)
+    {
+        if(frameStart >= 0)
+            throw new IllegalStateException("Previous request was not committed");
+        if((maxPayloadLength < 0) || (maxPayloadLength > MAX_PAYLOAD_SIZE))
+            throw new IllegalArgumentException("Invalid payload length: " + maxPayloadLength);
+
+        ensureCapacity(HEADER_SIZE + maxPayloadLength);
+        frameStart = buffer.position();
+        //The frame length is filled in by commit
+        buffer.putShort((short)0);
+        buffer.put(PacketConstants.PACKET_TYPE_DATA);
+        buffer.put((byte)deviceAddr);
+        buffer.putShort(command);
+        return buffer;
+    }
+
+    /**
+     * Finish the request started by begin().
+     */
+    public void commit()
+    {
+        if(frameStart < 0)
+            throw new IllegalStateException("No request to commit");
+
+        int frameLength = buffer.position() - frameStart - PacketConstants.FRAME_LEAD_SIZE;
+        if(frameLength > PacketConstants.MAX_FRAME_LENGTH)
+            throw new IllegalStateException("Payload too large: " + frameLength);
+        buffer.putShort(frameStart, (short)frameLength);
+        frameStart = -1;
+    }
+
+    /**
+     * Encode a request whose payload is written by a PayloadWriter.
+     * @param deviceAddr The device address.
+     * @param command The command.
+     * @param maxPayloadLength Most payload bytes the writer will write.
+     * @param writer Writes the payload, or null if there is none.
+     */
+    public void encode(int deviceAddr, short command, int maxPayloadLength, PayloadWriter writer)
+    {
+        ByteBuffer buf = begin(deviceAddr, command, maxPayloadLength);
+        if(writer != null)
+            writer.writePayload(buf);
+        commit();
+    }
+
+    /**
+     * Encode a request with a payload taken from an array.
+     * @param deviceAddr The device address.
+     * @param command The command.
+     * @param data Buffer holding the payload, or null if there is none.
+     * @param offset Start of the payload in the buffer.
+     * @param length Length of the payload.
+     */
+    public void encode(int deviceAddr, short command, byte[] data, int offset, int length)
+    {
+        ByteBuffer buf = begin(deviceAddr, command, length);
+        if(length > 0)
+            buf.put(data, offset, length);
+        commit();
+    }
+
+    /**
+     * Encode a request object. Its data is copied straight from the request's buffer.
+     * @param r The request.
+     */
+    public void encode(RequestObject r)
+    {
+        int length = r.getDataLength();
+        ByteBuffer buf = begin(r.getDeviceAddress(), r.getCommand(), length);
+        r.copyData(0, buf.array(), buf.arrayOffset() + buf.position(), length);
+        buf.position(buf.position() + length);
+        commit();
+    }
+
+    /**
+     * Append frames that are already encoded.
+     * @param frames Buffer holding the frames.
+     * @param offset Start of the frames in the buffer.
+     * @param length Length of the frames.
+     */
+    public void append(byte[] frames, int offset, int length)
+    {
+        if(frameStart >= 0)
+            throw new IllegalStateException("Request not committed");
+
+        ensureCapacity(length);
+        buffer.put(frames, offset, length);
+    }
+
+    /**
+     * Hand the encoded frames to a receiver and clear the buffer.
+     * @param receiver The receiver.
+     */
+    public void flushTo(RequestObject.FrameReceiver receiver)
+    {
+        if(frameStart >= 0)
+            throw new IllegalStateException("Request not committed");
+
+        if(buffer.position() > 0)
+            receiver.handleFrames(buffer.array(), buffer.arrayOffset(), buffer.position());
+        buffer.clear();
+    }
+
+    /**
+     * Get the array backing the buffer. Holds size() bytes of frames.
+     * @return The array.
+     */
+    public byte[] array()
+    {
+        return buffer.array();
+    }
+
+    /**
+     * Get the number of bytes of committed frames.
+     * @return The size in bytes.
+     */
+    public int size()
+    {
+        return (frameStart >= 0) ? frameStart : buffer.position();
+    }
+
+    /**
+     * Throw away every frame, including one that was begun but not committed.
+     */
+    public void clear()
+    {
+        buffer.clear();
+        frameStart = -1;
+    }
+
+    /**
+     * Make sure there is room for more bytes, growing the buffer if needed.
+     * @param needed Number of bytes that will be written.
+     */
+    private void ensureCapacity(int needed)
+    {
+        if(buffer.remaining() >= needed)
+            return;
+
+        int capacity = buffer.capacity();
+        while(capacity - buffer.position() < needed)
+            capacity *= 2;
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+
+    /**
+     * Writes the payload of a request.
+     */
+    public interface PayloadWriter {
+        /**
+         * Write the payload.
+         * @param buf Buffer positioned at the start of the payload.
+         */
+        void writePayload(ByteBuffer buf);
+    }
+}
@@ -0,0 +1,829 @@
+package com.scottmckittrick.arduinoserverclientlib.TCPService;
+
+import com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme.AuthenticationException;
+import com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme.AuthenticationScheme;
+import com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme.Authenticator;
+import com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme.InvalidAuthenticationMessageException;
+import com.scottmckittrick.arduinoserverclientlib.InvalidRequestDataException;
+import com.scottmckittrick.arduinoserverclientlib.Platform.Log;
+import com.scottmckittrick.arduinoserverclientlib.Platform.Scheduler;
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static com.scottmckittrick.arduinoserverclientlib.TCPService.PacketConstants.PACKET_TYPE_AUTH;
+
+/**
+ * Platform independent engine that manages the connections to one or more servers.
+ * Each server is identified by a server id and has its own connection, authentication state and request routing.
+ * All methods must be called on the scheduler's thread, and all listener callbacks are made on it.
+ */
+
+public class ServerEngine {
+    /** Logging Tag */
+    private static final String TAG = "ServerEngine";
+
+    /** Events reported about a server */
+    public enum ServerEvent { CONNECTED, CONNECT_FAILED, AUTHENTICATED, AUTHENTICATION_FAILED, REQUEST_SEND_FAILED, DISCONNECTED }
+
+    /** Channel for control commands. Served first and with the larger share of each round. */
+    public static final int CHANNEL_CONTROL = 0;
+    /** Channel for bulk transfers. Large frames on it are sent in fragments between control frames. */
+    public static final int CHANNEL_BULK = 1;
+    /** Weight of each channel, indexed by channel */
+    private static final int[] CHANNEL_WEIGHTS = { 4, 1 };
+
+    /** Scheduler for the thread the engine runs on */
+    private Scheduler scheduler;
+    /** Object receiving server events and requests */
+    private EngineListener listener;
+    /** Table of server sessions keyed by server id */
+    private HashMap<Integer, ServerSession> sessions;
+
+    /**
+     * Create a new engine
+     * @param scheduler Scheduler for the thread the engine runs on.
+     * @param listener Object receiving server events and requests.
+     */
+    public ServerEngine(Scheduler scheduler, EngineListener listener)
+    {
+        this.scheduler = scheduler;
+        this.listener = listener;
+        sessions = new HashMap<>();
+    }
+
+    /**
+     * Get the scheduler the engine runs on.
+     * @return The engine's scheduler.
+     */
+    public Scheduler getScheduler()
+    {
+        return scheduler;
+    }
+
+    /**
+     * Set the authentication scheme used for a server.
+     * @param serverId The id of the server.
+     * @param auth The authentication scheme.
+     */
+    public void setAuthenticationScheme(int serverId, AuthenticationScheme auth)
+    {
+        Log.d(TAG, "Registering Authentication Scheme for server " + serverId);
+        ServerSession session = getSession(serverId);
+        if(session.isConnected()) {
+            Log.w(TAG, "Server is already connected. Not adding auth scheme");
+            return;
+        }
+
+        if(auth == null) {
+            Log.e(TAG, "No Auth scheme provided");
+            return;
+        }
+
+        session.authenticator = new Authenticator(auth);
+    }
+
+    /**
+     * Connect to a server.
+     * Each connection connects on its own thread, so connects to different servers run in parallel.
+     * @param serverId The id to use for the server.
+     * @param ip The ip of the server.
+     * @param port The port of the server.
+     */
+    public void connectServer(int serverId, String ip, int port)
+    {
+        Log.i(TAG, "Connecting to server " + serverId);
+
+        //If they didn't send us an IP, we cannot connect to the server
+        if (ip == null) {
+            Log.e(TAG, "Server ip cannot be null");
+            listener.onServerEvent(serverId, ServerEvent.CONNECT_FAILED, "IP Cannot be null");
+            return;
+        }
+
+        ServerSession session = getSession(serverId);
+
+        //If we are already connected, we shouldn't be trying again.
+        if (session.isConnected()) {
+            Log.w(TAG, "Connection is already set up.");
+            listener.onServerEvent(serverId, ServerEvent.CONNECTED, null);
+            //Since we are already connected start authentication.
+            session.startAuthenticate();
+        } else {
+            //A connect still in progress is abandoned. Its callbacks are ignored from here on.
+            if(session.connThread != null)
+                session.connThread.interrupt();
+            //Otherwise lets create the connection
+            session.conn = new Connection(ip, port, scheduler, session);
+            session.conn.setExtendedFraming(session.extendedFraming);
+            session.conn.setMaxFrameSize(session.maxFrameSize);
+            session.connThread = new Thread(session.conn, "Connection-" + serverId);
+            session.connThread.start();
+        }
+    }
+
+    /**
+     * Disconnect from a server.
+     * @param serverId The id of the server.
+     */
+    public void disconnectServer(int serverId)
+    {
+        ServerSession session = sessions.get(serverId);
+        if(session != null)
+            session.disconnect();
+        else
+            listener.onServerEvent(serverId, ServerEvent.DISCONNECTED, null);
+    }
+
+    /**
+     * Disconnect from every server.
+     */
+    public void disconnectAllServers()
+    {
+        ArrayList<ServerSession> list = new ArrayList<>(sessions.values());
+        for(int i = 0; i < list.size(); i++)
+            list.get(i).disconnect();
+    }
+
+    /**
+     * Disconnect from a server and forget it.
+     * The authentication scheme, slots and settings of the server are dropped, so an id that is used again
+     * starts from the defaults.
+     * @param serverId The id of the server.
+     */
+    public void removeServer(int serverId)
+    {
+        ServerSession session = sessions.remove(serverId);
+        if(session != null)
+            session.remove();
+    }
+
+    /**
+     * Disconnect from every server and forget them all.
+     */
+    public void removeAllServers()
+    {
+        ArrayList<ServerSession> list = new ArrayList<>(sessions.values());
+        sessions.clear();
+        for(int i = 0; i < list.size(); i++)
+            list.get(i).remove();
+    }
+
+    /**
+     * Send a request to a server on the control channel.
+     * @param serverId The id of the server.
+     * @param req The request to send.
+     */
+    public void sendRequest(int serverId, RequestObject req)
+    {
+        sendRequest(serverId, req, CHANNEL_CONTROL);
+    }
+
+    /**
+     * Send a request to a server on a channel.
+     * Channels share the connection in weighted rounds, so requests on the control channel aren't held up by large ones on the bulk channel.
+     * @param serverId The id of the server.
+     * @param req The request to send.
+     * @param channel The channel, CHANNEL_CONTROL or CHANNEL_BULK.
+     */
+    public void sendRequest(int serverId, RequestObject req, int channel)
+    {
+        ServerSession session = sessions.get(serverId);
+        if((channel < 0) || (channel >= CHANNEL_WEIGHTS.length))
+        {
+            Log.e(TAG, "Invalid channel " + channel);
+            listener.onServerEvent(serverId, ServerEvent.REQUEST_SEND_FAILED, "Invalid channel");
+        }else if(req == null)
+        {
+            Log.e(TAG, "Request Object is null");
+            listener.onServerEvent(serverId, ServerEvent.REQUEST_SEND_FAILED, "Request object cannot be null");
+        }else if((session == null) || !session.isConnected()) { //If we arne't connected then we can't send requests.
+            Log.e(TAG, "Server " + serverId + " is not yet connected.");
+            listener.onServerEvent(serverId, ServerEvent.REQUEST_SEND_FAILED, "Not connected to server yet.");
+        } else { //If we are ready to send a request, send it.
+            session.sendRequest(req, channel);
+        }
+    }
+
+    /**
+     * Send frames that are already encoded to a server on the control channel.
+     * @param serverId The id of the server.
+     * @param frames Buffer holding complete data frames.
+     * @param offset Start of the frames in the buffer.
+     * @param length Length of the frames.
+     */
+    public void sendFrames(int serverId, byte[] frames, int offset, int length)
+    {
+        ServerSession session = sessions.get(serverId);
+        if(!PacketConstants.isWellFormed(frames, offset, length)) {
+            Log.e(TAG, "Invalid frame buffer");
+            listener.onServerEvent(serverId, ServerEvent.REQUEST_SEND_FAILED, "Invalid frame buffer");
+        } else if((session == null) || !session.isConnected()) {
+            Log.e(TAG, "Server " + serverId + " is not yet connected.");
+            listener.onServerEvent(serverId, ServerEvent.REQUEST_SEND_FAILED, "Not connected to server yet.");
+        } else {
+            session.sendFrames(frames, offset, length);
+        }
+    }
+
+    /**
+     * Add a slot holding the newest frame of a stream to a server, such as the colors from a ColorStreamer.
+     * The slot's frame is taken onto the control channel only once everything queued on that channel has been written,
+     * so a stream faster than the link replaces its frames in the slot instead of queueing them.
+     * A frame left in the slot while the server is disconnected is sent after it reconnects.
+     * @param serverId The id of the server.
+     * @param slot The slot.
+     */
+    public void addFrameSlot(int serverId, FrameSlot slot)
+    {
+        ServerSession session = getSession(serverId);
+        if(session.slots.contains(slot))
+            return;
+        session.slots.add(slot);
+        slot.setFillListener(session.slotFilled);
+        if(slot.isFull())
+            session.slotFilled.run();
+    }
+
+    /**
+     * Stop taking frames from a slot. A frame left in it is not sent.
+     * @param serverId The id of the server.
+     * @param slot The slot.
+     */
+    public void removeFrameSlot(int serverId, FrameSlot slot)
+    {
+        ServerSession session = sessions.get(serverId);
+        if((session != null) && session.slots.remove(slot))
+            slot.setFillListener(null);
+    }
+
+    /**
+     * Set the share of each round of writes a channel gets. A channel with twice the weight sends twice the bytes
+     * while both have something to send.
+     * @param serverId The id of the server.
+     * @param channel The channel, CHANNEL_CONTROL or CHANNEL_BULK.
+     * @param weight The weight, at least 1.
+     */
+    public void setChannelWeight(int serverId, int channel, int weight)
+    {
+        getSession(serverId).channels.setWeight(channel, weight);
+    }
+
+    /**
+     * Choose whether requests queued for a server are packed into batch frames.
+     * Only enable this for servers that understand batch frames. Servers that advertise batch frames
+     * when authenticating get them anyway.
+     * @param serverId The id of the server.
+     * @param enabled True to send batch frames.
+     */
+    public void setBatchingEnabled(int serverId, boolean enabled)
+    {
+        getSession(serverId).batching = enabled;
+    }
+
+    /**
+     * Choose whether frames to and from a server may use the extended length, for frames of 64 KB or more.
+     * Only enable this for servers that understand extended lengths.
+     * @param serverId The id of the server.
+     * @param enabled True to allow extended lengths.
+     */
+    public void setExtendedFraming(int serverId, boolean enabled)
+    {
+        ServerSession session = getSession(serverId);
+        session.extendedFraming = enabled;
+        if(session.conn != null)
+            session.conn.setExtendedFraming(enabled);
+    }
+
+    /**
+     * Set the largest frame that will be read from or written to a server.
+     * A larger frame from the server is treated as a broken connection.
+     * @param serverId The id of the server.
+     * @param size The size in bytes, counting the type byte.
+     */
+    public void setMaxFrameSize(int serverId, int size)
+    {
+        if(size < 1)
+            throw new IllegalArgumentException("Invalid max frame size: " + size);
+        ServerSession session = getSession(serverId);
+        session.maxFrameSize = size;
+        if(session.conn != null)
+            session.conn.setMaxFrameSize(size);
+    }
+
+    /**
+     * Choose whether protocol capabilities, such as the max frame size and the frame types understood, are offered
+     * to a server when authenticating. Only enable this for servers that understand the capability options: other
+     * servers may reject a hello with options in it. Even then, capabilities are only used if the server answers
+     * with the Capabilities.ROLE_SERVER marker. Off by default, so the hello is the same as for servers
+     * that don't know about capabilities. A change takes effect at the next authentication.
+     * @param serverId The id of the server.
+     * @param enabled True to offer capabilities.
+     */
+    public void setCapabilitiesEnabled(int serverId, boolean enabled)
+    {
+        getSession(serverId).offerCapabilities = enabled;
+    }
+
+    /**
+     * Choose whether compression is offered to a server when authenticating.
+     * Frame data of at least the threshold is compressed once the server agrees, and frames the server compresses
+     * are decompressed. Servers that don't know about compression never accept it, so nothing is compressed. Off by default.
+     * A change takes effect at the next authentication, except that turning compression off also stops compressing right away.
+     * @param serverId The id of the server.
+     * @param enabled True to offer compression.
+     */
+    public void setCompressionEnabled(int serverId, boolean enabled)
+    {
+        ServerSession session = getSession(serverId);
+        session.compression = enabled;
+        if((session.conn != null) && !enabled)
+            session.conn.setCompressionThreshold(0);
+    }
+
+    /**
+     * Get the capabilities agreed with a server when it authenticated.
+     * @param serverId The id of the server.
+     * @return The capabilities, or Capabilities.DEFAULT if the server isn't connected or sent none.
+     */
+    public Capabilities getCapabilities(int serverId)
+    {
+        ServerSession session = sessions.get(serverId);
+        return ((session != null) && (session.conn != null)) ? session.conn.getCapabilities() : Capabilities.DEFAULT;
+    }
+
+    /**
+     * Get the number of times sending to a server stalled waiting for credit.
+     * Only servers that advertise credit frames use flow control.
+     * @param serverId The id of the server.
+     * @return The number of stalls.
+     */
+    public long getCreditStallCount(int serverId)
+    {
+        ServerSession session = sessions.get(serverId);
+        return (session != null) ? session.credit.getStallCount() : 0;
+    }
+
+    /**
+     * Get the total time sending to a server has spent stalled waiting for credit.
+     * @param serverId The id of the server.
+     * @return The time in milliseconds.
+     */
+    public long getCreditStallTime(int serverId)
+    {
+        ServerSession session = sessions.get(serverId);
+        return (session != null) ? session.credit.getStallTime() : 0;
+    }
+
+    /**
+     * Check whether a server is connected.
+     * @param serverId The id of the server.
+     * @return True if the server is connected.
+     */
+    public boolean isConnected(int serverId)
+    {
+        ServerSession session = sessions.get(serverId);
+        return (session != null) && session.isConnected();
+    }
+
+    /**
+     * Check whether a server is connected and authenticated.
+     * @param serverId The id of the server.
+     * @return True if requests can be sent to the server.
+     */
+    public boolean isAuthenticated(int serverId)
+    {
+        ServerSession session = sessions.get(serverId);
+        return (session != null) && session.isConnected() && (session.authenticator != null) && session.authenticator.getAuthenticated();
+    }
+
+    /**
+     * Get the session for a server, creating an empty one if it doesn't exist yet.
+     * @param serverId The id of the server.
+     * @return The session for the server.
+     */
+    private ServerSession getSession(int serverId)
+    {
+        ServerSession session = sessions.get(serverId);
+        if(session == null) {
+            session = new ServerSession(serverId);
+            sessions.put(serverId, session);
+        }
+        return session;
+    }
+
+    /**
+     * Receives events and requests from the engine.
+     * This is the adapter between the engine and whatever is driving it, such as an Android service or the gateway.
+     */
+    public interface EngineListener {
+        /**
+         * Called when something happens to a server connection.
+         * @param serverId The id of the server.
+         * @param event The event.
+         * @param message An error message, or null.
+         */
+        void onServerEvent(int serverId, ServerEvent event, String message);
+
+        /**
+         * Called when a request is received from a server.
+         * @param serverId The id of the server.
+         * @param r The request.
+         */
+        void onRequestReceived(int serverId, RequestObject r);
+    }
+
+    /**
+     * The connection, authentication state and request routing for a single server.
+     */
+    private class ServerSession implements Connection.ConnectionMonitor {
+        /** Id of the server this session talks to */
+        private final int serverId;
+        /** Connection object for communication with the server */
+        private Connection conn;
+        /** Authenticator object for authenticating to the server */
+        private Authenticator authenticator;
+        /** Thread for running the connection */
+        private Thread connThread;
+        /** Requests waiting to be written, queued by channel */
+        private final ChannelScheduler channels = new ChannelScheduler(CHANNEL_WEIGHTS);
+        /** Frames taken from the channels for one write. Frames the credit didn't cover stay here until it does. */
+        private final RequestEncoder round = new RequestEncoder();
+        /** Position in round of the first frame not yet written */
+        private int roundPos;
+        /** Credit granted by the server. Only used if the server advertises credit frames. */
+        private final CreditWindow credit = new CreditWindow();
+        /** Slots holding the newest frame of each stream */
+        private final ArrayList<FrameSlot> slots = new ArrayList<>();
+        /** True if a flush of the outbound requests is posted */
+        private boolean flushPending;
+        /** True to pack queued requests into batch frames */
+        private boolean batching;
+        /** True if frames may use the extended length */
+        private boolean extendedFraming;
+        /** Largest frame read or written */
+        private int maxFrameSize = PacketConstants.DEFAULT_MAX_FRAME_SIZE;
+        /** True to offer compression when authenticating */
+        private boolean compression;
+        /** True to offer capabilities when authenticating */
+        private boolean offerCapabilities;
+        /** Capabilities offered in the last client hello */
+        private Capabilities offered = Capabilities.DEFAULT;
+        /** Task that writes the outbound requests */
+        private final Runnable flushTask = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+        /** Task that writes a frame put in a slot */
+        private final Runnable slotFlushTask = new Runnable() {
+            @Override
+            public void run() {
+                if(isConnected())
+                    scheduleFlush();
+            }
+        };
+        /** Called from any thread when a slot gets a frame */
+        private final Runnable slotFilled = new Runnable() {
+            @Override
+            public void run() {
+                scheduler.post(slotFlushTask);
+            }
+        };
+        /** Passes on the requests in a received batch */
+        private final RequestObject.RequestReceiver batchReceiver = new RequestObject.RequestReceiver() {
+            @Override
+            public void handleRequest(RequestObject r) {
+                listener.onRequestReceived(serverId, r);
+            }
+        };
+
+        /**
+         * Create a new session
+         * @param serverId The id of the server.
+         */
+        ServerSession(int serverId)
+        {
+            this.serverId = serverId;
+        }
+
+        /**
+         * Check whether the server is connected.
+         * @return True if the connection is up.
+         */
+        boolean isConnected()
+        {
+            return (conn != null) && conn.getIsConnected();
+        }
+
+        /**
+         * Send the first authentication packet.
+         */
+        void startAuthenticate()
+        {
+            //Once the connection is sent, we need to initiate the auth process
+            //But if the authenticator is null, we can't do that.
+            if(authenticator == null)
+            {
+                Log.e(TAG, "Authenticator is null for server " + serverId);
+                listener.onServerEvent(serverId, ServerEvent.AUTHENTICATION_FAILED, "Authentication scheme not selected");
+                return;
+            }
+
+            //If we are already authorized, then we'll return success right away.
+            if(authenticator.getAuthenticated())
+            {
+                Log.i(TAG, "Authentication complete.");
+                listener.onServerEvent(serverId, ServerEvent.AUTHENTICATED, null);
+            }
+            else {
+                //Start to startAuthenticate the connection
+                Log.i(TAG, "Starting Authentication Process for server " + serverId);
+                try {
+                    //Frames compressed by the server must be readable as soon as it agrees to compression
+                    if(offerCapabilities) {
+                        offered = new Capabilities(maxFrameSize, 0, Capabilities.CLIENT_FRAME_TYPES, 0, compression);
+                        offered.offer(authenticator);
+                    } else {
+                        offered = Capabilities.offerCompressionOnly(authenticator, compression);
+                    }
+                    conn.setAcceptCompressed(compression);
+                    PacketConstants.Packet authPacket = new PacketConstants.Packet(PACKET_TYPE_AUTH, authenticator.handleAuthPacket(null));
+                    conn.writePacket(authPacket);
+                }catch(AuthenticationException e) {
+                    Log.e(TAG, "Authentication failed: " + e.getMessage());
+                    listener.onServerEvent(serverId, ServerEvent.AUTHENTICATION_FAILED, "Authentication Failed");
+                }catch(InvalidAuthenticationMessageException e){
+                    Log.e(TAG, "Server responded with invalid authentication message: " + e.getMessage());
+                    listener.onServerEvent(serverId, ServerEvent.AUTHENTICATION_FAILED, "Authentication failed. Server sent an invalid response.");
+                } catch(IOException e) {
+                    Log.e(TAG, "Lost Connection to server: " + e.getMessage());
+                    listener.onServerEvent(serverId, ServerEvent.AUTHENTICATION_FAILED, "Authentication failed. Lost Connection to server.");
+                    disconnect();
+                }
+            }
+        }
+
+        /**
+         * Send a request to the server.
+         * @param req The request to send.
+         * @param channel The channel to send it on.
+         */
+        void sendRequest(RequestObject req, int channel)
+        {
+            channels.getQueue(channel).encode(req);
+            scheduleFlush();
+        }
+
+        /**
+         * Send encoded frames to the server.
+         * @param frames Buffer holding the frames.
+         * @param offset Start of the frames in the buffer.
+         * @param length Length of the frames.
+         */
+        void sendFrames(byte[] frames, int offset, int length)
+        {
+            channels.getQueue(CHANNEL_CONTROL).append(frames, offset, length);
+            scheduleFlush();
+        }
+
+        /**
+         * Post a flush of the outbound requests if one isn't already pending.
+         */
+        private void scheduleFlush()
+        {
+            if(flushPending)
+                return;
+            flushPending = true;
+            scheduler.post(flushTask);
+        }
+
+        /**
+         * Write one round of the outbound requests to the server in one write.
+         * If more is left, another flush is posted, so requests queued in the meantime get into the next round.
+         * With flow control, credit is spent on the frames as written, after batching and compression. Frames of the round
+         * the credit doesn't cover are kept and written before anything else once the next grant arrives.
+         */
+        void flush()
+        {
+            flushPending = false;
+            //Streams only get their newest frame in once the control channel has caught up
+            if(isConnected() && !channels.hasPending(CHANNEL_CONTROL) && !hasUnwrittenRound()) {
+                for(int i = 0; i < slots.size(); i++)
+                    slots.get(i).takeTo(channels.getQueue(CHANNEL_CONTROL));
+            }
+            if(!hasUnwrittenRound() && !channels.hasPending())
+                return;
+
+            try {
+                if(!isConnected())
+                    throw new IOException("Socket is not connected.");
+                Capabilities caps = conn.getCapabilities();
+                boolean flowControl = caps.supportsFrameType(PacketConstants.PACKET_TYPE_CREDIT);
+                if(!hasUnwrittenRound())
+                    channels.nextRound(round, caps.supportsFrameType(PacketConstants.PACKET_TYPE_FRAGMENT), flowControl ? credit : null);
+                if(hasUnwrittenRound()) {
+                    CreditWindow c = flowControl ? credit : null;
+                    if(batching || caps.supportsFrameType(PacketConstants.PACKET_TYPE_BATCH))
+                        roundPos += conn.writeBatch(round.array(), roundPos, round.size() - roundPos, c);
+                    else
+                        roundPos += conn.writeFrames(round.array(), roundPos, round.size() - roundPos, c);
+                    if(!hasUnwrittenRound()) {
+                        round.clear();
+                        roundPos = 0;
+                    }
+                }
+                //A stalled queue is flushed again when credit arrives
+                if((hasUnwrittenRound() || channels.hasPending() || hasFullSlot()) && !(flowControl && credit.isStalled()))
+                    scheduleFlush();
+            } catch(IOException e){
+                Log.e(TAG, "Error sending requests: " + e.getMessage());
+                listener.onServerEvent(serverId, ServerEvent.REQUEST_SEND_FAILED, "Error sending request. Lost Connection to server");
+                clearOutbound();
+                if(conn != null)
+                    disconnect();
+            }
+        }
+
+        /**
+         * Check whether frames taken from the channels are still waiting to be written.
+         * @return True if part of the last round is unwritten.
+         */
+        private boolean hasUnwrittenRound()
+        {
+            return roundPos < round.size();
+        }
+
+        /**
+         * Throw away every frame waiting to be written.
+         */
+        private void clearOutbound()
+        {
+            channels.clear();
+            round.clear();
+            roundPos = 0;
+        }
+
+        /**
+         * Check whether any slot holds a frame.
+         * @return True if a slot has a frame waiting.
+         */
+        private boolean hasFullSlot()
+        {
+            for(int i = 0; i < slots.size(); i++) {
+                if(slots.get(i).isFull())
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Disconnect from the server.
+         * The authentication scheme is kept so the server can be reconnected.
+         */
+        void disconnect()
+        {
+            //Interrupting the thread will cause it to disconnect
+            if(connThread != null)
+                connThread.interrupt();
+            //Destroy the connection objects
+            conn = null;
+            connThread = null;
+            clearOutbound();
+            credit.reset();
+            if(authenticator != null)
+                authenticator.reset();
+            listener.onServerEvent(serverId, ServerEvent.DISCONNECTED, null);
+        }
+
+        /**
+         * Disconnect from the server and let go of everything the session holds.
+         * The session must already be out of the table.
+         */
+        void remove()
+        {
+            disconnect();
+            for(int i = 0; i < slots.size(); i++)
+                slots.get(i).setFillListener(null);
+            slots.clear();
+            authenticator = null;
+        }
+
+        /*-********************************************
+         * Handle packets received from the server
+         **********************************************/
+        @Override
+        public void onPacketReceived(Connection source, PacketConstants.Packet p)
+        {
+            //Packets still queued from a connection that has been replaced or closed are dropped
+            if(source != conn)
+                return;
+
+            if(p.getType() == PACKET_TYPE_AUTH) {
+                if(authenticator == null) {
+                    Log.e(TAG, "Received authentication packet but no scheme is selected for server " + serverId);
+                    return;
+                }
+
+                try {
+                    //Handle the authentication packets.
+                    byte[] response = authenticator.handleAuthPacket(p.getData());
+                    if(authenticator.getAuthenticated())
+                    {
+                        Log.d(TAG, "Authentication Succeeded for server " + serverId);
+                        conn.setCapabilities(Capabilities.negotiate(offered, authenticator));
+                        listener.onServerEvent(serverId, ServerEvent.AUTHENTICATED, null);
+                    }
+
+                    //If there is a response to send back
+                    if(response != null)
+                    {
+                        try {
+                            conn.writePacket(new PacketConstants.Packet(PACKET_TYPE_AUTH, response));
+                        }catch(IOException e) {
+                            Log.e(TAG, "Error sending authentication messages: " + e.getMessage());
+                            listener.onServerEvent(serverId, ServerEvent.REQUEST_SEND_FAILED, "Error sending authentication messages. Lost Connection to server");
+                            disconnect();
+                        }
+                    }
+                }
+                catch(AuthenticationException e){
+                    Log.e(TAG, "Error sending authentication messages: " + e.getMessage());
+                    listener.onServerEvent(serverId, ServerEvent.REQUEST_SEND_FAILED, "Error sending authentication messages");
+                } catch(InvalidAuthenticationMessageException e) {
+                    Log.e(TAG, "Invalid server response: " + e.getMessage());
+                    listener.onServerEvent(serverId, ServerEvent.REQUEST_SEND_FAILED, "Server sent invalid response.");
+                }
+            }
+            else if(p.getType() == PacketConstants.PACKET_TYPE_CREDIT) {
+                byte[] data = p.getData();
+                if(data.length != PacketConstants.CREDIT_DATA_SIZE) {
+                    Log.e(TAG, "Invalid credit frame from server " + serverId);
+                    return;
+                }
+                int frames = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+                long bytes = (((long)(data[2] & 0xFF)) << 24) | ((data[3] & 0xFF) << 16) | ((data[4] & 0xFF) << 8) | (data[5] & 0xFF);
+                credit.grant(frames, bytes);
+                if(hasUnwrittenRound() || channels.hasPending())
+                    scheduleFlush();
+            }
+            else if(p.getType() == PacketConstants.PACKET_TYPE_BATCH) {
+                //Every request in the batch reads straight from the packet's array
+                try {
+                    byte[] data = p.getData();
+                    PacketReader.decodeBatch(data, 0, data.length, batchReceiver);
+                }
+                catch(InvalidRequestDataException e) {
+                    Log.e(TAG, "Invalid server batch: " + e.getMessage());
+                    listener.onServerEvent(serverId, ServerEvent.REQUEST_SEND_FAILED, "Server sent invalid response.");
+                }
+            }
+            else if(p.getType() == PacketConstants.PACKET_TYPE_DATA) {
+                //Handle data packets
+                try {
+                    //The packet's array is handed over, so the request reads straight from it
+                    byte[] data = p.getData();
+                    RequestObject r = RequestObject.wrapSerialized(data, 0, data.length);
+                    listener.onRequestReceived(serverId, r);
+                }
+                catch(InvalidRequestDataException e) {
+                    Log.e(TAG, "Invalid server response: " + e.getMessage());
+                    listener.onServerEvent(serverId, ServerEvent.REQUEST_SEND_FAILED, "Server sent invalid response.");
+                }
+            }
+        }
+
+        /**
+         * Handle changes to the connection state
+         * @param source The connection that changed state.
+         * @param c The new connection state
+         */
+        @Override
+        public void onConnectionStateChanged(Connection source, Connection.ConnectionState c)
+        {
+            //A late event from an earlier connection mustn't touch the current one
+            if(source != conn)
+                return;
+
+            switch(c)
+            {
+                case STATE_CONNECTED:
+                    listener.onServerEvent(serverId, ServerEvent.CONNECTED, null);
+                    startAuthenticate();
+                    break;
+                case STATE_CONNECTION_FAILED:
+                    conn = null;
+                    connThread = null;
+                    listener.onServerEvent(serverId, ServerEvent.CONNECT_FAILED, "Socket failed to connect");
+                    break;
+                case STATE_CONNECTION_LOST:
+                    disconnect();
+                    listener.onServerEvent(serverId, ServerEvent.CONNECT_FAILED, "Connection to the server has been lost");
+                    break;
+            }
+        }
+    }
+}
@@ -8,26 +8,23 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
-import android.util.Log;
 
-import com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme.AuthenticationException;
 import com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme.AuthenticationScheme;
-import com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme.Authenticator;
-import com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme.InvalidAuthenticationMessageException;
 import com.scottmckittrick.arduinoserverclientlib.InvalidRequestDataException;
+import com.scottmckittrick.arduinoserverclientlib.Platform.HandlerScheduler;
+import com.scottmckittrick.arduinoserverclientlib.Platform.Log;
 import com.scottmckittrick.arduinoserverclientlib.RequestObject;
 
-import java.io.IOException;
 import java.util.ArrayList;
 
-import static com.scottmckittrick.arduinoserverclientlib.TCPService.PacketConstants.PACKET_TYPE_AUTH;
-
 /**
- * Object representing a server that can be connected to.
+ * Android service giving clients access to the servers managed by a ServerEngine.
+ * The service translates client messages into engine calls and engine events into client messages.
+ * Each server is identified by a server id. Messages that don't carry a server id refer to DEFAULT_SERVER_ID.
  * Created by Scott on 5/6/2017.
  */
 
-public class ServerService extends Service implements Connection.ConnectionMonitor {
+public class ServerService extends Service implements ServerEngine.EngineListener {
     //Service Message Types
     /** Service Message type indicating a client should be registered for callbacks. */
     public static final int MSG_REGISTER_CLIENT = 1;
@@ -59,11 +56,19 @@ public class ServerService extends Service implements Connection.ConnectionMonit
     public static final int MSG_BOUND = 14;
     /** Service Message type indicating that the client is unbound. */
     public static final int MSG_UNBOUND = 15;
+    /** Message containing encoded frames to be sent to the server as they are */
+    public static final int MSG_SEND_FRAMES = 16;
+    /** Message containing many requests, each as { length(2), request } */
+    public static final int MSG_REQUEST_BATCH = 17;
+    /** Message turning batch frames on or off for a server */
+    public static final int MSG_SET_BATCHING = 18;
+    /** Message telling the service to disconnect from a server and forget its settings */
+    public static final int MSG_REMOVE_SERVER = 19;
 
     //Bunlde keys
-    /** Bundle key name for saving and accessing an AuthenticationScheme stored in a bundle. */
+    /** Bundle key name for saving and accessing an AuthenticationScheme stored in a bundle, as a ParcelableAuthenticationScheme. */
     public static final String KEY_AUTHSCHEME = "authenticationScheme";
-    /** Bundle key name for saving and accessing a request object */
+    /** Bundle key name for saving and accessing a request object, as a ParcelableRequest. The serialized form is also accepted. */
     public static final String KEY_REQUEST_OBJECT = "requestObject";
     /** Bundle key name for server ip */
     public static final String KEY_SERVER_IP = "serverIp";
@@ -71,6 +76,17 @@ public class ServerService extends Service implements Connection.ConnectionMonit
     public static final String KEY_SERVER_PORT = "serverPort";
     /** Bundle key name for error message */
     public static final String KEY_ERROR_MESSAGE = "errorMessage";
+    /** Bundle key name for the id of the server a message refers to */
+    public static final String KEY_SERVER_ID = "serverId";
+    /** Bundle key for encoded frames */
+    public static final String KEY_FRAMES = "frames";
+    /** Bundle key for a batch of requests */
+    public static final String KEY_REQUEST_BATCH = "requestBatch";
+    /** Bundle key for whether a setting is enabled */
+    public static final String KEY_ENABLED = "enabled";
+
+    /** Server id used when a message doesn't specify one. */
+    public static final int DEFAULT_SERVER_ID = 0;
 
     /** Logging Tag */
     public static final String TAG = "ArduinoServerService";
@@ -81,12 +97,8 @@ public class ServerService extends Service implements Connection.ConnectionMonit
     /** Messenger sent to client for the client to use to communicate with the service */
     private Messenger serviceMessenger;
 
-    /** Connection object for communication with the server */
-     private Connection conn;
-    /** Authenticator object for authenticating to the server */
-    private Authenticator authenticator;
-    /** Thread for running the connection */
-    Thread connThread;
+    /** Engine managing the server connections */
+    private ServerEngine engine;
 
     /**
      * Create a new server service.
@@ -101,6 +113,8 @@ public class ServerService extends Service implements Connection.ConnectionMonit
         Log.d(TAG, "Client is binding to service");
         if(serviceMessenger == null)
             serviceMessenger = new Messenger(new ServerServiceHandler());
+        if(engine == null)
+            engine = new ServerEngine(new HandlerScheduler(), this);
         return serviceMessenger.getBinder();
     }
 
@@ -108,7 +122,8 @@ public class ServerService extends Service implements Connection.ConnectionMonit
     @Override
     public boolean onUnbind(Intent i)
     {
-        disconnectServer();
+        if(engine != null)
+            engine.removeAllServers();
         return false;
     }
 
@@ -155,20 +170,8 @@ public class ServerService extends Service implements Connection.ConnectionMonit
      */
     private void setAuthenticationScheme(Bundle b)
     {
-        Log.d(TAG, "Registering Authentication Scheme");
-        if((conn != null) && (conn.getIsConnected())) {
-            Log.w(TAG, "Server is already connected. Not adding auth scheme");
-            return;
-        }
-
-        b.setClassLoader(AuthenticationScheme.class.getClassLoader());
-        AuthenticationScheme auth = b.getParcelable(KEY_AUTHSCHEME);
-        if(auth == null) {
-            Log.e(TAG, "No Auth scheme provided");
-            return;
-        }
-
-        authenticator = new Authenticator(auth);
+        AuthenticationScheme auth = ParcelableAuthenticationScheme.fromBundle(b, KEY_AUTHSCHEME);
+        engine.setAuthenticationScheme(b.getInt(KEY_SERVER_ID, DEFAULT_SERVER_ID), auth);
     }
 
     /**
@@ -176,94 +179,22 @@ public class ServerService extends Service implements Connection.ConnectionMonit
      * @param data Bundle containing the IP and port of the server.
      */
     private void connectServer(Bundle data) {
-        Log.i(TAG, "Connecting to server");
-        String ip = data.getString(KEY_SERVER_IP);
-        int port = data.getInt(KEY_SERVER_PORT);
-
-        //If they didn't send us an IP, we cannot connect to the server
-        if (ip == null) {
-            Log.e(TAG, "Server ip cannot be null");
-            Bundle rspBundle = new Bundle();
-            rspBundle.putString(KEY_ERROR_MESSAGE, "IP Cannot be null");
-            sendMessage(MSG_CONNECT_FAILURE, rspBundle);
-            return;
-        }
-
-        //If we are already connected, we shouldn't be trying again.
-        if ((conn != null) && (conn.getIsConnected())) {
-            Log.w(TAG, "Connection is already set up.");
-            sendMessage(MSG_CONNECT_SUCCESS, null);
-            //Since we are already connected start authentication.
-            startAuthenticate();
-        } else {
-            //Otherwise lets create the connection
-            conn = new Connection(ip, port, new Handler(), this);
-            connThread = new Thread(conn);
-            connThread.start();
-        }
-    }
-
-    /**
-     * Send the first authentication packet.
-     */
-    public void startAuthenticate()
-    {
-        //Once the connection is sent, we need to initiate the auth process
-        //But if the authenticator is null, we can't do that.
-        if(authenticator == null)
-        {
-            Log.e(TAG, "Authenticator is null");
-            Bundle rspBundle = new Bundle();
-            rspBundle.putString(KEY_ERROR_MESSAGE, "Authentication scheme not selected");
-            sendMessage(MSG_AUTHENTICATION_FAILED, rspBundle);
-            return;
-        }
-
-        //If we are already authorized, then we'll return success right away.
-        if(authenticator.getAuthenticated())
-        {
-            Log.i(TAG, "Authentication complete.");
-            sendMessage(MSG_AUTHENTICATION_SUCCEEDED, null);
-        }
-        else {
-            //Start to startAuthenticate the connection
-            Log.i(TAG, "Starting Authentication Process");
-            try {
-                PacketConstants.Packet authPacket = new PacketConstants.Packet(PACKET_TYPE_AUTH, authenticator.handleAuthPacket(null));
-                conn.writePacket(authPacket);
-            }catch(AuthenticationException e) {
-                Log.e(TAG, "Authentication failed: " + e.getMessage());
-                Bundle rspBundle = new Bundle();
-                rspBundle.putString(KEY_ERROR_MESSAGE, "Authentication Failed");
-                sendMessage(MSG_AUTHENTICATION_FAILED, rspBundle);
-                return;
-            }catch(InvalidAuthenticationMessageException e){
-                Log.e(TAG, "Server responded with invalid authentication message: " + e.getMessage());
-                Bundle rspBundle = new Bundle();
-                rspBundle.putString(KEY_ERROR_MESSAGE, "Authentication failed. Server sent an invalid response.");
-                sendMessage(MSG_AUTHENTICATION_FAILED, rspBundle);
-                return;
-            } catch(IOException e) {
-                Log.e(TAG, "Lost Connection to server: " + e.getMessage());
-                Bundle rspBundle = new Bundle();
-                rspBundle.putString(KEY_ERROR_MESSAGE, "Authentication failed. Lost Connection to server.");
-                sendMessage(MSG_AUTHENTICATION_FAILED, rspBundle);
-                disconnectServer();
-                return;
-            }
-        }
+        engine.connectServer(data.getInt(KEY_SERVER_ID, DEFAULT_SERVER_ID), data.getString(KEY_SERVER_IP), data.getInt(KEY_SERVER_PORT));
     }
 
     /**
      * Send messages back to the clients.
      * @param messageType The type of message to be sent
+     * @param serverId The id of the server the message refers to.
      * @param rsp A bundle containing any data that should be sent back as well.
      */
-    private void sendMessage(int messageType, Bundle rsp)
+    private void sendMessage(int messageType, int serverId, Bundle rsp)
     {
         Message msg = Message.obtain(null, messageType);
-        if(rsp != null)
-                msg.setData(rsp);
+        if(rsp == null)
+            rsp = new Bundle();
+        rsp.putInt(KEY_SERVER_ID, serverId);
+        msg.setData(rsp);
 
         //Loop through all the registered clients and send the message to each.
         for(int i = 0; i <  clientMessenger.size(); i++) {
@@ -276,17 +207,21 @@ public class ServerService extends Service implements Connection.ConnectionMonit
     }
 
     /**
-     * Disconnect from the server.
+     * Disconnect from a server.
+     * @param data Bundle containing the id of the server.
      */
-    private void disconnectServer()
+    private void disconnectServer(Bundle data)
     {
-        //Interrupting the thread will cause it to disconnect
-        if(connThread != null)
-            connThread.interrupt();
-        //Destroy the connection objects
-        conn = null;
-        connThread = null;
-        sendMessage(MSG_SERVER_DISCONNECTED, null);
+        engine.disconnectServer(data.getInt(KEY_SERVER_ID, DEFAULT_SERVER_ID));
+    }
+
+    /**
+     * Disconnect from a server and forget it, once a client is done with its id.
+     * @param data Bundle containing the id of the server.
+     */
+    private void removeServer(Bundle data)
+    {
+        engine.removeServer(data.getInt(KEY_SERVER_ID, DEFAULT_SERVER_ID));
     }
 
     /**
@@ -294,34 +229,60 @@ public class ServerService extends Service implements Connection.ConnectionMonit
      * @param data A bundle holding the request object from the client.
      */
     private void handleRequest(Bundle data) {
-        data.setClassLoader(RequestObject.class.getClassLoader());
-        RequestObject req = data.getParcelable(KEY_REQUEST_OBJECT);
-        if(req == null)
-        {
-            Log.e(TAG, "Request Object is null");
-            Bundle b = new Bundle();
-            b.putString(KEY_ERROR_MESSAGE, "Request object cannot be null");
-            sendMessage(MSG_REQUEST_SEND_FAILED, b);
-            return;
-        }else if(!conn.getIsConnected()) { //If we arne't connected then we can't send requests.
-            Log.e(TAG, "Server is not yet connected.");
-            Bundle b = new Bundle();
-            b.putString(KEY_ERROR_MESSAGE, "Not connected to server yet.");
-            sendMessage(MSG_REQUEST_SEND_FAILED, b);
+        int serverId = data.getInt(KEY_SERVER_ID, DEFAULT_SERVER_ID);
+        RequestObject req;
+        try {
+            req = ParcelableRequest.fromBundle(data, KEY_REQUEST_OBJECT);
+        } catch(InvalidRequestDataException e) {
+            Log.e(TAG, "Invalid request object: " + e.getMessage());
+            req = null;
+        }
+        engine.sendRequest(serverId, req);
+    }
+
+    /**
+     * Handle a batch of requests from the client.
+     * The requests are queued together, so they reach the server in one write.
+     * @param data A bundle holding the batch.
+     */
+    private void handleRequestBatch(Bundle data) {
+        final int serverId = data.getInt(KEY_SERVER_ID, DEFAULT_SERVER_ID);
+        byte[] batch = data.getByteArray(KEY_REQUEST_BATCH);
+        if(batch == null) {
+            Log.e(TAG, "Missing request batch");
             return;
-        } else { //If we are ready to send a request, send it.
-            try {
-                conn.writePacket(new PacketConstants.Packet(PacketConstants.PACKET_TYPE_DATA, RequestObject.serializeRequestObject(req)));
-            } catch(IOException e){
-                Log.e(TAG, "Errror serializing request: " + e.getMessage());
-                Bundle b = new Bundle();
-                b.putString(KEY_ERROR_MESSAGE, "Error sending request. Lost Connection to server");
-                sendMessage(MSG_REQUEST_SEND_FAILED, b);
-                disconnectServer();
-            }
+        }
+
+        try {
+            PacketReader.decodeBatch(batch, 0, batch.length, new RequestObject.RequestReceiver() {
+                @Override
+                public void handleRequest(RequestObject r) {
+                    engine.sendRequest(serverId, r);
+                }
+            });
+        } catch(InvalidRequestDataException e) {
+            Log.e(TAG, "Invalid request batch: " + e.getMessage());
         }
     }
 
+    /**
+     * Turn batch frames on or off for a server.
+     * @param data A bundle holding the server id and setting.
+     */
+    private void setBatching(Bundle data) {
+        engine.setBatchingEnabled(data.getInt(KEY_SERVER_ID, DEFAULT_SERVER_ID), data.getBoolean(KEY_ENABLED));
+    }
+
+    /**
+     * Handle encoded frames from the client.
+     * @param data A bundle holding the frames.
+     */
+    private void sendFrames(Bundle data) {
+        int serverId = data.getInt(KEY_SERVER_ID, DEFAULT_SERVER_ID);
+        byte[] frames = data.getByteArray(KEY_FRAMES);
+        engine.sendFrames(serverId, frames, 0, (frames == null) ? 0 : frames.length);
+    }
+
 
     /**
      * Class representing the message handler for this service
@@ -346,11 +307,23 @@ public class ServerService extends Service implements Connection.ConnectionMonit
                     connectServer(m.getData());
                     break;
                 case MSG_DISCONNECT_SERVER:
-                    disconnectServer();
+                    disconnectServer(m.getData());
+                    break;
+                case MSG_REMOVE_SERVER:
+                    removeServer(m.getData());
                     break;
                 case MSG_REQUEST_OBJECT:
                     handleRequest(m.getData());
                     break;
+                case MSG_SEND_FRAMES:
+                    sendFrames(m.getData());
+                    break;
+                case MSG_REQUEST_BATCH:
+                    handleRequestBatch(m.getData());
+                    break;
+                case MSG_SET_BATCHING:
+                    setBatching(m.getData());
+                    break;
                 //The following messages should be sent from service to client, not the other way around.
                 //Ignore them if they come from the client.
                 case MSG_AUTHENTICATION_FAILED:
@@ -367,93 +340,45 @@ public class ServerService extends Service implements Connection.ConnectionMonit
 
 
     /*-********************************************
-    * Handle packets received from the server
+    * Handle events from the engine
      **********************************************/
     @Override
-    public void onPacketReceived(PacketConstants.Packet p)
+    public void onServerEvent(int serverId, ServerEngine.ServerEvent event, String message)
     {
-        if(p.getType() == PACKET_TYPE_AUTH) {
-            try {
-                //Handle the authentication packets.
-                byte[] response = authenticator.handleAuthPacket(p.getData());
-                if(authenticator.getAuthenticated())
-                {
-                    Log.d(TAG, "Authentication Succeeded.");
-                    sendMessage(MSG_AUTHENTICATION_SUCCEEDED, null);
-                }
-
-                //If there is a response to send back
-                if(response != null)
-                {
-                    try {
-                        conn.writePacket(new PacketConstants.Packet(PACKET_TYPE_AUTH, response));
-                    }catch(IOException e) {
-                        Log.e(TAG, "Error sending authentication messages: " + e.getMessage());
-                        Bundle b = new Bundle();
-                        b.putString(KEY_ERROR_MESSAGE, "Error sending authentication messages. Lost Connection to server");
-                        sendMessage(MSG_REQUEST_SEND_FAILED, b);
-                        disconnectServer();
-                        return;
-                    }
-                }
-            }
-            catch(AuthenticationException e){
-                Log.e(TAG, "Error sending authentication messages: " + e.getMessage());
-                Bundle b = new Bundle();
-                b.putString(KEY_ERROR_MESSAGE, "Error sending authentication messages");
-                sendMessage(MSG_REQUEST_SEND_FAILED, b);
-                return;
-            } catch(InvalidAuthenticationMessageException e) {
-                Log.e(TAG, "Invalid server response: " + e.getMessage());
-                Bundle b = new Bundle();
-                b.putString(KEY_ERROR_MESSAGE, "Server sent invalid response.");
-                sendMessage(MSG_REQUEST_SEND_FAILED, b);
-                return;
-            }
-        }
-        else if(p.getType() == PacketConstants.PACKET_TYPE_DATA) {
-            //Handle data packets
-            try {
-                RequestObject r = RequestObject.deserializeRequestObject(p.getData());
-                Bundle b = new Bundle();
-                b.putParcelable(KEY_REQUEST_OBJECT, r);
-                sendMessage(MSG_REQUEST_OBJECT, b);
-            }
-            catch(InvalidRequestDataException e) {
-                Log.e(TAG, "Invalid server response: " + e.getMessage());
-                Bundle b = new Bundle();
-                b.putString(KEY_ERROR_MESSAGE, "Server sent invalid response.");
-                sendMessage(MSG_REQUEST_SEND_FAILED, b);
-                return;
-            }
+        Bundle rspBundle = null;
+        if(message != null) {
+            rspBundle = new Bundle();
+            rspBundle.putString(KEY_ERROR_MESSAGE, message);
         }
-    }
 
-    /**
-     * Handle changes to the connection state
-     * @param c The new connection state
-     */
-    @Override
-    public void onConnectionStateChanged(Connection.ConnectionState c)
-    {
-        Bundle rspBundle;
-        switch(c)
+        switch(event)
         {
-            case STATE_CONNECTED:
-                sendMessage(MSG_CONNECT_SUCCESS, null);
-                startAuthenticate();
+            case CONNECTED:
+                sendMessage(MSG_CONNECT_SUCCESS, serverId, rspBundle);
+                break;
+            case CONNECT_FAILED:
+                sendMessage(MSG_CONNECT_FAILURE, serverId, rspBundle);
+                break;
+            case AUTHENTICATED:
+                sendMessage(MSG_AUTHENTICATION_SUCCEEDED, serverId, rspBundle);
+                break;
+            case AUTHENTICATION_FAILED:
+                sendMessage(MSG_AUTHENTICATION_FAILED, serverId, rspBundle);
                 break;
-            case STATE_CONNECTION_FAILED:
-                rspBundle = new Bundle();
-                rspBundle.putString(KEY_ERROR_MESSAGE, "Socket failed to connect");
-                sendMessage(MSG_CONNECT_FAILURE, rspBundle);
+            case REQUEST_SEND_FAILED:
+                sendMessage(MSG_REQUEST_SEND_FAILED, serverId, rspBundle);
                 break;
-            case STATE_CONNECTION_LOST:
-                disconnectServer();
-                rspBundle = new Bundle();
-                rspBundle.putString(KEY_ERROR_MESSAGE, "Connection to the server has been lost");
-                sendMessage(MSG_CONNECT_FAILURE, rspBundle);
+            case DISCONNECTED:
+                sendMessage(MSG_SERVER_DISCONNECTED, serverId, rspBundle);
                 break;
         }
     }
+
+    @Override
+    public void onRequestReceived(int serverId, RequestObject r)
+    {
+        Bundle b = new Bundle();
+        b.putParcelable(KEY_REQUEST_OBJECT, new ParcelableRequest(r));
+        sendMessage(MSG_REQUEST_OBJECT, serverId, b);
+    }
 }
@@ -6,9 +6,12 @@ import android.os.Parcelable;
 import org.junit.Test;
 
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
@@ -82,6 +85,59 @@ public class AuthenticatorTest {
         assertTrue(a.getAuthenticated());
     }
 
+    @Test
+    public void helloOptionsTest() throws Exception
+    {
+        FakeAuthScheme fa = new FakeAuthScheme();
+        Authenticator a = new Authenticator(fa);
+        a.setOption(Authenticator.OPTION_COMPRESSION, new byte[] { 0x01 });
+
+        //The options follow the scheme name after a separator
+        byte[] hello = a.handleAuthPacket(null);
+        int nameLength = schemeName.length();
+        assertEquals(1 + nameLength + 4, hello.length);
+        assertEquals(Authenticator.HELLO_OPTIONS_SEPARATOR, hello[1 + nameLength]);
+        assertEquals(Authenticator.OPTION_COMPRESSION, hello[2 + nameLength]);
+        assertEquals(1, hello[3 + nameLength]);
+        assertEquals(0x01, hello[4 + nameLength]);
+
+        //The server accepts compression and sends an option that was never offered
+        byte[] serverHello = Arrays.copyOf(hello, hello.length + 3);
+        serverHello[0] = Authenticator.AUTHTYPE_SERVER_HELLO;
+        serverHello[hello.length] = 0x09;
+        serverHello[hello.length + 1] = 1;
+        serverHello[hello.length + 2] = 0x01;
+        byte[] response = a.handleAuthPacket(serverHello);
+        assertEquals(Authenticator.AUTHTYPE_AUTHREQ, response[0]);
+        assertArrayEquals(new byte[] { 0x01 }, a.getAcceptedOption(Authenticator.OPTION_COMPRESSION));
+        assertNull(a.getAcceptedOption(0x09));
+    }
+
+    @Test
+    public void helloWithoutOptionsTest() throws Exception
+    {
+        FakeAuthScheme fa = new FakeAuthScheme();
+        Authenticator a = new Authenticator(fa);
+        a.setOption(Authenticator.OPTION_COMPRESSION, new byte[] { 0x01 });
+        a.handleAuthPacket(null);
+
+        //A server that doesn't know about options just echoes the name
+        byte[] name = schemeName.getBytes("US-ASCII");
+        byte[] serverHello = new byte[name.length + 1];
+        serverHello[0] = Authenticator.AUTHTYPE_SERVER_HELLO;
+        System.arraycopy(name, 0, serverHello, 1, name.length);
+        assertNotNull(a.handleAuthPacket(serverHello));
+        assertNull(a.getAcceptedOption(Authenticator.OPTION_COMPRESSION));
+    }
+
+    @Test
+    public void helloWithoutOfferTest() throws Exception
+    {
+        //Nothing offered means the hello is just the name, as it always was
+        byte[] hello = new Authenticator(new FakeAuthScheme()).handleAuthPacket(null);
+        assertEquals(1 + schemeName.length(), hello.length);
+    }
+
     //ToDo Add exception testing to make sure the object is reset every time.
 
     public static class FakeAuthScheme extends AuthenticationScheme implements Parcelable
@@ -0,0 +1,127 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+import com.scottmckittrick.arduinoserverclientlib.TCPService.FrameSlot;
+import com.scottmckittrick.arduinoserverclientlib.TCPService.RequestEncoder;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests that ColorStreamer sends only the newest frame and paces frame sources.
+ */
+
+public class ColorStreamerTest {
+
+    /**
+     * Records the colors sent to it.
+     */
+    private static class RecordingTarget implements LampCommandTarget {
+        List<Integer> colors = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public void turnLampOff() {}
+
+        @Override
+        public void setLampSolid(int r, int g, int b) { colors.add((r << 16) | (g << 8) | b); }
+
+        @Override
+        public void encodeLampSolid(RequestEncoder out, int r, int g, int b) {
+            out.encode(1, RGBLampDevice.CMD_LAMP_SOLID, new byte[] { (byte)r, (byte)g, (byte)b }, 0, 3);
+        }
+
+        @Override
+        public void setLampFade(int interval) {}
+
+        @Override
+        public void setLampCycle(int interval) {}
+    }
+
+    @Test
+    public void testOnlyNewestFrameSent() throws Exception
+    {
+        RecordingTarget target = new RecordingTarget();
+        ColorStreamer streamer = new ColorStreamer(target, 100);
+        streamer.submitFrame(1, 0, 0);
+        streamer.submitFrame(2, 0, 0);
+        streamer.submitFrame(3, 0, 0);
+        Assert.assertEquals(2, streamer.getDroppedFrames());
+
+        streamer.start();
+        Thread.sleep(100);
+        streamer.stop();
+
+        Assert.assertEquals(1, target.colors.size());
+        Assert.assertEquals(0x030000, (int)target.colors.get(0));
+        Assert.assertEquals(1, streamer.getSentFrames());
+    }
+
+    @Test
+    public void testFrameSourcePaced() throws Exception
+    {
+        RecordingTarget target = new RecordingTarget();
+        ColorStreamer streamer = new ColorStreamer(target, 50);
+        streamer.setFrameSource(new ColorStreamer.FrameSource() {
+            int frame;
+
+            @Override
+            public int nextFrame(long frameTimeNanos) {
+                return ++frame;
+            }
+        });
+
+        streamer.start();
+        Thread.sleep(500);
+        streamer.stop();
+
+        //About 25 frames at 50 fps. Leave room for a slow machine but catch an unpaced loop.
+        Assert.assertTrue("Frames: " + target.colors.size(), target.colors.size() > 5 && target.colors.size() <= 27);
+        Assert.assertTrue(streamer.getAchievedFps() > 0);
+    }
+
+    @Test
+    public void testSlowReceiverGetsNewestFrame() throws Exception
+    {
+        RecordingTarget target = new RecordingTarget();
+        ColorStreamer streamer = new ColorStreamer(target, 100);
+        FrameSlot slot = new FrameSlot();
+        streamer.setFrameSlot(slot);
+        streamer.setFrameSource(new ColorStreamer.FrameSource() {
+            int frame;
+
+            @Override
+            public int nextFrame(long frameTimeNanos) {
+                return ++frame;
+            }
+        });
+
+        //The receiver takes a frame every 100ms, a tenth of the frame rate
+        streamer.start();
+        RequestEncoder link = new RequestEncoder();
+        List<Integer> taken = new ArrayList<>();
+        for(int i = 0; i < 5; i++) {
+            Thread.sleep(100);
+            link.clear();
+            if(slot.takeTo(link)) {
+                byte[] frame = link.array();
+                int end = link.size();
+                taken.add(((frame[end - 3] & 0xFF) << 16) | ((frame[end - 2] & 0xFF) << 8) | (frame[end - 1] & 0xFF));
+            }
+        }
+        streamer.stop();
+
+        //Nothing went around the slot, and each frame taken was newer than the last
+        Assert.assertEquals(0, target.colors.size());
+        Assert.assertTrue("Frames taken: " + taken.size(), taken.size() >= 2);
+        for(int i = 1; i < taken.size(); i++)
+            Assert.assertTrue(taken.get(i) > taken.get(i - 1));
+
+        //Every frame sent was taken, replaced in the slot or is still waiting in it
+        int waiting = slot.isFull() ? 1 : 0;
+        Assert.assertEquals(streamer.getSentFrames(), taken.size() + streamer.getDroppedFrames() + waiting);
+        Assert.assertTrue("Dropped: " + streamer.getDroppedFrames(), streamer.getDroppedFrames() > taken.size());
+    }
+}
@@ -0,0 +1,138 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+import com.scottmckittrick.arduinoserverclientlib.Platform.Scheduler;
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+/**
+ * Tests batching of device change notifications by DeviceChangeCoalescer.
+ */
+
+public class DeviceChangeCoalescerTest {
+
+    /**
+     * Scheduler that holds posted tasks until the test runs them.
+     */
+    private static class ManualScheduler implements Scheduler {
+        ArrayList<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void post(Runnable r) { tasks.add(r); }
+
+        @Override
+        public void postDelayed(Runnable r, long delayMs) { tasks.add(r); }
+
+        @Override
+        public void removeCallbacks(Runnable r) { while(tasks.remove(r)); }
+
+        void runAll()
+        {
+            ArrayList<Runnable> run = new ArrayList<>(tasks);
+            tasks.clear();
+            for(Runnable r : run)
+                r.run();
+        }
+    }
+
+    /**
+     * Listener that records each batch it receives.
+     */
+    private static class RecordingListener implements DeviceChangeListener {
+        ArrayList<ArrayList<BasicDevice>> batches = new ArrayList<>();
+
+        @Override
+        public void onDeviceChange(ArrayList<BasicDevice> changedDevices)
+        {
+            batches.add(new ArrayList<>(changedDevices));
+        }
+    }
+
+    private static ArrayList<BasicDevice> listOf(BasicDevice d)
+    {
+        ArrayList<BasicDevice> l = new ArrayList<>();
+        l.add(d);
+        return l;
+    }
+
+    @Test
+    public void testBurstDeliveredOnce()
+    {
+        ManualScheduler s = new ManualScheduler();
+        RecordingListener l = new RecordingListener();
+        DeviceChangeCoalescer c = new DeviceChangeCoalescer(s, 16, l);
+        RGBLampDevice a = new RGBLampDevice(1, "A", 1);
+        RGBLampDevice b = new RGBLampDevice(2, "B", 2);
+
+        c.onDeviceChange(listOf(a));
+        c.onDeviceChange(listOf(b));
+        c.onDeviceChange(listOf(a));
+        Assert.assertEquals(0, l.batches.size());
+        Assert.assertEquals(1, s.tasks.size());
+
+        s.runAll();
+        Assert.assertEquals(1, l.batches.size());
+        Assert.assertEquals(2, l.batches.get(0).size());
+        Assert.assertSame(a, l.batches.get(0).get(0));
+        Assert.assertSame(b, l.batches.get(0).get(1));
+
+        //The next change starts a new window
+        c.onDeviceChange(listOf(a));
+        s.runAll();
+        Assert.assertEquals(2, l.batches.size());
+        Assert.assertEquals(1, l.batches.get(1).size());
+    }
+
+    @Test
+    public void testZeroWindowPassesThrough()
+    {
+        ManualScheduler s = new ManualScheduler();
+        RecordingListener l = new RecordingListener();
+        DeviceChangeCoalescer c = new DeviceChangeCoalescer(s, 0, l);
+        RGBLampDevice a = new RGBLampDevice(1, "A", 1);
+
+        c.onDeviceChange(listOf(a));
+        c.onDeviceChange(listOf(a));
+        Assert.assertEquals(2, l.batches.size());
+        Assert.assertEquals(0, s.tasks.size());
+    }
+
+    @Test
+    public void testZeroWindowListMayBeKept()
+    {
+        ManualScheduler s = new ManualScheduler();
+        final ArrayList<ArrayList<BasicDevice>> lists = new ArrayList<>();
+        DeviceChangeCoalescer c = new DeviceChangeCoalescer(s, 0, new DeviceChangeListener() {
+            @Override
+            public void onDeviceChange(ArrayList<BasicDevice> changedDevices) {
+                lists.add(changedDevices);
+            }
+        });
+        RGBLampDevice lamp = new RGBLampDevice(7, "Lamp", 5);
+        lamp.setDeviceChangeListener(c);
+
+        //What reaches the target is the target's to keep
+        lamp.handleRequest(new RequestObject(5, RGBLampDevice.CMD_LAMP_SOLID_RSP, new byte[] { 1, 2, 3 }));
+        lamp.handleRequest(new RequestObject(5, RGBLampDevice.CMD_LAMP_OFF_RSP, null));
+        Assert.assertEquals(2, lists.size());
+        Assert.assertNotSame(lists.get(0), lists.get(1));
+        Assert.assertEquals(1, lists.get(0).size());
+        Assert.assertSame(lamp, lists.get(0).get(0));
+    }
+
+    @Test
+    public void testFlush()
+    {
+        ManualScheduler s = new ManualScheduler();
+        RecordingListener l = new RecordingListener();
+        DeviceChangeCoalescer c = new DeviceChangeCoalescer(s, 16, l);
+
+        c.onDeviceChange(listOf(new RGBLampDevice(1, "A", 1)));
+        c.flush();
+        Assert.assertEquals(1, l.batches.size());
+        Assert.assertEquals(0, s.tasks.size());
+    }
+}
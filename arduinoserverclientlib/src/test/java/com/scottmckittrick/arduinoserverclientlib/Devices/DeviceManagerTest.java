@@ -1,8 +1,644 @@
 package com.scottmckittrick.arduinoserverclientlib.Devices;
 
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+import com.scottmckittrick.arduinoserverclientlib.TCPService.RequestEncoder;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+
 /**
  * Created by Scott on 6/8/2017.
  */
 
 public class DeviceManagerTest {
+
+    /**
+     * Build a DEV_GET_INFO_RSP payload.
+     * @param entries Device entries as { address, type, id }.
+     * @param names Device names matching the entries.
+     * @return The payload.
+     */
+    public static byte[] buildDeviceList(int[][] entries, String[] names) throws UnsupportedEncodingException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(entries.length);
+        for(int i = 0; i < entries.length; i++) {
+            byte[] name = names[i].getBytes("US-ASCII");
+            out.write(name.length + 3);
+            out.write(entries[i][0]);
+            out.write(entries[i][1]);
+            out.write(entries[i][2]);
+            out.write(name, 0, name.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testDeviceLookup() throws Exception
+    {
+        DeviceManager dm = new DeviceManager();
+        byte[] list = buildDeviceList(new int[][] { { 5, DeviceManager.DEVICE_TYPE_RGB_LAMP, 7 }, { 200, DeviceManager.DEVICE_TYPE_RGB_LAMP, 9 } },
+                new String[] { "Lamp", "Desk" });
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP, list));
+
+        Assert.assertEquals(2, dm.getDeviceList().size());
+        Assert.assertEquals("Lamp", dm.getDeviceByAddress(5).getDeviceName());
+        Assert.assertEquals("Desk", dm.getDeviceByAddress(200).getDeviceName());
+        Assert.assertEquals(200, dm.getDeviceById(9).getDeviceAddr());
+        Assert.assertEquals(5, dm.getDeviceById(7).getDeviceAddr());
+    }
+
+    @Test(expected=DeviceNotFoundException.class)
+    public void testDeviceNotFound() throws Exception
+    {
+        DeviceManager dm = new DeviceManager();
+        dm.getDeviceByAddress(3);
+    }
+
+    @Test
+    public void testKnownDevicesSkipped() throws Exception
+    {
+        DeviceManager dm = new DeviceManager();
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP,
+                buildDeviceList(new int[][] { { 1, DeviceManager.DEVICE_TYPE_RGB_LAMP, 1 } }, new String[] { "First" })));
+
+        //The known device comes first, so the parser must still step over it to reach the new one.
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP,
+                buildDeviceList(new int[][] { { 1, DeviceManager.DEVICE_TYPE_RGB_LAMP, 1 }, { 2, DeviceManager.DEVICE_TYPE_RGB_LAMP, 2 } },
+                        new String[] { "First", "Second" })));
+
+        Assert.assertEquals(2, dm.getDeviceList().size());
+        Assert.assertEquals("Second", dm.getDeviceByAddress(2).getDeviceName());
+    }
+
+    @Test
+    public void testRemovedAndChangedDevices() throws Exception
+    {
+        DeviceManager dm = new DeviceManager();
+        final ArrayList<BasicDevice> changes = new ArrayList<>();
+        dm.registerDeviceChangeListener(new DeviceChangeListener() {
+            @Override
+            public void onDeviceChange(ArrayList<BasicDevice> changedDevices) {
+                changes.addAll(changedDevices);
+            }
+        });
+
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP,
+                buildDeviceList(new int[][] { { 1, DeviceManager.DEVICE_TYPE_RGB_LAMP, 1 }, { 2, DeviceManager.DEVICE_TYPE_RGB_LAMP, 2 }, { 3, DeviceManager.DEVICE_TYPE_RGB_LAMP, 3 } },
+                        new String[] { "One", "Two", "Three" })));
+        BasicDevice one = dm.getDeviceByAddress(1);
+        changes.clear();
+
+        //Device 2 is renamed, device 3 is gone and device 1 is unchanged.
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP,
+                buildDeviceList(new int[][] { { 1, DeviceManager.DEVICE_TYPE_RGB_LAMP, 1 }, { 2, DeviceManager.DEVICE_TYPE_RGB_LAMP, 2 } },
+                        new String[] { "One", "Kitchen" })));
+
+        Assert.assertEquals(2, dm.getDeviceList().size());
+        Assert.assertSame(one, dm.getDeviceByAddress(1));
+        Assert.assertEquals("Kitchen", dm.getDeviceByAddress(2).getDeviceName());
+        Assert.assertFalse(changes.contains(one));
+        Assert.assertEquals(3, changes.size());
+        try {
+            dm.getDeviceById(3);
+            Assert.fail("Device 3 should have been removed");
+        } catch(DeviceNotFoundException e) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void testListParsed() throws Exception
+    {
+        final ArrayList<String> names = new ArrayList<>();
+        DeviceListParser parser = new DeviceListParser(new DeviceListParser.EntryHandler() {
+            @Override
+            public void onEntry(int address, int type, int id, byte[] buf, int nameOffset, int nameLength) {
+                names.add(address + ":" + new String(buf, nameOffset, nameLength));
+            }
+        });
+        byte[] list = buildDeviceList(new int[][] { { 10, 1, 1 }, { 11, 1, 2 } }, new String[] { "Porch", "Hall" });
+
+        DeviceListParser.check(list, 0, list.length);
+        parser.parse(list, 0);
+
+        Assert.assertEquals(2, names.size());
+        Assert.assertEquals("10:Porch", names.get(0));
+        Assert.assertEquals("11:Hall", names.get(1));
+    }
+
+    @Test(expected=InvalidDeviceListException.class)
+    public void testTruncatedList() throws Exception
+    {
+        byte[] list = buildDeviceList(new int[][] { { 10, 1, 1 }, { 11, 1, 2 } }, new String[] { "Porch", "Hall" });
+        DeviceListParser.check(list, 0, list.length - 2);
+    }
+
+    @Test
+    public void testCorruptListChangesNothing() throws Exception
+    {
+        DeviceManager dm = new DeviceManager();
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP,
+                buildDeviceList(new int[][] { { 1, DeviceManager.DEVICE_TYPE_RGB_LAMP, 1 }, { 2, DeviceManager.DEVICE_TYPE_RGB_LAMP, 2 } },
+                        new String[] { "One", "Two" })));
+        BasicDevice one = dm.getDeviceByAddress(1);
+        final ArrayList<BasicDevice> changes = new ArrayList<>();
+        dm.registerDeviceChangeListener(new DeviceChangeListener() {
+            @Override
+            public void onDeviceChange(ArrayList<BasicDevice> changedDevices) {
+                changes.addAll(changedDevices);
+            }
+        });
+        final ArrayList<DeviceChangeEvent> fieldEvents = new ArrayList<>();
+        dm.setDeviceFieldChangeListener(new DeviceFieldChangeListener() {
+            @Override
+            public void onDeviceFieldsChanged(DeviceChangeEvent e) {
+                fieldEvents.add(e);
+            }
+        });
+
+        //The first entry would replace device 1, but the second entry is shorter than its header
+        byte[] list = buildDeviceList(new int[][] { { 1, DeviceManager.DEVICE_TYPE_RGB_LAMP, 5 }, { 3, DeviceManager.DEVICE_TYPE_RGB_LAMP, 3 } },
+                new String[] { "Other", "" });
+        list[list.length - 4] = 2;
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP, list));
+
+        //The same entries as a delta
+        ByteArrayOutputStream rsp = new ByteArrayOutputStream();
+        rsp.write(new byte[] { DeviceManager.SYNC_DELTA, 0, 0, 0, 9, 2, DeviceManager.SYNC_OP_MODIFY });
+        rsp.write(list, 1, list.length - 5);
+        rsp.write(new byte[] { DeviceManager.SYNC_OP_ADD, 2, 3, DeviceManager.DEVICE_TYPE_RGB_LAMP });
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_SYNC_RSP, rsp.toByteArray()));
+
+        Assert.assertEquals(0, changes.size());
+        Assert.assertEquals(0, fieldEvents.size());
+        Assert.assertEquals(0, dm.getDeviceListVersion());
+        Assert.assertEquals(2, dm.getDeviceList().size());
+        Assert.assertSame(one, dm.getDeviceByAddress(1));
+        Assert.assertEquals("Two", dm.getDeviceByAddress(2).getDeviceName());
+    }
+
+    @Test
+    public void testIncrementalSync() throws Exception
+    {
+        DeviceManager dm = new DeviceManager();
+        final ArrayList<RequestObject> sent = new ArrayList<>();
+        dm.setRequestReceiver(new RequestObject.RequestReceiver() {
+            @Override
+            public void handleRequest(RequestObject r) {
+                sent.add(r);
+            }
+        });
+        final ArrayList<BasicDevice> changes = new ArrayList<>();
+        dm.registerDeviceChangeListener(new DeviceChangeListener() {
+            @Override
+            public void onDeviceChange(ArrayList<BasicDevice> changedDevices) {
+                changes.addAll(changedDevices);
+            }
+        });
+        dm.setIncrementalSync(true);
+
+        //First sync has no version, the server answers with the full list.
+        dm.refreshDeviceList();
+        Assert.assertEquals(DeviceManager.DEV_SYNC, sent.get(0).getCommand());
+        Assert.assertArrayEquals(new byte[] { 0, 0, 0, 0 }, sent.get(0).getData());
+        byte[] list = buildDeviceList(new int[][] { { 1, DeviceManager.DEVICE_TYPE_RGB_LAMP, 1 }, { 2, DeviceManager.DEVICE_TYPE_RGB_LAMP, 2 } },
+                new String[] { "One", "Two" });
+        ByteArrayOutputStream rsp = new ByteArrayOutputStream();
+        rsp.write(new byte[] { DeviceManager.SYNC_FULL, 0, 0, 0, 7 });
+        rsp.write(list);
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_SYNC_RSP, rsp.toByteArray()));
+        Assert.assertEquals(7, dm.getDeviceListVersion());
+        Assert.assertEquals(2, dm.getDeviceList().size());
+
+        //Nothing changed
+        changes.clear();
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_SYNC_RSP, new byte[] { DeviceManager.SYNC_UNCHANGED, 0, 0, 0, 7 }));
+        Assert.assertEquals(0, changes.size());
+
+        //Remove device 1 and add device 3. Device 2 isn't mentioned and must stay.
+        dm.syncDeviceList();
+        Assert.assertArrayEquals(new byte[] { 0, 0, 0, 7 }, sent.get(1).getData());
+        rsp = new ByteArrayOutputStream();
+        rsp.write(new byte[] { DeviceManager.SYNC_DELTA, 0, 0, 0, 8, 2, DeviceManager.SYNC_OP_REMOVE, 1, DeviceManager.SYNC_OP_ADD });
+        byte[] entry = buildDeviceList(new int[][] { { 3, DeviceManager.DEVICE_TYPE_RGB_LAMP, 3 } }, new String[] { "Three" });
+        rsp.write(entry, 1, entry.length - 1);
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_SYNC_RSP, rsp.toByteArray()));
+
+        Assert.assertEquals(8, dm.getDeviceListVersion());
+        Assert.assertEquals(2, changes.size());
+        Assert.assertEquals("Two", dm.getDeviceByAddress(2).getDeviceName());
+        Assert.assertEquals("Three", dm.getDeviceByAddress(3).getDeviceName());
+        Assert.assertEquals(2, dm.getDeviceList().size());
+    }
+
+    /**
+     * Place a serialized request in the middle of a larger buffer, the way a received frame holds it.
+     * @param command The command.
+     * @param data The request data.
+     * @return The request, backed by the larger buffer.
+     */
+    private static RequestObject wrapInFrame(short command, byte[] data) throws Exception
+    {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(new byte[] { 9, 9, 9, 0, (byte)(command >> 8), (byte)command });
+        frame.write(data);
+        //Trailing bytes that aren't part of the request
+        frame.write(new byte[] { 1, 4, 99, 1, 1 });
+        byte[] buf = frame.toByteArray();
+        return RequestObject.wrapSerialized(buf, 3, RequestObject.HEADER_SIZE + data.length);
+    }
+
+    @Test
+    public void testListParsedInPlace() throws Exception
+    {
+        DeviceManager dm = new DeviceManager();
+        byte[] list = buildDeviceList(new int[][] { { 1, DeviceManager.DEVICE_TYPE_RGB_LAMP, 1 } }, new String[] { "One" });
+        RequestObject r = wrapInFrame(DeviceManager.DEV_GET_INFO_RSP, list);
+        Assert.assertEquals(3 + RequestObject.HEADER_SIZE, r.getDataOffset());
+        dm.handleRequest(r);
+        Assert.assertEquals(1, dm.getDeviceList().size());
+        Assert.assertEquals("One", dm.getDeviceByAddress(1).getDeviceName());
+
+        ByteArrayOutputStream rsp = new ByteArrayOutputStream();
+        rsp.write(new byte[] { DeviceManager.SYNC_DELTA, 0, 0, 0, 5, 1, DeviceManager.SYNC_OP_ADD });
+        byte[] entry = buildDeviceList(new int[][] { { 2, DeviceManager.DEVICE_TYPE_RGB_LAMP, 2 } }, new String[] { "Two" });
+        rsp.write(entry, 1, entry.length - 1);
+        dm.handleRequest(wrapInFrame(DeviceManager.DEV_SYNC_RSP, rsp.toByteArray()));
+        Assert.assertEquals(5, dm.getDeviceListVersion());
+        Assert.assertEquals(2, dm.getDeviceList().size());
+        Assert.assertEquals("Two", dm.getDeviceByAddress(2).getDeviceName());
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws Exception
+    {
+        DeviceManager dm = new DeviceManager();
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP,
+                buildDeviceList(new int[][] { { 4, DeviceManager.DEVICE_TYPE_RGB_LAMP, 6 }, { 5, DeviceManager.DEVICE_TYPE_RGB_LAMP, 7 } },
+                        new String[] { "Porch", "Hall" })));
+        dm.handleRequest(new RequestObject(4, RGBLampDevice.CMD_LAMP_SOLID_RSP, new byte[] { 10, 20, (byte)230 }));
+        dm.handleRequest(new RequestObject(5, RGBLampDevice.CMD_LAMP_FADE_RSP, new byte[] { 0x01, 0x2C }));
+
+        File file = File.createTempFile("devices", ".snapshot");
+        try {
+            dm.saveSnapshot(file);
+
+            DeviceManager restored = new DeviceManager();
+            restored.restoreSnapshot(file);
+            Assert.assertEquals(2, restored.getDeviceList().size());
+            RGBLampDevice porch = (RGBLampDevice)restored.getDeviceByAddress(4);
+            Assert.assertEquals("Porch", porch.getDeviceName());
+            Assert.assertEquals(6, porch.getDeviceId());
+            Assert.assertEquals(RGBLampDevice.CMD_LAMP_SOLID, porch.getCurrentState());
+            Assert.assertArrayEquals(new byte[] { 10, 20, (byte)230 }, porch.getColors());
+            RGBLampDevice hall = (RGBLampDevice)restored.getDeviceByAddress(5);
+            Assert.assertEquals(RGBLampDevice.CMD_LAMP_FADE, hall.getCurrentState());
+            Assert.assertEquals(300, hall.getInterval());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected=IOException.class)
+    public void testCorruptSnapshotRejected() throws Exception
+    {
+        DeviceManager dm = new DeviceManager();
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP,
+                buildDeviceList(new int[][] { { 4, DeviceManager.DEVICE_TYPE_RGB_LAMP, 6 } }, new String[] { "Porch" })));
+        File file = File.createTempFile("devices", ".snapshot");
+        try {
+            dm.saveSnapshot(file);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.seek(raf.length() - 1);
+            raf.write(0x55);
+            raf.close();
+            new DeviceManager().restoreSnapshot(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFieldChangeMasks() throws Exception
+    {
+        DeviceManager dm = new DeviceManager();
+        final ArrayList<Integer> masks = new ArrayList<>();
+        final ArrayList<Integer> colors = new ArrayList<>();
+        dm.setDeviceFieldChangeListener(new DeviceFieldChangeListener() {
+            @Override
+            public void onDeviceFieldsChanged(DeviceChangeEvent e) {
+                masks.add(e.getChangedFields());
+                colors.add(e.getNewColor());
+            }
+        });
+
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP,
+                buildDeviceList(new int[][] { { 5, DeviceManager.DEVICE_TYPE_RGB_LAMP, 7 } }, new String[] { "Lamp" })));
+        Assert.assertEquals(1, masks.size());
+        Assert.assertEquals(DeviceChangeEvent.FIELD_PRESENCE, (int)masks.get(0));
+
+        //A solid color status changes the state and color
+        byte[] status = { 0x00, RGBLampDevice.CMD_LAMP_SOLID, 0x10, 0x20, 0x30 };
+        dm.handleRequest(new RequestObject(5, RGBLampDevice.CMD_LAMP_GET_STATUS_RSP, status));
+        Assert.assertEquals(2, masks.size());
+        Assert.assertEquals(DeviceChangeEvent.FIELD_STATE | DeviceChangeEvent.FIELD_COLOR, (int)masks.get(1));
+        Assert.assertEquals(0x102030, (int)colors.get(1));
+        Assert.assertEquals(0x102030, ((RGBLampDevice)dm.getDeviceByAddress(5)).getColorRGB());
+
+        //The same status again changes nothing
+        dm.handleRequest(new RequestObject(5, RGBLampDevice.CMD_LAMP_GET_STATUS_RSP, status));
+        Assert.assertEquals(2, masks.size());
+
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP,
+                buildDeviceList(new int[][] { { 5, DeviceManager.DEVICE_TYPE_RGB_LAMP, 7 } }, new String[] { "Desk" })));
+        Assert.assertEquals(3, masks.size());
+        Assert.assertEquals(DeviceChangeEvent.FIELD_NAME, (int)masks.get(2));
+
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP, new byte[] { 0 }));
+        Assert.assertEquals(4, masks.size());
+        Assert.assertEquals(DeviceChangeEvent.FIELD_PRESENCE, (int)masks.get(3));
+    }
+
+    @Test
+    public void testLampStateSnapshots()
+    {
+        RGBLampDevice lamp = new RGBLampDevice(7, "Lamp", 5);
+        LampState initial = lamp.getState();
+
+        lamp.handleRequest(new RequestObject(5, RGBLampDevice.CMD_LAMP_SOLID_RSP, new byte[] { 1, 2, 3 }));
+        LampState solid = lamp.getState();
+        Assert.assertTrue(solid.getVersion() > initial.getVersion());
+        Assert.assertEquals(RGBLampDevice.CMD_LAMP_SOLID, solid.getState());
+        Assert.assertEquals(0x010203, solid.getColorRGB());
+
+        //A response that changes nothing doesn't publish a new snapshot
+        lamp.handleRequest(new RequestObject(5, RGBLampDevice.CMD_LAMP_SOLID_RSP, new byte[] { 1, 2, 3 }));
+        Assert.assertSame(solid, lamp.getState());
+
+        //Fading keeps the color and the old snapshot is left untouched
+        lamp.handleRequest(new RequestObject(5, RGBLampDevice.CMD_LAMP_FADE_RSP, new byte[] { 0x01, 0x2C }));
+        LampState fade = lamp.getState();
+        Assert.assertEquals(RGBLampDevice.CMD_LAMP_FADE, fade.getState());
+        Assert.assertEquals(300, fade.getInterval());
+        Assert.assertEquals(0x010203, fade.getColorRGB());
+        Assert.assertEquals(RGBLampDevice.CMD_LAMP_SOLID, solid.getState());
+        Assert.assertTrue(fade.getVersion() > solid.getVersion());
+    }
+
+    @Test
+    public void testResponsesCountedAcrossThreads() throws Exception
+    {
+        final RGBLampDevice lamp = new RGBLampDevice(7, "Lamp", 5);
+        final int perThread = 20000;
+        Thread[] threads = new Thread[2];
+        for(int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < perThread; i++)
+                        lamp.handleRequest(new RequestObject(5, RGBLampDevice.CMD_LAMP_OFF_RSP, null));
+                }
+            });
+            threads[t].start();
+        }
+        for(int t = 0; t < threads.length; t++)
+            threads[t].join();
+
+        //Every response is counted, so pollers don't wait out a timeout for an answered poll
+        Assert.assertEquals(threads.length * perThread, lamp.getResponseCount());
+    }
+
+    @Test
+    public void testDirectListenerMayKeepList()
+    {
+        RGBLampDevice lamp = new RGBLampDevice(7, "Lamp", 5);
+        final ArrayList<ArrayList<BasicDevice>> lists = new ArrayList<>();
+        lamp.setDeviceChangeListener(new DeviceChangeListener() {
+            @Override
+            public void onDeviceChange(ArrayList<BasicDevice> changedDevices) {
+                lists.add(changedDevices);
+            }
+        });
+
+        lamp.handleRequest(new RequestObject(5, RGBLampDevice.CMD_LAMP_SOLID_RSP, new byte[] { 1, 2, 3 }));
+        lamp.handleRequest(new RequestObject(5, RGBLampDevice.CMD_LAMP_OFF_RSP, null));
+
+        //A list kept from the first change is untouched by the second
+        Assert.assertEquals(2, lists.size());
+        Assert.assertNotSame(lists.get(0), lists.get(1));
+        Assert.assertEquals(1, lists.get(0).size());
+        Assert.assertSame(lamp, lists.get(0).get(0));
+    }
+
+    @Test
+    public void testSubscriptions() throws Exception
+    {
+        DeviceManager dm = new DeviceManager();
+        final ArrayList<RequestObject> sent = new ArrayList<>();
+        dm.setRequestReceiver(new RequestObject.RequestReceiver() {
+            @Override
+            public void handleRequest(RequestObject r) {
+                sent.add(r);
+            }
+        });
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP,
+                buildDeviceList(new int[][] { { 5, DeviceManager.DEVICE_TYPE_RGB_LAMP, 7 } }, new String[] { "Lamp" })));
+
+        dm.subscribe(dm.getDeviceByAddress(5));
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(DeviceManager.DEV_SUBSCRIBE, sent.get(0).getCommand());
+        Assert.assertArrayEquals(new byte[] { 5 }, sent.get(0).getData());
+        Assert.assertFalse(dm.isSubscribed(5));
+
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_SUBSCRIBE_RSP, new byte[] { 5 }));
+        Assert.assertTrue(dm.isSubscribed(5));
+
+        //The server forgets subscriptions when the connection drops, so the lamp is polled again
+        sent.clear();
+        dm.connectionLost();
+        Assert.assertFalse(dm.isSubscribed(5));
+        Assert.assertEquals(0, sent.size());
+
+        //After a reconnect the subscription is sent again and isn't active until confirmed
+        dm.restoreSubscriptions();
+        Assert.assertFalse(dm.isSubscribed(5));
+        Assert.assertEquals(1, sent.size());
+        Assert.assertArrayEquals(new byte[] { 5 }, sent.get(0).getData());
+
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_SUBSCRIBE_RSP, new byte[0]));
+        Assert.assertTrue(dm.isSubscribed(200));
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_UNSUBSCRIBE_RSP, new byte[0]));
+        Assert.assertFalse(dm.isSubscribed(5));
+    }
+
+    @Test
+    public void testBulkStatus() throws Exception
+    {
+        DeviceManager dm = new DeviceManager();
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP, buildDeviceList(
+                new int[][] { { 5, DeviceManager.DEVICE_TYPE_RGB_LAMP, 7 }, { 6, DeviceManager.DEVICE_TYPE_RGB_LAMP, 8 }, { 9, DeviceManager.DEVICE_TYPE_RGB_LAMP, 10 } },
+                new String[] { "Lamp", "Desk", "Hall" })));
+
+        final ArrayList<Integer> batchSizes = new ArrayList<>();
+        DeviceChangeListener counter = new DeviceChangeListener() {
+            @Override
+            public void onDeviceChange(ArrayList<BasicDevice> changedDevices) {
+                batchSizes.add(changedDevices.size());
+            }
+        };
+        dm.registerDeviceChangeListener(counter);
+        dm.setDeviceStateListener(counter);
+
+        byte[] status = {
+                4,
+                5, 0x00, RGBLampDevice.CMD_LAMP_SOLID, 10, 20, 30,
+                6, 0x00, RGBLampDevice.CMD_LAMP_FADE, 0x01, 0x2C, 0,
+                9, 0x00, RGBLampDevice.CMD_LAMP_OFF, 0, 0, 0,
+                42, 0x00, RGBLampDevice.CMD_LAMP_OFF, 0, 0, 0 };
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_STATUS_ALL_RSP, status));
+
+        //Address 42 is unknown, so three lamps changed in one notification
+        Assert.assertEquals(1, batchSizes.size());
+        Assert.assertEquals(3, (int)batchSizes.get(0));
+        Assert.assertEquals(0x0A141E, ((RGBLampDevice)dm.getDeviceByAddress(5)).getColorRGB());
+        Assert.assertEquals(300, ((RGBLampDevice)dm.getDeviceByAddress(6)).getInterval());
+
+        //The same status again changes nothing
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_STATUS_ALL_RSP, status));
+        Assert.assertEquals(1, batchSizes.size());
+    }
+
+    @Test
+    public void testGroupCommand() throws Exception
+    {
+        DeviceManager dm = new DeviceManager();
+        final ArrayList<RequestObject> sent = new ArrayList<>();
+        dm.setRequestReceiver(new RequestObject.RequestReceiver() {
+            @Override
+            public void handleRequest(RequestObject r) {
+                sent.add(r);
+            }
+        });
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP, buildDeviceList(
+                new int[][] { { 5, DeviceManager.DEVICE_TYPE_RGB_LAMP, 7 }, { 6, DeviceManager.DEVICE_TYPE_RGB_LAMP, 8 }, { 9, DeviceManager.DEVICE_TYPE_RGB_LAMP, 10 } },
+                new String[] { "Lamp", "Desk", "Hall" })));
+
+        DeviceGroup group = new DeviceGroup(dm, "Living room");
+        group.add(dm.getDeviceByAddress(9));
+        group.add(dm.getDeviceByAddress(5));
+        group.setLampSolid(10, 20, 30);
+
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(0, sent.get(0).getDeviceAddress());
+        Assert.assertEquals(DeviceManager.DEV_GROUP_CMD, sent.get(0).getCommand());
+        Assert.assertArrayEquals(new byte[] { 0x00, RGBLampDevice.CMD_LAMP_SOLID, 2, 5, 9, 10, 20, 30 }, sent.get(0).getData());
+
+        final ArrayList<Integer> batchSizes = new ArrayList<>();
+        dm.registerDeviceChangeListener(new DeviceChangeListener() {
+            @Override
+            public void onDeviceChange(ArrayList<BasicDevice> changedDevices) {
+                batchSizes.add(changedDevices.size());
+            }
+        });
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GROUP_CMD_RSP, new byte[] { 0x00, RGBLampDevice.CMD_LAMP_SOLID, 2, 5, 9, 10, 20, 30 }));
+        Assert.assertEquals(1, batchSizes.size());
+        Assert.assertEquals(2, (int)batchSizes.get(0));
+        Assert.assertEquals(0x0A141E, ((RGBLampDevice)dm.getDeviceByAddress(9)).getColorRGB());
+        Assert.assertEquals(0, ((RGBLampDevice)dm.getDeviceByAddress(6)).getColorRGB());
+
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GROUP_CMD_RSP, new byte[] { 0x00, RGBLampDevice.CMD_LAMP_FADE, 2, 5, 9, 0x01, 0x2C }));
+        Assert.assertEquals(300, ((RGBLampDevice)dm.getDeviceByAddress(5)).getInterval());
+
+        //An empty group neither sends nor encodes anything
+        DeviceGroup empty = new DeviceGroup(dm, "Empty");
+        empty.setLampSolid(1, 2, 3);
+        Assert.assertEquals(1, sent.size());
+        RequestEncoder out = new RequestEncoder();
+        empty.encodeLampSolid(out, 1, 2, 3);
+        Assert.assertEquals(0, out.size());
+    }
+
+    @Test
+    public void testGroupChangedWhileEncoding() throws Exception
+    {
+        DeviceManager dm = new DeviceManager();
+        final DeviceGroup group = new DeviceGroup(dm, "Stream");
+        group.add(new RGBLampDevice(1, "Fixed", 1));
+        final RGBLampDevice[] lamps = new RGBLampDevice[50];
+        for(int i = 0; i < lamps.length; i++)
+            lamps[i] = new RGBLampDevice(i + 2, "Lamp", i + 2);
+
+        Thread changer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for(int round = 0; round < 1000; round++) {
+                    for(RGBLampDevice lamp : lamps)
+                        group.add(lamp);
+                    for(RGBLampDevice lamp : lamps)
+                        group.remove(lamp);
+                }
+            }
+        });
+        changer.start();
+
+        //Every frame's count byte matches the addresses it carries, however membership changes meanwhile
+        RequestEncoder out = new RequestEncoder();
+        while(changer.isAlive()) {
+            out.clear();
+            group.encodeLampSolid(out, 1, 2, 3);
+            byte[] frame = out.array();
+            int frameLength = (frame[0] & 0xFF) << 8 | (frame[1] & 0xFF);
+            int count = frame[8] & 0xFF;
+            Assert.assertEquals(out.size(), frameLength + 2);
+            Assert.assertEquals(10 + count, frameLength);
+        }
+        changer.join();
+        Assert.assertEquals(1, group.size());
+    }
+
+    @Test
+    public void testLampCommandsUseFrameReceiver() throws Exception
+    {
+        DeviceManager dm = new DeviceManager();
+        final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        final ArrayList<RequestObject> sent = new ArrayList<>();
+        dm.setRequestReceiver(new RequestObject.RequestReceiver() {
+            @Override
+            public void handleRequest(RequestObject r) {
+                sent.add(r);
+            }
+        });
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP,
+                buildDeviceList(new int[][] { { 5, DeviceManager.DEVICE_TYPE_RGB_LAMP, 7 } }, new String[] { "Porch" })));
+        dm.setFrameReceiver(new RequestObject.FrameReceiver() {
+            @Override
+            public void handleFrames(byte[] f, int offset, int length) {
+                frames.write(f, offset, length);
+            }
+        });
+
+        RGBLampDevice lamp = (RGBLampDevice)dm.getDeviceById(7);
+        lamp.setLampSolid(0x10, 0x20, 0x30);
+        lamp.setLampCycle(1000);
+        lamp.turnLampOff();
+        Assert.assertEquals(0, sent.size());
+        Assert.assertArrayEquals(new byte[] {
+                0, 7, 0x02, 5, 0, RGBLampDevice.CMD_LAMP_SOLID, 0x10, 0x20, 0x30,
+                0, 6, 0x02, 5, 0, RGBLampDevice.CMD_LAMP_CYCLE, 0x03, (byte)0xE8,
+                0, 4, 0x02, 5, 0, RGBLampDevice.CMD_LAMP_OFF }, frames.toByteArray());
+
+        //Without a frame receiver commands go back to being requests
+        dm.setFrameReceiver(null);
+        lamp.setLampFade(300);
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(RGBLampDevice.CMD_LAMP_FADE, sent.get(0).getCommand());
+    }
 }
@@ -0,0 +1,67 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests slot allocation and write-through in DeviceStateStore.
+ */
+
+public class DeviceStateStoreTest {
+
+    @Test
+    public void testAllocateGrowAndRelease()
+    {
+        DeviceStateStore store = new DeviceStateStore(16);
+        for(int i = 0; i < 100; i++)
+            Assert.assertEquals(i, store.allocate(DeviceStateStore.slotKey(1, i), i, DeviceManager.DEVICE_TYPE_RGB_LAMP));
+        Assert.assertEquals(100, store.size());
+        Assert.assertEquals(42, store.getSlot(DeviceStateStore.slotKey(1, 42)));
+        Assert.assertEquals(42, store.getAddress(42));
+        Assert.assertEquals(DeviceStateStore.slotKey(1, 99), store.getKey(99));
+
+        //Allocating an existing key returns its slot
+        Assert.assertEquals(7, store.allocate(DeviceStateStore.slotKey(1, 7), 7, DeviceManager.DEVICE_TYPE_RGB_LAMP));
+        Assert.assertEquals(100, store.size());
+
+        store.release(DeviceStateStore.slotKey(1, 7));
+        Assert.assertEquals(DeviceStateStore.NO_SLOT, store.getSlot(DeviceStateStore.slotKey(1, 7)));
+        Assert.assertFalse(store.isUsed(7));
+        Assert.assertEquals(7, store.allocate(DeviceStateStore.slotKey(2, 7), 7, DeviceManager.DEVICE_TYPE_RGB_LAMP));
+    }
+
+    @Test
+    public void testLampsWriteThroughAndScan() throws Exception
+    {
+        DeviceStateStore store = new DeviceStateStore(4);
+        DeviceManager dm = new DeviceManager();
+        dm.setStateStore(store, 3);
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP, DeviceManagerTest.buildDeviceList(
+                new int[][] { { 5, DeviceManager.DEVICE_TYPE_RGB_LAMP, 7 }, { 6, DeviceManager.DEVICE_TYPE_RGB_LAMP, 8 }, { 9, DeviceManager.DEVICE_TYPE_RGB_LAMP, 10 } },
+                new String[] { "Lamp", "Desk", "Hall" })));
+        Assert.assertEquals(3, store.size());
+
+        dm.handleRequest(new RequestObject(5, RGBLampDevice.CMD_LAMP_FADE_RSP, new byte[] { 0x01, 0x2C }));
+        dm.handleRequest(new RequestObject(9, RGBLampDevice.CMD_LAMP_FADE_RSP, new byte[] { 0x00, 0x64 }));
+        dm.handleRequest(new RequestObject(6, RGBLampDevice.CMD_LAMP_SOLID_RSP, new byte[] { 1, 2, 3 }));
+
+        int[] slots = new int[8];
+        Assert.assertEquals(2, store.scanByState(RGBLampDevice.CMD_LAMP_FADE, slots));
+        Assert.assertEquals(5, store.getAddress(slots[0]));
+        Assert.assertEquals(300, store.getInterval(slots[0]));
+        Assert.assertEquals(9, store.getAddress(slots[1]));
+
+        int desk = store.getSlot(DeviceStateStore.slotKey(3, 8));
+        Assert.assertEquals(RGBLampDevice.CMD_LAMP_SOLID, store.getState(desk));
+        Assert.assertEquals(0x010203, store.getColorRGB(desk));
+        Assert.assertTrue(store.getLastUpdated(desk) > 0);
+
+        //Removed devices give up their slots
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP, DeviceManagerTest.buildDeviceList(
+                new int[][] { { 6, DeviceManager.DEVICE_TYPE_RGB_LAMP, 8 } }, new String[] { "Desk" })));
+        Assert.assertEquals(1, store.size());
+        Assert.assertEquals(0, store.scanByState(RGBLampDevice.CMD_LAMP_FADE, slots));
+    }
+}
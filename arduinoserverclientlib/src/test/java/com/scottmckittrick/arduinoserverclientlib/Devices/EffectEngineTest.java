@@ -0,0 +1,131 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+/**
+ * Tests the colors EffectEngine renders and how they are sent.
+ */
+
+public class EffectEngineTest {
+
+    @Test
+    public void testGradient()
+    {
+        EffectEngine e = new EffectEngine(5);
+        e.setGradient(0x000000, 0xFF8000);
+        int[] frame = e.render(0);
+        Assert.assertEquals(0x000000, frame[0]);
+        Assert.assertEquals(0x7F4000, frame[2]);
+        Assert.assertEquals(0xFF8000, frame[4]);
+    }
+
+    @Test
+    public void testChase()
+    {
+        EffectEngine e = new EffectEngine(10);
+        e.setChase(0xFFFFFF, 0x000000, 2, 10);
+        //One second at 10 lamps per second wraps back to the start, plus 300 ms puts the head on lamp 3
+        int[] frame = e.render(1300);
+        for(int i = 0; i < 10; i++)
+            Assert.assertEquals("Lamp " + i, ((i == 3) || (i == 2)) ? 0xFFFFFF : 0, frame[i]);
+    }
+
+    @Test
+    public void testPaletteAndBrightness()
+    {
+        EffectEngine e = new EffectEngine(4);
+        e.setPaletteCycle(new int[] { 0xFF0000, 0x0000FF }, 1000);
+        int[] frame = e.render(0);
+        Assert.assertEquals(0xFF0000, frame[0]);
+
+        e.setSolid(0xFF8040);
+        e.setBrightness(127);
+        frame = e.render(0);
+        Assert.assertEquals(0x7F4020, frame[1]);
+    }
+
+    @Test
+    public void testSendLampColors() throws Exception
+    {
+        DeviceManager dm = new DeviceManager();
+        final ArrayList<RequestObject> sent = new ArrayList<>();
+        dm.setRequestReceiver(new RequestObject.RequestReceiver() {
+            @Override
+            public void handleRequest(RequestObject r) {
+                sent.add(r);
+            }
+        });
+
+        int[] addresses = new int[300];
+        for(int i = 0; i < addresses.length; i++)
+            addresses[i] = (i % 250) + 1;
+        EffectEngine e = new EffectEngine(300);
+        e.setSolid(0x102030);
+        dm.sendLampColors(addresses, e.render(0), 0, 300);
+
+        //300 lamps go out as two requests, not 300
+        Assert.assertEquals(2, sent.size());
+        byte[] first = sent.get(0).getData();
+        Assert.assertEquals(DeviceManager.DEV_MULTI_SOLID, sent.get(0).getCommand());
+        Assert.assertEquals(255, first[0] & 0xFF);
+        Assert.assertEquals(1 + 255 * 4, first.length);
+        Assert.assertArrayEquals(new byte[] { 1, 0x10, 0x20, 0x30 }, new byte[] { first[1], first[2], first[3], first[4] });
+        Assert.assertEquals(45, sent.get(1).getData()[0]);
+    }
+
+    @Test
+    public void testSendLampColorsEncoded() throws Exception
+    {
+        DeviceManager dm = new DeviceManager();
+        final ArrayList<RequestObject> requests = new ArrayList<>();
+        dm.setRequestReceiver(new RequestObject.RequestReceiver() {
+            @Override
+            public void handleRequest(RequestObject r) {
+                requests.add(r);
+            }
+        });
+        final ArrayList<byte[]> writes = new ArrayList<>();
+        dm.setFrameReceiver(new RequestObject.FrameReceiver() {
+            @Override
+            public void handleFrames(byte[] frames, int offset, int length) {
+                byte[] copy = new byte[length];
+                System.arraycopy(frames, offset, copy, 0, length);
+                writes.add(copy);
+            }
+        });
+
+        int[] addresses = new int[300];
+        for(int i = 0; i < addresses.length; i++)
+            addresses[i] = (i % 250) + 1;
+        EffectEngine e = new EffectEngine(300);
+        e.setSolid(0x102030);
+        dm.sendLampColors(addresses, e.render(0), 0, 300);
+
+        //Both frames are handed over together and no requests are built
+        Assert.assertEquals(0, requests.size());
+        Assert.assertEquals(1, writes.size());
+        byte[] frames = writes.get(0);
+        int firstLength = ((frames[0] & 0xFF) << 8) | (frames[1] & 0xFF);
+        Assert.assertEquals(1 + RequestObject.HEADER_SIZE + 1 + 255 * 4, firstLength);
+        RequestObject first = RequestObject.wrapSerialized(frames, 3, firstLength - 1);
+        Assert.assertEquals(0, first.getDeviceAddress());
+        Assert.assertEquals(DeviceManager.DEV_MULTI_SOLID, first.getCommand());
+        Assert.assertEquals(255, first.getUnsignedByte(0));
+        Assert.assertEquals(1, first.getUnsignedByte(1));
+        Assert.assertEquals(0x10, first.getUnsignedByte(2));
+        Assert.assertEquals(0x20, first.getUnsignedByte(3));
+        Assert.assertEquals(0x30, first.getUnsignedByte(4));
+
+        int second = 2 + firstLength;
+        int secondLength = ((frames[second] & 0xFF) << 8) | (frames[second + 1] & 0xFF);
+        Assert.assertEquals(frames.length, second + 2 + secondLength);
+        RequestObject last = RequestObject.wrapSerialized(frames, second + 3, secondLength - 1);
+        Assert.assertEquals(45, last.getUnsignedByte(0));
+        Assert.assertEquals(50, last.getUnsignedByte(1 + 44 * 4));
+    }
+}
@@ -0,0 +1,40 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for IntObjectMap.
+ */
+
+public class IntObjectMapTest {
+    @Test
+    public void testPutGetRemove()
+    {
+        IntObjectMap<String> map = new IntObjectMap<>(2);
+        for(int i = 0; i < 1000; i++)
+            map.put(i * 31, "v" + i);
+        Assert.assertEquals(1000, map.size());
+
+        for(int i = 0; i < 1000; i += 2)
+            Assert.assertEquals("v" + i, map.remove(i * 31));
+        Assert.assertEquals(500, map.size());
+
+        for(int i = 0; i < 1000; i++) {
+            if(i % 2 == 0)
+                Assert.assertNull(map.get(i * 31));
+            else
+                Assert.assertEquals("v" + i, map.get(i * 31));
+        }
+    }
+
+    @Test
+    public void testReplace()
+    {
+        IntObjectMap<String> map = new IntObjectMap<>();
+        Assert.assertNull(map.put(-5, "a"));
+        Assert.assertEquals("a", map.put(-5, "b"));
+        Assert.assertEquals("b", map.get(-5));
+        Assert.assertEquals(1, map.size());
+    }
+}
@@ -0,0 +1,126 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+/**
+ * Tests scene compilation, replay and eviction in SceneCache.
+ */
+
+public class SceneCacheTest {
+
+    /**
+     * Records the frame buffers handed to it.
+     */
+    private static class FrameRecorder implements RequestObject.FrameReceiver {
+        ArrayList<byte[]> writes = new ArrayList<>();
+
+        @Override
+        public void handleFrames(byte[] frames, int offset, int length) {
+            byte[] copy = new byte[length];
+            System.arraycopy(frames, offset, copy, 0, length);
+            writes.add(copy);
+        }
+    }
+
+    private static DeviceManager createManager() throws Exception
+    {
+        DeviceManager dm = new DeviceManager();
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP, DeviceManagerTest.buildDeviceList(
+                new int[][] { { 5, DeviceManager.DEVICE_TYPE_RGB_LAMP, 7 }, { 6, DeviceManager.DEVICE_TYPE_RGB_LAMP, 8 } },
+                new String[] { "Porch", "Hall" })));
+        return dm;
+    }
+
+    @Test
+    public void testApplyWritesFramesOnce() throws Exception
+    {
+        DeviceManager dm = createManager();
+        FrameRecorder recorder = new FrameRecorder();
+        dm.setFrameReceiver(recorder);
+
+        //Lamp 9 doesn't exist and is skipped
+        Scene scene = new Scene("Evening").addSolid(7, 255, 128, 0).addOff(8).addOff(9);
+        SceneCache cache = new SceneCache(dm);
+        cache.apply(scene);
+        cache.apply(scene);
+
+        Assert.assertEquals(2, recorder.writes.size());
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(1, cache.getHitCount());
+        byte[] expected = new byte[] {
+                0, 7, 0x02, 5, 0, RGBLampDevice.CMD_LAMP_SOLID, (byte)255, (byte)128, 0,
+                0, 4, 0x02, 6, 0, RGBLampDevice.CMD_LAMP_OFF };
+        Assert.assertArrayEquals(expected, recorder.writes.get(0));
+        Assert.assertArrayEquals(expected, recorder.writes.get(1));
+    }
+
+    @Test
+    public void testInvalidation() throws Exception
+    {
+        DeviceManager dm = createManager();
+        FrameRecorder recorder = new FrameRecorder();
+        dm.setFrameReceiver(recorder);
+        Scene scene = new Scene("Off").addOff(7);
+        SceneCache cache = new SceneCache(dm);
+        cache.apply(scene);
+
+        //Changing the scene recompiles it
+        scene.addOff(8);
+        cache.apply(scene);
+        Assert.assertEquals(2, cache.getMissCount());
+        Assert.assertEquals(12, recorder.writes.get(1).length);
+
+        //Lamp 7 moving address clears the cache
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP, DeviceManagerTest.buildDeviceList(
+                new int[][] { { 20, DeviceManager.DEVICE_TYPE_RGB_LAMP, 7 }, { 6, DeviceManager.DEVICE_TYPE_RGB_LAMP, 8 } },
+                new String[] { "Porch", "Hall" })));
+        cache.apply(scene);
+        Assert.assertEquals(3, cache.getMissCount());
+        Assert.assertEquals(20, recorder.writes.get(2)[3]);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws Exception
+    {
+        DeviceManager dm = createManager();
+        dm.setFrameReceiver(new FrameRecorder());
+        SceneCache cache = new SceneCache(dm, 2);
+        Scene a = new Scene("A").addOff(7);
+        Scene b = new Scene("B").addOff(8);
+        Scene c = new Scene("C").addSolid(7, 1, 2, 3);
+        cache.apply(a);
+        cache.apply(b);
+        cache.apply(a);
+        cache.apply(c);
+        Assert.assertEquals(2, cache.size());
+
+        //B was the least recently used so it is the one compiled again
+        cache.apply(a);
+        Assert.assertEquals(2, cache.getHitCount());
+        cache.apply(b);
+        Assert.assertEquals(4, cache.getMissCount());
+    }
+
+    @Test
+    public void testFallbackToRequests() throws Exception
+    {
+        DeviceManager dm = createManager();
+        final ArrayList<RequestObject> sent = new ArrayList<>();
+        dm.setRequestReceiver(new RequestObject.RequestReceiver() {
+            @Override
+            public void handleRequest(RequestObject r) {
+                sent.add(r);
+            }
+        });
+        new SceneCache(dm).apply(new Scene("Warm").addFade(7, 500).addCycle(8, 1000));
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals(5, sent.get(0).getDeviceAddress());
+        Assert.assertEquals(RGBLampDevice.CMD_LAMP_CYCLE, sent.get(1).getCommand());
+        Assert.assertArrayEquals(new byte[] { 0x03, (byte)0xE8 }, sent.get(1).getData());
+    }
+}
@@ -0,0 +1,177 @@
+package com.scottmckittrick.arduinoserverclientlib.Devices;
+
+import com.scottmckittrick.arduinoserverclientlib.Platform.Scheduler;
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+/**
+ * Tests poll timing and backoff in StatusPollScheduler.
+ */
+
+public class StatusPollSchedulerTest {
+
+    /**
+     * Scheduler with a simulated clock. Tasks run when the clock passes their time.
+     */
+    private static class ClockScheduler implements Scheduler {
+        long time = 1000000;
+        ArrayList<Runnable> tasks = new ArrayList<>();
+        ArrayList<Long> due = new ArrayList<>();
+
+        @Override
+        public void post(Runnable r) { postDelayed(r, 0); }
+
+        @Override
+        public void postDelayed(Runnable r, long delayMs) { tasks.add(r); due.add(time + delayMs); }
+
+        @Override
+        public void removeCallbacks(Runnable r)
+        {
+            for(int i = tasks.size() - 1; i >= 0; i--) {
+                if(tasks.get(i) == r) {
+                    tasks.remove(i);
+                    due.remove(i);
+                }
+            }
+        }
+
+        void advanceTo(long end)
+        {
+            while(true) {
+                int next = -1;
+                for(int i = 0; i < tasks.size(); i++) {
+                    if((due.get(i) <= end) && ((next < 0) || (due.get(i) < due.get(next))))
+                        next = i;
+                }
+                if(next < 0)
+                    break;
+                time = Math.max(time, due.remove(next));
+                tasks.remove(next).run();
+            }
+            time = end;
+        }
+    }
+
+    /**
+     * Records the status requests sent to the server.
+     */
+    private static class Recorder implements RequestObject.RequestReceiver {
+        ArrayList<RequestObject> sent = new ArrayList<>();
+
+        @Override
+        public void handleRequest(RequestObject r) { sent.add(r); }
+    }
+
+    private StatusPollScheduler createPoller(DeviceManager dm, final ClockScheduler s)
+    {
+        StatusPollScheduler p = new StatusPollScheduler(dm, s) {
+            @Override
+            long now() { return s.time; }
+        };
+        p.setIntervals(1000, 16000, 4000);
+        return p;
+    }
+
+    private DeviceManager createManager(Recorder r) throws Exception
+    {
+        DeviceManager dm = new DeviceManager();
+        dm.setRequestReceiver(r);
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP, DeviceManagerTest.buildDeviceList(
+                new int[][] { { 5, DeviceManager.DEVICE_TYPE_RGB_LAMP, 7 } }, new String[] { "Lamp" })));
+        r.sent.clear();
+        return dm;
+    }
+
+    @Test
+    public void testIdleLampBacksOff() throws Exception
+    {
+        Recorder r = new Recorder();
+        DeviceManager dm = createManager(r);
+        ClockScheduler s = new ClockScheduler();
+        StatusPollScheduler p = createPoller(dm, s);
+        p.start();
+
+        //Answer every poll with the same solid status
+        byte[] status = { 0x00, RGBLampDevice.CMD_LAMP_SOLID, 1, 2, 3 };
+        long start = s.time;
+        for(long t = start; t < start + 120000; t += 100) {
+            s.advanceTo(t);
+            while(r.sent.size() > 0) {
+                r.sent.remove(0);
+                dm.handleRequest(new RequestObject(5, RGBLampDevice.CMD_LAMP_GET_STATUS_RSP, status));
+            }
+        }
+
+        //A fixed one second timer would have sent 120 polls
+        Assert.assertTrue("Polls: " + p.getPollCount(), p.getPollCount() < 20);
+        p.stop();
+    }
+
+    @Test
+    public void testNoPollWhileUnanswered() throws Exception
+    {
+        Recorder r = new Recorder();
+        DeviceManager dm = createManager(r);
+        ClockScheduler s = new ClockScheduler();
+        StatusPollScheduler p = createPoller(dm, s);
+        p.start();
+
+        s.advanceTo(s.time + 1000);
+        Assert.assertEquals(1, r.sent.size());
+        Assert.assertEquals(RGBLampDevice.CMD_LAMP_GET_STATUS, r.sent.get(0).getCommand());
+
+        //Nothing more until the poll times out
+        s.advanceTo(s.time + StatusPollScheduler.RESPONSE_TIMEOUT - 1000);
+        Assert.assertEquals(1, r.sent.size());
+        s.advanceTo(s.time + 1000);
+        Assert.assertEquals(2, r.sent.size());
+        p.stop();
+    }
+
+    @Test
+    public void testLampsAddedAndRemoved() throws Exception
+    {
+        Recorder r = new Recorder();
+        DeviceManager dm = new DeviceManager();
+        dm.setRequestReceiver(r);
+        int[][] entries = new int[200][];
+        String[] names = new String[entries.length];
+        for(int i = 0; i < entries.length; i++) {
+            entries[i] = new int[] { i, DeviceManager.DEVICE_TYPE_RGB_LAMP, i };
+            names[i] = "Lamp" + i;
+        }
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP, DeviceManagerTest.buildDeviceList(entries, names)));
+        ClockScheduler s = new ClockScheduler();
+        StatusPollScheduler p = createPoller(dm, s);
+        p.start();
+
+        //Every lamp is polled once within the first interval, each at its own phase
+        s.advanceTo(s.time + 999);
+        Assert.assertEquals(entries.length, r.sent.size());
+        boolean[] polled = new boolean[entries.length];
+        for(int i = 0; i < r.sent.size(); i++) {
+            Assert.assertFalse(polled[r.sent.get(i).getDeviceAddress()]);
+            polled[r.sent.get(i).getDeviceAddress()] = true;
+        }
+
+        //Only lamp 3 and a new lamp 250 are left
+        r.sent.clear();
+        dm.handleRequest(new RequestObject(0, DeviceManager.DEV_GET_INFO_RSP, DeviceManagerTest.buildDeviceList(
+                new int[][] { { 3, DeviceManager.DEVICE_TYPE_RGB_LAMP, 3 }, { 250, DeviceManager.DEVICE_TYPE_RGB_LAMP, 250 } },
+                new String[] { "Lamp3", "New" })));
+        s.advanceTo(s.time + StatusPollScheduler.RESPONSE_TIMEOUT + 1000);
+        Assert.assertTrue(r.sent.size() > 0);
+        boolean sawNew = false;
+        for(int i = 0; i < r.sent.size(); i++) {
+            int addr = r.sent.get(i).getDeviceAddress();
+            Assert.assertTrue("Polled removed lamp " + addr, (addr == 3) || (addr == 250));
+            sawNew |= (addr == 250);
+        }
+        Assert.assertTrue(sawNew);
+        p.stop();
+    }
+}
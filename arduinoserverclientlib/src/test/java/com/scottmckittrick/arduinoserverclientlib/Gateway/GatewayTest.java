@@ -0,0 +1,202 @@
+package com.scottmckittrick.arduinoserverclientlib.Gateway;
+
+import com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme.BasicSharedSecretScheme;
+import com.scottmckittrick.arduinoserverclientlib.Devices.DeviceManager;
+import com.scottmckittrick.arduinoserverclientlib.Platform.ExecutorScheduler;
+import com.scottmckittrick.arduinoserverclientlib.Platform.Log;
+import com.scottmckittrick.arduinoserverclientlib.Platform.Scheduler;
+import com.scottmckittrick.arduinoserverclientlib.Platform.StreamLogger;
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+import com.scottmckittrick.arduinoserverclientlib.TCPService.FakeServer;
+import com.scottmckittrick.arduinoserverclientlib.TCPService.ServerEngine;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the gateway against fake servers on the loopback address.
+ */
+
+public class GatewayTest {
+    /**
+     * Runs tasks on an ExecutorScheduler, recording each delay asked for and running delayed tasks
+     * a thousand times sooner, so a backoff of minutes runs in milliseconds.
+     */
+    private static class FastScheduler implements Scheduler {
+        final ExecutorScheduler executor = new ExecutorScheduler("GatewayTest");
+        final LinkedBlockingQueue<Long> delays = new LinkedBlockingQueue<>();
+
+        @Override
+        public void post(Runnable r) { executor.post(r); }
+
+        @Override
+        public void postDelayed(Runnable r, long delayMs)
+        {
+            delays.add(delayMs);
+            executor.postDelayed(r, delayMs / 1000);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable r) { executor.removeCallbacks(r); }
+
+        /**
+         * Wait for everything posted so far to run.
+         */
+        void sync() throws InterruptedException
+        {
+            final CountDownLatch done = new CountDownLatch(1);
+            executor.post(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+            Assert.assertTrue(done.await(FakeServer.TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private FastScheduler scheduler;
+    private Gateway gateway;
+    /** Log written by the gateway */
+    private ByteArrayOutputStream log;
+    /** Events reported by the gateway */
+    private LinkedBlockingQueue<ServerEngine.ServerEvent> events;
+
+    @Before
+    public void setUp()
+    {
+        log = new ByteArrayOutputStream();
+        Log.setLogger(new StreamLogger(new PrintStream(log, true), Log.INFO));
+        scheduler = new FastScheduler();
+        gateway = new Gateway(scheduler);
+        events = new LinkedBlockingQueue<>();
+        gateway.setEventListener(new ServerEngine.EngineListener() {
+            @Override
+            public void onServerEvent(int serverId, ServerEngine.ServerEvent event, String message) {
+                events.add(event);
+            }
+
+            @Override
+            public void onRequestReceived(int serverId, RequestObject r) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws InterruptedException
+    {
+        gateway.shutdown();
+        scheduler.sync();
+        scheduler.executor.shutdown();
+        Log.setLogger(null);
+    }
+
+    private long nextDelay() throws InterruptedException
+    {
+        Long delay = scheduler.delays.poll(FakeServer.TIMEOUT, TimeUnit.MILLISECONDS);
+        Assert.assertNotNull(delay);
+        return delay;
+    }
+
+    private void expectEvent(ServerEngine.ServerEvent expected) throws InterruptedException
+    {
+        while(true) {
+            ServerEngine.ServerEvent e = events.poll(FakeServer.TIMEOUT, TimeUnit.MILLISECONDS);
+            Assert.assertNotNull("No " + expected, e);
+            if(e == expected)
+                return;
+        }
+    }
+
+    @Test
+    public void testConnectAndRefresh() throws Exception
+    {
+        FakeServer server = new FakeServer();
+        try {
+            DeviceManager dm = gateway.addServer(1, "127.0.0.1", server.getPort(), new BasicSharedSecretScheme("secret", 1));
+            Assert.assertSame(dm, gateway.getDeviceManager(1));
+            Assert.assertNotNull(gateway.getFrameReceiver(1));
+
+            FakeServer.Client c = server.accept();
+            c.authenticate();
+            expectEvent(ServerEngine.ServerEvent.AUTHENTICATED);
+
+            //Once ready the device list is fetched
+            RequestObject r = c.readRequest();
+            Assert.assertEquals(0, r.getDeviceAddress());
+            Assert.assertEquals(DeviceManager.DEV_GET_INFO, r.getCommand());
+
+            //Adding the same server twice is refused
+            try {
+                gateway.addServer(1, "127.0.0.1", server.getPort(), new BasicSharedSecretScheme("secret", 1));
+                Assert.fail("Duplicate server added");
+            } catch(IllegalArgumentException e) {
+                //Expected
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testReconnectBackoff() throws Exception
+    {
+        int port = FakeServer.findFreePort();
+        gateway.addServer(1, "127.0.0.1", port, new BasicSharedSecretScheme("secret", 1));
+
+        //Each failed connect doubles the delay up to the limit
+        long expected = Gateway.RECONNECT_MIN_DELAY;
+        for(int i = 0; i < 9; i++) {
+            Assert.assertEquals(expected, nextDelay());
+            expected = Math.min(expected * 2, Gateway.RECONNECT_MAX_DELAY);
+        }
+        Assert.assertEquals(Gateway.RECONNECT_MAX_DELAY, expected);
+        Assert.assertTrue(log.toString("US-ASCII").contains("Reconnecting to server 1 in " + Gateway.RECONNECT_MIN_DELAY + "ms"));
+
+        //Once the server is up, a retry gets in and authenticating resets the backoff
+        FakeServer server = new FakeServer(port);
+        try {
+            FakeServer.Client c = server.accept();
+            c.authenticate();
+            expectEvent(ServerEngine.ServerEvent.AUTHENTICATED);
+            scheduler.sync();
+            scheduler.delays.clear();
+
+            //A lost connection is retried once, after the shortest delay
+            c.close();
+            Assert.assertEquals(Gateway.RECONNECT_MIN_DELAY, nextDelay());
+            c = server.accept();
+            c.authenticate();
+            expectEvent(ServerEngine.ServerEvent.AUTHENTICATED);
+            scheduler.sync();
+            Assert.assertNull(scheduler.delays.poll());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testRemoveServerStopsReconnects() throws Exception
+    {
+        gateway.addServer(1, "127.0.0.1", FakeServer.findFreePort(), new BasicSharedSecretScheme("secret", 1));
+        nextDelay();
+        gateway.removeServer(1);
+        Assert.assertNull(gateway.getDeviceManager(1));
+
+        //A connect already in flight may still fail, but nothing is retried
+        scheduler.sync();
+        Thread.sleep(200);
+        scheduler.sync();
+        scheduler.delays.clear();
+        Thread.sleep(200);
+        Assert.assertNull(scheduler.delays.poll());
+    }
+}
@@ -3,6 +3,8 @@ package com.scottmckittrick.arduinoserverclientlib;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by Scott on 5/2/2017.
  */
@@ -63,4 +65,42 @@ public class RequestObjectTest {
         Assert.assertNotEquals(req1, req3);
     }
 
+    @Test
+    public void testWrapSerializedView() throws InvalidRequestDataException
+    {
+        //A frame buffer with a length prefix and type byte in front of the request
+        byte[] frame = { 0x00, 0x07, 0x02, 0x05, 0x15, 0x00, 0x00, 0x13, (byte)0x81, (byte)0xF4 };
+        RequestObject r = RequestObject.wrapSerialized(frame, 3, 7);
+
+        Assert.assertEquals(5, r.getDeviceAddress());
+        Assert.assertEquals((short)0x1500, r.getCommand());
+        Assert.assertEquals(4, r.getDataLength());
+        Assert.assertEquals(0x13, r.getShort(0));
+        Assert.assertEquals(0x81, r.getUnsignedByte(2));
+        Assert.assertEquals((short)0x81F4, r.getShort(2));
+        Assert.assertEquals(0x81F4, r.getUnsignedShort(2));
+        Assert.assertEquals(new RequestObject(5, (short)0x1500, new byte[] { 0x00, 0x13, (byte)0x81, (byte)0xF4 }), r);
+        Assert.assertArrayEquals(new byte[] { 0x00, 0x13, (byte)0x81, (byte)0xF4 }, r.getData());
+
+        ByteBuffer buf = r.asReadOnlyBuffer();
+        Assert.assertTrue(buf.isReadOnly());
+        Assert.assertEquals(4, buf.remaining());
+        Assert.assertEquals((byte)0xF4, buf.get(3));
+    }
+
+    @Test(expected=IndexOutOfBoundsException.class)
+    public void testViewBounds() throws InvalidRequestDataException
+    {
+        byte[] buf = { 0x01, 0x02, 0x03, 0x04 };
+        RequestObject r = RequestObject.wrap(1, (short)2, buf, 1, 2);
+        Assert.assertEquals(0x0203, r.getShort(0));
+        //The byte after the slice is not part of the data
+        r.getUnsignedByte(2);
+    }
+
+    @Test(expected=InvalidRequestDataException.class)
+    public void testWrapInvalidSlice() throws InvalidRequestDataException
+    {
+        RequestObject.wrap(1, (short)2, new byte[3], 2, 2);
+    }
 }
@@ -0,0 +1,161 @@
+package com.scottmckittrick.arduinoserverclientlib.TCPService;
+
+import com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme.Authenticator;
+import com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme.AuthenticatorTest;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Tests option encoding and negotiation in Capabilities.
+ */
+
+public class CapabilitiesTest {
+
+    /**
+     * Run a client hello through an authenticator and answer it with a server hello holding options.
+     * @param offered The capabilities the client offers.
+     * @param options The server's options, as { type, length, value }.
+     * @return The authenticator after the server hello.
+     */
+    private static Authenticator exchangeHellos(Capabilities offered, byte[] options) throws Exception
+    {
+        Authenticator a = new Authenticator(new AuthenticatorTest.FakeAuthScheme());
+        offered.offer(a);
+        a.handleAuthPacket(null);
+
+        ByteArrayOutputStream hello = new ByteArrayOutputStream();
+        hello.write(Authenticator.AUTHTYPE_SERVER_HELLO);
+        byte[] name = AuthenticatorTest.schemeName.getBytes("US-ASCII");
+        hello.write(name, 0, name.length);
+        if(options != null) {
+            hello.write(Authenticator.HELLO_OPTIONS_SEPARATOR);
+            hello.write(options, 0, options.length);
+        }
+        a.handleAuthPacket(hello.toByteArray());
+        return a;
+    }
+
+    @Test
+    public void testNegotiate() throws Exception
+    {
+        Capabilities offered = new Capabilities(1 << 20, 0, Capabilities.CLIENT_FRAME_TYPES, 0, true);
+        Capabilities agreed = Capabilities.negotiate(offered, exchangeHellos(offered, new byte[] {
+                Authenticator.OPTION_CAPABILITIES, 2, Capabilities.ROLE_SERVER, Capabilities.VERSION,
+                Authenticator.OPTION_MAX_FRAME_SIZE, 4, 0, 0x01, 0x00, 0x00,
+                Authenticator.OPTION_MAX_BATCH, 2, 0, 64,
+                Authenticator.OPTION_FRAME_TYPES, 3, 0x01, 0x02, 0x03,
+                Authenticator.OPTION_HEARTBEAT, 2, 0, 5 }));
+
+        Assert.assertTrue(agreed.isNegotiated());
+        Assert.assertEquals(0x10000, agreed.getMaxFrameSize());
+        Assert.assertTrue(agreed.usesExtendedFraming());
+        Assert.assertEquals(64, agreed.getMaxBatchCount());
+        Assert.assertTrue(agreed.supportsFrameType(PacketConstants.PACKET_TYPE_BATCH));
+        Assert.assertEquals(5, agreed.getHeartbeatInterval());
+        //The server didn't accept compression
+        Assert.assertFalse(agreed.hasCompression());
+    }
+
+    @Test
+    public void testOlderServerKeepsDefaults() throws Exception
+    {
+        Capabilities offered = new Capabilities(1 << 20, 0, Capabilities.CLIENT_FRAME_TYPES, 0, false);
+        Capabilities agreed = Capabilities.negotiate(offered, exchangeHellos(offered, null));
+        Assert.assertEquals(Capabilities.DEFAULT, agreed);
+        Assert.assertFalse(agreed.isNegotiated());
+        Assert.assertFalse(agreed.supportsFrameType(PacketConstants.PACKET_TYPE_BATCH));
+    }
+
+    @Test
+    public void testCompressionOnly() throws Exception
+    {
+        Capabilities offered = new Capabilities(1 << 20, 0, Capabilities.CLIENT_FRAME_TYPES, 0, true);
+        Capabilities agreed = Capabilities.negotiate(offered, exchangeHellos(offered, new byte[] {
+                Authenticator.OPTION_COMPRESSION, 1, FrameCompressor.CODEC_DEFLATE }));
+        Assert.assertFalse(agreed.isNegotiated());
+        Assert.assertTrue(agreed.hasCompression());
+        Assert.assertEquals(Capabilities.DEFAULT.getMaxFrameSize(), agreed.getMaxFrameSize());
+    }
+
+    @Test
+    public void testMalformedOptionsIgnored() throws Exception
+    {
+        Capabilities offered = new Capabilities(4096, 8, Capabilities.CLIENT_FRAME_TYPES, 0, false);
+        Capabilities agreed = Capabilities.negotiate(offered, exchangeHellos(offered, new byte[] {
+                Authenticator.OPTION_CAPABILITIES, 2, Capabilities.ROLE_SERVER, Capabilities.VERSION,
+                Authenticator.OPTION_MAX_FRAME_SIZE, 2, 0x7F, 0x7F,
+                Authenticator.OPTION_MAX_BATCH, 1, 0x01 }));
+        Assert.assertTrue(agreed.isNegotiated());
+        Assert.assertEquals(4096, agreed.getMaxFrameSize());
+        Assert.assertFalse(agreed.usesExtendedFraming());
+        Assert.assertEquals(8, agreed.getMaxBatchCount());
+    }
+
+    @Test
+    public void testBatchLimit() throws Exception
+    {
+        //A server that doesn't limit batches leaves them limited by the frame size alone
+        Capabilities offered = new Capabilities(4096, 0, Capabilities.CLIENT_FRAME_TYPES, 0, false);
+        Capabilities agreed = Capabilities.negotiate(offered, exchangeHellos(offered, new byte[] {
+                Authenticator.OPTION_CAPABILITIES, 2, Capabilities.ROLE_SERVER, Capabilities.VERSION,
+                Authenticator.OPTION_MAX_FRAME_SIZE, 4, 0, 0, 0x10, 0x00 }));
+        Assert.assertEquals(0, agreed.getMaxBatchCount());
+
+        //The smaller batch limit of the two sides wins
+        offered = new Capabilities(4096, 32, Capabilities.CLIENT_FRAME_TYPES, 0, false);
+        agreed = Capabilities.negotiate(offered, exchangeHellos(offered, new byte[] {
+                Authenticator.OPTION_CAPABILITIES, 2, Capabilities.ROLE_SERVER, Capabilities.VERSION,
+                Authenticator.OPTION_MAX_BATCH, 2, 0, 100 }));
+        Assert.assertTrue(agreed.isNegotiated());
+        Assert.assertEquals(32, agreed.getMaxBatchCount());
+    }
+
+    @Test
+    public void testMaxInFlightNotOffered() throws Exception
+    {
+        Authenticator a = new Authenticator(new AuthenticatorTest.FakeAuthScheme());
+        new Capabilities(4096, 0, Capabilities.CLIENT_FRAME_TYPES, 0, false).offer(a);
+        byte[] hello = a.handleAuthPacket(null);
+        int nameEnd = 1 + AuthenticatorTest.schemeName.length();
+        for(int pos = nameEnd + 1; pos < hello.length; pos += 2 + hello[pos + 1])
+            Assert.assertNotEquals(Authenticator.OPTION_MAX_IN_FLIGHT, hello[pos]);
+    }
+
+    @Test
+    public void testEchoedHelloKeepsDefaults() throws Exception
+    {
+        //A server that copies the client hello back returns every option, including the client's own marker
+        Capabilities offered = new Capabilities(1 << 20, 0, Capabilities.CLIENT_FRAME_TYPES, 0, false);
+        Authenticator a = new Authenticator(new AuthenticatorTest.FakeAuthScheme());
+        offered.offer(a);
+        byte[] hello = a.handleAuthPacket(null);
+        hello[0] = Authenticator.AUTHTYPE_SERVER_HELLO;
+        a.handleAuthPacket(hello);
+
+        Capabilities agreed = Capabilities.negotiate(offered, a);
+        Assert.assertEquals(Capabilities.DEFAULT, agreed);
+        Assert.assertFalse(agreed.supportsFrameType(PacketConstants.PACKET_TYPE_CREDIT));
+    }
+
+    @Test
+    public void testOfferCompressionOnly() throws Exception
+    {
+        //Withdrawing capabilities leaves a hello with only the compression option
+        Authenticator a = new Authenticator(new AuthenticatorTest.FakeAuthScheme());
+        new Capabilities(4096, 0, Capabilities.CLIENT_FRAME_TYPES, 0, true).offer(a);
+        Capabilities offered = Capabilities.offerCompressionOnly(a, true);
+        Assert.assertTrue(offered.hasCompression());
+        byte[] hello = a.handleAuthPacket(null);
+        int nameEnd = 1 + AuthenticatorTest.schemeName.length();
+        Assert.assertEquals(nameEnd + 4, hello.length);
+        Assert.assertEquals(Authenticator.OPTION_COMPRESSION, hello[nameEnd + 1]);
+
+        //With compression off too, the hello is only the scheme name
+        a = new Authenticator(new AuthenticatorTest.FakeAuthScheme());
+        Assert.assertEquals(Capabilities.DEFAULT, Capabilities.offerCompressionOnly(a, false));
+        Assert.assertEquals(nameEnd, a.handleAuthPacket(null).length);
+    }
+}
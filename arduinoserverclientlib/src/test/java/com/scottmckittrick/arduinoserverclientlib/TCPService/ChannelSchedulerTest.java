@@ -0,0 +1,151 @@
+package com.scottmckittrick.arduinoserverclientlib.TCPService;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Tests weighted round robin between channels in ChannelScheduler.
+ */
+
+public class ChannelSchedulerTest {
+
+    @Test
+    public void testControlGoesFirst()
+    {
+        ChannelScheduler channels = new ChannelScheduler(new int[] { 4, 1 });
+        channels.getQueue(1).encode(9, (short)0x0007, new byte[100], 0, 100);
+        channels.getQueue(0).encode(5, (short)0x0010, null, 0, 0);
+
+        RequestEncoder round = new RequestEncoder();
+        channels.nextRound(round, false);
+        Assert.assertFalse(channels.hasPending());
+        Assert.assertEquals(6 + 106, round.size());
+        //The control frame leads even though it was queued last
+        Assert.assertEquals(5, round.array()[3]);
+    }
+
+    @Test
+    public void testLargeFrameFragmented() throws IOException
+    {
+        ChannelScheduler channels = new ChannelScheduler(new int[] { 4, 1 });
+        channels.setFragmentSize(100);
+        byte[] bulk = new byte[250];
+        for(int i = 0; i < bulk.length; i++)
+            bulk[i] = (byte)i;
+        channels.getQueue(1).encode(9, (short)0x0100, bulk, 0, bulk.length);
+
+        //The first round only carries the first fragment
+        RequestEncoder round = new RequestEncoder();
+        channels.nextRound(round, true);
+        Assert.assertEquals(5 + 100, round.size());
+        Assert.assertEquals(PacketConstants.PACKET_TYPE_FRAGMENT, round.array()[2]);
+        Assert.assertEquals(1, round.array()[3]);
+        Assert.assertEquals(ChannelScheduler.FRAGMENT_FIRST, round.array()[4]);
+
+        //A control frame queued now goes out ahead of the rest of the bulk frame
+        channels.getQueue(0).encode(5, (short)0x0010, null, 0, 0);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(round.array(), 0, round.size());
+        while(channels.hasPending()) {
+            round.clear();
+            channels.nextRound(round, true);
+            stream.write(round.array(), 0, round.size());
+        }
+        byte[] frames = stream.toByteArray();
+        Assert.assertEquals(5, frames[105 + 3]);
+
+        PacketReader reader = new PacketReader(new ByteArrayInputStream(frames));
+        PacketConstants.Packet p = reader.read();
+        Assert.assertTrue(Arrays.equals(new byte[] { 5, 0x00, 0x10 }, p.getData()));
+        p = reader.read();
+        Assert.assertEquals(PacketConstants.PACKET_TYPE_DATA, p.getType());
+        Assert.assertEquals(3 + bulk.length, p.getData().length);
+        Assert.assertEquals(9, p.getData()[0]);
+        Assert.assertEquals((byte)249, p.getData()[3 + 249]);
+    }
+
+    @Test
+    public void testWeights()
+    {
+        ChannelScheduler channels = new ChannelScheduler(new int[] { 1, 1 });
+        channels.setFragmentSize(10);
+        //Each frame is 16 bytes, so a channel gets one per round
+        for(int i = 0; i < 3; i++) {
+            channels.getQueue(0).encode(1, (short)0x0011, new byte[10], 0, 10);
+            channels.getQueue(1).encode(2, (short)0x0011, new byte[10], 0, 10);
+        }
+        channels.setWeight(0, 2);
+
+        RequestEncoder round = new RequestEncoder();
+        channels.nextRound(round, false);
+        Assert.assertEquals(3 * 16, round.size());
+        Assert.assertEquals(1, round.array()[3]);
+        Assert.assertEquals(1, round.array()[16 + 3]);
+        Assert.assertEquals(2, round.array()[32 + 3]);
+    }
+
+    @Test
+    public void testCreditLimitsRound()
+    {
+        ChannelScheduler channels = new ChannelScheduler(new int[] { 4, 1 });
+        channels.setFragmentSize(100);
+        channels.getQueue(0).encode(5, (short)0x0010, null, 0, 0);
+        channels.getQueue(0).encode(6, (short)0x0010, null, 0, 0);
+        channels.getQueue(1).encode(9, (short)0x0100, new byte[300], 0, 300);
+
+        //Enough for both control frames and part of a fragment
+        CreditWindow credit = new CreditWindow();
+        credit.grant(10, 6 + 6 + 5 + 40);
+        RequestEncoder round = new RequestEncoder();
+        channels.nextRound(round, true, credit);
+        Assert.assertEquals(57, round.size());
+        Assert.assertEquals(40 + 3, round.array()[12 + 1]);
+        //The scheduler only checks the credit. The writer spends it on what it writes.
+        Assert.assertEquals(57, credit.getBytes());
+        Assert.assertTrue(credit.tryConsume(round.size()));
+
+        //Nothing more goes until credit is granted
+        round.clear();
+        channels.nextRound(round, true, credit);
+        Assert.assertEquals(0, round.size());
+        Assert.assertTrue(credit.isStalled());
+        Assert.assertTrue(channels.hasPending());
+
+        credit.grant(10, 1000);
+        channels.nextRound(round, true, credit);
+        Assert.assertEquals(5 + 100, round.size());
+    }
+
+    @Test
+    public void testSmallGrantDoesNotSendSlivers()
+    {
+        ChannelScheduler channels = new ChannelScheduler(new int[] { 1 });
+        channels.setFragmentSize(100);
+        channels.getQueue(0).encode(9, (short)0x0100, new byte[300], 0, 300);
+
+        //Too little credit for a minimum fragment stalls rather than sending a few bytes
+        CreditWindow credit = new CreditWindow();
+        credit.grant(10, 5 + ChannelScheduler.MIN_CREDIT_FRAGMENT_SIZE - 1);
+        RequestEncoder round = new RequestEncoder();
+        channels.nextRound(round, true, credit);
+        Assert.assertEquals(0, round.size());
+        Assert.assertTrue(credit.isStalled());
+
+        //Once the minimum is covered the fragment takes all the credit there is
+        credit.grant(0, 10);
+        channels.nextRound(round, true, credit);
+        Assert.assertEquals(5 + ChannelScheduler.MIN_CREDIT_FRAGMENT_SIZE + 9, round.size());
+    }
+
+    @Test(expected=IOException.class)
+    public void testFragmentWithoutFirst() throws IOException
+    {
+        byte[] frame = { 0x00, 0x05, PacketConstants.PACKET_TYPE_FRAGMENT, 0x01, ChannelScheduler.FRAGMENT_LAST, 0x02, 0x05 };
+        new PacketReader(new ByteArrayInputStream(frame)).read();
+    }
+}
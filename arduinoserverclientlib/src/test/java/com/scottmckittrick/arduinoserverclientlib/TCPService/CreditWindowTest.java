@@ -0,0 +1,67 @@
+package com.scottmckittrick.arduinoserverclientlib.TCPService;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests credit accounting in CreditWindow.
+ */
+
+public class CreditWindowTest {
+
+    /**
+     * Credit window on a clock the test moves by hand.
+     */
+    private static class ManualClockWindow extends CreditWindow {
+        long time;
+
+        @Override
+        long now()
+        {
+            return time;
+        }
+    }
+
+    @Test
+    public void testConsume()
+    {
+        CreditWindow credit = new CreditWindow();
+        credit.grant(2, 100);
+        Assert.assertTrue(credit.tryConsume(60));
+        Assert.assertFalse(credit.tryConsume(60));
+        Assert.assertTrue(credit.tryConsume(40));
+        Assert.assertEquals(0, credit.getFrames());
+        Assert.assertEquals(0, credit.getBytes());
+
+        //Out of frames even with bytes to spare
+        credit.grant(0, 500);
+        Assert.assertFalse(credit.tryConsume(1));
+    }
+
+    @Test
+    public void testStallMetrics()
+    {
+        ManualClockWindow credit = new ManualClockWindow();
+        credit.time = 1000;
+        Assert.assertFalse(credit.tryConsume(10));
+        Assert.assertTrue(credit.isStalled());
+
+        //Failing again during the same stall doesn't count as a new one
+        credit.time = 1030;
+        Assert.assertFalse(credit.tryConsume(10));
+        Assert.assertEquals(1, credit.getStallCount());
+        Assert.assertEquals(30, credit.getStallTime());
+
+        credit.time = 1050;
+        credit.grant(1, 10);
+        Assert.assertFalse(credit.isStalled());
+        Assert.assertTrue(credit.tryConsume(10));
+
+        credit.time = 2000;
+        Assert.assertFalse(credit.tryConsume(10));
+        credit.time = 2010;
+        credit.reset();
+        Assert.assertEquals(2, credit.getStallCount());
+        Assert.assertEquals(60, credit.getStallTime());
+    }
+}
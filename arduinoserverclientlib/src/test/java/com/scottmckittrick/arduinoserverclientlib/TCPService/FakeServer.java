@@ -0,0 +1,303 @@
+package com.scottmckittrick.arduinoserverclientlib.TCPService;
+
+import com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme.Authenticator;
+import com.scottmckittrick.arduinoserverclientlib.InvalidRequestDataException;
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Server on the loopback address for tests. Each accepted client is driven from the test's thread:
+ * the test reads and writes frames and runs the server side of the authentication handshake.
+ */
+
+public class FakeServer {
+    /** How long accepts and reads wait before failing the test, in milliseconds */
+    public static final int TIMEOUT = 5000;
+
+    /** The listening socket */
+    private ServerSocket socket;
+
+    /**
+     * Listen on any free port.
+     * @throws IOException If the socket can't be opened.
+     */
+    public FakeServer() throws IOException
+    {
+        this(0);
+    }
+
+    /**
+     * Listen on a port.
+     * @param port The port, or 0 for any free port.
+     * @throws IOException If the socket can't be opened.
+     */
+    public FakeServer(int port) throws IOException
+    {
+        socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+        socket.setSoTimeout(TIMEOUT);
+    }
+
+    /**
+     * Get the port being listened on.
+     * @return The port.
+     */
+    public int getPort()
+    {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Wait for a client to connect.
+     * @return The client.
+     * @throws IOException If no client connects in time.
+     */
+    public Client accept() throws IOException
+    {
+        return new Client(socket.accept());
+    }
+
+    /**
+     * Stop listening. Clients already accepted stay open.
+     */
+    public void close()
+    {
+        try {
+            socket.close();
+        } catch(IOException e) {
+            //Nothing to do
+        }
+    }
+
+    /**
+     * Find a port nothing is listening on.
+     * @return The port.
+     * @throws IOException If no port can be found.
+     */
+    public static int findFreePort() throws IOException
+    {
+        FakeServer s = new FakeServer();
+        int port = s.getPort();
+        s.close();
+        return port;
+    }
+
+    /**
+     * One accepted client.
+     */
+    public static class Client {
+        /** The client's socket */
+        private Socket socket;
+        /** Reads frames from the client */
+        private PacketReader reader;
+        /** Writes frames to the client */
+        private PacketWriter writer;
+
+        Client(Socket s) throws IOException
+        {
+            socket = s;
+            socket.setSoTimeout(TIMEOUT);
+            reader = new PacketReader(s.getInputStream());
+            writer = new PacketWriter(s.getOutputStream());
+        }
+
+        /**
+         * Get the reader, to change its framing settings.
+         * @return The reader.
+         */
+        public PacketReader getReader()
+        {
+            return reader;
+        }
+
+        /**
+         * Get the writer, to change its framing settings.
+         * @return The writer.
+         */
+        public PacketWriter getWriter()
+        {
+            return writer;
+        }
+
+        /**
+         * Read a frame from the client.
+         * @return The frame.
+         * @throws IOException If the client closes the connection or nothing arrives in time.
+         */
+        public PacketConstants.Packet read() throws IOException
+        {
+            return reader.read();
+        }
+
+        /**
+         * Read a data frame from the client.
+         * @return The request it carries.
+         * @throws IOException If the next frame isn't a data frame or nothing arrives in time.
+         */
+        public RequestObject readRequest() throws IOException
+        {
+            PacketConstants.Packet p = read();
+            if(p.getType() != PacketConstants.PACKET_TYPE_DATA)
+                throw new IOException("Expected a data frame, got type " + p.getType());
+            try {
+                byte[] data = p.getData();
+                return RequestObject.wrapSerialized(data, 0, data.length);
+            } catch(InvalidRequestDataException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+
+        /**
+         * Write a frame to the client.
+         * @param type The frame type.
+         * @param data The frame data.
+         * @throws IOException If the write fails.
+         */
+        public void write(byte type, byte[] data) throws IOException
+        {
+            writer.writePacket(new PacketConstants.Packet(type, data));
+        }
+
+        /**
+         * Send a request to the client in a data frame.
+         * @param r The request.
+         * @throws IOException If the write fails.
+         */
+        public void sendRequest(RequestObject r) throws IOException
+        {
+            write(PacketConstants.PACKET_TYPE_DATA, RequestObject.serializeRequestObject(r));
+        }
+
+        /**
+         * Run the server side of the handshake, accepting whatever scheme the client asks for.
+         * @return The client hello.
+         * @throws IOException If the client doesn't follow the handshake.
+         */
+        public byte[] authenticate() throws IOException
+        {
+            return authenticate(null);
+        }
+
+        /**
+         * Run the server side of the handshake, accepting whatever scheme the client asks for.
+         * @param options Options for the server hello, as { type, length, value } entries, or null for none.
+         * @return The client hello.
+         * @throws IOException If the client doesn't follow the handshake.
+         */
+        public byte[] authenticate(byte[] options) throws IOException
+        {
+            PacketConstants.Packet hello = read();
+            byte[] clientHello = hello.getData();
+            if((hello.getType() != PacketConstants.PACKET_TYPE_AUTH) || (clientHello[0] != Authenticator.AUTHTYPE_CLIENT_HELLO))
+                throw new IOException("Expected a client hello");
+
+            //Echo the scheme name back, then the options
+            int nameEnd = 1;
+            while((nameEnd < clientHello.length) && (clientHello[nameEnd] != Authenticator.HELLO_OPTIONS_SEPARATOR))
+                nameEnd++;
+            int optionsLength = (options == null) ? 0 : 1 + options.length;
+            byte[] serverHello = new byte[nameEnd + optionsLength];
+            System.arraycopy(clientHello, 0, serverHello, 0, nameEnd);
+            serverHello[0] = Authenticator.AUTHTYPE_SERVER_HELLO;
+            if(options != null) {
+                serverHello[nameEnd] = Authenticator.HELLO_OPTIONS_SEPARATOR;
+                System.arraycopy(options, 0, serverHello, nameEnd + 1, options.length);
+            }
+            write(PacketConstants.PACKET_TYPE_AUTH, serverHello);
+            finishAuthenticate();
+            return clientHello;
+        }
+
+        /**
+         * Run the server side of the handshake like a server that predates hello options: the client hello
+         * must hold exactly the scheme name, and the connection is closed if it doesn't.
+         * @param schemeName The only scheme the server knows.
+         * @return The client hello.
+         * @throws IOException If the client hello isn't exactly the scheme name, or the client doesn't follow the handshake.
+         */
+        public byte[] authenticateLegacy(String schemeName) throws IOException
+        {
+            PacketConstants.Packet hello = read();
+            byte[] clientHello = hello.getData();
+            if((hello.getType() != PacketConstants.PACKET_TYPE_AUTH) || (clientHello[0] != Authenticator.AUTHTYPE_CLIENT_HELLO))
+                throw new IOException("Expected a client hello");
+            if(!new String(clientHello, 1, clientHello.length - 1, "US-ASCII").equals(schemeName)) {
+                close();
+                throw new IOException("Unknown scheme in the client hello");
+            }
+
+            byte[] serverHello = clientHello.clone();
+            serverHello[0] = Authenticator.AUTHTYPE_SERVER_HELLO;
+            write(PacketConstants.PACKET_TYPE_AUTH, serverHello);
+            finishAuthenticate();
+            return clientHello;
+        }
+
+        /**
+         * Run the server side of the handshake like a server that copies the whole client hello back,
+         * options included, as if it had accepted every one of them.
+         * @return The client hello.
+         * @throws IOException If the client doesn't follow the handshake.
+         */
+        public byte[] authenticateEcho() throws IOException
+        {
+            PacketConstants.Packet hello = read();
+            byte[] clientHello = hello.getData();
+            if((hello.getType() != PacketConstants.PACKET_TYPE_AUTH) || (clientHello[0] != Authenticator.AUTHTYPE_CLIENT_HELLO))
+                throw new IOException("Expected a client hello");
+
+            byte[] serverHello = clientHello.clone();
+            serverHello[0] = Authenticator.AUTHTYPE_SERVER_HELLO;
+            write(PacketConstants.PACKET_TYPE_AUTH, serverHello);
+            finishAuthenticate();
+            return clientHello;
+        }
+
+        /**
+         * Answer the client's auth request with success.
+         * @throws IOException If the client doesn't send an auth request.
+         */
+        private void finishAuthenticate() throws IOException
+        {
+            PacketConstants.Packet req = read();
+            if((req.getType() != PacketConstants.PACKET_TYPE_AUTH) || (req.getData()[0] != Authenticator.AUTHTYPE_AUTHREQ))
+                throw new IOException("Expected an auth request");
+            write(PacketConstants.PACKET_TYPE_AUTH, new byte[] { Authenticator.AUTHTYPE_RSPSUCCESS });
+        }
+
+        /**
+         * Wait for the client to close the connection.
+         * @return True if it closed, false if it sent something or didn't close in time.
+         */
+        public boolean awaitClose()
+        {
+            try {
+                read();
+                return false;
+            } catch(SocketTimeoutException e) {
+                return false;
+            } catch(IOException e) {
+                return true;
+            }
+        }
+
+        /**
+         * Close the connection.
+         */
+        public void close()
+        {
+            try {
+                socket.close();
+            } catch(IOException e) {
+                //Nothing to do
+            }
+        }
+    }
+}
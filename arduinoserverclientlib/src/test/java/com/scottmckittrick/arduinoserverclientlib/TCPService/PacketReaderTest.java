@@ -2,10 +2,15 @@ package com.scottmckittrick.arduinoserverclientlib.TCPService;
 
 import junit.framework.Assert;
 
+import com.scottmckittrick.arduinoserverclientlib.InvalidRequestDataException;
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 
 /**
@@ -32,4 +37,176 @@ public class PacketReaderTest {
         Assert.assertEquals(PacketConstants.PACKET_TYPE_AUTH, read.getType());
         Assert.assertTrue(Arrays.equals(testData, read.getData()));
     }
+
+    @Test
+    public void testDecodeBatch() throws InvalidRequestDataException
+    {
+        RequestObject[] requests = { new RequestObject(1, (short)0x1000, null),
+                new RequestObject(2, (short)0x1100, new byte[] { 0x01, 0x02, 0x03 }) };
+        byte[] batch = PacketWriter.encodeBatch(requests, 0, 2);
+
+        final ArrayList<RequestObject> received = new ArrayList<>();
+        PacketReader.decodeBatch(batch, 0, batch.length, new RequestObject.RequestReceiver() {
+            @Override
+            public void handleRequest(RequestObject r) {
+                received.add(r);
+            }
+        });
+        Assert.assertEquals(2, received.size());
+        Assert.assertEquals(requests[0], received.get(0));
+        Assert.assertEquals(requests[1], received.get(1));
+    }
+
+    @Test(expected=InvalidRequestDataException.class)
+    public void testDecodeTruncatedBatch() throws InvalidRequestDataException
+    {
+        byte[] batch = { 0x00, 0x05, 0x01, 0x10, 0x00 };
+        PacketReader.decodeBatch(batch, 0, batch.length, new RequestObject.RequestReceiver() {
+            @Override
+            public void handleRequest(RequestObject r) {
+            }
+        });
+    }
+
+    /**
+     * Stream that hands out one byte per read, like a slow socket.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        TrickleInputStream(byte[] buf) { super(buf); }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    @Test
+    public void testLongFrameLength() throws IOException
+    {
+        //300 bytes of data needs both length bytes
+        byte[] testData = new byte[300];
+        for(int i = 0; i < testData.length; i++)
+            testData[i] = (byte)i;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PacketWriter writer = new PacketWriter(out);
+        writer.writePacket(new PacketConstants.Packet(PacketConstants.PACKET_TYPE_DATA, testData));
+        writer.writePacket(new PacketConstants.Packet(PacketConstants.PACKET_TYPE_AUTH, new byte[] { 0x07 }));
+
+        PacketReader p = new PacketReader(new TrickleInputStream(out.toByteArray()));
+        PacketConstants.Packet read = p.read();
+        Assert.assertEquals(PacketConstants.PACKET_TYPE_DATA, read.getType());
+        Assert.assertTrue(Arrays.equals(testData, read.getData()));
+        read = p.read();
+        Assert.assertEquals(PacketConstants.PACKET_TYPE_AUTH, read.getType());
+        Assert.assertTrue(Arrays.equals(new byte[] { 0x07 }, read.getData()));
+    }
+
+    @Test
+    public void testExtendedFraming() throws IOException
+    {
+        byte[] testData = new byte[100000];
+        testData[99999] = 0x55;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PacketWriter writer = new PacketWriter(out);
+        writer.setExtendedFraming(true);
+        writer.writePacket(new PacketConstants.Packet(PacketConstants.PACKET_TYPE_DATA, testData));
+        byte[] frame = out.toByteArray();
+        Assert.assertEquals((byte)0xFF, frame[0]);
+        Assert.assertEquals((byte)0xFF, frame[1]);
+        Assert.assertEquals(6 + 1 + testData.length, frame.length);
+
+        PacketReader p = new PacketReader(new ByteArrayInputStream(frame));
+        p.setExtendedFraming(true);
+        PacketConstants.Packet read = p.read();
+        Assert.assertEquals(testData.length, read.getData().length);
+        Assert.assertEquals(0x55, read.getData()[99999]);
+    }
+
+    @Test(expected=IOException.class)
+    public void testFrameTooLargeWithoutExtendedFraming() throws IOException
+    {
+        new PacketWriter(new ByteArrayOutputStream()).writePacket(
+                new PacketConstants.Packet(PacketConstants.PACKET_TYPE_DATA, new byte[70000]));
+    }
+
+    @Test(expected=IOException.class)
+    public void testMaxFrameSize() throws IOException
+    {
+        byte[] frame = { 0x01, 0x00, 0x02 };
+        PacketReader p = new PacketReader(new ByteArrayInputStream(frame));
+        p.setMaxFrameSize(100);
+        p.read();
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws IOException
+    {
+        //A device list is long enough to compress, a lamp command isn't
+        RequestEncoder encoder = new RequestEncoder();
+        byte[] names = new byte[300];
+        for(int i = 0; i < names.length; i++)
+            names[i] = (byte)"Kitchen Lamp ".charAt(i % 13);
+        encoder.encode(0, (short)0x0100, names, 0, names.length);
+        encoder.encode(5, (short)0x0010, null, 0, 0);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PacketWriter writer = new PacketWriter(out);
+        writer.setCompressionThreshold(FrameCompressor.DEFAULT_THRESHOLD);
+        writer.writeFrames(encoder.array(), 0, encoder.size());
+        byte[] frames = out.toByteArray();
+        Assert.assertEquals((byte)(PacketConstants.PACKET_TYPE_DATA | PacketConstants.PACKET_FLAG_COMPRESSED), frames[2]);
+        Assert.assertTrue(frames.length < encoder.size() / 2);
+
+        PacketReader p = new PacketReader(new ByteArrayInputStream(frames));
+        p.setAcceptCompressed(true);
+        PacketConstants.Packet read = p.read();
+        Assert.assertEquals(PacketConstants.PACKET_TYPE_DATA, read.getType());
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(encoder.array(), 3, 3 + 3 + names.length), read.getData()));
+        read = p.read();
+        Assert.assertTrue(Arrays.equals(new byte[] { 0x05, 0x00, 0x10 }, read.getData()));
+    }
+
+    @Test
+    public void testCompressedBatch() throws IOException
+    {
+        RequestEncoder encoder = new RequestEncoder();
+        for(int i = 0; i < 40; i++)
+            encoder.encode(i, (short)0x0011, new byte[] { (byte)0xFF, (byte)0xFF, (byte)0xFF }, 0, 3);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PacketWriter writer = new PacketWriter(out);
+        writer.setCompressionThreshold(FrameCompressor.DEFAULT_THRESHOLD);
+        writer.writeBatch(encoder.array(), 0, encoder.size());
+
+        PacketReader p = new PacketReader(new ByteArrayInputStream(out.toByteArray()));
+        p.setAcceptCompressed(true);
+        PacketConstants.Packet read = p.read();
+        Assert.assertEquals(PacketConstants.PACKET_TYPE_BATCH, read.getType());
+        Assert.assertEquals(40 * (2 + 3 + 3), read.getData().length);
+    }
+
+    @Test(expected=IOException.class)
+    public void testCompressedFrameNotAccepted() throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PacketWriter writer = new PacketWriter(out);
+        writer.setCompressionThreshold(1);
+        writer.writePacket(new PacketConstants.Packet(PacketConstants.PACKET_TYPE_DATA, new byte[500]));
+        new PacketReader(new ByteArrayInputStream(out.toByteArray())).read();
+    }
+
+    @Test(expected=IOException.class)
+    public void testCompressedFrameTooLarge() throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PacketWriter writer = new PacketWriter(out);
+        writer.setCompressionThreshold(1);
+        writer.writePacket(new PacketConstants.Packet(PacketConstants.PACKET_TYPE_DATA, new byte[5000]));
+
+        //The frame itself is small but it inflates past the limit
+        PacketReader p = new PacketReader(new ByteArrayInputStream(out.toByteArray()));
+        p.setAcceptCompressed(true);
+        p.setMaxFrameSize(1000);
+        p.read();
+    }
 }
@@ -33,4 +33,118 @@ public class PacketWriterTest {
 
         Assert.assertArrayEquals(testPacket, resultPacket);
     }
+
+    @Test
+    public void testWriteBatch() throws IOException
+    {
+        RequestEncoder encoder = new RequestEncoder();
+        encoder.encode(1, (short)0x0010, null, 0, 0);
+        encoder.encode(2, (short)0x0011, new byte[] { 0x0A, 0x0B, 0x0C }, 0, 3);
+
+        ByteArrayOutputStream oStream = new ByteArrayOutputStream();
+        new PacketWriter(oStream).writeBatch(encoder.array(), 0, encoder.size());
+        byte[] expected = { 0x00, 0x0E, 0x03,
+                0x00, 0x03, 0x01, 0x00, 0x10,
+                0x00, 0x06, 0x02, 0x00, 0x11, 0x0A, 0x0B, 0x0C };
+        Assert.assertArrayEquals(expected, oStream.toByteArray());
+    }
+
+    @Test
+    public void testWriteBatchSingleFrame() throws IOException
+    {
+        RequestEncoder encoder = new RequestEncoder();
+        encoder.encode(1, (short)0x0010, null, 0, 0);
+
+        //A lone request isn't worth a batch header
+        ByteArrayOutputStream oStream = new ByteArrayOutputStream();
+        new PacketWriter(oStream).writeBatch(encoder.array(), 0, encoder.size());
+        Assert.assertArrayEquals(new byte[] { 0x00, 0x04, 0x02, 0x01, 0x00, 0x10 }, oStream.toByteArray());
+    }
+
+    @Test
+    public void testWriteBatchSplitsAtFrameLimit() throws IOException
+    {
+        //Two requests of 40000 bytes can't share a frame
+        RequestEncoder encoder = new RequestEncoder();
+        byte[] data = new byte[40000];
+        encoder.encode(1, (short)0x0011, data, 0, data.length);
+        encoder.encode(2, (short)0x0011, data, 0, data.length);
+        encoder.encode(3, (short)0x0010, null, 0, 0);
+
+        ByteArrayOutputStream oStream = new ByteArrayOutputStream();
+        new PacketWriter(oStream).writeBatch(encoder.array(), 0, encoder.size());
+        byte[] out = oStream.toByteArray();
+        //The first request goes as a plain data frame, the second and third share a batch
+        int first = 2 + 1 + 3 + data.length;
+        Assert.assertEquals(PacketConstants.PACKET_TYPE_DATA, out[2]);
+        Assert.assertEquals(PacketConstants.PACKET_TYPE_BATCH, out[first + 2]);
+        Assert.assertEquals(first + 3 + (2 + 3 + data.length) + (2 + 3), out.length);
+    }
+
+    @Test
+    public void testWriteBatchMaxCount() throws IOException
+    {
+        RequestEncoder encoder = new RequestEncoder();
+        for(int i = 0; i < 5; i++)
+            encoder.encode(i, (short)0x0010, null, 0, 0);
+
+        ByteArrayOutputStream oStream = new ByteArrayOutputStream();
+        PacketWriter writer = new PacketWriter(oStream);
+        writer.setMaxBatchCount(2);
+        writer.writeBatch(encoder.array(), 0, encoder.size());
+        byte[] out = oStream.toByteArray();
+        //Two batches of two, then the last request on its own
+        int batch = 2 + 1 + 2 * (2 + 3);
+        Assert.assertEquals(PacketConstants.PACKET_TYPE_BATCH, out[2]);
+        Assert.assertEquals(PacketConstants.PACKET_TYPE_BATCH, out[batch + 2]);
+        Assert.assertEquals(PacketConstants.PACKET_TYPE_DATA, out[2 * batch + 2]);
+        Assert.assertEquals(2 * batch + 6, out.length);
+    }
+
+    /**
+     * Count the frames in written output.
+     * @param out The output.
+     * @return The number of frames.
+     */
+    private static int countFrames(byte[] out)
+    {
+        int count = 0;
+        for(int pos = 0; pos < out.length; count++)
+            pos += 2 + (((out[pos] & 0xFF) << 8) | (out[pos + 1] & 0xFF));
+        return count;
+    }
+
+    @Test
+    public void testCreditSpentOnWrittenFrames() throws IOException
+    {
+        RequestEncoder encoder = new RequestEncoder();
+        for(int i = 0; i < 20; i++)
+            encoder.encode(i, (short)0x0010, new byte[100], 0, 100);
+
+        ByteArrayOutputStream oStream = new ByteArrayOutputStream();
+        PacketWriter writer = new PacketWriter(oStream);
+        writer.setMaxBatchCount(8);
+        writer.setCompressionThreshold(64);
+        CreditWindow credit = new CreditWindow();
+        credit.grant(100, 100000);
+        Assert.assertEquals(encoder.size(), writer.writeBatch(encoder.array(), 0, encoder.size(), credit));
+
+        //Credit goes on the three compressed batches that reached the stream, not the twenty requests queued
+        byte[] out = oStream.toByteArray();
+        Assert.assertTrue((out[2] & PacketConstants.PACKET_FLAG_COMPRESSED) != 0);
+        Assert.assertEquals(3, countFrames(out));
+        Assert.assertEquals(3, 100 - credit.getFrames());
+        Assert.assertEquals(out.length, 100000 - credit.getBytes());
+        Assert.assertTrue(out.length < encoder.size());
+
+        //With credit for one frame, the first batch is written and the requests after it are left
+        oStream.reset();
+        credit = new CreditWindow();
+        credit.grant(1, 100000);
+        int written = writer.writeBatch(encoder.array(), 0, encoder.size(), credit);
+        Assert.assertEquals(8 * (2 + 1 + 3 + 100), written);
+        Assert.assertEquals(1, countFrames(oStream.toByteArray()));
+        Assert.assertEquals(oStream.size(), 100000 - credit.getBytes());
+        Assert.assertTrue(credit.isStalled());
+    }
 }
@@ -0,0 +1,81 @@
+package com.scottmckittrick.arduinoserverclientlib.TCPService;
+
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Tests the frames RequestEncoder writes.
+ */
+
+public class RequestEncoderTest {
+
+    /**
+     * Collects the frames handed to it.
+     */
+    private static class FrameCollector implements RequestObject.FrameReceiver {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int calls;
+
+        @Override
+        public void handleFrames(byte[] frames, int offset, int length) {
+            out.write(frames, offset, length);
+            calls++;
+        }
+    }
+
+    @Test
+    public void testMatchesPacketWriter() throws IOException
+    {
+        byte[] data = { 0x10, 0x20, 0x30 };
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new PacketWriter(expected).writePacket(new PacketConstants.Packet(PacketConstants.PACKET_TYPE_DATA,
+                RequestObject.serializeRequestObject(new RequestObject(9, (short)0x0011, data))));
+
+        FrameCollector collector = new FrameCollector();
+        RequestEncoder encoder = new RequestEncoder();
+        encoder.encode(9, (short)0x0011, data, 0, data.length);
+        encoder.flushTo(collector);
+        Assert.assertArrayEquals(expected.toByteArray(), collector.out.toByteArray());
+        Assert.assertEquals(0, encoder.size());
+    }
+
+    @Test
+    public void testFramesAccumulateAndGrow()
+    {
+        RequestEncoder encoder = new RequestEncoder(8);
+        encoder.encode(1, (short)0x0010, 0, null);
+        encoder.encode(2, (short)0x0013, 2, new RequestEncoder.PayloadWriter() {
+            @Override
+            public void writePayload(ByteBuffer buf) {
+                buf.putShort((short)500);
+            }
+        });
+        ByteBuffer buf = encoder.begin(3, (short)0x0011, 3);
+        buf.put((byte)1);
+        //An uncommitted frame isn't counted
+        Assert.assertEquals(14, encoder.size());
+        encoder.commit();
+
+        FrameCollector collector = new FrameCollector();
+        encoder.flushTo(collector);
+        Assert.assertEquals(1, collector.calls);
+        Assert.assertArrayEquals(new byte[] {
+                0, 4, 0x02, 1, 0, 0x10,
+                0, 6, 0x02, 2, 0, 0x13, 0x01, (byte)0xF4,
+                0, 5, 0x02, 3, 0, 0x11, 1 }, collector.out.toByteArray());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBeginWithoutCommit()
+    {
+        RequestEncoder encoder = new RequestEncoder();
+        encoder.begin(1, (short)0x0010, 0);
+        encoder.begin(2, (short)0x0010, 0);
+    }
+}
@@ -0,0 +1,653 @@
+package com.scottmckittrick.arduinoserverclientlib.TCPService;
+
+import com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme.Authenticator;
+import com.scottmckittrick.arduinoserverclientlib.AuthenticationScheme.BasicSharedSecretScheme;
+import com.scottmckittrick.arduinoserverclientlib.Platform.ExecutorScheduler;
+import com.scottmckittrick.arduinoserverclientlib.Platform.Log;
+import com.scottmckittrick.arduinoserverclientlib.Platform.StreamLogger;
+import com.scottmckittrick.arduinoserverclientlib.RequestObject;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the engine against fake servers on the loopback address.
+ */
+
+public class ServerEngineTest {
+    private ExecutorScheduler scheduler;
+    private ServerEngine engine;
+    /** Events reported by the engine, by server id */
+    private final HashMap<Integer, LinkedBlockingQueue<ServerEngine.ServerEvent>> events = new HashMap<>();
+    /** Requests received by the engine, by server id */
+    private final HashMap<Integer, LinkedBlockingQueue<RequestObject>> requests = new HashMap<>();
+
+    @Before
+    public void setUp()
+    {
+        //Keep expected connection errors out of the test output
+        Log.setLogger(new StreamLogger(new PrintStream(new ByteArrayOutputStream()), Log.DEBUG));
+        scheduler = new ExecutorScheduler("ServerEngineTest");
+        engine = new ServerEngine(scheduler, new ServerEngine.EngineListener() {
+            @Override
+            public void onServerEvent(int serverId, ServerEngine.ServerEvent event, String message) {
+                events(serverId).add(event);
+            }
+
+            @Override
+            public void onRequestReceived(int serverId, RequestObject r) {
+                requests(serverId).add(r);
+            }
+        });
+    }
+
+    @After
+    public void tearDown()
+    {
+        onEngineThread(new Runnable() {
+            @Override
+            public void run() {
+                engine.disconnectAllServers();
+            }
+        });
+        scheduler.shutdown();
+        Log.setLogger(null);
+    }
+
+    private synchronized LinkedBlockingQueue<ServerEngine.ServerEvent> events(int serverId)
+    {
+        LinkedBlockingQueue<ServerEngine.ServerEvent> q = events.get(serverId);
+        if(q == null) {
+            q = new LinkedBlockingQueue<>();
+            events.put(serverId, q);
+        }
+        return q;
+    }
+
+    private synchronized LinkedBlockingQueue<RequestObject> requests(int serverId)
+    {
+        LinkedBlockingQueue<RequestObject> q = requests.get(serverId);
+        if(q == null) {
+            q = new LinkedBlockingQueue<>();
+            requests.put(serverId, q);
+        }
+        return q;
+    }
+
+    /**
+     * Run a task on the engine's thread and wait for it to finish.
+     */
+    private void onEngineThread(final Runnable r)
+    {
+        final CountDownLatch done = new CountDownLatch(1);
+        scheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                r.run();
+                done.countDown();
+            }
+        });
+        try {
+            Assert.assertTrue(done.await(FakeServer.TIMEOUT, TimeUnit.MILLISECONDS));
+        } catch(InterruptedException e) {
+            Assert.fail("Interrupted");
+        }
+    }
+
+    private void connect(final int serverId, final int port)
+    {
+        onEngineThread(new Runnable() {
+            @Override
+            public void run() {
+                engine.setAuthenticationScheme(serverId, new BasicSharedSecretScheme("secret", 1));
+                engine.connectServer(serverId, "127.0.0.1", port);
+            }
+        });
+    }
+
+    private void send(final int serverId, final RequestObject r)
+    {
+        onEngineThread(new Runnable() {
+            @Override
+            public void run() {
+                engine.sendRequest(serverId, r);
+            }
+        });
+    }
+
+    private void expectEvent(int serverId, ServerEngine.ServerEvent expected) throws InterruptedException
+    {
+        Assert.assertEquals(expected, events(serverId).poll(FakeServer.TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private void expectNoEvent(int serverId) throws InterruptedException
+    {
+        Assert.assertNull(events(serverId).poll(300, TimeUnit.MILLISECONDS));
+    }
+
+    private RequestObject nextRequest(int serverId) throws InterruptedException
+    {
+        return requests(serverId).poll(FakeServer.TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private void setCapabilitiesEnabled(final int serverId)
+    {
+        onEngineThread(new Runnable() {
+            @Override
+            public void run() {
+                engine.setCapabilitiesEnabled(serverId, true);
+            }
+        });
+    }
+
+    /**
+     * Connect to a fake server and authenticate.
+     */
+    private FakeServer.Client connectAndAuthenticate(int serverId, FakeServer server) throws Exception
+    {
+        connect(serverId, server.getPort());
+        FakeServer.Client c = server.accept();
+        expectEvent(serverId, ServerEngine.ServerEvent.CONNECTED);
+        c.authenticate();
+        expectEvent(serverId, ServerEngine.ServerEvent.AUTHENTICATED);
+        return c;
+    }
+
+    @Test
+    public void testSessionLifecycle() throws Exception
+    {
+        FakeServer a = new FakeServer();
+        try {
+            Assert.assertFalse(engine.isConnected(0));
+            FakeServer.Client c = connectAndAuthenticate(0, a);
+            Assert.assertTrue(engine.isConnected(0));
+            Assert.assertTrue(engine.isAuthenticated(0));
+
+            //Connecting again while connected reports the connection and authentication that already exist
+            connect(0, a.getPort());
+            expectEvent(0, ServerEngine.ServerEvent.CONNECTED);
+            expectEvent(0, ServerEngine.ServerEvent.AUTHENTICATED);
+
+            onEngineThread(new Runnable() {
+                @Override
+                public void run() {
+                    engine.disconnectServer(0);
+                }
+            });
+            expectEvent(0, ServerEngine.ServerEvent.DISCONNECTED);
+            Assert.assertFalse(engine.isConnected(0));
+            Assert.assertFalse(engine.isAuthenticated(0));
+            Assert.assertTrue(c.awaitClose());
+
+            //Requests after the disconnect fail straight away
+            send(0, new RequestObject(1, (short)0x1000, null));
+            expectEvent(0, ServerEngine.ServerEvent.REQUEST_SEND_FAILED);
+            expectNoEvent(0);
+        } finally {
+            a.close();
+        }
+    }
+
+    @Test
+    public void testConnectFailed() throws Exception
+    {
+        connect(0, FakeServer.findFreePort());
+        expectEvent(0, ServerEngine.ServerEvent.CONNECT_FAILED);
+        Assert.assertFalse(engine.isConnected(0));
+
+        onEngineThread(new Runnable() {
+            @Override
+            public void run() {
+                engine.connectServer(1, null, 1);
+            }
+        });
+        expectEvent(1, ServerEngine.ServerEvent.CONNECT_FAILED);
+    }
+
+    @Test
+    public void testRequestBeforeConnect() throws Exception
+    {
+        send(0, new RequestObject(1, (short)0x1000, null));
+        expectEvent(0, ServerEngine.ServerEvent.REQUEST_SEND_FAILED);
+        send(0, null);
+        expectEvent(0, ServerEngine.ServerEvent.REQUEST_SEND_FAILED);
+
+        //Disconnecting a server that was never connected still reports the disconnect
+        onEngineThread(new Runnable() {
+            @Override
+            public void run() {
+                engine.disconnectServer(5);
+            }
+        });
+        expectEvent(5, ServerEngine.ServerEvent.DISCONNECTED);
+    }
+
+    @Test
+    public void testConnectWithoutScheme() throws Exception
+    {
+        FakeServer a = new FakeServer();
+        try {
+            final int port = a.getPort();
+            onEngineThread(new Runnable() {
+                @Override
+                public void run() {
+                    engine.connectServer(0, "127.0.0.1", port);
+                }
+            });
+            a.accept();
+            expectEvent(0, ServerEngine.ServerEvent.CONNECTED);
+            expectEvent(0, ServerEngine.ServerEvent.AUTHENTICATION_FAILED);
+            Assert.assertTrue(engine.isConnected(0));
+            Assert.assertFalse(engine.isAuthenticated(0));
+        } finally {
+            a.close();
+        }
+    }
+
+    @Test
+    public void testTwoServers() throws Exception
+    {
+        FakeServer a = new FakeServer();
+        FakeServer b = new FakeServer();
+        try {
+            //Both connects are in flight together
+            connect(0, a.getPort());
+            connect(1, b.getPort());
+            FakeServer.Client ca = a.accept();
+            FakeServer.Client cb = b.accept();
+            expectEvent(0, ServerEngine.ServerEvent.CONNECTED);
+            expectEvent(1, ServerEngine.ServerEvent.CONNECTED);
+            ca.authenticate();
+            cb.authenticate();
+            expectEvent(0, ServerEngine.ServerEvent.AUTHENTICATED);
+            expectEvent(1, ServerEngine.ServerEvent.AUTHENTICATED);
+
+            //Requests go to the right server and come back tagged with it
+            RequestObject toA = new RequestObject(1, (short)0x1000, new byte[] { 0x01 });
+            RequestObject toB = new RequestObject(2, (short)0x1100, new byte[] { 0x02, 0x03 });
+            send(0, toA);
+            send(1, toB);
+            Assert.assertEquals(toA, ca.readRequest());
+            Assert.assertEquals(toB, cb.readRequest());
+
+            RequestObject fromA = new RequestObject(1, (short)0x1001, null);
+            RequestObject fromB = new RequestObject(2, (short)0x1101, null);
+            ca.sendRequest(fromA);
+            cb.sendRequest(fromB);
+            Assert.assertEquals(fromA, nextRequest(0));
+            Assert.assertEquals(fromB, nextRequest(1));
+
+            //Losing one server leaves the other alone
+            ca.close();
+            expectEvent(0, ServerEngine.ServerEvent.DISCONNECTED);
+            expectEvent(0, ServerEngine.ServerEvent.CONNECT_FAILED);
+            Assert.assertFalse(engine.isConnected(0));
+            Assert.assertTrue(engine.isAuthenticated(1));
+            send(1, toB);
+            Assert.assertEquals(toB, cb.readRequest());
+            expectNoEvent(1);
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+
+    /**
+     * Disconnect from server 0 and connect it to another server straight away, on one pass of the engine thread.
+     */
+    private void reconnect(final int port)
+    {
+        onEngineThread(new Runnable() {
+            @Override
+            public void run() {
+                engine.disconnectServer(0);
+                engine.connectServer(0, "127.0.0.1", port);
+            }
+        });
+    }
+
+    @Test
+    public void testReconnectIgnoresOldConnectionLost() throws Exception
+    {
+        FakeServer a = new FakeServer();
+        FakeServer b = new FakeServer();
+        try {
+            FakeServer.Client ca = connectAndAuthenticate(0, a);
+            reconnect(b.getPort());
+            expectEvent(0, ServerEngine.ServerEvent.DISCONNECTED);
+
+            //The old read thread is still blocked reading, so it reports the connection lost after the new one exists
+            ca.close();
+
+            FakeServer.Client cb = b.accept();
+            expectEvent(0, ServerEngine.ServerEvent.CONNECTED);
+            cb.authenticate();
+            expectEvent(0, ServerEngine.ServerEvent.AUTHENTICATED);
+
+            //The late event didn't tear down the new session
+            expectNoEvent(0);
+            Assert.assertTrue(engine.isAuthenticated(0));
+            RequestObject r = new RequestObject(3, (short)0x1000, new byte[] { 0x04 });
+            send(0, r);
+            Assert.assertEquals(r, cb.readRequest());
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    public void testReconnectIgnoresOldConnectionPackets() throws Exception
+    {
+        FakeServer a = new FakeServer();
+        FakeServer b = new FakeServer();
+        try {
+            FakeServer.Client ca = connectAndAuthenticate(0, a);
+            reconnect(b.getPort());
+            expectEvent(0, ServerEngine.ServerEvent.DISCONNECTED);
+
+            //The old read thread reads this before it notices it was stopped
+            ca.sendRequest(new RequestObject(1, (short)0x1001, null));
+
+            FakeServer.Client cb = b.accept();
+            expectEvent(0, ServerEngine.ServerEvent.CONNECTED);
+            cb.authenticate();
+            expectEvent(0, ServerEngine.ServerEvent.AUTHENTICATED);
+
+            //Only requests from the new server are passed on
+            RequestObject r = new RequestObject(2, (short)0x1101, null);
+            cb.sendRequest(r);
+            Assert.assertEquals(r, nextRequest(0));
+            Assert.assertNull(requests(0).poll());
+            expectNoEvent(0);
+            Assert.assertTrue(ca.awaitClose());
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    public void testReconnectSameServer() throws Exception
+    {
+        FakeServer a = new FakeServer();
+        try {
+            FakeServer.Client first = connectAndAuthenticate(0, a);
+            first.close();
+            expectEvent(0, ServerEngine.ServerEvent.DISCONNECTED);
+            expectEvent(0, ServerEngine.ServerEvent.CONNECT_FAILED);
+            Assert.assertFalse(engine.isAuthenticated(0));
+
+            //The scheme is kept, so a reconnect runs the handshake again from the start
+            final int port = a.getPort();
+            onEngineThread(new Runnable() {
+                @Override
+                public void run() {
+                    engine.connectServer(0, "127.0.0.1", port);
+                }
+            });
+            FakeServer.Client second = a.accept();
+            expectEvent(0, ServerEngine.ServerEvent.CONNECTED);
+            second.authenticate();
+            expectEvent(0, ServerEngine.ServerEvent.AUTHENTICATED);
+            RequestObject r = new RequestObject(1, (short)0x1000, null);
+            send(0, r);
+            Assert.assertEquals(r, second.readRequest());
+        } finally {
+            a.close();
+        }
+    }
+
+    @Test
+    public void testRemoveServerDropsSettings() throws Exception
+    {
+        FakeServer a = new FakeServer();
+        try {
+            setCapabilitiesEnabled(0);
+            FakeServer.Client first = connectAndAuthenticate(0, a);
+            onEngineThread(new Runnable() {
+                @Override
+                public void run() {
+                    engine.removeServer(0);
+                }
+            });
+            expectEvent(0, ServerEngine.ServerEvent.DISCONNECTED);
+            Assert.assertTrue(first.awaitClose());
+            Assert.assertFalse(engine.isConnected(0));
+
+            //The id starts over without the old scheme or settings
+            final int port = a.getPort();
+            onEngineThread(new Runnable() {
+                @Override
+                public void run() {
+                    engine.connectServer(0, "127.0.0.1", port);
+                }
+            });
+            a.accept();
+            expectEvent(0, ServerEngine.ServerEvent.CONNECTED);
+            expectEvent(0, ServerEngine.ServerEvent.AUTHENTICATION_FAILED);
+
+            onEngineThread(new Runnable() {
+                @Override
+                public void run() {
+                    engine.removeServer(0);
+                }
+            });
+            expectEvent(0, ServerEngine.ServerEvent.DISCONNECTED);
+
+            //Capabilities are off again, so a server that only knows the scheme name accepts the hello
+            connect(0, port);
+            FakeServer.Client second = a.accept();
+            expectEvent(0, ServerEngine.ServerEvent.CONNECTED);
+            second.authenticateLegacy(BasicSharedSecretScheme.schemeName);
+            expectEvent(0, ServerEngine.ServerEvent.AUTHENTICATED);
+        } finally {
+            a.close();
+        }
+    }
+
+    /**
+     * Put a lamp color frame in a slot.
+     * @return True if a frame waiting in the slot was replaced.
+     */
+    private static boolean putColor(FrameSlot slot, int color)
+    {
+        RequestEncoder e = new RequestEncoder();
+        e.encode(1, (short)0x0011, new byte[] { (byte)(color >> 16), (byte)(color >> 8), (byte)color }, 0, 3);
+        return slot.put(e.array(), 0, e.size());
+    }
+
+    private static int colorOf(RequestObject r)
+    {
+        return (r.getUnsignedByte(0) << 16) | (r.getUnsignedByte(1) << 8) | r.getUnsignedByte(2);
+    }
+
+    @Test
+    public void testFrameSlotWaitsForSlowServer() throws Exception
+    {
+        FakeServer a = new FakeServer();
+        try {
+            setCapabilitiesEnabled(0);
+            connect(0, a.getPort());
+            FakeServer.Client c = a.accept();
+            expectEvent(0, ServerEngine.ServerEvent.CONNECTED);
+            //The server uses credit and grants none yet
+            c.authenticate(new byte[] { Authenticator.OPTION_CAPABILITIES, 2, Capabilities.ROLE_SERVER, Capabilities.VERSION,
+                    Authenticator.OPTION_FRAME_TYPES, 3,
+                    PacketConstants.PACKET_TYPE_AUTH, PacketConstants.PACKET_TYPE_DATA, PacketConstants.PACKET_TYPE_CREDIT });
+            expectEvent(0, ServerEngine.ServerEvent.AUTHENTICATED);
+
+            final FrameSlot slot = new FrameSlot();
+            onEngineThread(new Runnable() {
+                @Override
+                public void run() {
+                    engine.addFrameSlot(0, slot);
+                }
+            });
+
+            //The first frame is taken into the queue, where it waits for credit
+            Assert.assertFalse(putColor(slot, 1));
+            long deadline = System.currentTimeMillis() + FakeServer.TIMEOUT;
+            while(slot.isFull() && (System.currentTimeMillis() < deadline))
+                Thread.sleep(10);
+            Assert.assertFalse(slot.isFull());
+
+            //Later frames stay in the slot while the queue is held up, each replacing the last
+            Assert.assertFalse(putColor(slot, 2));
+            Assert.assertTrue(putColor(slot, 3));
+            Assert.assertTrue(putColor(slot, 4));
+            onEngineThread(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            Assert.assertTrue(slot.isFull());
+
+            //Once credit arrives the queued frame is written, then only the newest frame from the slot
+            c.write(PacketConstants.PACKET_TYPE_CREDIT, new byte[] { 0, 10, 0, 0, 4, 0 });
+            Assert.assertEquals(1, colorOf(c.readRequest()));
+            Assert.assertEquals(4, colorOf(c.readRequest()));
+            Assert.assertFalse(slot.isFull());
+        } finally {
+            a.close();
+        }
+    }
+
+    @Test
+    public void testFrameSlotRejectsMalformedFrames()
+    {
+        FrameSlot slot = new FrameSlot();
+        RequestEncoder e = new RequestEncoder();
+        e.encode(1, (short)0x0011, new byte[] { 1, 2, 3 }, 0, 3);
+        byte[] frame = Arrays.copyOf(e.array(), e.size());
+
+        //A truncated frame, a wrong type and a null buffer are all refused, leaving the slot empty
+        byte[] wrongType = frame.clone();
+        wrongType[2] = PacketConstants.PACKET_TYPE_AUTH;
+        byte[][] bad = { Arrays.copyOf(frame, frame.length - 1), wrongType, null };
+        for(byte[] b : bad) {
+            try {
+                slot.put(b, 0, (b == null) ? 0 : b.length);
+                Assert.fail("Malformed frame accepted");
+            } catch(IllegalArgumentException expected) {
+            }
+            Assert.assertFalse(slot.isFull());
+        }
+
+        Assert.assertFalse(slot.put(frame, 0, frame.length));
+        Assert.assertTrue(slot.isFull());
+    }
+
+    @Test
+    public void testExtendedFrameRightAfterHandshake() throws Exception
+    {
+        FakeServer a = new FakeServer();
+        try {
+            setCapabilitiesEnabled(0);
+            connect(0, a.getPort());
+            FakeServer.Client c = a.accept();
+            expectEvent(0, ServerEngine.ServerEvent.CONNECTED);
+            //The server agrees to 128 KB frames, which need the extended length
+            c.authenticate(new byte[] { Authenticator.OPTION_CAPABILITIES, 2, Capabilities.ROLE_SERVER, Capabilities.VERSION,
+                    Authenticator.OPTION_MAX_FRAME_SIZE, 4, 0, 0x02, 0x00, 0x00 });
+
+            //Sent straight after the auth success, without waiting for the client to act on it
+            c.getWriter().setExtendedFraming(true);
+            c.getWriter().setMaxFrameSize(1 << 17);
+            byte[] data = new byte[70000];
+            data[0] = 1;
+            data[data.length - 1] = 2;
+            c.sendRequest(new RequestObject(1, (short)0x1000, data));
+            RequestObject small = new RequestObject(2, (short)0x1001, new byte[] { 3 });
+            c.sendRequest(small);
+
+            expectEvent(0, ServerEngine.ServerEvent.AUTHENTICATED);
+            Assert.assertTrue(engine.getCapabilities(0).usesExtendedFraming());
+            RequestObject big = nextRequest(0);
+            Assert.assertNotNull(big);
+            Assert.assertEquals(data.length, big.getDataLength());
+            Assert.assertArrayEquals(data, big.getData());
+            Assert.assertEquals(small, nextRequest(0));
+        } finally {
+            a.close();
+        }
+    }
+
+    @Test
+    public void testLegacyServerGetsPlainHello() throws Exception
+    {
+        FakeServer a = new FakeServer();
+        try {
+            //Capabilities are off by default, so a server that only knows the scheme name accepts the hello
+            connect(0, a.getPort());
+            FakeServer.Client c = a.accept();
+            expectEvent(0, ServerEngine.ServerEvent.CONNECTED);
+            c.authenticateLegacy(BasicSharedSecretScheme.schemeName);
+            expectEvent(0, ServerEngine.ServerEvent.AUTHENTICATED);
+            Assert.assertEquals(Capabilities.DEFAULT, engine.getCapabilities(0));
+
+            RequestObject r = new RequestObject(1, (short)0x1000, null);
+            send(0, r);
+            Assert.assertEquals(r, c.readRequest());
+        } finally {
+            a.close();
+        }
+    }
+
+    @Test
+    public void testLegacyServerRejectsCapabilities() throws Exception
+    {
+        FakeServer a = new FakeServer();
+        try {
+            //Offering capabilities to a server that compares the scheme name exactly gets the hello rejected
+            setCapabilitiesEnabled(0);
+            connect(0, a.getPort());
+            FakeServer.Client c = a.accept();
+            expectEvent(0, ServerEngine.ServerEvent.CONNECTED);
+            try {
+                c.authenticateLegacy(BasicSharedSecretScheme.schemeName);
+                Assert.fail("Expected the hello to be rejected");
+            } catch(IOException e) {
+                //The server closed the connection
+            }
+            expectEvent(0, ServerEngine.ServerEvent.DISCONNECTED);
+            Assert.assertFalse(engine.isAuthenticated(0));
+        } finally {
+            a.close();
+        }
+    }
+
+    @Test
+    public void testEchoedHelloKeepsDefaults() throws Exception
+    {
+        FakeServer a = new FakeServer();
+        try {
+            //A server that copies the hello back seems to accept every option, but sends no marker
+            setCapabilitiesEnabled(0);
+            connect(0, a.getPort());
+            FakeServer.Client c = a.accept();
+            expectEvent(0, ServerEngine.ServerEvent.CONNECTED);
+            c.authenticateEcho();
+            expectEvent(0, ServerEngine.ServerEvent.AUTHENTICATED);
+            Assert.assertEquals(Capabilities.DEFAULT, engine.getCapabilities(0));
+
+            //Requests go out in plain data frames without waiting for credit
+            RequestObject r = new RequestObject(1, (short)0x1000, null);
+            send(0, r);
+            Assert.assertEquals(r, c.readRequest());
+        } finally {
+            a.close();
+        }
+    }
+}